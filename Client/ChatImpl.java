@@ -5,9 +5,14 @@ import java.net.Socket;
 import java.util.concurrent.ConcurrentHashMap;
 
 class ChatImpl extends Sender implements ReplyCode {
-    private Long FILE_COUNT = 0L;
     private final String serverName;
     private final int chatPort;
+    /* Connessioni parallele proposte per ogni file inviato. */
+    private final int fileStreams;
+    /* Come ricevere i file: p2p, tramite il relay del server o entrambi. */
+    private final TransferMode fileMode;
+    /* Come ricevere le notifiche: sulla chat socket o con le callback RMI. */
+    private final EventMode eventMode;
     private JSONObject obj;
     private final ConcurrentHashMap<Long,String> files;
 
@@ -16,11 +21,17 @@ class ChatImpl extends Sender implements ReplyCode {
      *
      * @param serverName indirizzo IP del server.
      * @param chatPort porta del server per le richieste di chat.
+     * @param fileStreams connessioni parallele proposte per l'invio dei file.
+     * @param fileMode come ricevere i file.
+     * @param eventMode come ricevere le notifiche.
      */
-    public ChatImpl(String serverName, int chatPort){
+    public ChatImpl(String serverName, int chatPort, int fileStreams, TransferMode fileMode, EventMode eventMode){
         super();
         this.serverName = serverName;
         this.chatPort = chatPort;
+        this.fileStreams = fileStreams;
+        this.fileMode = fileMode;
+        this.eventMode = eventMode;
         this.files = new ConcurrentHashMap<>();
     }
 
@@ -37,14 +48,17 @@ class ChatImpl extends Sender implements ReplyCode {
         boolean result = true;
         try {
             server = new Socket(serverName, chatPort);
-            writer = new BufferedWriter(new OutputStreamWriter(server.getOutputStream()));
-            BufferedReader reader = new BufferedReader(new InputStreamReader(server.getInputStream()));
+            boolean binary = WireCodec.handshake(server);
+            writer = new FrameWriter(server.getOutputStream(), binary);
+            FrameReader reader = new FrameReader(server.getInputStream(), binary);
             /* Nuovo thread che si mette in ricezione sulla chat socket */
-            receiverT = new Thread(new ChatReceiver(reader,writer,files));
+            receiverT = new Thread(new ChatReceiver(reader,writer,files,server.getInetAddress(),fileMode));
             receiverT.start();
             obj = new JSONObject();
             obj.put(TYPE,INIT);
             obj.put(USR,userInfo.getUsr());
+            /* Il server mi mette ONLINE e notifica gli amici senza attendere lo stub. */
+            if(eventMode == EventMode.PUSH) obj.put(EVENTS,PUSH);
             result = send(obj);
         } catch (IOException e) {
             /* Non può lanciare UnknownHostExc. perché già aperta request socket. */
@@ -83,18 +97,27 @@ class ChatImpl extends Sender implements ReplyCode {
     public boolean sendFileRequest(String destUsr, String path){
         boolean result = true;
         File file = new File(path);
+        Long ide = null;
         if(file.isFile() && file.canRead()){
+            try {
+                /* Stesso file e stesso amico: stesso Ide, il destinatario riprende il trasferimento. */
+                ide = FileTransfer.ide(destUsr,file);
+            } catch (IOException e) {
+                ide = null;
+            }
+        }
+        if(ide != null){
             obj = new JSONObject();
             obj.put(TYPE,FILEMSG);
             obj.put(TO,destUsr);
             obj.put(FILENAME,file.getName());
-            obj.put(IDE,FILE_COUNT);
+            obj.put(IDE,ide);
             obj.put(LEN,file.length());
+            obj.put(STREAMS,(long) fileStreams);
+            /* Prima dell'invio: la SOCKETINFO può arrivare prima che send() ritorni. */
+            files.put(ide,path);
             result = send(obj);
-            if(result){
-                files.put(FILE_COUNT,path);
-                FILE_COUNT++;
-            }
+            if(!result) files.remove(ide);
         }else{
             System.out.printf("[FILE] Invalid path: %s\n",path);
         }
@@ -1,9 +1,8 @@
-import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -14,9 +13,12 @@ class ChatReceiver extends Receiver implements Runnable {
     /* Riceve le risposte alle richieste effettuate. */
 
     private final ThreadPoolExecutor fileExecutor;
-    private final BufferedWriter writer;
+    private final FrameWriter writer;
     /* <Identificatore,path> dei file da inviare. */
     private final ConcurrentHashMap<Long,String> files;
+    /* Indirizzo del server, su cui gira anche il relay dei file. */
+    private final InetAddress serverAddress;
+    private final TransferMode fileMode;
 
     /**
      * Inizializza un thread "ricevitore" delle risposte alle richieste
@@ -27,19 +29,25 @@ class ChatReceiver extends Receiver implements Runnable {
      * @param reader lato in lettura sulla chat socket.
      * @param writer lato in scrittura sulla chat socket.
      * @param files struttura dati condivisa che contiene i file da inviare.
+     * @param serverAddress indirizzo del server.
+     * @param fileMode come ricevere i file (p2p, relay o entrambi).
      */
-    public ChatReceiver(BufferedReader reader,BufferedWriter writer,ConcurrentHashMap<Long,String> files){
+    public ChatReceiver(FrameReader reader,FrameWriter writer,ConcurrentHashMap<Long,String> files,
+                        InetAddress serverAddress,TransferMode fileMode){
         super(reader);
         this.writer = writer;
         fileExecutor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
         this.files = files;
+        this.serverAddress = serverAddress;
+        this.fileMode = fileMode;
     }
 
     /**
      * Si mette in attesa di ricevere sulla chat socket nuove risposte.
      */
     public void run() {
-        JSONObject obj;
+        /* Risposta riusata per tutte le letture. */
+        Message obj = new Message();
         String msg;
         Long ide;
         Long port;
@@ -47,47 +55,57 @@ class ChatReceiver extends Receiver implements Runnable {
         try {
             while(!currentThread.isInterrupted()) {
                 try{
-                    obj = receive();
+                    if(!receive(obj)) break;
                 }catch (ParseException e){
                     System.err.println("PARSE EXCEPTION CHAT RECEIVER");
                     /* Non termino ma riprovo a leggere */
                     continue;
                 }
-                if(obj == null) break;
-                switch ((String) obj.get(TYPE)) {
+                switch (obj.type) {
                     case ACK:
                         /* Sia ACK che NACK fanno le stesse cose. */
                     case NACK:
-                        msg = (String) obj.get(MSG);
+                        msg = obj.msg;
                         System.out.println(msg);
                         break;
                     case CHATMSG:
-                        msg = "[MSG] "+obj.get(FROM) + ": " + obj.get(MSG);
+                        msg = "[MSG] "+obj.from + ": " + obj.msg;
                         System.out.println(msg);
                         break;
+                    case NEWFRIEND:
+                        /* Notifiche push: stesse stampe di ChatEventImpl. */
+                        System.out.printf("%s (%s) added you as friend!\n",obj.from,obj.lang);
+                        break;
+                    case STATUSCHANGE:
+                        System.out.printf("%s is now %s!\n",obj.from,obj.status);
+                        break;
                     case FILEMSG:
                         /* Destinatario del file. */
-                        String from = (String) obj.get(FROM);
-                        String fileName = (String) obj.get(FILENAME);
-                        ide = (Long) obj.get(IDE);
-                        Long len = (Long) obj.get(LEN);
+                        String from = obj.from;
+                        String fileName = obj.fileName;
+                        ide = obj.ide;
+                        Long len = obj.len;
                         msg = "[FILE] "+from+": " + fileName;
-                        fileExecutor.execute(new FileReceiver(from,fileName,len,ide,writer));
+                        fileExecutor.execute(new FileReceiver(from,fileName,len,ide,streams(obj.streams),
+                                relay(obj.relay),fileMode,writer,fileExecutor));
                         System.out.println(msg);
                         break;
                     case SOCKETINFO:
                         /* Mittente del file. */
-                        String ip = (String) obj.get(IP);
-                        port = (Long) obj.get(PORT);
-                        ide = (Long) obj.get(IDE);
+                        String ip = obj.ip;
+                        port = obj.port;
+                        ide = obj.ide;
                         /* Prendo il valore e rimuovo. */
                         String path = files.remove(ide);
                         if(path != null) {
-                            fileExecutor.execute(new FileSender(ip, port, path));
+                            /* Il relay serve solo con il token del destinatario. */
+                            InetSocketAddress relay = obj.token == null ? null : relay(obj.relay);
+                            fileExecutor.execute(new FileSender(ip, port, relay, obj.token, path,
+                                    streams(obj.streams), fileExecutor));
                         }
                         break;
                     default:
-                        System.err.println("DEFAULT " + obj.get(TYPE));
+                        System.err.println("DEFAULT " + obj.type);
                         break;
                 }
             }
@@ -101,6 +119,29 @@ class ChatReceiver extends Receiver implements Runnable {
         }
     }
 
+    /**
+     * Numero di connessioni parallele di un trasferimento.
+     *
+     * @param streams connessioni proposte o accettate dall'altro
+     *                client, null se non indicate (una connessione).
+     * @return numero di connessioni in [1,FileTransfer.MAX_STREAMS].
+     */
+    private static int streams(Long streams){
+        if(streams == null || streams < 1) return 1;
+        return (int) Math.min(streams, FileTransfer.MAX_STREAMS);
+    }
+
+    /**
+     * Indirizzo del relay dei file.
+     *
+     * @param port porta del relay indicata dal server, null se non lo offre.
+     * @return indirizzo del relay, null se il server non lo offre.
+     */
+    private InetSocketAddress relay(Long port){
+        if(port == null || port < 1 || port > 65535) return null;
+        return new InetSocketAddress(serverAddress, port.intValue());
+    }
+
     /**
      * Termina il pool di thread (gracefully).
      */
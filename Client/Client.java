@@ -21,8 +21,12 @@ class Client {
      * @param requestPort porta del server per le richieste.
      * @param registryPort porta del servizio di registry.
      * @param groupPort porta del server per la ricezione dei messaggi nei gruppi.
+     * @param fileStreams connessioni parallele proposte per l'invio dei file.
+     * @param fileMode come ricevere i file (p2p, relay o entrambi).
+     * @param eventMode come ricevere le notifiche (chat socket o RMI).
      */
-    public Client(String serverName,int requestPort, int registryPort,int chatPort,int groupPort,int mcGroupPort){
+    public Client(String serverName,int requestPort, int registryPort,int chatPort,int groupPort,int mcGroupPort,int fileStreams,
+                  TransferMode fileMode, EventMode eventMode){
         /* Inizializzo la socket di richiesta per le operazioni di register/login. */
         try{
             requestServer = new Socket(serverName,requestPort);
@@ -33,21 +37,23 @@ class Client {
             System.err.println("IO EXCEPTION IN REQUEST SERVER");
             closeSocket();
         }
-        /* Prelevo l'oggetto remoto per effettuare RMI. */
-        try {
-            Registry r = LocateRegistry.getRegistry(serverName,registryPort);
-            rc = (RemChat) r.lookup(RemChat.SERVICE_NAME);
-        } catch (RemoteException e) {
-            System.err.println("UNABLE TO FIND REGISTRY");
-            closeSocket();
-        } catch (NotBoundException e) {
-            System.err.println("UNABLE TO FIND SERVICE NAME");
-            closeSocket();
+        /* Prelevo l'oggetto remoto per effettuare RMI, solo se le notifiche non arrivano sulla chat socket. */
+        if(eventMode == EventMode.RMI) {
+            try {
+                Registry r = LocateRegistry.getRegistry(serverName,registryPort);
+                rc = (RemChat) r.lookup(RemChat.SERVICE_NAME);
+            } catch (RemoteException e) {
+                System.err.println("UNABLE TO FIND REGISTRY");
+                closeSocket();
+            } catch (NotBoundException e) {
+                System.err.println("UNABLE TO FIND SERVICE NAME");
+                closeSocket();
+            }
         }
         /* Implementazione delle operazioni di richiesta. */
-        RequestImpl requestImpl = new RequestImpl(requestServer,mcGroupPort);
+        RequestImpl requestImpl = new RequestImpl(requestServer,mcGroupPort,groupPort);
         /* Implementazione delle operazioni di chat. */
-        ChatImpl chatImpl = new ChatImpl(serverName,chatPort);
+        ChatImpl chatImpl = new ChatImpl(serverName,chatPort,fileStreams,fileMode,eventMode);
         /* Implementazione delle operazioni dei gruppi. */
         GroupImpl groupImpl = new GroupImpl(requestServer.getInetAddress(),groupPort);
         /* Wrapper che contiene gli oggetti per ogni operazione. */
@@ -113,7 +119,7 @@ class Client {
                     op.joinGroup(args[i+1]);
                     break;
                 case "grplist":
-                    op.groupList();
+                    op.groupList("");
                     break;
                 case "closegrp":
                     op.closeGroup(args[i+1]);
@@ -0,0 +1,5 @@
+public enum EventMode {
+    /* Come il client riceve le notifiche di amicizia e di status. */
+    PUSH, /* Sulla chat socket già aperta, insieme ai messaggi. */
+    RMI   /* Con le callback RMI (stub esportato dal client), per i server che non supportano PUSH. */
+}
@@ -1,33 +1,43 @@
 import org.json.simple.JSONObject;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 /**
  * Si occupa di aprire una nuova socket, di comunicarla al
  * mittente del file tramite il server e della ricezione del
- * file.
+ * file. Se il server offre il relay attende il mittente anche
+ * lì, con un token comunicato insieme alla socket.
  */
 class FileReceiver implements Runnable,ReplyCode {
 
     private static final int TIMEOUT = 600000;
-    private static final int BUFFER_SIZE= 512;
+    /* Token del relay: chi lo indovina può prendere il posto del mittente. */
+    private static final SecureRandom TOKENS = new SecureRandom();
     private final Long ide;
     private Long len;
+    private final int streams;
+    private final InetSocketAddress relay;
+    private final TransferMode mode;
+    private final ExecutorService fileExecutor;
     private final String sender;
     private final String fileName;
-    private final BufferedWriter chatWriter;
+    private final FrameWriter chatWriter;
 
     /**
      * Inizializza un nuovo "ricevitore" di file.
@@ -36,14 +46,25 @@ class FileReceiver implements Runnable,ReplyCode {
      * @param fileName nome del file.
      * @param len lunghezza del file da leggere.
      * @param ide identificatore del file.
+     * @param streams connessioni parallele da accettare, se il
+     *                trasferimento non riprende uno precedente.
+     * @param relay indirizzo del relay, null se il server non lo offre.
+     * @param mode come ricevere il file (p2p, relay o entrambi).
      * @param chatWriter lato in scrittura con il chat server.
+     * @param fileExecutor pool che riceve le connessioni parallele.
      */
-    public FileReceiver(String sender, String fileName, Long len, Long ide, BufferedWriter chatWriter){
+    public FileReceiver(String sender, String fileName, Long len, Long ide, int streams,
+                        InetSocketAddress relay, TransferMode mode,
+                        FrameWriter chatWriter, ExecutorService fileExecutor){
         this.sender = sender;
         this.fileName = fileName;
         this.chatWriter = chatWriter;
         this.ide = ide;
         this.len = len;
+        this.streams = streams;
+        this.relay = mode == TransferMode.DIRECT ? null : relay;
+        this.mode = mode;
+        this.fileExecutor = fileExecutor;
     }
 
     /**
@@ -51,87 +72,200 @@ class FileReceiver implements Runnable,ReplyCode {
      * comunica IP e porta al server e si mette in
      * attesa (max TIMEOUT) che il mittente del file
      * si connetta.
-     * Una volta connesso inizia la lettura a chunk
-     * del file fin quando non raggiunge la dimensione
-     * prefissata.
+     * Accetta una connessione per ogni intervallo del
+     * file e affida al pool la ricezione di ognuno; il
+     * file è completo quando tutti gli intervalli lo sono.
      *
      * @implNote il file ricevuto viene salvato nella
-     *           directory in cui è stato eseguito il client.
+     *           directory in cui è stato eseguito il client;
+     *           se il trasferimento si interrompe restano
+     *           nome.part e nome.state, da cui riprende un
+     *           nuovo invio dello stesso file.
      */
     public void run() {
         ServerSocketChannel ssc = null;
-        try {
-            ssc = ServerSocketChannel.open();
-            ServerSocket ss = ssc.socket();
-            /* Setto un tempo massimo per l'inizio della ricezione. */
-            ss.setSoTimeout(TIMEOUT);
-            ss.bind(new InetSocketAddress(0));
-            sendInfo(InetAddress.getLocalHost().getHostAddress(),ss.getLocalPort());
-            /* Devo fare per forza così altrimenti il SoTimeout non funziona. */
-            SocketChannel senderSocket = ss.accept().getChannel();
-            /* Non-direct buffer perché avrei un overhead in allocazione e deallocazione inutile. */
-            ByteBuffer bBuff = ByteBuffer.allocate(BUFFER_SIZE);
-            Thread currentThread = Thread.currentThread();
-            File file = new File(fileName);
-            file.createNewFile();
-            try(FileChannel writeChannel = FileChannel.open(
-                    Paths.get(file.toURI()), StandardOpenOption.WRITE)) {
-                /* Questo serve a farlo terminare quando ho poolTermination(). */
-                while (len > 0 && !currentThread.isInterrupted()) {
-                    len -= senderSocket.read(bBuff);
-                    bBuff.flip();
-                    while (bBuff.hasRemaining()) {
-                        writeChannel.write(bBuff);
+        /* Connessioni al relay non ancora accoppiate con il mittente. */
+        ArrayList<SocketChannel> relayed = new ArrayList<>();
+        File target = new File(fileName);
+        boolean done = false;
+        try(TransferState state = new TransferState(new File(fileName + FileTransfer.STATE),sender,ide,len);
+            FileChannel file = FileChannel.open(new File(fileName + FileTransfer.PART).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            /* Se riprendo un trasferimento tengo gli intervalli del tentativo precedente. */
+            if(state.load(file.size()) == 0){
+                file.truncate(0);
+                state.reset(streams);
+            }else{
+                long verified = 0;
+                for(int i = 0; i < state.streams(); i++) verified += state.offset(i) - state.start(i);
+                System.out.printf("[FILE] RESUMING: %s FROM: %s (%d/%d)\n",fileName,sender,verified,len);
+            }
+            ArrayList<Future<Void>> transfers = new ArrayList<>();
+            try {
+                Long token = null;
+                if(relay != null){
+                    token = TOKENS.nextLong() & Long.MAX_VALUE;
+                    try {
+                        for(int i = 0; i < state.streams(); i++){
+                            relayed.add(FileTransfer.relay(relay,token,FileTransfer.RELAY_RECEIVER));
+                        }
+                    } catch (IOException e) {
+                        if(mode == TransferMode.RELAY) throw e;
+                        System.err.printf("[FILE] RELAY UNREACHABLE, DIRECT ONLY: %s\n",fileName);
+                        close(relayed);
+                        token = null;
                     }
-                    bBuff.clear();
                 }
+                String ip = null;
+                Long port = null;
+                if(mode != TransferMode.RELAY){
+                    ssc = ServerSocketChannel.open();
+                    ssc.bind(new InetSocketAddress(0));
+                    ip = InetAddress.getLocalHost().getHostAddress();
+                    /* JSONSimple accetta solo Long. */
+                    port = Long.valueOf(ssc.socket().getLocalPort());
+                }else if(token == null){
+                    throw new IOException("Relay not offered by the server");
+                }
+                sendInfo(ip,port,state.streams(),token);
+                accept(ssc,relayed,file,state,transfers);
+            }finally {
+                close(relayed);
+                FileTransfer.await(transfers);
             }
-            if(!currentThread.isInterrupted()) {
-                System.out.printf("[FILE RECEIVED] %s: %s\n", sender, fileName);
-            }
+            file.force(true);
+            done = true;
         } catch(SocketTimeoutException | ClosedByInterruptException e) {
-            /* Lancia ClosedByInterExc. anche se dovrebbe lanciare SocketTimeoutExc. */
+            /* Il mittente non si è connesso entro TIMEOUT. */
             System.err.printf("[FILE] TIMEOUT REACHED: %s FROM: %s\n",fileName,sender);
+        } catch (InterruptedIOException e){
+            /* Interrotto durante il trasferimento da poolTermination(). */
         } catch (IOException e){
             e.printStackTrace();
-            System.err.printf("[FILE] UNABLE TO RECEIVE: %s FROM: %s\n",fileName,sender);
+            System.err.printf("[FILE] UNABLE TO RECEIVE: %s FROM: %s (a new send resumes it)\n",fileName,sender);
         }finally {
             close(ssc);
         }
+        if(done){
+            try {
+                FileTransfer.complete(target);
+                System.out.printf("[FILE RECEIVED] %s: %s\n", sender, fileName);
+            } catch (IOException e) {
+                System.err.printf("[FILE] UNABLE TO RENAME: %s%s\n",fileName,FileTransfer.PART);
+            }
+        }
+    }
+
+    /**
+     * Attende le connessioni del mittente, dirette o tramite il relay,
+     * e affida al pool la ricezione di un intervallo per ognuna.
+     *
+     * @param ssc socket per le connessioni dirette, null se si riceve
+     *            solo tramite relay.
+     * @param relayed connessioni al relay in attesa del mittente; quelle
+     *                accoppiate vengono tolte dalla lista.
+     * @param file file parziale.
+     * @param state stato del trasferimento.
+     * @param transfers esiti delle connessioni affidate al pool.
+     * @throws SocketTimeoutException se per TIMEOUT non arriva nessuna connessione.
+     * @throws InterruptedIOException se il thread viene interrotto.
+     * @throws IOException se la socket fallisce o non resta nessuna connessione in attesa.
+     */
+    private void accept(ServerSocketChannel ssc, List<SocketChannel> relayed, FileChannel file,
+                        TransferState state, List<Future<Void>> transfers) throws IOException {
+        Thread currentThread = Thread.currentThread();
+        try(Selector selector = Selector.open()){
+            if(ssc != null){
+                ssc.configureBlocking(false);
+                ssc.register(selector, SelectionKey.OP_ACCEPT);
+            }
+            for(SocketChannel rc : relayed){
+                rc.configureBlocking(false);
+                rc.register(selector, SelectionKey.OP_READ);
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while(transfers.size() < state.streams()){
+                if(selector.selectedKeys().isEmpty()){
+                    long wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0) throw new SocketTimeoutException();
+                    selector.select(wait);
+                    if(currentThread.isInterrupted()) throw new InterruptedIOException();
+                }
+                ArrayList<SelectionKey> ready = new ArrayList<>(selector.selectedKeys());
+                selector.selectedKeys().clear();
+                ArrayList<SocketChannel> paired = new ArrayList<>();
+                for(SelectionKey key : ready){
+                    if(transfers.size() + paired.size() == state.streams()) break;
+                    if(key.isAcceptable()){
+                        SocketChannel sc = ssc.accept();
+                        if(sc != null) submit(sc,file,state,transfers);
+                    }else if(key.isReadable()){
+                        /* Il relay ha risposto: per tornare bloccante il channel deve lasciare il selector. */
+                        key.cancel();
+                        paired.add((SocketChannel) key.channel());
+                    }
+                }
+                if(paired.isEmpty()) continue;
+                selector.selectNow();
+                for(SocketChannel sc : paired){
+                    relayed.remove(sc);
+                    sc.configureBlocking(true);
+                    try {
+                        FileTransfer.paired(sc);
+                    } catch (IOException e) {
+                        /* Attesa scaduta sul relay. */
+                        sc.close();
+                        continue;
+                    }
+                    submit(sc,file,state,transfers);
+                }
+                if(selector.keys().isEmpty() && transfers.size() < state.streams()){
+                    throw new IOException("Relay closed every connection");
+                }
+                deadline = System.currentTimeMillis() + TIMEOUT;
+            }
+        }
+    }
 
+    /**
+     * Affida al pool la ricezione del prossimo intervallo del file.
+     *
+     * @param sc connessione con il mittente.
+     * @param file file parziale.
+     * @param state stato del trasferimento.
+     * @param transfers esiti delle connessioni già affidate al pool.
+     * @throws IOException se il pool è in chiusura.
+     */
+    private void submit(SocketChannel sc, FileChannel file, TransferState state,
+                        List<Future<Void>> transfers) throws IOException {
+        int range = transfers.size();
+        /* Il trasferimento si ferma fra un blocco e l'altro quando ho poolTermination(). */
+        transfers.add(FileTransfer.submit(fileExecutor,sc,c -> FileTransfer.receive(c,file,state,range)));
     }
 
     /**
-     * Invia le informazioni (IP e porta) al server
-     * per la ricezione del file.
+     * Invia le informazioni (IP e porta, token del relay) al
+     * server per la ricezione del file.
      *
-     * @param ip ip del destinatario del file.
-     * @param port porta del destinatario del file.
+     * @param ip ip del destinatario del file, null se riceve solo tramite relay.
+     * @param port porta del destinatario del file, null se riceve solo tramite relay.
+     * @param streams connessioni parallele che il mittente deve aprire.
+     * @param token token con cui il destinatario attende sul relay, null se non lo usa.
      * @throws IOException se l'invio delle info al server fallisce.
      */
-    private void sendInfo(String ip, int port) throws IOException{
+    private void sendInfo(String ip, Long port, int streams, Long token) throws IOException{
         JSONObject obj = new JSONObject();
         obj.put(TYPE, SOCKETINFO);
         obj.put(USR,sender);
-        obj.put(IP,ip);
-        /* JSONSimple accetta solo Long. */
-        obj.put(PORT,new Long(port));
+        if(ip != null){
+            obj.put(IP,ip);
+            obj.put(PORT,port);
+        }
         obj.put(IDE,ide);
-        send(chatWriter,obj);
-    }
-
-    /**
-     * Invia un messaggio al chat server.
-     *
-     * @param writer writer con il server.
-     * @param obj richiesta da inviare.
-     * @throws IOException se l'invio della richiesta al server fallisce.
-     * @implNote L'eccezione viene fatta rimbalzare fino al metodo run().
-     */
-    private void send(BufferedWriter writer,JSONObject obj) throws IOException{
-        writer.write(obj.toJSONString());
-        writer.newLine();
-        writer.flush();
+        /* JSONSimple accetta solo Long. */
+        obj.put(STREAMS,(long) streams);
+        if(token != null) obj.put(TOKEN,token);
+        chatWriter.send(obj);
     }
 
     /**
@@ -148,4 +282,20 @@ class FileReceiver implements Runnable,ReplyCode {
             }
         }
     }
+
+    /**
+     * Chiude le connessioni al relay non usate.
+     *
+     * @param relayed connessioni da chiudere, la lista viene svuotata.
+     */
+    private void close(List<SocketChannel> relayed){
+        for(SocketChannel sc : relayed){
+            try {
+                sc.close();
+            } catch (IOException e) {
+                System.err.println("UNABLE TO CLOSE RELAY SOCKET RECEIVER");
+            }
+        }
+        relayed.clear();
+    }
 }
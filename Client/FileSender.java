@@ -1,76 +1,105 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 class FileSender implements Runnable {
-    private static final int BUFFER_SIZE= 512;
+    /* Attesa (ms) della connessione p2p prima di passare al relay. */
+    private static final int CONNECT_TIMEOUT = 3000;
     private final String ip;
     private final Long port;
+    private final InetSocketAddress relay;
+    private final Long token;
     private final String path;
+    private final int streams;
+    private final ExecutorService fileExecutor;
 
     /**
      * Inizializza le informazioni per l'apertura
      * della connessione p2p per l'invio del file.
      *
-     * @param ip ip del destinatario.
-     * @param port porta del destinatario.
+     * @param ip ip del destinatario, null se riceve solo tramite relay.
+     * @param port porta del destinatario, null se riceve solo tramite relay.
+     * @param relay indirizzo del relay, null se il destinatario non lo usa.
+     * @param token token del trasferimento sul relay.
      * @param path percorso del file da spedire.
+     * @param streams connessioni parallele accettate dal destinatario.
+     * @param fileExecutor pool che serve le connessioni parallele.
      */
-    public FileSender(String ip, Long port, String path){
+    public FileSender(String ip, Long port, InetSocketAddress relay, Long token, String path,
+                      int streams, ExecutorService fileExecutor){
         this.ip = ip;
         this.port = port;
+        this.relay = relay;
+        this.token = token;
         this.path = path;
+        this.streams = streams;
+        this.fileExecutor = fileExecutor;
     }
 
     /**
-     * Si connette alla socket <ip,porta> fornita dal server
-     * ed inizia il trasferimento del file.
+     * Apre streams connessioni alla socket <ip,porta> fornita
+     * dal server, o al relay se il destinatario non è raggiungibile,
+     * e affida al pool l'invio dell'intervallo del file che il
+     * destinatario chiede su ognuna.
      */
     public void run() {
-        /* Non-direct buffer perché avrei un overhead in allocazione e deallocazione inutile. */
-        ByteBuffer bBuf = ByteBuffer.allocate(BUFFER_SIZE);
         File file = new File(path);
-        SocketChannel sc=null;
         try(FileChannel readChannel = FileChannel.open(
                 Paths.get(file.toURI()), StandardOpenOption.READ)){
-            sc = SocketChannel.open();
-            sc.connect(new InetSocketAddress(ip,port.intValue()));
-            Thread currentThread = Thread.currentThread();
-            /* Questo serve a farlo terminare quando ho poolTermination(). */
-            while(readChannel.read(bBuf)!= -1 && !currentThread.isInterrupted()){
-                bBuf.flip();
-                while(bBuf.hasRemaining()){
-                    sc.write(bBuf);
+            ArrayList<Future<Void>> transfers = new ArrayList<>();
+            boolean direct = ip != null && port != null;
+            try {
+                for(int i = 0; i < streams; i++){
+                    SocketChannel sc = null;
+                    if(direct){
+                        try {
+                            sc = FileTransfer.connect(new InetSocketAddress(ip,port.intValue()),CONNECT_TIMEOUT);
+                        } catch (IOException e) {
+                            if(relay == null) throw e;
+                            /* Destinatario non raggiungibile: le altre connessioni passano subito dal relay. */
+                            direct = false;
+                        }
+                    }
+                    if(sc == null) sc = relay();
+                    /* Il trasferimento si ferma fra un blocco e l'altro quando ho poolTermination(). */
+                    transfers.add(FileTransfer.submit(fileExecutor,sc,c -> FileTransfer.send(readChannel,c)));
                 }
-                bBuf.clear();
+            }finally {
+                FileTransfer.await(transfers);
             }
-            if(!currentThread.isInterrupted())
-                System.out.printf("[FILE SENT] %s\n",file.getName());
-            else System.out.printf("[FILE] INTERRUPTED: %s\n",file.getName());
+            System.out.printf("[FILE SENT] %s\n",file.getName());
+        }catch (InterruptedIOException e){
+            System.out.printf("[FILE] INTERRUPTED: %s\n",file.getName());
         }catch (IOException e){
             System.err.printf("[FILE] UNABLE TO SEND: %s\n",file.getName());
-        }finally {
-            close(sc);
         }
     }
 
     /**
-     * Chiude la socket per l'invio del file (p2p).
+     * Apre una connessione tramite il relay e attende che
+     * venga accoppiata con una del destinatario.
      *
-     * @param sc socket da chiudere.
+     * @return connessione verso il destinatario.
+     * @throws IOException se il relay non è offerto, non è
+     *                     raggiungibile o chiude la connessione.
      */
-    private void close(SocketChannel sc){
-        if(sc != null) {
-            try {
-                sc.close();
-            }catch (IOException e) {
-                System.err.println("UNABLE TO CLOSE FILE SOCKET SENDER");
-            }
+    private SocketChannel relay() throws IOException {
+        if(relay == null || token == null) throw new IOException("No route to the receiver");
+        SocketChannel sc = FileTransfer.relay(relay,token,FileTransfer.RELAY_SENDER);
+        try {
+            FileTransfer.paired(sc);
+        } catch (IOException e) {
+            sc.close();
+            throw e;
         }
+        return sc;
     }
 }
@@ -0,0 +1,332 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32C;
+
+/**
+ * Protocollo del trasferimento dei file p2p, a blocchi verificati.
+ * Il file è diviso in intervalli, uno per ognuna delle connessioni
+ * parallele concordate con FILEMSG/SOCKETINFO. Su ogni connessione
+ * il destinatario indica l'intervallo (inizio, offset da cui riprendere,
+ * fine: 8 byte ciascuno) e il mittente risponde con i blocchi da lì in poi:
+ * lunghezza (4 byte) | crc32c (4 byte) | al più CHUNK byte,
+ * chiusi da un blocco di lunghezza 0 seguito dallo SHA-256 dell'intervallo.
+ * Il destinatario scrive su nome.part e ricorda in nome.state i byte
+ * verificati; a trasferimento completo rinomina il file.
+ * Se il server offre il relay le connessioni possono passare da lì:
+ * il client si presenta con token (8 byte) e ruolo (1 byte) e attende
+ * il byte PAIRED, poi il protocollo è lo stesso delle connessioni p2p.
+ */
+class FileTransfer {
+    static final int CHUNK = 1 << 20;
+    static final int MAX_STREAMS = 16;
+    private static final int HEADER = 8;
+    private static final int DIGEST_LEN = 32;
+    static final String PART = ".part";
+    static final String STATE = ".state";
+    /* Ruoli e conferma di accoppiamento, come in Relay del server. */
+    static final int RELAY_RECEIVER = 0;
+    static final int RELAY_SENDER = 1;
+    private static final int PAIRED = 1;
+
+    /**
+     * Calcola l'identificatore di un file da inviare ad un amico.
+     * Lo stesso file, non modificato, inviato allo stesso amico ha
+     * sempre lo stesso identificatore, così un nuovo invio riprende
+     * il trasferimento interrotto.
+     *
+     * @param destUsr destinatario del file.
+     * @param file file da inviare.
+     * @return identificatore non negativo del file.
+     * @throws IOException se il percorso del file non può essere risolto.
+     */
+    static long ide(String destUsr, File file) throws IOException {
+        MessageDigest md = sha256();
+        md.update(destUsr.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(file.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+        md.update(ByteBuffer.allocate(16).putLong(file.length()).putLong(file.lastModified()).array());
+        return ByteBuffer.wrap(md.digest()).getLong() & Long.MAX_VALUE;
+    }
+
+    /**
+     * Invia l'intervallo del file chiesto dal destinatario.
+     *
+     * @param file file da inviare.
+     * @param sc socket verso il destinatario.
+     * @throws IOException se la lettura del file o l'invio falliscono,
+     *                     o se l'intervallo chiesto non è valido.
+     * @throws InterruptedIOException se il thread viene interrotto.
+     * @implNote più connessioni possono condividere lo stesso FileChannel:
+     *           le letture sono posizionali.
+     */
+    static void send(FileChannel file, SocketChannel sc) throws IOException {
+        /* crc e digest leggono comunque ogni byte: con un buffer direct letture
+         * e scritture non passano da un buffer temporaneo e il file non resta
+         * mappato (su Windows impedirebbe rename e truncate). */
+        ByteBuffer buf = ByteBuffer.allocateDirect(HEADER + CHUNK);
+        readFully(sc, buf.limit(24));
+        buf.flip();
+        long start = buf.getLong();
+        long position = buf.getLong();
+        long end = buf.getLong();
+        if(start < 0 || position < start || end < position || end > file.size()){
+            throw new IOException("Invalid range: " + start + " " + position + " " + end);
+        }
+        MessageDigest md = sha256();
+        /* Il digest copre tutto l'intervallo, anche la parte già ricevuta. */
+        digest(file, start, position, md, buf);
+        CRC32C crc = new CRC32C();
+        Thread currentThread = Thread.currentThread();
+        while(position < end){
+            if(currentThread.isInterrupted()) throw new InterruptedIOException();
+            buf.clear().position(HEADER).limit(HEADER + (int) Math.min(CHUNK, end - position));
+            while(buf.hasRemaining()){
+                if(file.read(buf, position + buf.position() - HEADER) < 0) throw new EOFException("File shorter than expected");
+            }
+            int len = buf.position() - HEADER;
+            buf.flip().position(HEADER);
+            crc.reset();
+            crc.update(buf.duplicate());
+            md.update(buf.duplicate());
+            buf.putInt(0, len).putInt(4, (int) crc.getValue()).position(0);
+            writeFully(sc, buf);
+            position += len;
+        }
+        buf.clear();
+        buf.putInt(0).putInt(0).put(md.digest()).flip();
+        writeFully(sc, buf);
+    }
+
+    /**
+     * Riceve un intervallo del file riprendendo, se possibile,
+     * da dove si era fermato il trasferimento precedente.
+     *
+     * @param sc socket verso il mittente.
+     * @param file file parziale, condiviso fra le connessioni.
+     * @param state stato del trasferimento.
+     * @param range indice dell'intervallo da ricevere.
+     * @throws IOException se la ricezione o la scrittura falliscono, o se un
+     *                     blocco è corrotto: i byte verificati restano validi
+     *                     per il prossimo tentativo.
+     * @throws InterruptedIOException se il thread viene interrotto.
+     * @implNote se il digest dell'intervallo non torna l'intervallo
+     *           riparte da capo al prossimo tentativo.
+     */
+    static void receive(SocketChannel sc, FileChannel file, TransferState state, int range) throws IOException {
+        long start = state.start(range);
+        long end = state.end(range);
+        long position = state.offset(range);
+        ByteBuffer buf = ByteBuffer.allocateDirect(HEADER + CHUNK);
+        MessageDigest md = sha256();
+        digest(file, start, position, md, buf);
+        buf.clear().putLong(start).putLong(position).putLong(end).flip();
+        writeFully(sc, buf);
+        CRC32C crc = new CRC32C();
+        Thread currentThread = Thread.currentThread();
+        while(true){
+            if(currentThread.isInterrupted()) throw new InterruptedIOException();
+            readFully(sc, buf.clear().limit(HEADER));
+            int chunk = buf.getInt(0);
+            int expected = buf.getInt(4);
+            if(chunk == 0) break;
+            if(chunk < 0 || chunk > CHUNK || chunk > end - position) throw new IOException("Invalid chunk length: " + chunk);
+            readFully(sc, buf.clear().limit(chunk));
+            buf.flip();
+            crc.reset();
+            crc.update(buf.duplicate());
+            if((int) crc.getValue() != expected) throw new IOException("Chunk checksum mismatch at " + position);
+            md.update(buf.duplicate());
+            while(buf.hasRemaining()) file.write(buf, position + buf.position());
+            position += chunk;
+            state.save(range, position);
+        }
+        if(position != end) throw new EOFException("Range ended at " + position + " of " + end);
+        readFully(sc, buf.clear().limit(DIGEST_LEN));
+        byte[] remote = new byte[DIGEST_LEN];
+        buf.flip().get(remote);
+        if(!MessageDigest.isEqual(remote, md.digest())){
+            state.save(range, start);
+            throw new IOException("Digest mismatch in range " + start + "-" + end);
+        }
+    }
+
+    /**
+     * Completa un trasferimento: rinomina il file
+     * parziale e cancella il file di stato.
+     *
+     * @param target file ricevuto.
+     * @throws IOException se la rinomina fallisce.
+     * @implNote va invocato con il file parziale già chiuso e
+     *           reso persistente con force().
+     */
+    static void complete(File target) throws IOException {
+        Files.move(new File(target.getPath() + PART).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(new File(target.getPath() + STATE).toPath());
+    }
+
+    /**
+     * Apre una connessione p2p con un tempo massimo per la connect.
+     *
+     * @param address indirizzo dell'altro client.
+     * @param timeout attesa massima (ms).
+     * @return connessione aperta.
+     * @throws IOException se la connessione fallisce o non riesce in tempo.
+     */
+    static SocketChannel connect(InetSocketAddress address, int timeout) throws IOException {
+        SocketChannel sc = SocketChannel.open();
+        try {
+            sc.socket().connect(address, timeout);
+        } catch (IOException e) {
+            sc.close();
+            throw e;
+        }
+        return sc;
+    }
+
+    /**
+     * Apre una connessione al relay del server e si presenta.
+     *
+     * @param relay indirizzo del relay.
+     * @param token token del trasferimento, scelto dal destinatario.
+     * @param role RELAY_RECEIVER o RELAY_SENDER.
+     * @return connessione in attesa dell'altro client (vedi paired()).
+     * @throws IOException se la connessione fallisce.
+     */
+    static SocketChannel relay(InetSocketAddress relay, long token, int role) throws IOException {
+        SocketChannel sc = SocketChannel.open(relay);
+        try {
+            writeFully(sc, ByteBuffer.allocate(9).putLong(token).put((byte) role).flip());
+        } catch (IOException e) {
+            sc.close();
+            throw e;
+        }
+        return sc;
+    }
+
+    /**
+     * Attende che il relay accoppi la connessione con una dell'altro client.
+     *
+     * @param sc connessione aperta con relay().
+     * @throws IOException se il relay chiude la connessione (attesa
+     *                     scaduta, token non autorizzato, relay pieno).
+     */
+    static void paired(SocketChannel sc) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        if(sc.read(buf) < 0) throw new EOFException("Relay closed the connection");
+        if(buf.get(0) != PAIRED) throw new IOException("Unexpected relay reply: " + buf.get(0));
+    }
+
+    /**
+     * Lavoro da svolgere su una delle connessioni di un trasferimento.
+     */
+    interface Stream {
+        void run(SocketChannel sc) throws IOException;
+    }
+
+    /**
+     * Affida una connessione del trasferimento ad un thread del pool,
+     * che la chiude al termine.
+     *
+     * @param executor pool dei trasferimenti.
+     * @param sc connessione.
+     * @param stream lavoro da svolgere sulla connessione.
+     * @return esito del lavoro.
+     * @throws InterruptedIOException se il pool è in chiusura.
+     * @throws IOException se la chiusura della connessione rifiutata fallisce.
+     */
+    static Future<Void> submit(ExecutorService executor, SocketChannel sc, Stream stream) throws IOException {
+        try {
+            return executor.submit(() -> {
+                try(SocketChannel c = sc){
+                    stream.run(c);
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            /* poolTermination() è già iniziata. */
+            sc.close();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Attende la fine di tutte le connessioni di un trasferimento.
+     *
+     * @param transfers esiti delle connessioni.
+     * @throws IOException il primo errore di una connessione.
+     * @throws InterruptedIOException se il thread viene interrotto
+     *                                (le connessioni vengono interrotte).
+     */
+    static void await(List<Future<Void>> transfers) throws IOException {
+        IOException error = null;
+        for(Future<Void> transfer : transfers){
+            try {
+                transfer.get();
+            } catch (InterruptedException e) {
+                for(Future<Void> t : transfers) t.cancel(true);
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if(error != null) continue;
+                error = e.getCause() instanceof IOException ?
+                        (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if(error != null) throw error;
+    }
+
+    /**
+     * Aggiunge al digest una porzione del file.
+     *
+     * @param file file da leggere.
+     * @param position primo byte da leggere.
+     * @param end posizione a cui fermarsi.
+     * @param md digest da aggiornare.
+     * @param buf buffer di appoggio.
+     * @throws IOException se la lettura fallisce.
+     */
+    private static void digest(FileChannel file, long position, long end, MessageDigest md, ByteBuffer buf) throws IOException {
+        while(position < end){
+            buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+            int read = file.read(buf, position);
+            if(read < 0) throw new EOFException("File shorter than expected");
+            buf.flip();
+            md.update(buf);
+            position += read;
+        }
+    }
+
+    private static void readFully(SocketChannel sc, ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()){
+            if(sc.read(buf) < 0) throw new EOFException("Connection closed before end of file");
+        }
+    }
+
+    private static void writeFully(SocketChannel sc, ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) sc.write(buf);
+    }
+
+    private static MessageDigest sha256(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            /* Ogni JVM deve fornire SHA-256. */
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import org.json.simple.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lato in scrittura di una connessione: scrive i messaggi come JSON
+ * su riga oppure come frame binari, a seconda della codifica negoziata.
+ * Thread-safe: ogni messaggio è scritto in maniera atomica.
+ */
+class FrameWriter {
+    private final boolean binary;
+    private final OutputStream out;
+    private final BufferedWriter writer;
+
+    /**
+     * Inizializza il writer sulla connessione.
+     *
+     * @param out stream in scrittura della connessione.
+     * @param binary true se è stata negoziata la codifica binaria.
+     */
+    FrameWriter(OutputStream out, boolean binary){
+        this.binary = binary;
+        this.out = binary ? new BufferedOutputStream(out) : out;
+        this.writer = binary ? null : new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Ritorna true se la connessione usa la codifica binaria.
+     *
+     * @return true se binaria, false se JSON.
+     */
+    boolean isBinary(){
+        return binary;
+    }
+
+    /**
+     * Scrive il messaggio nel buffer senza inviarlo.
+     *
+     * @param obj messaggio da scrivere.
+     * @throws IOException se la scrittura fallisce.
+     */
+    synchronized void write(JSONObject obj) throws IOException {
+        if(binary){
+            out.write(WireCodec.encode(obj));
+        }else{
+            writer.write(obj.toJSONString());
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Invia i messaggi scritti nel buffer.
+     *
+     * @throws IOException se l'invio fallisce.
+     */
+    synchronized void flush() throws IOException {
+        if(binary) out.flush();
+        else writer.flush();
+    }
+
+    /**
+     * Scrive ed invia subito il messaggio.
+     *
+     * @param obj messaggio da inviare.
+     * @throws IOException se l'invio fallisce.
+     */
+    synchronized void send(JSONObject obj) throws IOException {
+        write(obj);
+        flush();
+    }
+
+    /**
+     * Chiude la connessione.
+     *
+     * @throws IOException se la chiusura fallisce.
+     */
+    void close() throws IOException {
+        if(binary) out.close();
+        else writer.close();
+    }
+}
@@ -226,7 +226,8 @@ class GraphicImpl {
         /* Listener per il bottone della lista dei gruppi. */
         groupListButton.addMouseListener(new MouseAdapter() {
             public void mouseClicked(java.awt.event.MouseEvent e){
-                op.groupList();
+                String prefix = searchText.getText();
+                op.groupList(prefix);
             }
         });
         /* Listener per il bottone di chiusura di un gruppo. */
@@ -1,6 +1,5 @@
 import org.json.simple.JSONObject;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -9,7 +8,8 @@ import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 
 public class GroupImpl extends Sender implements ReplyCode {
-    public static final int MAX_UDP_PCKT_LEN = 1024;
+    /* Il server aggiunge campi al messaggio prima di inoltrarlo al gruppo. */
+    private static final int MAX_GRP_MSG_LEN = Fragmenter.MAX_MESSAGE - 256;
     private final InetAddress serverAddr;
     private final int groupPort;
     private JSONObject obj;
@@ -34,7 +34,7 @@ public class GroupImpl extends Sender implements ReplyCode {
      *
      * @param writer writer sulla request socket.
      */
-    public boolean init(BufferedWriter writer){
+    public boolean init(FrameWriter writer){
         boolean result = true;
         this.writer = writer;
         try {
@@ -81,16 +81,21 @@ public class GroupImpl extends Sender implements ReplyCode {
     }
 
     /**
-     * Invia una richiesta al server per ricevere la lista
+     * Invia una richiesta al server per ricevere una pagina
      * dei gruppi presenti con indicazione di quelli a
      * cui appartiene.
      *
+     * @param prefix prefisso del nome dei gruppi, "" per tutti.
+     * @param cursor ultimo gruppo della pagina precedente,
+     *               null per la prima pagina.
      * @return true se l'invio della richiesta va a buon fine,
      *         false altrimenti.
      */
-    public boolean groupList(){
+    public boolean groupList(String prefix, String cursor){
         obj = new JSONObject();
         obj.put(TYPE,GRPLST);
+        if(!prefix.isEmpty()) obj.put(GRPNAME,prefix);
+        if(cursor != null) obj.put(CURSOR,cursor);
         return send(obj);
     }
 
@@ -126,14 +131,15 @@ public class GroupImpl extends Sender implements ReplyCode {
         obj.put(GRPNAME,destGrp);
         obj.put(MSG,msg);
         byte[] json  = obj.toJSONString().getBytes(StandardCharsets.UTF_8);
-        if(json.length > MAX_UDP_PCKT_LEN) {
+        if(json.length > MAX_GRP_MSG_LEN) {
             System.out.printf("[GROUP] Message to %s too big!\n", destGrp);
             result = false;
         }else {
-            /* Mando il pacchetto UDP con la richiesta. */
-            DatagramPacket sndPckt = new DatagramPacket(json, json.length, serverAddr, groupPort);
+            /* Mando i pacchetti UDP con la richiesta, frammentata se supera un datagram. */
             try {
-                groupServer.send(sndPckt);
+                for(byte[] datagram : Fragmenter.split(json)){
+                    groupServer.send(new DatagramPacket(datagram, datagram.length, serverAddr, groupPort));
+                }
             } catch (IOException e) {
                 System.err.printf("IO EXCEPTION SENDING GROUP MSG TO: %s\n",destGrp);
                 result = false;
@@ -6,10 +6,11 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
-import java.nio.charset.StandardCharsets;
 
 class GroupReceiver implements Runnable,ReplyCode {
     private final DatagramSocket groupServer;
+    private final byte[] buf;
+    private final Fragmenter.Reassembler reassembler;
 
     /**
      * Inizializza la datagram socket per i gruppi.
@@ -18,6 +19,8 @@ class GroupReceiver implements Runnable,ReplyCode {
      */
     public GroupReceiver(DatagramSocket groupServer){
         this.groupServer = groupServer;
+        this.buf = new byte[Fragmenter.MAX_DATAGRAM];
+        this.reassembler = new Fragmenter.Reassembler();
     }
 
     /**
@@ -52,19 +55,22 @@ class GroupReceiver implements Runnable,ReplyCode {
     }
 
     /**
-     * Riceve un pacchetto UDP dalla socket per i gruppi.
+     * Riceve una risposta, anche frammentata in più
+     * pacchetti UDP, dalla socket per i gruppi.
      *
-     * @return JSONOBJECT contenente il pacchetto UDP ricevuto
+     * @return JSONOBJECT contenente la risposta ricevuta
      * @throws IOException se la ricezione del pacchetto fallisce.
      * @throws ParseException se il parsing del pacchetto fallisce.
      */
     private JSONObject receive() throws IOException,ParseException{
         JSONParser parser = new JSONParser();
-        byte[] buf = new byte[GroupImpl.MAX_UDP_PCKT_LEN];
-        DatagramPacket recv = new DatagramPacket(buf,buf.length);
-        groupServer.receive(recv);
-        /* Prelievo SOLO i dati realmente inviati. */
-        String json = new String(recv.getData(),0,recv.getLength(), StandardCharsets.UTF_8);
+        String json;
+        do {
+            DatagramPacket recv = new DatagramPacket(buf,buf.length);
+            groupServer.receive(recv);
+            /* Prelievo SOLO i dati realmente inviati. */
+            json = reassembler.add(recv);
+        } while(json == null);
         return (JSONObject) parser.parse(json);
     }
 }
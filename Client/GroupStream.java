@@ -0,0 +1,136 @@
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Stato di ricezione dei messaggi di un gruppo multicast.
+ * I messaggi sono numerati dal server: quelli arrivati in ordine
+ * vengono consegnati subito, quelli successivi ad un buco vengono
+ * tenuti da parte finché il buco non è riempito dalla ritrasmissione.
+ * Se il buco non si riempie dopo MAX_NACKS richieste i messaggi
+ * mancanti sono dati per persi.
+ */
+class GroupStream {
+    /* Attesa (ms) fra due richieste di ritrasmissione dello stesso buco. */
+    static final long NACK_INTERVAL = 200;
+    private static final int MAX_NACKS = 5;
+    /* Messaggi fuori ordine tenuti al massimo. */
+    private static final int MAX_PENDING = 1024;
+    /* Buchi chiesti al più per volta. */
+    private static final int MAX_GAPS = 8;
+
+    private final String grpName;
+    private final TreeMap<Long,JSONObject> pending;
+    private long epoch;
+    /* Prossimo numero di sequenza da consegnare, -1 se non ancora noto. */
+    private long expected;
+    private int nacks;
+    private long lastNack;
+
+    /**
+     * Inizializza lo stato di ricezione del gruppo.
+     *
+     * @param grpName nome del gruppo.
+     */
+    GroupStream(String grpName){
+        this.grpName = grpName;
+        this.pending = new TreeMap<>();
+        this.expected = -1;
+    }
+
+    String getGrpName(){
+        return grpName;
+    }
+
+    /**
+     * Riceve un messaggio numerato e ritorna, in ordine,
+     * i messaggi che possono essere consegnati.
+     *
+     * @param epoch istanza del gruppo che ha inviato il messaggio.
+     * @param seq numero di sequenza del messaggio.
+     * @param obj messaggio ricevuto.
+     * @return messaggi da consegnare, vuota se il messaggio
+     *         è un duplicato o segue un buco.
+     * @implNote un'epoca diversa indica che il gruppo è stato ricreato
+     *           (o il server riavviato): la numerazione riparte.
+     */
+    ArrayList<JSONObject> receive(long epoch, long seq, JSONObject obj){
+        if(epoch != this.epoch || expected < 0){
+            this.epoch = epoch;
+            pending.clear();
+            expected = seq;
+            nacks = 0;
+        }
+        if(seq >= expected) pending.putIfAbsent(seq,obj);
+        if(pending.size() > MAX_PENDING) skip();
+        return deliverable();
+    }
+
+    /**
+     * Ritorna i buchi da chiedere al server, se è il momento
+     * di chiederli, e rinuncia al primo buco dopo MAX_NACKS
+     * richieste senza risposta.
+     *
+     * @param now istante corrente (ms).
+     * @return coppie (primo, ultimo) dei numeri di sequenza mancanti,
+     *         al più MAX_GAPS, vuota se non c'è nulla da chiedere.
+     */
+    ArrayList<long[]> nack(long now){
+        ArrayList<long[]> gaps = new ArrayList<>();
+        if(pending.isEmpty()) return gaps;
+        if(nacks > 0 && now - lastNack < NACK_INTERVAL) return gaps;
+        if(nacks == MAX_NACKS){
+            /* I messaggi successivi al buco vanno poi consegnati con drain(). */
+            skip();
+            nacks = 0;
+            return gaps;
+        }
+        long next = expected;
+        for(long seq : pending.keySet()){
+            if(seq > next) gaps.add(new long[]{next, seq - 1});
+            if(gaps.size() == MAX_GAPS) break;
+            next = seq + 1;
+        }
+        nacks++;
+        lastNack = now;
+        return gaps;
+    }
+
+    /**
+     * Consegna i messaggi tenuti da parte
+     * dopo aver rinunciato al primo buco.
+     *
+     * @return messaggi da consegnare.
+     */
+    ArrayList<JSONObject> drain(){
+        return deliverable();
+    }
+
+    /**
+     * Rinuncia ai messaggi del primo buco.
+     */
+    private void skip(){
+        long next = pending.firstKey();
+        System.out.printf("[GROUP: %s] %d messages lost\n",grpName,next - expected);
+        expected = next;
+    }
+
+    /**
+     * Toglie dai messaggi tenuti da parte
+     * quelli che possono essere consegnati.
+     *
+     * @return messaggi da consegnare, in ordine.
+     */
+    private ArrayList<JSONObject> deliverable(){
+        ArrayList<JSONObject> ready = new ArrayList<>();
+        JSONObject obj;
+        while((obj = pending.remove(expected)) != null){
+            ready.add(obj);
+            expected++;
+            /* Il buco, se c'era, è stato riempito. */
+            nacks = 0;
+        }
+        return ready;
+    }
+}
@@ -4,6 +4,12 @@ class MainClient {
     private static final int STD_CHAT_PORT = 10002;
     private static final int STD_GROUP_PORT =10003;
     private static final int STD_MC_GROUP_PORT = 10004;
+    /* Connessioni parallele per l'invio di un file. */
+    private static final int STD_FILE_STREAMS = 1;
+    /* Ricezione dei file p2p, con il relay del server come alternativa. */
+    private static final TransferMode STD_FILE_MODE = TransferMode.AUTO;
+    /* Notifiche sulla chat socket; rmi per i server che non le supportano. */
+    private static final EventMode STD_EVENT_MODE = EventMode.PUSH;
     private static final int MIN_PORT_NUMBER = 1024;
     private static final int MAX_PORT_NUMBER = 65535;
     private static final String SERVER_NAME = "localhost";
@@ -23,7 +29,7 @@ class MainClient {
      * @param args operazioni da testare.
      */
     private static void testMode(String[] args){
-        Client c = new Client(SERVER_NAME,STD_REQUEST_PORT,STD_REGISTRY_PORT,STD_CHAT_PORT,STD_GROUP_PORT,STD_MC_GROUP_PORT);
+        Client c = new Client(SERVER_NAME,STD_REQUEST_PORT,STD_REGISTRY_PORT,STD_CHAT_PORT,STD_GROUP_PORT,STD_MC_GROUP_PORT,STD_FILE_STREAMS,STD_FILE_MODE,STD_EVENT_MODE);
         c.test(args);
     }
 
@@ -39,9 +45,18 @@ class MainClient {
         int groupPort = STD_GROUP_PORT;
         /* Porta usata dal multicast. */
         int mcGroupPort = STD_MC_GROUP_PORT;
+        int fileStreams = STD_FILE_STREAMS;
+        TransferMode fileMode = STD_FILE_MODE;
+        EventMode eventMode = STD_EVENT_MODE;
         String serverName = SERVER_NAME;
         try {
             switch (args.length) {
+                case 9:
+                    eventMode = EventMode.valueOf(args[8].toUpperCase());
+                case 8:
+                    fileMode = TransferMode.valueOf(args[7].toUpperCase());
+                case 7:
+                    fileStreams = Integer.parseInt(args[6]);
                 case 6:
                     mcGroupPort = Integer.parseInt(args[5]);
                 case 5:
@@ -58,9 +73,10 @@ class MainClient {
                 default:
                     break;
             }
-        }catch(NumberFormatException e){
+        }catch(IllegalArgumentException e){
+            /* NumberFormatException o modalità sconosciuta. */
             System.out.println("java MainClient [serverName] [requestPort]" +
-                    " [registryPort] [chatPort] [groupPort] [mcGroupPort]");
+                    " [registryPort] [chatPort] [groupPort] [mcGroupPort] [fileStreams] [direct|relay|auto] [push|rmi]");
             System.exit(1);
         }
         if(requestPort < MIN_PORT_NUMBER || registryPort < MIN_PORT_NUMBER ||
@@ -71,8 +87,12 @@ class MainClient {
             System.out.println("Insert port between [1024,65535]");
             System.exit(1);
         }
+        if(fileStreams < 1 || fileStreams > FileTransfer.MAX_STREAMS){
+            System.out.println("Insert fileStreams between [1," + FileTransfer.MAX_STREAMS + "]");
+            System.exit(1);
+        }
         System.setProperty("java.net.preferIPv4Stack", "true");
-        Client c = new Client(serverName,requestPort,registryPort,chatPort,groupPort,mcGroupPort);
+        Client c = new Client(serverName,requestPort,registryPort,chatPort,groupPort,mcGroupPort,fileStreams,fileMode,eventMode);
         c.start();
     }
 
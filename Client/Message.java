@@ -0,0 +1,96 @@
+/**
+ * Messaggio del protocollo decodificato senza passare da un JSONObject:
+ * contiene solo i campi scalari che server e client leggono. Viene
+ * riusato per tutti i messaggi della stessa connessione, così la
+ * decodifica di un messaggio di chat alloca solo le stringhe dei valori.
+ */
+class Message implements ReplyCode {
+    /* Campi che il decoder copia nel messaggio, gli altri vengono saltati. */
+    static final String[] FIELDS = {
+            TYPE, USR, PSW, LANG, MSG, FROM, TO, FILENAME, IP, PORT, IDE, LEN, STREAMS, RELAY, TOKEN, EVENTS, STATUS, LIMIT, CURSOR, REVISION, GRPNAME
+    };
+
+    /* Tipo del messaggio: se noto è la costante di ReplyCode, mai null. */
+    String type;
+    String usr;
+    String psw;
+    String lang;
+    String msg;
+    String from;
+    String to;
+    String fileName;
+    String ip;
+    String grpName;
+    String events;
+    String status;
+    String cursor;
+    Long port;
+    Long ide;
+    Long len;
+    Long streams;
+    Long relay;
+    Long token;
+    Long limit;
+    Long revision;
+
+    /**
+     * Assegna il valore al campo indicato.
+     *
+     * @param field campo del protocollo, una delle costanti di FIELDS.
+     * @param value valore decodificato.
+     * @throws ClassCastException se il valore non è del tipo del campo.
+     */
+    void set(String field, Object value){
+        switch (field){
+            case TYPE: type = (String) value; break;
+            case USR: usr = (String) value; break;
+            case PSW: psw = (String) value; break;
+            case LANG: lang = (String) value; break;
+            case MSG: msg = (String) value; break;
+            case FROM: from = (String) value; break;
+            case TO: to = (String) value; break;
+            case FILENAME: fileName = (String) value; break;
+            case IP: ip = (String) value; break;
+            case GRPNAME: grpName = (String) value; break;
+            case EVENTS: events = (String) value; break;
+            case STATUS: status = (String) value; break;
+            case CURSOR: cursor = (String) value; break;
+            case PORT: port = (Long) value; break;
+            case IDE: ide = (Long) value; break;
+            case LEN: len = (Long) value; break;
+            case STREAMS: streams = (Long) value; break;
+            case RELAY: relay = (Long) value; break;
+            case TOKEN: token = (Long) value; break;
+            case LIMIT: limit = (Long) value; break;
+            case REVISION: revision = (Long) value; break;
+            default: break;
+        }
+    }
+
+    /**
+     * Azzera i campi prima di decodificare un nuovo messaggio.
+     */
+    void clear(){
+        type = null;
+        usr = null;
+        psw = null;
+        lang = null;
+        msg = null;
+        from = null;
+        to = null;
+        fileName = null;
+        ip = null;
+        grpName = null;
+        events = null;
+        status = null;
+        cursor = null;
+        port = null;
+        ide = null;
+        len = null;
+        streams = null;
+        relay = null;
+        token = null;
+        limit = null;
+        revision = null;
+    }
+}
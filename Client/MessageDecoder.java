@@ -0,0 +1,562 @@
+import org.json.simple.parser.ParseException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decoder in streaming dei messaggi di una connessione. Legge i frame
+ * (righe JSON o frame binari) in un buffer riusato e copia i campi noti
+ * direttamente in un Message, senza costruire stringhe per le righe,
+ * JSONObject o parser per ogni messaggio: chiavi e tipo sono confrontati
+ * sui byte con le costanti del protocollo.
+ * Non è thread-safe: ogni connessione ha il suo decoder.
+ */
+class MessageDecoder implements ReplyCode {
+    private static final int BUFFER_SIZE = 4096;
+    private static final byte[][] FIELD_KEYS = utf8(Message.FIELDS);
+    private static final byte[][] TYPE_KEYS = utf8(WireCodec.CODES);
+
+    private final InputStream in;
+    private final boolean binary;
+    /* Byte letti dallo stream: il frame corrente inizia in frameOff. */
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private int frameOff;
+    private int frameLen;
+    /* Stato del parsing JSON del frame corrente. */
+    private byte[] src;
+    private int p;
+    private int end;
+    /* Ultima stringa letta: nel frame se senza escape, altrimenti in scratch. */
+    private byte[] scratch;
+    private byte[] strBuf;
+    private int strOff;
+    private int strLen;
+
+    /**
+     * Inizializza il decoder sullo stream della connessione.
+     *
+     * @param in stream in lettura della connessione.
+     * @param binary true se è stata negoziata la codifica binaria.
+     */
+    MessageDecoder(InputStream in, boolean binary){
+        this.in = in;
+        this.binary = binary;
+        this.buf = new byte[BUFFER_SIZE];
+        this.scratch = new byte[256];
+    }
+
+    /**
+     * Inizializza un decoder senza stream, a cui i frame vengono
+     * passati già estratti tramite decodeJson().
+     */
+    MessageDecoder(){
+        this(null, false);
+    }
+
+    /**
+     * Converte le costanti nei rispettivi byte UTF-8.
+     *
+     * @param codes costanti del protocollo.
+     * @return byte delle costanti, nello stesso ordine.
+     */
+    private static byte[][] utf8(String[] codes){
+        byte[][] keys = new byte[codes.length][];
+        for(int i = 0; i < codes.length; i++){
+            keys[i] = codes[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return keys;
+    }
+
+    /**
+     * Legge dallo stream il prossimo frame completo.
+     *
+     * @return true se è disponibile un frame, false se lo stream è terminato.
+     * @throws IOException se la lettura fallisce o il frame è malformato.
+     */
+    boolean next() throws IOException {
+        return binary ? nextBinary() : nextLine();
+    }
+
+    /**
+     * Ritorna il buffer che contiene il frame corrente.
+     *
+     * @return buffer del frame, valido fino alla prossima next().
+     */
+    byte[] frame(){
+        return buf;
+    }
+
+    /**
+     * Ritorna l'inizio del frame corrente nel buffer.
+     *
+     * @return offset del frame.
+     */
+    int frameOffset(){
+        return frameOff;
+    }
+
+    /**
+     * Ritorna la lunghezza del frame corrente.
+     *
+     * @return lunghezza del frame (senza newline o prefisso di lunghezza).
+     */
+    int frameLength(){
+        return frameLen;
+    }
+
+    /**
+     * Legge il prossimo messaggio e lo decodifica nel messaggio dato.
+     *
+     * @param msg messaggio da riempire, viene azzerato prima.
+     * @return true se è stato letto un messaggio, false se lo stream è terminato.
+     * @throws IOException se la lettura fallisce o un frame binario è malformato.
+     * @throws ParseException se il parsing del JSON fallisce.
+     */
+    boolean read(Message msg) throws IOException, ParseException {
+        if(!next()) return false;
+        if(binary) WireCodec.decode(buf, frameOff, frameLen, msg);
+        else decodeJson(buf, frameOff, frameLen, msg);
+        return true;
+    }
+
+    /**
+     * Estrae la prossima riga non vuota.
+     *
+     * @return true se è stata letta una riga, false se lo stream è terminato.
+     * @throws IOException se la lettura fallisce o la riga è troppo lunga.
+     * @implNote come BufferedReader.readLine() l'ultima riga può non
+     *           terminare con il newline.
+     */
+    private boolean nextLine() throws IOException {
+        int scanned = 0;
+        while(true){
+            int scan = pos + scanned;
+            while(scan < limit && buf[scan] != '\n') scan++;
+            if(scan < limit){
+                int start = pos;
+                int len = scan - start;
+                pos = scan + 1;
+                scanned = 0;
+                if(len > 0 && buf[start + len - 1] == '\r') len--;
+                if(len == 0) continue;
+                frameOff = start;
+                frameLen = len;
+                return true;
+            }
+            scanned = scan - pos;
+            if(fill(scanned + 1) < 0){
+                if(pos == limit) return false;
+                frameOff = pos;
+                frameLen = limit - pos;
+                pos = limit;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Estrae il prossimo frame binario.
+     *
+     * @return true se è stato letto un frame, false se lo stream è terminato.
+     * @throws IOException se la lettura fallisce o la lunghezza non è valida.
+     */
+    private boolean nextBinary() throws IOException {
+        int len = 0;
+        int shift = 0;
+        int b;
+        do {
+            if(pos == limit && fill(1) < 0){
+                if(shift == 0) return false;
+                throw new EOFException();
+            }
+            b = buf[pos++] & 0xFF;
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+            if(shift > 28) throw new IOException("Malformed frame length");
+        } while((b & 0x80) != 0);
+        if(len <= 0 || len > WireCodec.MAX_FRAME_LEN) throw new IOException("Invalid frame length: " + len);
+        while(limit - pos < len){
+            if(fill(len) < 0) throw new EOFException();
+        }
+        frameOff = pos;
+        frameLen = len;
+        pos += len;
+        return true;
+    }
+
+    /**
+     * Legge altri byte dallo stream, compattando o ingrandendo
+     * il buffer in modo che ci stiano almeno need byte oltre pos.
+     *
+     * @param need byte a partire da pos che il buffer deve poter contenere.
+     * @return byte letti, -1 se lo stream è terminato.
+     * @throws IOException se la lettura fallisce o il frame supera MAX_FRAME_LEN.
+     */
+    private int fill(int need) throws IOException {
+        int pending = limit - pos;
+        if(pos > 0 && (limit == buf.length || pos + need > buf.length)){
+            System.arraycopy(buf, pos, buf, 0, pending);
+            pos = 0;
+            limit = pending;
+        }
+        if(limit == buf.length || need > buf.length){
+            if(buf.length >= WireCodec.MAX_FRAME_LEN) throw new IOException("Frame too long");
+            buf = Arrays.copyOf(buf, Math.min(WireCodec.MAX_FRAME_LEN, Math.max(need, buf.length * 2)));
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if(n > 0) limit += n;
+        return n;
+    }
+
+    /**
+     * Decodifica un oggetto JSON piatto nel messaggio dato. I campi
+     * non presenti in Message.FIELDS vengono saltati senza allocare.
+     *
+     * @param json buffer contenente il JSON in UTF-8.
+     * @param off inizio del JSON nel buffer.
+     * @param len lunghezza del JSON.
+     * @param msg messaggio da riempire, viene azzerato prima.
+     * @throws ParseException se il JSON è malformato, manca il tipo
+     *         o un campo noto ha un valore del tipo sbagliato.
+     */
+    void decodeJson(byte[] json, int off, int len, Message msg) throws ParseException {
+        msg.clear();
+        src = json;
+        p = off;
+        end = off + len;
+        skipWs();
+        expect('{');
+        skipWs();
+        if(peek() == '}'){
+            p++;
+        }else{
+            while(true){
+                expect('"');
+                readString();
+                int field = match(FIELD_KEYS);
+                skipWs();
+                expect(':');
+                skipWs();
+                if(field < 0){
+                    skipValue();
+                }else if(field == 0){
+                    msg.type = readType();
+                }else{
+                    try {
+                        msg.set(Message.FIELDS[field], readScalar());
+                    } catch (ClassCastException e) {
+                        throw error();
+                    }
+                }
+                skipWs();
+                int c = nextByte();
+                if(c == '}') break;
+                if(c != ',') throw error();
+                skipWs();
+            }
+        }
+        skipWs();
+        if(p != end || msg.type == null) throw error();
+    }
+
+    /**
+     * Legge il valore del tipo: se è un tipo noto ritorna la costante
+     * senza allocare.
+     *
+     * @return tipo del messaggio.
+     * @throws ParseException se il valore non è una stringa.
+     */
+    private String readType() throws ParseException {
+        expect('"');
+        readString();
+        int type = match(TYPE_KEYS);
+        return type >= 0 ? WireCodec.CODES[type] : newString();
+    }
+
+    /**
+     * Legge un valore scalare.
+     *
+     * @return String, Long, Double, Boolean o null come json-simple.
+     * @throws ParseException se il valore è malformato, un oggetto o un array.
+     */
+    private Object readScalar() throws ParseException {
+        int c = peek();
+        if(c == '"'){
+            p++;
+            readString();
+            return newString();
+        }
+        if(c == '-' || (c >= '0' && c <= '9')) return readNumber();
+        if(literal("null")) return null;
+        if(literal("true")) return Boolean.TRUE;
+        if(literal("false")) return Boolean.FALSE;
+        throw error();
+    }
+
+    /**
+     * Legge un numero: intero come Long, altrimenti Double.
+     *
+     * @return numero letto.
+     * @throws ParseException se il numero è malformato.
+     */
+    private Object readNumber() throws ParseException {
+        int start = p;
+        boolean negative = src[p] == '-';
+        if(negative) p++;
+        long value = 0;
+        int digits = 0;
+        boolean overflow = false;
+        while(p < end && src[p] >= '0' && src[p] <= '9'){
+            int d = src[p++] - '0';
+            if(value > (Long.MAX_VALUE - d) / 10) overflow = true;
+            value = value * 10 + d;
+            digits++;
+        }
+        if(digits == 0) throw error();
+        boolean decimal = false;
+        while(p < end && (src[p] == '.' || src[p] == 'e' || src[p] == 'E' || src[p] == '+'
+                || src[p] == '-' || (src[p] >= '0' && src[p] <= '9'))){
+            decimal = true;
+            p++;
+        }
+        if(decimal || overflow){
+            try {
+                return Double.valueOf(new String(src, start, p - start, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw error();
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Salta un valore qualsiasi, compresi oggetti e array annidati.
+     *
+     * @throws ParseException se il valore è malformato.
+     */
+    private void skipValue() throws ParseException {
+        int c = peek();
+        if(c == '{' || c == '['){
+            int close = c == '{' ? '}' : ']';
+            p++;
+            skipWs();
+            if(peek() == close){
+                p++;
+                return;
+            }
+            while(true){
+                if(close == '}'){
+                    expect('"');
+                    readString();
+                    skipWs();
+                    expect(':');
+                    skipWs();
+                }
+                skipValue();
+                skipWs();
+                int n = nextByte();
+                if(n == close) return;
+                if(n != ',') throw error();
+                skipWs();
+            }
+        }
+        if(c == '"'){
+            p++;
+            readString();
+            return;
+        }
+        if(c == '-' || (c >= '0' && c <= '9')){
+            p++;
+            while(p < end && (src[p] == '.' || src[p] == 'e' || src[p] == 'E' || src[p] == '+'
+                    || src[p] == '-' || (src[p] >= '0' && src[p] <= '9'))) p++;
+            return;
+        }
+        if(literal("null") || literal("true") || literal("false")) return;
+        throw error();
+    }
+
+    /**
+     * Legge una stringa (le virgolette di apertura sono già consumate).
+     * Se non contiene escape resta nel frame, altrimenti viene
+     * ricopiata in UTF-8 nel buffer scratch.
+     *
+     * @throws ParseException se la stringa non è terminata o ha escape non validi.
+     */
+    private void readString() throws ParseException {
+        int start = p;
+        while(p < end){
+            byte b = src[p];
+            if(b == '"'){
+                strBuf = src;
+                strOff = start;
+                strLen = p - start;
+                p++;
+                return;
+            }
+            if(b == '\\') break;
+            p++;
+        }
+        if(p >= end) throw error();
+        /* Percorso lento: ci sono escape da risolvere. */
+        int n = p - start;
+        ensureScratch(n + (end - p));
+        System.arraycopy(src, start, scratch, 0, n);
+        while(p < end){
+            byte b = src[p++];
+            if(b == '"'){
+                strBuf = scratch;
+                strOff = 0;
+                strLen = n;
+                return;
+            }
+            if(b != '\\'){
+                scratch[n++] = b;
+                continue;
+            }
+            if(p >= end) throw error();
+            byte e = src[p++];
+            switch (e){
+                case '"': case '\\': case '/': scratch[n++] = e; break;
+                case 'b': scratch[n++] = '\b'; break;
+                case 'f': scratch[n++] = '\f'; break;
+                case 'n': scratch[n++] = '\n'; break;
+                case 'r': scratch[n++] = '\r'; break;
+                case 't': scratch[n++] = '\t'; break;
+                case 'u':
+                    int cp = readHex();
+                    if(Character.isHighSurrogate((char) cp) && p + 6 <= end
+                            && src[p] == '\\' && src[p+1] == 'u'){
+                        int save = p;
+                        p += 2;
+                        int low = readHex();
+                        if(Character.isLowSurrogate((char) low)) cp = Character.toCodePoint((char) cp, (char) low);
+                        else p = save;
+                    }
+                    n = putCodePoint(cp, n);
+                    break;
+                default:
+                    throw error();
+            }
+        }
+        throw error();
+    }
+
+    /**
+     * Legge le quattro cifre esadecimali di un escape \\u.
+     *
+     * @return valore dell'escape.
+     * @throws ParseException se le cifre non sono valide.
+     */
+    private int readHex() throws ParseException {
+        if(p + 4 > end) throw error();
+        int v = 0;
+        for(int i = 0; i < 4; i++){
+            int d = Character.digit(src[p++], 16);
+            if(d < 0) throw error();
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+
+    /**
+     * Scrive un code point in UTF-8 nel buffer scratch.
+     *
+     * @param cp code point da scrivere.
+     * @param n posizione in scratch.
+     * @return nuova posizione in scratch.
+     */
+    private int putCodePoint(int cp, int n){
+        if(cp < 0x80){
+            scratch[n++] = (byte) cp;
+        }else if(cp < 0x800){
+            scratch[n++] = (byte) (0xC0 | (cp >> 6));
+            scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+        }else if(cp < 0x10000){
+            scratch[n++] = (byte) (0xE0 | (cp >> 12));
+            scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+        }else{
+            scratch[n++] = (byte) (0xF0 | (cp >> 18));
+            scratch[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+        }
+        return n;
+    }
+
+    /**
+     * Ingrandisce il buffer scratch fino a contenere len byte.
+     *
+     * @param len byte da contenere.
+     */
+    private void ensureScratch(int len){
+        if(len > scratch.length) scratch = new byte[Math.max(len, scratch.length * 2)];
+    }
+
+    /**
+     * Confronta l'ultima stringa letta con le costanti date.
+     *
+     * @param keys byte delle costanti.
+     * @return indice della costante uguale, -1 se nessuna.
+     */
+    private int match(byte[][] keys){
+        for(int i = 0; i < keys.length; i++){
+            byte[] key = keys[i];
+            if(key.length == strLen
+                    && Arrays.equals(key, 0, key.length, strBuf, strOff, strOff + strLen)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Crea la stringa corrispondente all'ultima stringa letta.
+     *
+     * @return stringa letta.
+     */
+    private String newString(){
+        return new String(strBuf, strOff, strLen, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Consuma la parola chiave se presente.
+     *
+     * @param word parola chiave ASCII.
+     * @return true se presente, false altrimenti.
+     */
+    private boolean literal(String word){
+        int n = word.length();
+        if(p + n > end) return false;
+        for(int i = 0; i < n; i++){
+            if(src[p + i] != word.charAt(i)) return false;
+        }
+        p += n;
+        return true;
+    }
+
+    private void skipWs(){
+        while(p < end && (src[p] == ' ' || src[p] == '\t' || src[p] == '\n' || src[p] == '\r')) p++;
+    }
+
+    private int peek() throws ParseException {
+        if(p >= end) throw error();
+        return src[p];
+    }
+
+    private int nextByte() throws ParseException {
+        if(p >= end) throw error();
+        return src[p++];
+    }
+
+    private void expect(int c) throws ParseException {
+        if(nextByte() != c) throw error();
+    }
+
+    private ParseException error(){
+        return new ParseException(p, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+    }
+}
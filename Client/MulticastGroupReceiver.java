@@ -6,11 +6,15 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 
 
 class MulticastGroupReceiver implements Runnable,ReplyCode{
     private final MulticastSocket mcs;
     private final UserGroupInfo userInfo;
+    private final SocketAddress groupServer;
+    /* Stato di ricezione di ogni gruppo, usato solo dal thread receiver. */
+    private final HashMap<String,GroupStream> streams;
 
     /**
      * Inizializza le informazioni per ricevere
@@ -19,10 +23,14 @@ class MulticastGroupReceiver implements Runnable,ReplyCode{
      *
      * @param mcs multicast socket per i gruppi.
      * @param userInfo informazioni sull'utente corrente.
+     * @param groupServer indirizzo del server a cui chiedere
+     *                    la ritrasmissione dei messaggi persi.
      */
-    public MulticastGroupReceiver(MulticastSocket mcs,UserGroupInfo userInfo){
+    public MulticastGroupReceiver(MulticastSocket mcs,UserGroupInfo userInfo,SocketAddress groupServer){
         this.mcs = mcs;
         this.userInfo = userInfo;
+        this.groupServer = groupServer;
+        this.streams = new HashMap<>();
     }
 
     /**
@@ -34,35 +42,47 @@ class MulticastGroupReceiver implements Runnable,ReplyCode{
      *           di utilizzare una sola receive che intercetta
      *           tutti i pacchetti destinati a quella porta
      *           e a tutti gli indirizzi multicast che ha joinato.
+     *           La receive ha un timeout di NACK_INTERVAL così i buchi
+     *           vengono richiesti anche se non arrivano altri messaggi.
      */
     public void run(){
-        byte[] buf = new byte[GroupImpl.MAX_UDP_PCKT_LEN];
+        byte[] buf = new byte[Fragmenter.MAX_DATAGRAM];
+        Fragmenter.Reassembler reassembler = new Fragmenter.Reassembler();
         DatagramPacket recv;
         String json;
         JSONParser parser = new JSONParser();
         JSONObject obj;
         String grpName;
-        String from;
         String msg;
         Thread currentThread = Thread.currentThread();
         while(!currentThread.isInterrupted()) {
+            repair();
             recv = new DatagramPacket(buf, buf.length);
             try {
                 mcs.receive(recv);
-                json = new String(recv.getData(),0,recv.getLength(), StandardCharsets.UTF_8);
+                /* Un messaggio frammentato è consegnato all'arrivo dell'ultimo frammento. */
+                json = reassembler.add(recv);
+                if(json == null) continue;
                 obj = (JSONObject) parser.parse(json);
                 switch ((String) obj.get(TYPE)){
                     case GRPMSG:
                         grpName = (String) obj.get(GRPNAME);
-                        from = (String) obj.get(FROM);
-                        if(from.equals(userInfo.getUsr())) from = userInfo.getUsr();
-                        msg = (String) obj.get(MSG);
-                        System.out.printf("[GROUP: %s] %s: %s\n",grpName,from,msg);
+                        Long epoch = (Long) obj.get(EPOCH);
+                        Long seq = (Long) obj.get(SEQ);
+                        if(epoch == null || seq == null){
+                            /* Messaggio non numerato: lo consegno subito. */
+                            print(obj);
+                        }else{
+                            for(JSONObject ready : streams.computeIfAbsent(grpName,GroupStream::new).receive(epoch,seq,obj)){
+                                print(ready);
+                            }
+                        }
                         break;
                     case GRPCLOSE:
                         grpName = (String) obj.get(GRPNAME);
                         msg = (String) obj.get(MSG);
                         System.out.println(msg);
+                        streams.remove(grpName);
                         InetAddress addr = userInfo.removeGroup(grpName);
                         if(addr!=null) {
                             mcs.leaveGroup(addr);
@@ -74,8 +94,10 @@ class MulticastGroupReceiver implements Runnable,ReplyCode{
             } catch (SocketException e){
                 /* Lanciata alla chiusura della mutlicast socket. */
                 System.err.println("SOCKET EXCEPTION MULTICAST RECEIVER THREAD");
-            }catch (SocketTimeoutException | ClosedByInterruptException e) {
-                System.err.println("SOCKET TIMEOUT EXCEPTION MUTLICAST RECEIVER THREAD");
+            }catch (SocketTimeoutException e) {
+                /* Nessun messaggio: controllo comunque i buchi. */
+            }catch (ClosedByInterruptException e) {
+                System.err.println("CLOSED BY INTERRUPT EXCEPTION MUTLICAST RECEIVER THREAD");
             }catch (IOException e) {
                 System.err.println("IO EXCEPTION MULTICAST RECEIVER THREAD ");
             } catch (ParseException e) {
@@ -83,4 +105,49 @@ class MulticastGroupReceiver implements Runnable,ReplyCode{
             }
         }
     }
+
+    /**
+     * Chiede al server la ritrasmissione dei messaggi
+     * mancanti e consegna quelli rimasti in attesa di un
+     * buco a cui si è rinunciato.
+     */
+    private void repair(){
+        long now = System.currentTimeMillis();
+        for(GroupStream stream : streams.values()){
+            for(long[] gap : stream.nack(now)) sendNack(stream.getGrpName(),gap[0],gap[1]);
+            for(JSONObject ready : stream.drain()) print(ready);
+        }
+    }
+
+    /**
+     * Invia al server la richiesta di ritrasmissione
+     * di un intervallo di messaggi del gruppo.
+     *
+     * @param grpName nome del gruppo.
+     * @param first primo numero di sequenza mancante.
+     * @param last ultimo numero di sequenza mancante.
+     */
+    private void sendNack(String grpName, long first, long last){
+        JSONObject obj = new JSONObject();
+        obj.put(TYPE,GRPNACK);
+        obj.put(FROM,userInfo.getUsr());
+        obj.put(GRPNAME,grpName);
+        obj.put(SEQ,first);
+        obj.put(LASTSEQ,last);
+        byte[] json = obj.toJSONString().getBytes(StandardCharsets.UTF_8);
+        try {
+            mcs.send(new DatagramPacket(json,json.length,groupServer));
+        } catch (IOException e) {
+            System.err.printf("IO EXCEPTION SENDING GROUP NACK TO: %s\n",grpName);
+        }
+    }
+
+    /**
+     * Stampa un messaggio ricevuto su un gruppo.
+     *
+     * @param obj messaggio del gruppo.
+     */
+    private void print(JSONObject obj){
+        System.out.printf("[GROUP: %s] %s: %s\n",obj.get(GRPNAME),obj.get(FROM),obj.get(MSG));
+    }
 }
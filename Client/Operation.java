@@ -38,9 +38,10 @@ interface Operation {
 
     /**
      * Invia una richiesta al server per la ricerca
-     * di un username.
+     * degli username che iniziano con usr; ripetendo
+     * la stessa ricerca si riceve la pagina successiva.
      *
-     * @param usr nome dell'utente da ricercare.
+     * @param usr nome (o prefisso) dell'utente da ricercare.
      */
     void searchUser(String usr);
 
@@ -85,9 +86,13 @@ interface Operation {
     /**
      * Invia una richiesta al server
      * per ricevere la lista dei gruppi
-     * di cui l'utente fa parte.
+     * il cui nome inizia con prefix, marcando
+     * quelli di cui l'utente fa parte; ripetendo
+     * la stessa richiesta si riceve la pagina successiva.
+     *
+     * @param prefix prefisso del nome dei gruppi, "" per tutti.
      */
-    void groupList();
+    void groupList(String prefix);
 
     /**
      * Invia una richiesta al server
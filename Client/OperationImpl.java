@@ -1,5 +1,4 @@
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
@@ -9,15 +8,14 @@ import java.rmi.RemoteException;
 import java.util.ArrayList;
 
 public class OperationImpl implements Operation,ReplyCode  {
-    private BufferedWriter writer;
-    private BufferedReader reader;
+    private FrameWriter writer;
+    private FrameReader reader;
 
     private final ChatImpl chatImpl;
     private final GroupImpl groupImpl;
     private final RequestImpl requestImpl;
 
     private JSONObject obj;
-    private final JSONParser parser;
 
     private UserGroupInfo userInfo;
     private final RemChat rc;
@@ -29,19 +27,20 @@ public class OperationImpl implements Operation,ReplyCode  {
      *
      * @param requestServer socket per le richieste.
      * @param chatImpl Implementazioni delle funzionalità di chat.
-     * @param rc RMI per registrarsi alla ricezione di notifiche.
+     * @param rc RMI per registrarsi alla ricezione di notifiche,
+     *           null se le notifiche arrivano sulla chat socket.
      */
     public OperationImpl(Socket requestServer, ChatImpl chatImpl,
                          GroupImpl groupImpl,RequestImpl requestImpl,
                          RemChat rc){
         this.rc = rc;
-        parser = new JSONParser();
         this.requestImpl = requestImpl;
         this.chatImpl = chatImpl;
         this.groupImpl = groupImpl;
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(requestServer.getOutputStream()));
-            reader = new BufferedReader(new InputStreamReader(requestServer.getInputStream()));
+            boolean binary = WireCodec.handshake(requestServer);
+            writer = new FrameWriter(requestServer.getOutputStream(), binary);
+            reader = new FrameReader(requestServer.getInputStream(), binary);
         } catch (IOException e) {
             System.err.println("IO EXCEPTION");
             close(1);
@@ -97,7 +96,8 @@ public class OperationImpl implements Operation,ReplyCode  {
                 if (!chatImpl.init(userInfo)) close(1);
                 /* Inizializzo le funzionalità dei gruppi. */
                 if(!groupImpl.init(writer)) close(1);
-                sendStub(usr);
+                /* Con le notifiche push il login è completato dall'INIT della chat socket. */
+                if(rc != null) sendStub(usr);
             }
         }
         return isLogged;
@@ -130,14 +130,15 @@ public class OperationImpl implements Operation,ReplyCode  {
             } else if (usr.equals(userInfo.getUsr())) {
                 System.out.println("You exist!");
             } else {
-                if(!requestImpl.searchUser(usr)) close(1);
+                /* Ripetere la stessa ricerca chiede la pagina successiva. */
+                if(!requestImpl.searchUser(usr,userInfo.getUserSearch().next(usr))) close(1);
             }
         }
     }
 
     /* Descrizione nell'interfaccia. */
     public void friendsList(){
-        if(!requestImpl.friendsList()) close(1);
+        if(!requestImpl.friendsList(userInfo.getFriendsRevision())) close(1);
     }
 
     /* Descrizione nell'interfaccia. */
@@ -216,8 +217,9 @@ public class OperationImpl implements Operation,ReplyCode  {
     }
 
     /* Descrizione nell'interfaccia. */
-    public void groupList(){
-        if(!groupImpl.groupList()) close(1);
+    public void groupList(String prefix){
+        prefix = prefix == null ? "" : prefix.replaceAll(" ","");
+        if(!groupImpl.groupList(prefix,userInfo.getGroupList().next(prefix))) close(1);
     }
 
     /* Descrizione nell'interfaccia. */
@@ -246,9 +248,7 @@ public class OperationImpl implements Operation,ReplyCode  {
      */
     private void send(JSONObject obj){
         try{
-            writer.write(obj.toJSONString());
-            writer.newLine();
-            writer.flush();
+            writer.send(obj);
         } catch (IOException e) {
             /* Eccezione della write. */
             System.err.println("IO EXCEPTION SEND");
@@ -270,10 +270,9 @@ public class OperationImpl implements Operation,ReplyCode  {
     private boolean receive(){
         boolean result = false;
         String msg;
-        String json;
         try{
-            json = reader.readLine();
-            obj = (JSONObject) parser.parse(json);
+            obj = reader.read();
+            if(obj == null) throw new EOFException();
             /* Il messaggio è sempre presente in tutte le risposte. */
             msg = (String) obj.get(MSG);
             System.out.println(msg);
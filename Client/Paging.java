@@ -0,0 +1,36 @@
+/**
+ * Stato di una lista paginata dal server (ricerca utenti, lista
+ * gruppi): ripetere la stessa richiesta chiede la pagina successiva,
+ * una richiesta diversa o finita riparte dalla prima.
+ */
+class Paging {
+    /* Ultima richiesta e ultimo nome ricevuto, null se non ci sono altre pagine. */
+    private String query;
+    private String cursor;
+
+    /**
+     * Registra una richiesta e ritorna da dove riprenderla.
+     *
+     * @param query richiesta (username o prefisso).
+     * @return ultimo nome ricevuto se query è la richiesta precedente
+     *         e ha altre pagine, null se la richiesta parte dall'inizio.
+     */
+    synchronized String next(String query){
+        if(!query.equals(this.query)){
+            this.query = query;
+            this.cursor = null;
+        }
+        String result = cursor;
+        cursor = null;
+        return result;
+    }
+
+    /**
+     * Memorizza da dove riprende la richiesta corrente.
+     *
+     * @param cursor ultimo nome ricevuto, null se non ci sono altre pagine.
+     */
+    synchronized void setCursor(String cursor){
+        this.cursor = cursor;
+    }
+}
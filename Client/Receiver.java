@@ -1,12 +1,10 @@
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 
 class Receiver implements ReplyCode {
-    private final BufferedReader reader;
+    private final FrameReader reader;
 
     /**
      * Inizializza le informazioni per la lettura
@@ -14,7 +12,7 @@ class Receiver implements ReplyCode {
      *
      * @param reader lato in lettura sulla socket.
      */
-    Receiver(BufferedReader reader){
+    Receiver(FrameReader reader){
         this.reader = reader;
     }
 
@@ -26,12 +24,28 @@ class Receiver implements ReplyCode {
      * @throws ParseException se il parsing della richiesta fallisce.
      */
     JSONObject receive() throws IOException,ParseException{
-        String json = reader.readLine();
-        JSONParser parser = new JSONParser();
-        if(json == null){
+        JSONObject obj = reader.read();
+        if(obj == null){
             System.out.println("CHAT EOS");
-            return null;
         }
-        return (JSONObject) parser.parse(json);
+        return obj;
+    }
+
+    /**
+     * Legge dalla socket nel messaggio dato, senza costruire
+     * un JSONObject per ogni risposta.
+     *
+     * @param msg messaggio da riempire, riusato fra le letture.
+     * @return true se è stata letta una risposta, false se la fine
+     *         dello stream è stata raggiunta.
+     * @throws IOException se la lettura dalla socket fallisce.
+     * @throws ParseException se il parsing della risposta fallisce.
+     */
+    boolean receive(Message msg) throws IOException,ParseException{
+        boolean read = reader.read(msg);
+        if(!read){
+            System.out.println("CHAT EOS");
+        }
+        return read;
     }
 }
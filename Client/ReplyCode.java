@@ -18,6 +18,25 @@ interface ReplyCode {
     String LEN = "Len";
     String GRPNAME = "GroupName";
     String LISTUSRGRP = "ListUserGroup";
+    /* Numerazione dei messaggi multicast: istanza del gruppo, numero di sequenza, ultimo numero richiesto. */
+    String EPOCH = "Epoch";
+    String SEQ = "Seq";
+    String LASTSEQ = "LastSeq";
+    /* Connessioni parallele proposte (FILEMSG) e accettate (SOCKETINFO) per un file. */
+    String STREAMS = "Streams";
+    /* Porta del relay dei file (FILEMSG, SOCKETINFO) e token che accoppia le connessioni al relay. */
+    String RELAY = "Relay";
+    String TOKEN = "Token";
+    /* Eventi di amicizia e status sulla chat socket (INIT con EVENTS = PUSH) invece che con le callback RMI. */
+    String EVENTS = "Events";
+    String STATUS = "Status";
+    /* Ricerca degli utenti (SEARCHUSR): username per pagina, ultimo username della pagina precedente, username simili. */
+    String LIMIT = "Limit";
+    String CURSOR = "Cursor";
+    String SUGGEST = "Suggest";
+    /* Lista amici incrementale (FRNDLST): revisione ricevuta dal client o raggiunta dalla pagina, revisione attuale. */
+    String REVISION = "Revision";
+    String LATEST = "Latest";
 
     /* TIPI RICHIESTA */
     String REG = "Register";
@@ -33,6 +52,8 @@ interface ReplyCode {
     String GRPLST = "GroupList";
     String GRPMSG = "GroupMsg";
     String GRPCLOSE = "GroupClose";
+    /* Richiesta di ritrasmissione dei messaggi multicast persi. */
+    String GRPNACK = "GroupNack";
 
     /* TIPI RISPOSTA */
     String ACK = "ACK";
@@ -43,4 +64,11 @@ interface ReplyCode {
     String FRNDACK = "FACK";
     /* Group creation/join ack */
     String GRPACK = "GACK";
+    /* Search ack */
+    String SEARCHACK = "SACK";
+
+    /* TIPI EVENTO (chat socket) */
+    String PUSH = "Push";
+    String NEWFRIEND = "NewFriend";
+    String STATUSCHANGE = "StatusChange";
 }
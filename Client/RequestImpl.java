@@ -1,25 +1,26 @@
 import org.json.simple.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 class RequestImpl extends Sender implements ReplyCode{
     private final int mcGroupPort;
-    private JSONObject obj;
+    private final int groupPort;
 
     /**
      * Inizializza le informazioni sulla socket per le richieste
-     * e la porta per i gruppi multicast.
+     * e le porte per i gruppi.
      *
      * @param requestServer socket per le richieste.
      * @param mcGroupPort porta per i gruppi multicast.
+     * @param groupPort porta del server per i messaggi sui gruppi.
      */
-    public RequestImpl(Socket requestServer, int mcGroupPort){
+    public RequestImpl(Socket requestServer, int mcGroupPort, int groupPort){
         super();
         server = requestServer;
         this.mcGroupPort = mcGroupPort;
+        this.groupPort = groupPort;
     }
 
     /**
@@ -33,12 +34,13 @@ class RequestImpl extends Sender implements ReplyCode{
      * @return true se l'inizializzazione è andata a buon fine,
      *         false altrimenti.
      */
-    public boolean init(BufferedReader reader, BufferedWriter writer, UserGroupInfo userInfo){
+    public boolean init(FrameReader reader, FrameWriter writer, UserGroupInfo userInfo){
         boolean result = true;
         this.writer = writer;
         RequestReceiver rr;
         try {
-            rr = new RequestReceiver(reader,userInfo,mcGroupPort);
+            rr = new RequestReceiver(reader,this,userInfo,mcGroupPort,
+                    new InetSocketAddress(server.getInetAddress(),groupPort));
             receiverT = new Thread(rr);
             receiverT.start();
         } catch (IOException e) {
@@ -57,37 +59,43 @@ class RequestImpl extends Sender implements ReplyCode{
      *         false altrimenti.
      */
     public boolean addFriend(String usr){
-        obj = new JSONObject();
+        JSONObject obj = new JSONObject();
         obj.put(TYPE, ADDFRIEND);
         obj.put(USR, usr);
         return send(obj);
     }
 
     /**
-     * Invia una richiesta al server
-     * per ricercare un utente.
+     * Invia una richiesta al server per ricercare
+     * gli utenti il cui nome inizia con usr.
      *
-     * @param usr utente da ricercare.
+     * @param usr utente (o prefisso) da ricercare.
+     * @param cursor ultimo utente della pagina precedente,
+     *               null per la prima pagina.
      * @return true se l'invio della richiesta va a buon fine,
      *         false altrimenti.
      */
-    public boolean searchUser(String usr) {
-        obj = new JSONObject();
+    public boolean searchUser(String usr, String cursor) {
+        JSONObject obj = new JSONObject();
         obj.put(TYPE, SEARCHUSR);
         obj.put(USR, usr);
+        if(cursor != null) obj.put(CURSOR, cursor);
         return send(obj);
     }
 
     /**
-     * Invia una richiesta al server per ricevere la lista
-     * degli amici.
+     * Invia una richiesta al server per ricevere gli amici
+     * aggiunti dopo una revisione della lista.
      *
+     * @param revision revisione della lista già ricevuta, 0 per
+     *                 l'intera lista.
      * @return true se l'invio della richiesta va a buon fine,
      *         false altrimenti.
      */
-    public boolean friendsList() {
-        obj = new JSONObject();
+    public boolean friendsList(long revision) {
+        JSONObject obj = new JSONObject();
         obj.put(TYPE, FRNDLST);
+        obj.put(REVISION, revision);
         return send(obj);
     }
 }
@@ -1,16 +1,18 @@
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.util.ArrayList;
 
 class RequestReceiver extends Receiver implements Runnable {
     /* Gestisce le risposte alle richieste effettuate e i gruppi multicast. */
     private UserGroupInfo userInfo;
+    /* Per chiedere le pagine successive della lista amici. */
+    private final RequestImpl requests;
     private MulticastSocket mcs;
     private Thread chatRoomReceiver;
 
@@ -20,18 +22,22 @@ class RequestReceiver extends Receiver implements Runnable {
      * sull'utente corrente.
      *
      * @param reader lato in lettura sulla socket di richiesta.
+     * @param requests richieste al server sulla stessa socket.
      * @param userInfo informazioni sull'utente corrente.
      * @param mcGroupPort porta per i gruppi multicast.
+     * @param groupServer indirizzo del server per i messaggi sui gruppi.
      * @throws IOException se la creazione della multicast
      *                     socket fallisce.
      */
-    public RequestReceiver(BufferedReader reader,UserGroupInfo userInfo, int mcGroupPort) throws IOException{
+    public RequestReceiver(FrameReader reader,RequestImpl requests,UserGroupInfo userInfo, int mcGroupPort,
+                           SocketAddress groupServer) throws IOException{
         super(reader);
         this.mcs = new MulticastSocket(mcGroupPort);
         mcs.setReuseAddress(true);
-        mcs.setSoTimeout(Client.JOIN_TIME);
-        MulticastGroupReceiver gr = new MulticastGroupReceiver(mcs,userInfo);
+        mcs.setSoTimeout((int) GroupStream.NACK_INTERVAL);
+        MulticastGroupReceiver gr = new MulticastGroupReceiver(mcs,userInfo,groupServer);
         this.userInfo = userInfo;
+        this.requests = requests;
         chatRoomReceiver = new Thread(gr);
     }
 
@@ -67,12 +73,36 @@ class RequestReceiver extends Receiver implements Runnable {
                     case NACK:
                         break;
                     case FRNDACK:
-                        /* Ricezione lista amici. */
+                        /* Ricezione degli amici aggiunti dopo la revisione posseduta. */
                         arr = (ArrayList<String>) obj.get(LIST);
-                        userInfo.setFriendsList(arr);
+                        long revision = (Long) obj.get(REVISION);
+                        long latest = (Long) obj.get(LATEST);
+                        if (!userInfo.applyFriends(revision - arr.size(), arr)) break;
                         for (String friend : arr) {
                             System.out.printf("Friend: %s\n", friend);
                         }
+                        if (revision < latest) {
+                            /* Altre pagine: le chiedo senza attendere l'utente. */
+                            requests.friendsList(revision);
+                        } else {
+                            System.out.printf("Friends: %d\n", userInfo.getFriendsList().size());
+                        }
+                        break;
+                    case SEARCHACK:
+                        /* Pagina di utenti trovati ed eventuali nomi simili. */
+                        arr = (ArrayList<String>) obj.get(LIST);
+                        for (String found : arr) {
+                            System.out.printf("User: %s\n", found);
+                        }
+                        arr = (ArrayList<String>) obj.get(SUGGEST);
+                        if (arr != null) {
+                            for (String similar : arr) {
+                                System.out.printf("Did you mean: %s\n", similar);
+                            }
+                        }
+                        String cursor = (String) obj.get(CURSOR);
+                        userInfo.getUserSearch().setCursor(cursor);
+                        if (cursor != null) System.out.println("Search again for more users");
                         break;
                     case GRPACK:
                         /* ACK per la creazione o join di un gruppo. */
@@ -92,6 +122,8 @@ class RequestReceiver extends Receiver implements Runnable {
                         for(String group : arr){
                             System.out.printf("Group: %s [NOT JOINED]\n",group);
                         }
+                        userInfo.getGroupList().setCursor((String) obj.get(CURSOR));
+                        if (obj.get(CURSOR) != null) System.out.println("Ask the chat list again for more groups");
                         break;
                     default:
                         System.err.println("DEFAULT " + obj.get(TYPE));
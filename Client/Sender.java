@@ -1,11 +1,10 @@
 import org.json.simple.JSONObject;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.net.Socket;
 
 class Sender {
-    protected BufferedWriter writer;
+    protected FrameWriter writer;
     protected Thread receiverT;
     protected Socket server;
 
@@ -16,21 +15,19 @@ class Sender {
     public Sender(){ }
 
     /**
-     * Manda una richiesta al server in formato JSON
-     * secondo il protocollo prestabilito.
+     * Manda una richiesta al server secondo
+     * il protocollo prestabilito.
      *
      * @param obj richiesta da mandare al server.
      * @return true se l'invio è riuscito, false altrimenti.
-     * @implNote il line separator va aggiunto in questo modo
-     *           altrimenti l'operazione non è atomica/sincronizzata
-     *           e potrebbe creare inconsistenze.
+     * @implNote send() sul writer è sincronizzata, quindi le
+     *           richieste di thread diversi non si mescolano.
      */
     boolean send(JSONObject obj){
         if(!checkReceiver()) return false;
         boolean result = true;
         try{
-            writer.write(obj.toJSONString()+System.getProperty("line.separator"));
-            writer.flush();
+            writer.send(obj);
         } catch (IOException e) {
             System.err.println("IO EXCEPTION SEND");
             close();
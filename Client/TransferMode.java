@@ -0,0 +1,6 @@
+public enum TransferMode {
+    /* Come il destinatario riceve i file. */
+    DIRECT, /* Solo connessione p2p, anche se il server offre il relay. */
+    RELAY,  /* Solo tramite il relay del server (client dietro NAT/firewall). */
+    AUTO    /* Connessione p2p, con il relay come alternativa se il server lo offre. */
+}
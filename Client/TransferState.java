@@ -0,0 +1,156 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * File di stato (sidecar) di un file in ricezione: ricorda mittente,
+ * identificatore, lunghezza e, per ognuno degli intervalli in cui il
+ * file è diviso fra le connessioni parallele, i byte già verificati.
+ * Così un nuovo invio dello stesso file (stesso Ide) riprende da dove
+ * si era fermato.
+ * Record: ide (8 byte) | len (8 byte) | intervalli (4 byte) |
+ * offset di ogni intervallo (8 byte) | mittente (UTF-8) |
+ * crc32c del record (4 byte).
+ */
+class TransferState implements AutoCloseable {
+    private static final int FIXED = 20;
+
+    private final FileChannel channel;
+    private final byte[] sender;
+    private final long ide;
+    private final long len;
+    private long[] offsets;
+    private ByteBuffer record;
+
+    /**
+     * Apre (o crea) il file di stato di un trasferimento.
+     *
+     * @param file file di stato.
+     * @param sender mittente del file.
+     * @param ide identificatore del file.
+     * @param len lunghezza del file.
+     * @throws IOException se il file di stato non può essere aperto.
+     */
+    TransferState(File file, String sender, long ide, long len) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.sender = sender.getBytes(StandardCharsets.UTF_8);
+        this.ide = ide;
+        this.len = len;
+        this.offsets = new long[0];
+    }
+
+    /**
+     * Legge i byte già verificati da un trasferimento precedente.
+     *
+     * @param available byte presenti nel file parziale.
+     * @return numero di intervalli del trasferimento precedente, 0 se il
+     *         file di stato è vuoto, danneggiato, appartiene ad un altro
+     *         file o indica byte che il file parziale non contiene.
+     * @throws IOException se la lettura fallisce.
+     */
+    int load(long available) throws IOException {
+        long size = channel.size();
+        if(size < FIXED + 8 + sender.length + 4 || size > FIXED + 8L * FileTransfer.MAX_STREAMS + sender.length + 4) return 0;
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while(buf.hasRemaining()){
+            if(channel.read(buf, buf.position()) < 0) return 0;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, buf.capacity() - 4);
+        if((int) crc.getValue() != buf.getInt(buf.capacity() - 4)) return 0;
+        buf.flip();
+        int streams = 0;
+        if(buf.getLong() == ide && buf.getLong() == len) streams = buf.getInt();
+        if(streams < 1 || size != FIXED + 8L * streams + sender.length + 4) return 0;
+        long[] saved = new long[streams];
+        for(int i = 0; i < streams; i++) saved[i] = buf.getLong();
+        byte[] savedSender = new byte[sender.length];
+        buf.get(savedSender);
+        if(!Arrays.equals(savedSender, sender)) return 0;
+        offsets = saved;
+        record = buf;
+        for(int i = 0; i < streams; i++){
+            if(saved[i] < start(i) || saved[i] > end(i) || saved[i] > available){
+                offsets = new long[0];
+                return 0;
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Inizia un nuovo trasferimento, scartando lo stato precedente.
+     *
+     * @param streams numero di intervalli (connessioni parallele).
+     * @throws IOException se la scrittura fallisce.
+     */
+    synchronized void reset(int streams) throws IOException {
+        offsets = new long[streams];
+        for(int i = 0; i < streams; i++) offsets[i] = start(i);
+        record = ByteBuffer.allocate(FIXED + 8 * streams + sender.length + 4);
+        channel.truncate(record.capacity());
+        write();
+    }
+
+    int streams(){
+        return offsets.length;
+    }
+
+    /**
+     * Primo byte di un intervallo. Gli intervalli sono allineati a
+     * FileTransfer.CHUNK e, tranne l'ultimo, hanno la stessa lunghezza.
+     *
+     * @param range indice dell'intervallo.
+     * @return posizione del primo byte dell'intervallo.
+     */
+    long start(int range){
+        long per = (len + offsets.length - 1) / offsets.length;
+        per = (per + FileTransfer.CHUNK - 1) / FileTransfer.CHUNK * FileTransfer.CHUNK;
+        return Math.min(len, range * per);
+    }
+
+    long end(int range){
+        return range == offsets.length - 1 ? len : start(range + 1);
+    }
+
+    synchronized long offset(int range){
+        return offsets[range];
+    }
+
+    /**
+     * Registra i byte verificati di un intervallo.
+     *
+     * @param range indice dell'intervallo.
+     * @param offset posizione fino a cui l'intervallo è verificato.
+     * @throws IOException se la scrittura fallisce.
+     * @implNote il record ha sempre la stessa lunghezza e viene
+     *           sovrascritto; una scrittura a metà è scoperta dal crc.
+     */
+    synchronized void save(int range, long offset) throws IOException {
+        offsets[range] = offset;
+        write();
+    }
+
+    private void write() throws IOException {
+        record.clear();
+        record.putLong(ide).putLong(len).putInt(offsets.length);
+        for(long offset : offsets) record.putLong(offset);
+        record.put(sender);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while(record.hasRemaining()) channel.write(record, record.position());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -5,6 +5,9 @@ import java.util.concurrent.ConcurrentHashMap;
 class UserGroupInfo extends UserInfo {
     /* Estensione delle info dell'utente con i gruppi. */
     private final ConcurrentHashMap<String,InetAddress> groups;
+    /* Pagine della ricerca utenti e della lista gruppi. */
+    private final Paging userSearch;
+    private final Paging groupList;
 
     /**
      * Inizializza le informazioni sull'utente.
@@ -15,6 +18,8 @@ class UserGroupInfo extends UserInfo {
     public UserGroupInfo(String usr, String lang) {
         super(usr,lang);
         groups = new ConcurrentHashMap<>();
+        userSearch = new Paging();
+        groupList = new Paging();
     }
 
     /**
@@ -49,4 +54,12 @@ class UserGroupInfo extends UserInfo {
     public InetAddress removeGroup(String grpName){
         return groups.remove(grpName);
     }
+
+    public Paging getUserSearch(){
+        return userSearch;
+    }
+
+    public Paging getGroupList(){
+        return groupList;
+    }
 }
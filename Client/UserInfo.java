@@ -8,6 +8,8 @@ class UserInfo {
     private final String usr;
     private final String lang;
     final Set<String> friends;
+    /* Revisione della lista amici ricevuta dal server. */
+    private long friendsRevision;
 
     /**
      * Inizializza le informazioni sull'utente.
@@ -45,17 +47,34 @@ class UserInfo {
      *
      * @return lista degli amici.
      */
-    public ArrayList<String> getFriendsList(){
+    public synchronized ArrayList<String> getFriendsList(){
         return new ArrayList<>(friends);
     }
 
     /**
-     * Inizializza la lista degli amici dell'utente.
+     * Ritorna la revisione della lista amici ricevuta dal server.
      *
-     * @param tmpFriendsList lista degli amici.
+     * @return revisione della lista amici, 0 se non è mai stata ricevuta.
      */
-    public void setFriendsList(List<String> tmpFriendsList){
-        friends.addAll(tmpFriendsList);
+    public synchronized long getFriendsRevision(){
+        return friendsRevision;
+    }
+
+    /**
+     * Applica una pagina di amici aggiunti dopo una revisione.
+     *
+     * @param since revisione da cui parte la pagina, 0 se la pagina
+     *              sostituisce la lista.
+     * @param added amici aggiunti dopo since.
+     * @return true se la pagina è stata applicata, false se non parte
+     *         dalla revisione posseduta (pagina vecchia o duplicata).
+     */
+    public synchronized boolean applyFriends(long since, List<String> added){
+        if(since != 0 && since != friendsRevision) return false;
+        if(since == 0) friends.clear();
+        friends.addAll(added);
+        friendsRevision = since + added.size();
+        return true;
     }
 
     /**
@@ -66,7 +85,7 @@ class UserInfo {
      * @return true se l'utente e usr sono amici,
      *         false altrimenti.
      */
-    public boolean checkFriend(String usr){
+    public synchronized boolean checkFriend(String usr){
         return friends.contains(usr);
     }
 }
@@ -0,0 +1,516 @@
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Codifica binaria delle richieste/risposte, alternativa al JSON su riga.
+ * Ogni frame è: lunghezza (varint) | opcode del tipo (1 byte) |
+ * numero di campi (varint) | per ogni campo: id (1 byte), tag, valore.
+ * Opcode e id sono gli indici (+1) in CODES, la tabella di tutte le
+ * costanti di ReplyCode in ordine alfabetico; le stringhe sono lunghezza
+ * (varint) più byte UTF-8, gli interi sono varint zigzag.
+ * Il client propone la codifica mandando MAGIC, l'impronta di CODES
+ * (4 byte) e newline appena connesso; il server accetta rispondendo
+ * MAGIC se l'impronta coincide con la sua, altrimenti risponde REJECT e
+ * si usa il JSON. I client che mandano subito JSON restano sul
+ * protocollo a righe.
+ */
+class WireCodec implements ReplyCode {
+    static final int MAGIC = 0xB1;
+    static final int REJECT = 0;
+    /* MAGIC, impronta e newline. */
+    static final int PROPOSAL_LEN = 6;
+    static final int MAX_FRAME_LEN = 1 << 20;
+    /* Annidamento massimo di liste e oggetti: ogni livello è una chiamata ricorsiva. */
+    static final int MAX_DEPTH = 32;
+    private static final int HANDSHAKE_TIMEOUT = 2000;
+
+    /* Opcode 0: nessun tipo, ESCAPE: tipo/campo sconosciuto scritto come stringa. */
+    private static final int NONE = 0;
+    private static final int ESCAPE = 0xFF;
+    /* Tipi e campi condividono la tabella: ogni costante aggiunta a ReplyCode ha il suo opcode. */
+    static final String[] CODES = codes();
+    private static final Map<String,Integer> CODE_INDEX = index(CODES);
+    /* Client e server usano la codifica binaria solo se le tabelle coincidono. */
+    static final int FINGERPRINT = fingerprint(CODES);
+
+    /* Tag dei valori. */
+    private static final int T_NULL = 0;
+    private static final int T_STRING = 1;
+    private static final int T_LONG = 2;
+    private static final int T_LIST = 3;
+    private static final int T_TRUE = 4;
+    private static final int T_FALSE = 5;
+    private static final int T_OBJECT = 6;
+
+    private WireCodec(){ }
+
+    /**
+     * Raccoglie le costanti stringa di ReplyCode in ordine alfabetico:
+     * l'ordine non dipende da come sono dichiarate.
+     *
+     * @return tabella degli opcode.
+     */
+    private static String[] codes(){
+        TreeSet<String> codes = new TreeSet<>();
+        try {
+            for(Field field : ReplyCode.class.getFields()){
+                if(field.getType() == String.class) codes.add((String) field.get(null));
+            }
+        } catch (IllegalAccessException e) {
+            /* I campi di un'interfaccia sono sempre pubblici. */
+            throw new IllegalStateException(e);
+        }
+        if(codes.size() >= ESCAPE) throw new IllegalStateException("Too many protocol codes: " + codes.size());
+        return codes.toArray(new String[0]);
+    }
+
+    /**
+     * Calcola l'impronta della tabella degli opcode.
+     *
+     * @param codes tabella degli opcode.
+     * @return CRC32 dei codici in ordine.
+     */
+    private static int fingerprint(String[] codes){
+        CRC32 crc = new CRC32();
+        for(String code : codes){
+            crc.update(code.getBytes(StandardCharsets.UTF_8));
+            crc.update('\n');
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Associa ad ogni codice il suo opcode (indice + 1).
+     *
+     * @param codes codici del protocollo.
+     * @return mappa codice, opcode.
+     */
+    private static Map<String,Integer> index(String[] codes){
+        HashMap<String,Integer> map = new HashMap<>();
+        for(int i = 0; i < codes.length; i++){
+            map.put(codes[i], i + 1);
+        }
+        return map;
+    }
+
+    /**
+     * Propone la codifica binaria al server appena connessi.
+     *
+     * @param socket socket appena connessa al server.
+     * @return true se il server ha accettato la codifica binaria,
+     *         false se si deve usare il JSON su riga.
+     * @throws IOException se la comunicazione con il server fallisce.
+     * @implNote se la proprietà wire vale json non propone nulla. Un server
+     *           con una tabella diversa risponde REJECT. Un server
+     *           vecchio scarta la riga con MAGIC come richiesta malformata e
+     *           non risponde: dopo HANDSHAKE_TIMEOUT si continua in JSON.
+     */
+    static boolean handshake(Socket socket) throws IOException {
+        if("json".equals(System.getProperty("wire"))) return false;
+        OutputStream out = socket.getOutputStream();
+        out.write(new byte[]{(byte) MAGIC, (byte) (FINGERPRINT >>> 24), (byte) (FINGERPRINT >>> 16),
+                (byte) (FINGERPRINT >>> 8), (byte) FINGERPRINT, '\n'});
+        out.flush();
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        try {
+            /* Leggo un solo byte dallo stream non bufferizzato. */
+            return socket.getInputStream().read() == MAGIC;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    /**
+     * Codifica il messaggio in un frame binario (lunghezza compresa).
+     *
+     * @param obj messaggio da codificare.
+     * @return frame pronto da scrivere sulla socket.
+     */
+    static byte[] encode(JSONObject obj){
+        Encoder enc = new Encoder();
+        Object type = obj.get(TYPE);
+        if(type == null){
+            enc.writeByte(NONE);
+        }else{
+            Integer code = CODE_INDEX.get(type.toString());
+            if(code != null){
+                enc.writeByte(code);
+            }else{
+                enc.writeByte(ESCAPE);
+                enc.writeString(type.toString());
+            }
+        }
+        enc.writeFields(obj);
+        return enc.toFrame();
+    }
+
+    /**
+     * Legge un frame completo dallo stream e lo decodifica.
+     *
+     * @param in stream da cui leggere.
+     * @return messaggio decodificato, null se lo stream è terminato.
+     * @throws IOException se la lettura fallisce o il frame è malformato.
+     */
+    static JSONObject read(InputStream in) throws IOException {
+        int len = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if(b < 0){
+                if(shift == 0) return null;
+                throw new EOFException();
+            }
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+            if(shift > 28) throw new IOException("Malformed frame length");
+        } while((b & 0x80) != 0);
+        if(len <= 0 || len > MAX_FRAME_LEN) throw new IOException("Invalid frame length: " + len);
+        byte[] body = new byte[len];
+        int off = 0;
+        while(off < len){
+            int n = in.read(body, off, len - off);
+            if(n < 0) throw new EOFException();
+            off += n;
+        }
+        return decode(body, 0, len);
+    }
+
+    /**
+     * Decodifica il corpo di un frame (senza lunghezza).
+     *
+     * @param buf buffer contenente il frame.
+     * @param off inizio del corpo nel buffer.
+     * @param len lunghezza del corpo.
+     * @return messaggio decodificato.
+     * @throws IOException se il frame è malformato.
+     */
+    static JSONObject decode(byte[] buf, int off, int len) throws IOException {
+        Decoder dec = new Decoder(buf, off, off + len);
+        JSONObject obj = new JSONObject();
+        int code = dec.readByte();
+        if(code == ESCAPE){
+            obj.put(TYPE, dec.readString());
+        }else if(code != NONE){
+            obj.put(TYPE, lookup(code));
+        }
+        dec.readFields(obj);
+        if(dec.pos != dec.end) throw new IOException("Trailing bytes in frame");
+        return obj;
+    }
+
+    /**
+     * Decodifica il corpo di un frame direttamente nel messaggio dato,
+     * senza costruire un JSONObject: liste e oggetti vengono saltati.
+     *
+     * @param buf buffer contenente il frame.
+     * @param off inizio del corpo nel buffer.
+     * @param len lunghezza del corpo.
+     * @param msg messaggio da riempire, viene azzerato prima.
+     * @throws IOException se il frame è malformato, non ha tipo o un
+     *         campo noto ha un valore del tipo sbagliato.
+     */
+    static void decode(byte[] buf, int off, int len, Message msg) throws IOException {
+        Decoder dec = new Decoder(buf, off, off + len);
+        msg.clear();
+        int code = dec.readByte();
+        if(code == NONE) throw new IOException("Missing type");
+        msg.type = code == ESCAPE ? dec.readString() : lookup(code);
+        int count = dec.readLength();
+        for(int i = 0; i < count; i++){
+            code = dec.readByte();
+            String key = code == ESCAPE ? dec.readString() : lookup(code);
+            int tag = dec.readByte();
+            Object value;
+            switch (tag){
+                case T_NULL: value = null; break;
+                case T_STRING: value = dec.readString(); break;
+                case T_LONG: value = dec.readLong(); break;
+                case T_TRUE: value = Boolean.TRUE; break;
+                case T_FALSE: value = Boolean.FALSE; break;
+                default:
+                    dec.skip(tag);
+                    continue;
+            }
+            try {
+                msg.set(key, value);
+            } catch (ClassCastException e) {
+                throw new IOException("Wrong value for field: " + key);
+            }
+        }
+        if(dec.pos != dec.end) throw new IOException("Trailing bytes in frame");
+    }
+
+    /**
+     * Ritorna il codice corrispondente all'opcode.
+     *
+     * @param code opcode letto.
+     * @return codice del protocollo.
+     * @throws IOException se l'opcode non esiste.
+     */
+    private static String lookup(int code) throws IOException {
+        if(code < 1 || code > CODES.length) throw new IOException("Unknown opcode: " + code);
+        return CODES[code - 1];
+    }
+
+    /**
+     * Buffer crescente in cui viene codificato un frame.
+     * I primi PREFIX byte sono riservati alla lunghezza.
+     */
+    private static final class Encoder {
+        private static final int PREFIX = 5;
+        private byte[] buf = new byte[128];
+        private int len = PREFIX;
+
+        void writeByte(int b){
+            if(len == buf.length) buf = Arrays.copyOf(buf, len * 2);
+            buf[len++] = (byte) b;
+        }
+
+        void writeVarint(long v){
+            while((v & ~0x7FL) != 0){
+                writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            writeByte((int) v);
+        }
+
+        void writeString(String s){
+            byte[] data = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(data.length);
+            if(len + data.length > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + data.length));
+            System.arraycopy(data, 0, buf, len, data.length);
+            len += data.length;
+        }
+
+        void writeFields(Map<?,?> obj){
+            int count = obj.size() - (obj.containsKey(TYPE) ? 1 : 0);
+            writeVarint(count);
+            for(Map.Entry<?,?> e : obj.entrySet()){
+                String key = e.getKey().toString();
+                if(key.equals(TYPE)) continue;
+                Integer code = CODE_INDEX.get(key);
+                if(code != null){
+                    writeByte(code);
+                }else{
+                    writeByte(ESCAPE);
+                    writeString(key);
+                }
+                writeValue(e.getValue());
+            }
+        }
+
+        void writeValue(Object value){
+            if(value == null){
+                writeByte(T_NULL);
+            }else if(value instanceof String){
+                writeByte(T_STRING);
+                writeString((String) value);
+            }else if(value instanceof Long || value instanceof Integer
+                    || value instanceof Short || value instanceof Byte){
+                long v = ((Number) value).longValue();
+                writeByte(T_LONG);
+                writeVarint((v << 1) ^ (v >> 63));
+            }else if(value instanceof Boolean){
+                writeByte((Boolean) value ? T_TRUE : T_FALSE);
+            }else if(value instanceof List){
+                List<?> list = (List<?>) value;
+                writeByte(T_LIST);
+                writeVarint(list.size());
+                for(Object item : list){
+                    writeValue(item);
+                }
+            }else if(value instanceof Map){
+                writeByte(T_OBJECT);
+                /* Gli oggetti annidati non hanno tipo: il campo TYPE resta un campo. */
+                Map<?,?> map = (Map<?,?>) value;
+                writeVarint(map.size());
+                for(Map.Entry<?,?> e : map.entrySet()){
+                    writeString(e.getKey().toString());
+                    writeValue(e.getValue());
+                }
+            }else{
+                /* Come fa il JSON per i tipi non supportati. */
+                writeByte(T_STRING);
+                writeString(value.toString());
+            }
+        }
+
+        byte[] toFrame(){
+            int bodyLen = len - PREFIX;
+            int size = 1;
+            for(int v = bodyLen >>> 7; v != 0; v >>>= 7) size++;
+            int start = PREFIX - size;
+            int v = bodyLen;
+            for(int i = start; i < PREFIX; i++){
+                buf[i] = (byte) (i < PREFIX - 1 ? (v & 0x7F) | 0x80 : v);
+                v >>>= 7;
+            }
+            return Arrays.copyOfRange(buf, start, len);
+        }
+    }
+
+    /**
+     * Lettore del corpo di un frame.
+     */
+    private static final class Decoder {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+        /* Liste e oggetti aperti nel valore corrente. */
+        private int depth;
+
+        Decoder(byte[] buf, int pos, int end){
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int readByte() throws IOException {
+            if(pos >= end) throw new EOFException("Truncated frame");
+            return buf[pos++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            int shift = 0;
+            int b;
+            do {
+                if(shift > 63) throw new IOException("Malformed varint");
+                b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return result;
+        }
+
+        int readLength() throws IOException {
+            long len = readVarint();
+            if(len < 0 || len > end - pos) throw new IOException("Invalid length: " + len);
+            return (int) len;
+        }
+
+        String readString() throws IOException {
+            int len = readLength();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        Long readLong() throws IOException {
+            long v = readVarint();
+            /* Come json-simple gli interi sono sempre Long. */
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /**
+         * Apre una lista o un oggetto.
+         *
+         * @throws IOException se si superano MAX_DEPTH livelli: un frame
+         *         di 1 MB con liste annidate farebbe StackOverflowError.
+         */
+        private void enter() throws IOException {
+            if(++depth > MAX_DEPTH) throw new IOException("Nesting deeper than " + MAX_DEPTH);
+        }
+
+        void skip(int tag) throws IOException {
+            switch (tag){
+                case T_NULL:
+                case T_TRUE:
+                case T_FALSE:
+                    break;
+                case T_STRING:
+                    int len = readLength();
+                    pos += len;
+                    break;
+                case T_LONG:
+                    readVarint();
+                    break;
+                case T_LIST:
+                    enter();
+                    int size = readLength();
+                    for(int i = 0; i < size; i++){
+                        skip(readByte());
+                    }
+                    depth--;
+                    break;
+                case T_OBJECT:
+                    enter();
+                    int fields = readLength();
+                    for(int i = 0; i < fields; i++){
+                        int keyLen = readLength();
+                        pos += keyLen;
+                        skip(readByte());
+                    }
+                    depth--;
+                    break;
+                default:
+                    throw new IOException("Unknown value tag: " + tag);
+            }
+        }
+
+        void readFields(JSONObject obj) throws IOException {
+            int count = readLength();
+            for(int i = 0; i < count; i++){
+                int code = readByte();
+                String key = code == ESCAPE ? readString() : lookup(code);
+                obj.put(key, readValue());
+            }
+        }
+
+        Object readValue() throws IOException {
+            int tag = readByte();
+            switch (tag){
+                case T_NULL:
+                    return null;
+                case T_STRING:
+                    return readString();
+                case T_LONG:
+                    return readLong();
+                case T_TRUE:
+                    return Boolean.TRUE;
+                case T_FALSE:
+                    return Boolean.FALSE;
+                case T_LIST:
+                    enter();
+                    int size = readLength();
+                    JSONArray list = new JSONArray();
+                    for(int i = 0; i < size; i++){
+                        list.add(readValue());
+                    }
+                    depth--;
+                    return list;
+                case T_OBJECT:
+                    enter();
+                    int fields = readLength();
+                    JSONObject obj = new JSONObject();
+                    for(int i = 0; i < fields; i++){
+                        String key = readString();
+                        obj.put(key, readValue());
+                    }
+                    depth--;
+                    return obj;
+                default:
+                    throw new IOException("Unknown value tag: " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,5 @@
+public enum BreakerState {
+    CLOSED, /* Le richieste passano normalmente. */
+    OPEN, /* Il servizio è considerato guasto: le richieste vengono saltate. */
+    HALF_OPEN /* Una sola richiesta di prova verifica se il servizio è tornato disponibile. */
+}
@@ -0,0 +1,61 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Lato in scrittura di una connessione servita da un event loop.
+ * I byte vengono accumulati e, ad ogni flush, accodati alla
+ * connessione che li invierà in maniera non bloccante.
+ */
+class ChannelOutputStream extends OutputStream {
+    private final ReactorConnection conn;
+    private final ByteArrayOutputStream pending;
+
+    /**
+     * Inizializza lo stream sulla connessione.
+     *
+     * @param conn connessione su cui scrivere.
+     */
+    ChannelOutputStream(ReactorConnection conn){
+        this.conn = conn;
+        this.pending = new ByteArrayOutputStream();
+    }
+
+    /* Specifica in OutputStream. */
+    public synchronized void write(int b) throws IOException {
+        if(conn.isClosed()) throw new IOException("Connection closed");
+        pending.write(b);
+    }
+
+    /* Specifica in OutputStream. */
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if(conn.isClosed()) throw new IOException("Connection closed");
+        pending.write(b, off, len);
+    }
+
+    /* Specifica in OutputStream. */
+    public synchronized void flush() throws IOException {
+        if(pending.size() == 0) return;
+        byte[] data = pending.toByteArray();
+        pending.reset();
+        conn.write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Controlla se la connessione accetta altri dati.
+     *
+     * @param onResume eseguito quando la connessione torna a
+     *                 accettare dati, se ritorna false.
+     * @return false se i byte ancora da inviare al client
+     *         hanno raggiunto il limite della connessione.
+     */
+    boolean writable(Runnable onResume){
+        return conn.writable(onResume);
+    }
+
+    /* Specifica in OutputStream. */
+    public void close() {
+        conn.close();
+    }
+}
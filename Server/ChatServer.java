@@ -1,14 +1,14 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
-class ChatServer implements Runnable {
+class ChatServer implements SocketServer {
     /* Thread in attesa di nuove connessioni sulla chat socket. */
     private ServerSocket cs;
     private final AtomicInteger errorCount;
-    private final ThreadPoolExecutor executor;
+    private final ExecutorService executor;
     private final ChatService chatOp;
 
     /**
@@ -23,7 +23,7 @@ class ChatServer implements Runnable {
      * @throws IOException se la creazione della chat socket fallisce.
      */
     public ChatServer(int chatPort, AtomicInteger errorCount,
-                      ThreadPoolExecutor executor, ChatService chatOp) throws IOException{
+                      ExecutorService executor, ChatService chatOp) throws IOException{
         this.errorCount = errorCount;
         this.executor = executor;
         this.chatOp = chatOp;
@@ -1,146 +1,194 @@
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 class ChatService extends Service {
+    /* Attesa (ms) di SOCKETINFO dopo una FILEMSG, come il TIMEOUT del FileReceiver. */
+    private static final long FILE_TIMEOUT = 600000;
+    /* Intervallo minimo (ms) fra due pulizie delle richieste di invio file scadute. */
+    private static final long SWEEP_INTERVAL = 1000;
+    /* Separa mittente, destinatario e ide nella chiave delle richieste di file. */
+    private static final char SEPARATOR = '\u0000';
+    private final Executor executor;
+    private final int outboxCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Translator translator;
+    private final OfflineStore offline;
+    private final Relay relay;
+    private final PresenceDispatcher presence;
+    /* <mittente + destinatario + ide, scadenza> delle FILEMSG in attesa di SOCKETINFO. */
+    private final ConcurrentHashMap<String,Long> pendingFiles;
+    /* Istante (ms) dal quale pendingFiles può essere ripulita. */
+    private final AtomicLong nextSweep;
+    /* <mittente + destinatario, consegna dell'ultimo messaggio> finché non è completata. */
+    private final ConcurrentHashMap<String,CompletableFuture<Void>> deliveries;
 
     /**
      * Inizializza una nuova istanza del servizio di chat
      * che contiene tutti i metodi definiti.
      *
      * @param users struttura dati condivisa che contiene le info degli utenti.
+     * @param executor thread pool su cui svuotare le code in uscita.
+     * @param outboxCapacity numero massimo di messaggi in uscita per utente.
+     * @param overflowPolicy politica da applicare quando la coda è piena.
+     * @param translator pipeline di traduzione dei messaggi.
+     * @param offline casella dei messaggi per gli amici offline.
+     * @param relay relay dei trasferimenti di file.
+     * @param presence dispatcher delle notifiche di cambio status.
      */
-    public ChatService(ConcurrentHashMap<String, UserOperation> users){
+    public ChatService(ConcurrentHashMap<String, UserOperation> users, Executor executor,
+                       int outboxCapacity, OverflowPolicy overflowPolicy, Translator translator,
+                       OfflineStore offline, Relay relay, PresenceDispatcher presence){
         super(users);
+        this.translator = translator;
+        this.offline = offline;
+        this.relay = relay;
+        this.presence = presence;
+        this.pendingFiles = new ConcurrentHashMap<>();
+        this.nextSweep = new AtomicLong();
+        this.deliveries = new ConcurrentHashMap<>();
+        this.executor = executor;
+        this.outboxCapacity = outboxCapacity;
+        this.overflowPolicy = overflowPolicy;
     }
 
     /**
      * Inizializza la socket per l'invio dei messaggi di chat
-     * ad un utente.
+     * ad un utente e consegna i messaggi ricevuti mentre era offline.
+     * Con le notifiche push completa il login al posto della callback
+     * RMI: l'utente diventa ONLINE e gli amici vengono notificati.
      *
      * @param usr utente a cui associare la chat socket.
      * @param clientChatWriter writer della chat socket.
+     * @param push true se il client riceve le notifiche sulla chat socket.
+     * @return coda in uscita associata alla chat socket.
      */
-    public void initChatSocket(String usr,BufferedWriter clientChatWriter) {
+    public Mailbox initChatSocket(String usr,FrameWriter clientChatWriter,boolean push) {
+        Mailbox mailbox = new Mailbox(usr,clientChatWriter,outboxCapacity,overflowPolicy,executor);
+        AtomicReference<UserEndpoint> endpoint = new AtomicReference<>();
+        ArrayList<String> followers = new ArrayList<>();
         users.computeIfPresent(usr,(k,v) ->{
-            v.setChatWriter(clientChatWriter);
+            v.setMailbox(mailbox);
+            if(push && v.setPushEvents()) followers.addAll(v.getFollowers());
+            endpoint.set(v.getEndpoint());
+            return v;
+        });
+        if(!followers.isEmpty()) presence.friendStatusChange(usr,followers,UserStatus.ONLINE.toString());
+        offline.deliver(usr,endpoint.get());
+        return mailbox;
+    }
+
+    /**
+     * Stacca dall'utente la coda in uscita di una chat socket chiusa,
+     * così i messaggi successivi vanno nella casella offline e non
+     * in una coda che nessuno svuota.
+     *
+     * @param usr utente della chat socket.
+     * @param mailbox coda in uscita della chat socket chiusa.
+     */
+    public void closeChatSocket(String usr, Mailbox mailbox){
+        users.computeIfPresent(usr,(k,v) -> {
+            v.clearMailbox(mailbox);
             return v;
         });
+        mailbox.close();
     }
 
     /**
      * Esegue i controlli sul mittente e destinatario,
-     * manda il messaggio al destinatario.
+     * traduce il messaggio in maniera asincrona e lo
+     * consegna al destinatario una volta tradotto.
      *
      * @param sourceUsr mittente del messaggio.
      * @param destUsr destinatario del messaggio.
      * @param msg body del messaggio.
-     * @return OK se l'invio va a buon fine.
+     * @return OK se il messaggio è stato preso in carico.
+     *         QUEUED se il destinatario è offline e il messaggio
+     *                sarà consegnato al suo prossimo login.
      *         OFFLINE se il destinatario è offline.
      *         WRGUSR se il destinatario non esiste.
      *         NOT_FRIENDS se il mittente non è amico.
      *                     del destinatario e viceversa.
      * @implNote ho preferito un'early return in quanto gli if
      *           sarebbero stati meno leggibili.
+     *           Le traduzioni di una coppia mittente-destinatario possono
+     *           completarsi in qualsiasi ordine (cache, timeout, breaker)
+     *           ma i messaggi sono consegnati nell'ordine di invio.
      */
     public SSCode sendChatMsg(String sourceUsr, String destUsr, String msg){
-        /* Costruisco una parte della stringa di richiesta di traduzione. */
-        StringBuilder translateRequest = new StringBuilder("https://api.mymemory.translated.net/get?of=json&q=");
-        translateRequest.append(msg);
-        translateRequest.append("&langpair=");
-
         if(!users.containsKey(destUsr)){
             /* Se il destinatario non esiste. */
             return SSCode.WRGUSR;
         }
-        AtomicBoolean tmpResult = new AtomicBoolean(false);
-        users.computeIfPresent(sourceUsr,(k,v) ->{
-            /* Controllo se mittente e destinatario sono amici. */
-            tmpResult.set(v.checkFriend(destUsr));
-            translateRequest.append(v.getLang());
-            return v;
-        });
-
-        if(!tmpResult.get()){
+        /* Controllo se mittente e destinatario sono amici. */
+        String sourceLang = read(sourceUsr, v -> v.checkFriend(destUsr) ? v.getLang() : null);
+        if(sourceLang == null){
             /* Se mittente e destinatario NON sono amici. */
             return SSCode.NOT_FRIENDS;
         }
-        /* Aggiungo la pipe per la lingua: linguaMittente|linguaDestinazione. */
-        translateRequest.append("|");
-        users.computeIfPresent(destUsr,(k,v)->{
-            translateRequest.append(v.getLang());
-            return v;
-        });
-        String translationResult = doTranslationRequest(translateRequest.toString());
-        /* Se la traduzione fallisce mando il messaggio nella lingua del mittente. */
         AtomicReference<SSCode> result = new AtomicReference<>(SSCode.WRGUSR);
-        /*
-         * La lambda expression non mi permette di usare variabili
-         * NON effettivamente final (non posso riassegnare msg)
-         * quindi uso un if all'interno.
-         */
-        users.computeIfPresent(destUsr,(k,v)->{
-            if(translationResult != null) result.set(v.sendChatMsg(sourceUsr,translationResult));
-            else result.set(v.sendChatMsg(sourceUsr,msg));
-            return v;
+        String destLang = read(destUsr, v -> {
+            result.set(v.checkChatMsg(sourceUsr));
+            return v.getLang();
         });
-        return result.get();
+        /* Se il destinatario è un amico offline il messaggio tradotto finisce nella sua casella. */
+        boolean queued = result.get().equals(SSCode.OFFLINE) && offline.isEnabled();
+        if(!result.get().equals(SSCode.OK) && !queued) return result.get();
+        /* Se la traduzione fallisce o va in timeout mando il messaggio nella lingua del mittente. */
+        CompletableFuture<String> translation = translator.translate(sourceLang,destLang,msg);
+        String key = sourceUsr + SEPARATOR + destUsr;
+        /* La consegna attende quella del messaggio precedente e gira sul pool,
+         * non sul timer del Translator che completa le traduzioni scadute. */
+        CompletableFuture<Void> delivery = deliveries.compute(key, (k, prev) ->
+                (prev == null ? translation : prev.handle((v, e) -> null).thenCombine(translation, (v, t) -> t))
+                        .thenAcceptAsync(translated -> deliverChatMsg(sourceUsr,destUsr,translated), executor));
+        delivery.whenComplete((v, e) -> deliveries.remove(key, delivery));
+        return queued ? SSCode.QUEUED : SSCode.OK;
     }
 
     /**
-     * Effettua la richiesta di traduzione del messaggio
-     * e ritorna la risposta.
+     * Consegna il messaggio tradotto al destinatario e,
+     * se la consegna fallisce, notifica il mittente.
+     * Se il destinatario è offline il messaggio viene
+     * salvato nella sua casella: se è piena il mittente
+     * riceve OFFLINE_FULL.
      *
-     * @param translateRequest url della richiesta di traduzione.
-     * @return il messaggio tradotto se la richiesta va a buon fine,
-     *         null altrimenti.
+     * @param sourceUsr mittente del messaggio.
+     * @param destUsr destinatario del messaggio.
+     * @param msg body del messaggio tradotto.
+     * @implNote il destinatario può essere andato offline
+     *           durante la traduzione quindi i controlli
+     *           vanno rifatti.
      */
-    private String doTranslationRequest(String translateRequest){
-        String translatedMsg = null;
-        StringBuilder result2 = new StringBuilder();
-        try {
-            URL url = new URL(translateRequest);
-            /* HttpURLConnection per singola richiesta ma la TCP sotto può essere riutilizzata. */
-            HttpURLConnection uc = (HttpURLConnection) url.openConnection();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(uc.getInputStream()));
-            String line;
-            while ((line = rd.readLine()) != null) {
-                result2.append(line);
-            }
-            rd.close();
-            /* Può chiudere la connessione TCP sottostante. */
-            uc.disconnect();
-            JSONParser parser = new JSONParser();
-            JSONObject obj = (JSONObject) parser.parse(result2.toString());
-            String status = obj.get("responseStatus").toString();
-            if(status.equals("200")){
-                JSONObject responseDate = (JSONObject) obj.get("responseData");
-                if(responseDate != null) {
-                    translatedMsg = (String) responseDate.get("translatedText");
-                }
-            }
-        } catch (MalformedURLException e) {
-            System.err.println("MALFORMED URL FOR TRANSLATION");
-            translatedMsg = null;
-        } catch (IOException e) {
-            System.err.println("IO EXCEPTION MESSAGE TRANSLATION");
-            translatedMsg = null;
-        } catch (ParseException e) {
-            System.err.println("PARSING TRANSLATION REPLY EXCEPTION");
-            translatedMsg = null;
+    private void deliverChatMsg(String sourceUsr, String destUsr, String msg){
+        AtomicReference<SSCode> result = new AtomicReference<>(SSCode.WRGUSR);
+        UserEndpoint dest = read(destUsr, v -> {
+            result.set(v.checkChatMsg(sourceUsr));
+            return v.getEndpoint();
+        });
+        /* L'invio sulla chat socket avviene fuori dal lock. */
+        if(result.get().equals(SSCode.OK)) result.set(dest.sendChatMsg(sourceUsr,msg));
+        if(result.get().equals(SSCode.OFFLINE) && offline.isEnabled()){
+            result.set(offline.store(sourceUsr,destUsr,msg));
+            if(result.get().equals(SSCode.OK)) deliverStored(destUsr);
         }
-        return translatedMsg;
+        if(!result.get().equals(SSCode.OK)){
+            UserEndpoint source = read(sourceUsr,UserOperation::getEndpoint);
+            if(source != null) source.notifyDeliveryFailure(destUsr,result.get());
+        }
+    }
+
+    /**
+     * Avvia la consegna dei messaggi salvati se il destinatario
+     * è tornato online mentre il messaggio veniva salvato.
+     *
+     * @param destUsr destinatario dei messaggi salvati.
+     */
+    private void deliverStored(String destUsr){
+        offline.deliver(destUsr,read(destUsr,UserOperation::getEndpoint));
     }
 
     /**
@@ -152,42 +200,88 @@ class ChatService extends Service {
      * @param fileName nome del file da inviare.
      * @param len lunghezza del file da inviare.
      * @param ide identificatore univoco del file.
+     * @param streams connessioni parallele proposte, null se non indicate.
      * @return OK se l'invio della richiesta va a buon fine.
      *         OFFLINE se il destinatario è offline.
      *         WRGUSR se il destinatario non esiste.
      *         NOT_FRIENDS se il mittente non è amico
      *                     del destinatario o viceversa.
+     *         QUEUE_FULL se la coda in uscita del destinatario è piena.
      */
-    public SSCode requestFileMsg(String sourceUsr, String destUsr, String fileName, Long len, Long ide){
+    public SSCode requestFileMsg(String sourceUsr, String destUsr, String fileName, Long len, Long ide, Long streams){
         if(!users.containsKey(destUsr)) return SSCode.WRGUSR;
-        AtomicBoolean tmpResult = new AtomicBoolean(false);
-        users.computeIfPresent(sourceUsr,(k,v)->{
-            tmpResult.set(v.checkFriend(destUsr));
-            return v;
-        });
-        if(!tmpResult.get()) return SSCode.NOT_FRIENDS;
+        Boolean isFriend = read(sourceUsr, v -> v.checkFriend(destUsr));
+        if(isFriend == null || !isFriend) return SSCode.NOT_FRIENDS;
         AtomicReference<SSCode> result = new AtomicReference<>(SSCode.WRGUSR);
-        users.computeIfPresent(destUsr,(k,v)->{
-            result.set(v.requestFileMsg(sourceUsr,fileName,len,ide));
-            return v;
+        UserEndpoint dest = read(destUsr, v -> {
+            result.set(v.checkChatMsg(sourceUsr));
+            return v.getEndpoint();
         });
+        /* Il destinatario sceglie se ricevere tramite il relay. */
+        Long relayPort = relay.isEnabled() ? (long) relay.getPort() : null;
+        if(result.get().equals(SSCode.OK)) result.set(dest.requestFileMsg(sourceUsr,fileName,len,ide,streams,relayPort));
+        if(result.get().equals(SSCode.OK) && ide != null){
+            /* Solo il destinatario di questa richiesta potrà rispondere con SOCKETINFO. */
+            long now = System.currentTimeMillis();
+            sweepPendingFiles(now);
+            pendingFiles.put(fileKey(sourceUsr,destUsr,ide), now + FILE_TIMEOUT);
+        }
         return result.get();
     }
 
+    /**
+     * Rimuove le richieste di invio file scadute, al più una volta
+     * ogni SWEEP_INTERVAL: sendSocketInfo() rifiuta comunque quelle
+     * scadute, la pulizia serve solo a liberare memoria.
+     *
+     * @param now istante corrente (ms).
+     */
+    private void sweepPendingFiles(long now){
+        long next = nextSweep.get();
+        if(now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) return;
+        pendingFiles.values().removeIf(deadline -> deadline < now);
+    }
+
     /**
      * Invia le informazioni della socket (IP,porta)
      * per l'invio del file al mittente della richiesta
-     * di invio file.
+     * di invio file e autorizza il token sul relay.
      *
+     * @param sourceUsr destinatario del file, che risponde alla richiesta.
      * @param destUsr mittente della richiesta di invio file.
-     * @param ip ip del destinatario.
-     * @param port porta del destinatario.
+     * @param ip ip del destinatario, null se riceve solo tramite relay.
+     * @param port porta del destinatario, null se riceve solo tramite relay.
      * @param ide identificatore univoco del file.
+     * @param streams connessioni parallele accettate, null se non indicate.
+     * @param token token con cui il destinatario attende sul relay,
+     *              null se non usa il relay.
+     * @return OK se le informazioni sono state inoltrate.
+     *         OFFLINE se chi risponde non è loggato.
+     *         WRGUSR se non c'è una richiesta di invio file con questo
+     *                ide da destUsr a sourceUsr (o è già stata risposta).
+     *         QUEUE_FULL se il relay rifiuta il token (già in uso
+     *                    o troppi token autorizzati).
+     * @implNote la richiesta viene consumata: lo stesso ide non può
+     *           autorizzare un secondo token.
      */
-    public void sendSocketInfo(String destUsr, String ip, Long port, Long ide) {
-        users.computeIfPresent(destUsr,(k,v) ->{
-            v.sendSocketInfo(ip,port,ide);
-            return v;
-        });
+    public SSCode sendSocketInfo(String sourceUsr, String destUsr, String ip, Long port, Long ide, Long streams, Long token) {
+        if(sourceUsr == null || destUsr == null || ide == null) return SSCode.WRGUSR;
+        UserStatus status = read(sourceUsr,UserOperation::getUsrStat);
+        if(!UserStatus.ONLINE.equals(status)) return SSCode.OFFLINE;
+        Long deadline = pendingFiles.remove(fileKey(destUsr,sourceUsr,ide));
+        if(deadline == null || deadline < System.currentTimeMillis()) return SSCode.WRGUSR;
+        Long relayPort = null;
+        if(token != null && relay.isEnabled()){
+            int pairs = streams == null ? 1 : (int) Math.max(1, Math.min(streams, Relay.MAX_WAITING));
+            if(!relay.expect(token, destUsr, sourceUsr, ide, pairs)) return SSCode.QUEUE_FULL;
+            relayPort = (long) relay.getPort();
+        }
+        UserEndpoint dest = read(destUsr,UserOperation::getEndpoint);
+        if(dest != null) dest.sendSocketInfo(ip,port,ide,streams,relayPort == null ? null : token,relayPort);
+        return SSCode.OK;
+    }
+
+    private static String fileKey(String sender, String receiver, long ide){
+        return sender + SEPARATOR + receiver + SEPARATOR + ide;
     }
 }
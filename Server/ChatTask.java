@@ -3,12 +3,25 @@ import org.json.simple.parser.ParseException;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 
 class ChatTask extends Task implements Runnable{
     /* Thread che gestisce le richieste di invio messaggi e file di un client */
     private final ChatService chatOp;
+    /* Coda in uscita creata da INIT, null prima di INIT. */
+    private Mailbox mailbox;
+    /* Eventi di log: i messaggi sono campionati e ne viene loggata solo la lunghezza. */
+    private static final LogEvent CONNECTED = new LogEvent(LogLevel.DEBUG, "chat.connected", false, "remote");
+    private static final LogEvent CLOSED = new LogEvent(LogLevel.DEBUG, "chat.closed", false, "usr", "reason");
+    private static final LogEvent MALFORMED = new LogEvent(LogLevel.WARN, "chat.malformed", false, "usr");
+    private static final LogEvent UNKNOWN = new LogEvent(LogLevel.WARN, "chat.unknown", false, "usr", "type");
+    private static final LogEvent INIT_SOCKET = new LogEvent(LogLevel.INFO, "chat.init", false, "usr", "remote");
+    private static final LogEvent SOCKET_INFO = new LogEvent(LogLevel.INFO, "chat.socketinfo", false, "usr", "to", "result");
+    private static final LogEvent CHAT_MSG = new LogEvent(LogLevel.INFO, "chat.msg", true, "usr", "to", "result", "length");
+    private static final LogEvent FILE_MSG = new LogEvent(LogLevel.INFO, "file.msg", true, "usr", "to", "result", "bytes");
 
     /**
      * Inizializza i lati in lettura e scrittura della socket.
@@ -21,70 +34,100 @@ class ChatTask extends Task implements Runnable{
         this.chatOp = chatOp;
     }
 
+    /**
+     * Inizializza il lato in scrittura della connessione
+     * in modalità reactor.
+     *
+     * @param out lato in scrittura della connessione.
+     * @param remote indirizzo del client.
+     * @param chatOp implementazione delle operazioni di chat.
+     */
+    public ChatTask(OutputStream out, SocketAddress remote, ChatService chatOp){
+        super(out,remote);
+        this.chatOp = chatOp;
+    }
+
     /**
      * Riceve dalla socket una richiesta ed
      * esegue la rispettiva operazione.
      */
     public void run() {
         try{
-            String destUsr;
-            String msg;
-            Long ide;
-            System.out.println("New chat task activated");
+            CONNECTED.log(remote);
             Thread currentThread = Thread.currentThread();
+            Message request;
             while(!currentThread.isInterrupted()){
                 try {
-                    obj = receive();
+                    request = receive();
                 }catch (ParseException e){
-                    System.err.println("PARSE EXCEPTION CHAT TASK");
+                    MALFORMED.log(currentUser);
                     /* Non termino ma riprovo a leggere */
                     continue;
                 }
-                if (obj == null) break;
-                switch ((String) obj.get(TYPE)) {
-                    case INIT:
-                        currentUser = (String) obj.get(USR);
-                        chatOp.initChatSocket(currentUser, writer);
-                        System.out.printf("[CHAT INIT] from: %s socket: %s\n",currentUser, client.getRemoteSocketAddress().toString());
-                        break;
-                    case CHATMSG:
-                        destUsr = (String) obj.get(TO);
-                        msg = (String) obj.get(MSG);
-                        chatMsg(destUsr, msg);
-                        break;
-                    case FILEMSG:
-                        destUsr = (String) obj.get(TO);
-                        msg = (String) obj.get(FILENAME);
-                        ide = (Long) obj.get(IDE);
-                        Long len = (Long) obj.get(LEN);
-                        fileMsg(destUsr, msg, len, ide);
-                        break;
-                    case SOCKETINFO:
-                        destUsr = (String) obj.get(USR);
-                        String ip = (String) obj.get(IP);
-                        Long port = (Long) obj.get(PORT);
-                        ide = (Long) obj.get(IDE);
-                        System.out.printf("[FILE TRANFER SOCKET INFO] from: %s to: %s \n",currentUser, destUsr);
-                        chatOp.sendSocketInfo(destUsr, ip, port, ide);
-                        break;
-                    default:
-                        System.out.printf("CHAT TASK DEFAULT: %s",currentUser);
-                        break;
-                }
+                if (request == null) break;
+                process(request);
             }
 
         } catch (EOFException e){
-            System.err.println("EOF EXCEPTION CHAT TASK");
-            if(client.isClosed()) System.err.println("CLOSED CHAT TASK");
+            CLOSED.log(currentUser,"EOF");
         } catch (SocketException e){
-            System.err.println("SOCKET EXCEPTION CHAT TASK");
+            CLOSED.log(currentUser,"SOCKET");
         } catch (IOException e){
-            System.err.println("IO EXCEPTION CHAT TASK");
+            CLOSED.log(currentUser,"IO");
         } finally {
-            close();
+            terminate();
         }
     }
 
+    /**
+     * Esegue l'operazione di chat contenuta nella richiesta.
+     *
+     * @param request richiesta del client.
+     */
+    void process(Message request){
+        String destUsr;
+        String msg;
+        Long ide;
+        switch (request.type) {
+            case INIT:
+                currentUser = request.usr;
+                mailbox = chatOp.initChatSocket(currentUser, writer, PUSH.equals(request.events));
+                INIT_SOCKET.log(currentUser,remote);
+                break;
+            case CHATMSG:
+                destUsr = request.to;
+                msg = request.msg;
+                chatMsg(destUsr, msg);
+                break;
+            case FILEMSG:
+                destUsr = request.to;
+                msg = request.fileName;
+                ide = request.ide;
+                Long len = request.len;
+                fileMsg(destUsr, msg, len, ide, request.streams);
+                break;
+            case SOCKETINFO:
+                destUsr = request.usr;
+                String ip = request.ip;
+                Long port = request.port;
+                ide = request.ide;
+                SSCode result = chatOp.sendSocketInfo(currentUser, destUsr, ip, port, ide, request.streams, request.token);
+                SOCKET_INFO.log(currentUser,destUsr,result);
+                break;
+            default:
+                UNKNOWN.log(currentUser,request.type);
+                break;
+        }
+    }
+
+    /**
+     * Chiude la chat socket e la stacca dall'utente.
+     */
+    void terminate(){
+        if(mailbox != null) chatOp.closeChatSocket(currentUser, mailbox);
+        close();
+    }
+
     /**
      * Invia il messaggio al destinatario ed una risposta
      * che identifica il risultato dell'operazione al mittente.
@@ -94,28 +137,33 @@ class ChatTask extends Task implements Runnable{
      */
     private void chatMsg(String destUsr, String msg){
         SSCode result =chatOp.sendChatMsg(currentUser,destUsr,msg);
+        CHAT_MSG.log(currentUser,destUsr,result,msg == null ? 0 : msg.length());
         obj = new JSONObject();
         switch (result){
             case OK:
-                System.out.printf("[CHAT MSG] from: %s to: %s msg: %s RESULT: %s\n",currentUser,destUsr,msg,ACK);
                 obj.put(TYPE,ACK);
                 obj.put(MSG,senderMsg(destUsr,msg));
                 break;
             case OFFLINE:
-                System.out.printf("[CHAT MSG] from: %s to: %s msg: %s RESULT: OFFLINE\n",currentUser,destUsr,msg);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,usrOffline(destUsr));
                 break;
             case WRGUSR:
-                System.out.printf("[CHAT MSG] from: %s to: %s msg: %s RESULT: NOT EXIST\n",currentUser,destUsr,msg);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,usrNotExist(destUsr));
                 break;
             case NOT_FRIENDS:
-                System.out.printf("[CHAT MSG] from: %s to: %s msg: %s RESULT: NOT FRIENDS\n",currentUser,destUsr,msg);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,usrNotFriend(destUsr));
                 break;
+            case QUEUE_FULL:
+                obj.put(TYPE,NACK);
+                obj.put(MSG,usrBusy(destUsr));
+                break;
+            case QUEUED:
+                obj.put(TYPE,ACK);
+                obj.put(MSG,usrOfflineQueued(destUsr,msg));
+                break;
         }
         send(obj);
     }
@@ -129,31 +177,33 @@ class ChatTask extends Task implements Runnable{
      * @param fileName nome del file.
      * @param len lunghezza del file.
      * @param ide identificatore univoco del file.
+     * @param streams connessioni parallele proposte, null se non indicate.
      */
-    private void fileMsg(String destUsr, String fileName, Long len, Long ide){
-        SSCode result = chatOp.requestFileMsg(currentUser,destUsr,fileName,len,ide);
+    private void fileMsg(String destUsr, String fileName, Long len, Long ide, Long streams){
+        SSCode result = chatOp.requestFileMsg(currentUser,destUsr,fileName,len,ide,streams);
+        FILE_MSG.log(currentUser,destUsr,result,len == null ? 0 : len);
         obj = new JSONObject();
         switch (result){
             case OK:
-                System.out.printf("[FILE MSG] from: %s to: %s file: %s RESULT: ACK\n",currentUser,destUsr,fileName);
                 obj.put(TYPE,ACK);
                 obj.put(MSG,senderFile(destUsr,fileName));
                 break;
             case OFFLINE:
-                System.out.printf("[FILE MSG] from: %s to: %s file: %s RESULT: OFFLINE\n",currentUser,destUsr,fileName);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,usrOffline(destUsr));
                 break;
             case WRGUSR:
-                System.out.printf("[FILE MSG] from: %s to: %s file: %s RESULT: NOT EXIST\n",currentUser,destUsr,fileName);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,usrNotExist(destUsr));
                 break;
             case NOT_FRIENDS:
-                System.out.printf("[FILE MSG] from: %s to: %s file: %s RESULT: NOT FRIENDS\n",currentUser,destUsr,fileName);
                 obj.put(TYPE, NACK);
                 obj.put(MSG,usrNotFriend(destUsr));
                 break;
+            case QUEUE_FULL:
+                obj.put(TYPE, NACK);
+                obj.put(MSG,usrBusy(destUsr));
+                break;
         }
         send(obj);
     }
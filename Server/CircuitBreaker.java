@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker verso un servizio esterno: dopo un certo numero di
+ * fallimenti consecutivi smette di fare richieste per un intervallo
+ * di tempo, poi lascia passare una sola richiesta di prova.
+ */
+class CircuitBreaker {
+    private static final LogEvent OPENED = new LogEvent(LogLevel.WARN, "breaker.open", false, "trips");
+    private static final LogEvent CLOSED = new LogEvent(LogLevel.INFO, "breaker.close", false, "trips");
+
+    private final int failureThreshold;
+    private final long cooldownMillis;
+    private final AtomicReference<BreakerState> state;
+    private final AtomicInteger consecutiveFailures;
+    private final AtomicLong trips;
+    private volatile long openedAt;
+
+    /**
+     * Inizializza il breaker nello stato CLOSED.
+     *
+     * @param failureThreshold fallimenti consecutivi dopo cui il breaker si apre.
+     * @param cooldownMillis tempo (ms) dopo cui un breaker aperto fa una prova.
+     */
+    CircuitBreaker(int failureThreshold, long cooldownMillis){
+        this.failureThreshold = failureThreshold;
+        this.cooldownMillis = cooldownMillis;
+        this.state = new AtomicReference<>(BreakerState.CLOSED);
+        this.consecutiveFailures = new AtomicInteger(0);
+        this.trips = new AtomicLong(0);
+    }
+
+    /**
+     * Decide se la richiesta può essere fatta.
+     *
+     * @return true se la richiesta può essere fatta, false se va saltata.
+     * @implNote da OPEN a HALF_OPEN passa un solo thread (compareAndSet)
+     *           quindi c'è al più una richiesta di prova alla volta.
+     */
+    public boolean allowRequest(){
+        switch (state.get()){
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.currentTimeMillis() - openedAt >= cooldownMillis &&
+                        state.compareAndSet(BreakerState.OPEN, BreakerState.HALF_OPEN);
+            default:
+                /* Prova già in corso. */
+                return false;
+        }
+    }
+
+    /**
+     * Registra una richiesta andata a buon fine e chiude il breaker.
+     */
+    public void onSuccess(){
+        consecutiveFailures.set(0);
+        if(state.getAndSet(BreakerState.CLOSED) != BreakerState.CLOSED){
+            CLOSED.log(Long.valueOf(trips.get()));
+        }
+    }
+
+    /**
+     * Registra una richiesta fallita e, se necessario, apre il breaker.
+     */
+    public void onFailure(){
+        if(state.get() == BreakerState.HALF_OPEN){
+            /* La prova è fallita: riapro. */
+            trip(BreakerState.HALF_OPEN);
+        }else if(consecutiveFailures.incrementAndGet() >= failureThreshold){
+            trip(BreakerState.CLOSED);
+        }
+    }
+
+    /**
+     * Apre il breaker se è ancora nello stato atteso.
+     *
+     * @param expected stato da cui si apre il breaker.
+     */
+    private void trip(BreakerState expected){
+        /* openedAt va scritto prima dello stato, lo legge chi vede OPEN.
+         * Se la compareAndSet fallisce al più ritardo la prossima prova. */
+        openedAt = System.currentTimeMillis();
+        if(state.compareAndSet(expected, BreakerState.OPEN)){
+            consecutiveFailures.set(0);
+            OPENED.log(Long.valueOf(trips.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Ritorna lo stato attuale del breaker.
+     *
+     * @return stato del breaker.
+     */
+    public BreakerState getState(){
+        return state.get();
+    }
+
+    /**
+     * Ritorna quante volte il breaker si è aperto.
+     *
+     * @return numero di aperture.
+     */
+    public long getTrips(){
+        return trips.get();
+    }
+}
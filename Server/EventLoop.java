@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread che gestisce, tramite un selector, la lettura e la scrittura
+ * non bloccante di tutte le connessioni che gli sono state assegnate.
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    /* Operazioni sottomesse da altri thread ed eseguite dall'event loop. */
+    private final ConcurrentLinkedQueue<Runnable> pending;
+
+    /**
+     * Apre il selector dell'event loop.
+     *
+     * @throws IOException se l'apertura del selector fallisce.
+     */
+    EventLoop() throws IOException {
+        selector = Selector.open();
+        pending = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Registra una nuova connessione sul selector.
+     *
+     * @param channel canale della connessione (non bloccante).
+     * @param conn stato della connessione.
+     */
+    void register(SocketChannel channel, ReactorConnection conn){
+        execute(() -> {
+            try {
+                conn.setKey(channel.register(selector, SelectionKey.OP_READ, conn));
+            } catch (ClosedChannelException e) {
+                conn.close();
+            }
+        });
+    }
+
+    /**
+     * Fa eseguire l'operazione dal thread dell'event loop
+     * e lo risveglia dalla select().
+     *
+     * @param op operazione da eseguire.
+     * @implNote le modifiche alle interest op delle chiavi vanno fatte
+     *           solo dall'event loop altrimenti si bloccano sulla select().
+     */
+    void execute(Runnable op){
+        pending.add(op);
+        selector.wakeup();
+    }
+
+    /**
+     * Attende eventi sulle connessioni registrate e li
+     * passa alla connessione corrispondente.
+     */
+    public void run() {
+        Thread currentThread = Thread.currentThread();
+        while(!currentThread.isInterrupted() && selector.isOpen()){
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("IO EXCEPTION EVENT LOOP SELECT");
+                break;
+            }
+            Runnable op;
+            while((op = pending.poll()) != null){
+                op.run();
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while(it.hasNext()){
+                SelectionKey key = it.next();
+                it.remove();
+                ReactorConnection conn = (ReactorConnection) key.attachment();
+                if(!key.isValid()) continue;
+                if(key.isReadable()) conn.onReadable();
+                if(key.isValid() && key.isWritable()) conn.onWritable();
+            }
+        }
+        close();
+    }
+
+    /**
+     * Chiude tutte le connessioni registrate e il selector.
+     */
+    void close(){
+        if(!selector.isOpen()) return;
+        try {
+            for(SelectionKey key : selector.keys()){
+                ((ReactorConnection) key.attachment()).close();
+            }
+        } catch (RuntimeException e) {
+            /* Il selector può essere chiuso in concorrenza. */
+        }
+        /* Eseguo le chiusure dei canali appena accodate. */
+        Runnable op;
+        while((op = pending.poll()) != null){
+            op.run();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("IO EXCEPTION WHILE CLOSING SELECTOR");
+        }
+    }
+}
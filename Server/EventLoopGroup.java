@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Insieme fisso di event loop condiviso dai server in modalità reactor.
+ * Il numero di thread non dipende dal numero di connessioni.
+ */
+class EventLoopGroup {
+    private static final int JOIN_TIME = 60000;
+    private final EventLoop[] loops;
+    private final Thread[] threads;
+    private final AtomicInteger next;
+
+    /**
+     * Crea e avvia gli event loop.
+     *
+     * @param size numero di event loop.
+     * @throws IOException se l'apertura di un selector fallisce.
+     */
+    EventLoopGroup(int size) throws IOException {
+        loops = new EventLoop[size];
+        threads = new Thread[size];
+        next = new AtomicInteger(0);
+        for(int i = 0; i < size; i++){
+            loops[i] = new EventLoop();
+            threads[i] = new Thread(loops[i], "event-loop-" + i);
+        }
+        for(Thread t : threads){
+            t.start();
+        }
+        System.out.printf("%d EVENT LOOPS UP\n",size);
+    }
+
+    /**
+     * Ritorna l'event loop a cui assegnare una nuova connessione (round robin).
+     *
+     * @return event loop.
+     */
+    EventLoop next(){
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Interrompe gli event loop, che chiudono tutte
+     * le connessioni, e ne attende la terminazione.
+     */
+    void close(){
+        for(Thread t : threads){
+            t.interrupt();
+        }
+        for(Thread t : threads){
+            try {
+                t.join(JOIN_TIME);
+            } catch (InterruptedException e) {
+                System.err.println("INTERRUPTED WHILE JOINING EVENT LOOP");
+            }
+        }
+    }
+}
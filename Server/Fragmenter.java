@@ -0,0 +1,207 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Frammentazione dei messaggi UDP dei gruppi più lunghi di un datagram.
+ * Un messaggio che sta in MAX_DATAGRAM byte viene inviato così com'è
+ * (JSON, primo byte '{'), altrimenti è diviso in frammenti:
+ * MAGIC (1 byte) | id del messaggio (8 byte) | indice (1 byte) |
+ * numero di frammenti (1 byte) | al più CHUNK byte del messaggio.
+ */
+class Fragmenter {
+    static final int MAX_DATAGRAM = 1024;
+    static final int MAX_FRAGMENTS = 64;
+    private static final byte MAGIC = 0x01;
+    private static final int HEADER = 11;
+    private static final int CHUNK = MAX_DATAGRAM - HEADER;
+    static final int MAX_MESSAGE = MAX_FRAGMENTS * CHUNK;
+
+    /**
+     * Divide un messaggio nei datagram da inviare.
+     *
+     * @param msg messaggio codificato.
+     * @return datagram da inviare in ordine, null se il
+     *         messaggio supera MAX_MESSAGE byte.
+     */
+    static ArrayList<byte[]> split(byte[] msg){
+        ArrayList<byte[]> datagrams = new ArrayList<>();
+        if(msg.length <= MAX_DATAGRAM){
+            datagrams.add(msg);
+            return datagrams;
+        }
+        if(msg.length > MAX_MESSAGE) return null;
+        long id = ThreadLocalRandom.current().nextLong();
+        int count = (msg.length + CHUNK - 1) / CHUNK;
+        for(int i = 0; i < count; i++){
+            int off = i * CHUNK;
+            int len = Math.min(CHUNK, msg.length - off);
+            ByteBuffer buf = ByteBuffer.allocate(HEADER + len);
+            buf.put(MAGIC).putLong(id).put((byte) i).put((byte) count).put(msg, off, len);
+            datagrams.add(buf.array());
+        }
+        return datagrams;
+    }
+
+    /**
+     * Ricompone i messaggi frammentati ricevuti su una socket.
+     * I messaggi incompleti sono identificati da mittente e id, così
+     * un mittente non può completare o corrompere quelli di un altro.
+     * Sono al più MAX_PARTIALS, al più MAX_PER_SENDER per host, e
+     * vengono scartati dopo TIMEOUT ms; i buffer in cui sono ricomposti
+     * vengono riusati, così la ricezione di un frammento non alloca.
+     * Non è thread safe: va usato dal solo thread che riceve.
+     */
+    static final class Reassembler {
+        private static final int MAX_PARTIALS = 16;
+        private static final int MAX_PER_SENDER = 4;
+        private static final long TIMEOUT = 2000;
+
+        /* Messaggi incompleti in ordine di arrivo del primo frammento. */
+        private final LinkedHashMap<Key,Partial> partials;
+        /* Messaggi incompleti per host mittente. */
+        private final HashMap<InetAddress,Integer> perSender;
+        private final ArrayDeque<Partial> pool;
+
+        /**
+         * Identifica un messaggio incompleto: id scelto dal mittente
+         * e indirizzo (host e porta) da cui arrivano i frammenti.
+         */
+        private static final class Key {
+            final InetAddress host;
+            final int port;
+            final long id;
+
+            Key(InetAddress host, int port, long id){
+                this.host = host;
+                this.port = port;
+                this.id = id;
+            }
+
+            @Override
+            public boolean equals(Object o){
+                if(!(o instanceof Key)) return false;
+                Key k = (Key) o;
+                return id == k.id && port == k.port && host.equals(k.host);
+            }
+
+            @Override
+            public int hashCode(){
+                return (Long.hashCode(id) * 31 + port) * 31 + host.hashCode();
+            }
+        }
+
+        /**
+         * Messaggio in ricomposizione.
+         */
+        private static final class Partial {
+            final byte[] buf = new byte[MAX_MESSAGE];
+            Key key;
+            long started;
+            int count;
+            /* Bit i a 1 se il frammento i è arrivato. */
+            long received;
+            int length;
+        }
+
+        Reassembler(){
+            this.partials = new LinkedHashMap<>();
+            this.perSender = new HashMap<>();
+            this.pool = new ArrayDeque<>();
+        }
+
+        /**
+         * Riceve un datagram e ritorna il messaggio se è completo.
+         *
+         * @param p datagram ricevuto.
+         * @return messaggio (JSON) se il datagram non è frammentato o
+         *         completa un messaggio, null altrimenti.
+         */
+        String add(DatagramPacket p){
+            byte[] data = p.getData();
+            int off = p.getOffset();
+            int len = p.getLength();
+            if(len == 0 || data[off] != MAGIC) return new String(data, off, len, StandardCharsets.UTF_8);
+            if(len <= HEADER) return null;
+            ByteBuffer header = ByteBuffer.wrap(data, off + 1, HEADER - 1);
+            Key key = new Key(p.getAddress(), p.getPort(), header.getLong());
+            int index = header.get() & 0xFF;
+            int count = header.get() & 0xFF;
+            if(count < 2 || count > MAX_FRAGMENTS || index >= count) return null;
+            long now = System.currentTimeMillis();
+            evict(now);
+            Partial partial = partials.get(key);
+            if(partial == null){
+                /* Un mittente che apre troppi messaggi scarta i propri, non quelli degli altri. */
+                if(perSender.getOrDefault(key.host, 0) == MAX_PER_SENDER) release(oldest(key.host));
+                if(partials.size() == MAX_PARTIALS) release(partials.keySet().iterator().next());
+                partial = pool.isEmpty() ? new Partial() : pool.poll();
+                partial.key = key;
+                partial.started = now;
+                partial.count = count;
+                partial.received = 0;
+                partial.length = 0;
+                partials.put(key, partial);
+                perSender.merge(key.host, 1, Integer::sum);
+            }
+            /* Frammento duplicato o incoerente con i precedenti. */
+            if(count != partial.count || (partial.received & (1L << index)) != 0) return null;
+            int chunk = len - HEADER;
+            System.arraycopy(data, off + HEADER, partial.buf, index * CHUNK, chunk);
+            partial.received |= 1L << index;
+            /* Solo l'ultimo frammento può essere più corto di CHUNK. */
+            if(index == count - 1) partial.length = index * CHUNK + chunk;
+            if(partial.received != (count == 64 ? -1L : (1L << count) - 1)) return null;
+            String msg = new String(partial.buf, 0, partial.length, StandardCharsets.UTF_8);
+            release(key);
+            return msg;
+        }
+
+        /**
+         * Scarta i messaggi rimasti incompleti per più di TIMEOUT ms.
+         *
+         * @param now istante corrente (ms).
+         */
+        void evict(long now){
+            Iterator<Partial> it = partials.values().iterator();
+            while(it.hasNext()){
+                Partial partial = it.next();
+                if(now - partial.started < TIMEOUT) break;
+                it.remove();
+                forget(partial.key.host);
+                pool.add(partial);
+            }
+        }
+
+        /**
+         * Ritorna il messaggio incompleto più vecchio di un host.
+         *
+         * @param host mittente.
+         * @return chiave del messaggio, null se l'host non ne ha.
+         */
+        private Key oldest(InetAddress host){
+            for(Key key : partials.keySet()){
+                if(key.host.equals(host)) return key;
+            }
+            return null;
+        }
+
+        private void release(Key key){
+            Partial partial = partials.remove(key);
+            if(partial == null) return;
+            forget(key.host);
+            pool.add(partial);
+        }
+
+        private void forget(InetAddress host){
+            perSender.computeIfPresent(host, (k, n) -> n == 1 ? null : n - 1);
+        }
+    }
+}
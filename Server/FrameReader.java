@@ -0,0 +1,63 @@
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lato in lettura di una connessione: legge i messaggi come JSON
+ * su riga oppure come frame binari, a seconda della codifica negoziata.
+ * I frame sono estratti da un MessageDecoder: read(Message) li decodifica
+ * senza allocare mappe, read() costruisce il JSONObject completo per le
+ * risposte che contengono liste.
+ */
+class FrameReader {
+    private final boolean binary;
+    private final MessageDecoder decoder;
+    private JSONParser parser;
+
+    /**
+     * Inizializza il reader sulla connessione.
+     *
+     * @param in stream in lettura della connessione.
+     * @param binary true se è stata negoziata la codifica binaria.
+     */
+    FrameReader(InputStream in, boolean binary){
+        this.binary = binary;
+        this.decoder = new MessageDecoder(in, binary);
+    }
+
+    /**
+     * Legge il prossimo messaggio.
+     *
+     * @return messaggio letto, null se la fine dello stream è stata raggiunta.
+     * @throws IOException se la lettura fallisce o un frame binario è malformato.
+     * @throws ParseException se il parsing del JSON fallisce.
+     */
+    JSONObject read() throws IOException, ParseException {
+        if(!decoder.next()) return null;
+        byte[] frame = decoder.frame();
+        int off = decoder.frameOffset();
+        int len = decoder.frameLength();
+        if(binary) return WireCodec.decode(frame, off, len);
+        if(parser == null) parser = new JSONParser();
+        Object obj = parser.parse(new String(frame, off, len, StandardCharsets.UTF_8));
+        if(!(obj instanceof JSONObject)) throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+        return (JSONObject) obj;
+    }
+
+    /**
+     * Legge il prossimo messaggio nel messaggio dato, riusandolo.
+     *
+     * @param msg messaggio da riempire.
+     * @return true se è stato letto un messaggio, false se la fine dello
+     *         stream è stata raggiunta.
+     * @throws IOException se la lettura fallisce o un frame binario è malformato.
+     * @throws ParseException se il parsing del JSON fallisce.
+     */
+    boolean read(Message msg) throws IOException, ParseException {
+        return decoder.read(msg);
+    }
+}
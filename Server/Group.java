@@ -4,64 +4,110 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
-import java.util.HashMap;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Gruppo multicast. I membri (utente -> online) sono in una tabella
+ * concorrente e il numero di membri online in un contatore atomico:
+ * login, logout e invio dei messaggi non richiedono il lock sulla
+ * tabella dei gruppi e gruppi diversi procedono in parallelo.
+ * Restano sotto il lock della tabella dei gruppi solo join e chiusura,
+ * che devono essere ordinate rispetto al log delle modifiche.
+ * I messaggi sul gruppo sono numerati e gli ultimi RETRANSMIT_RING
+ * sono tenuti per ritrasmetterli ai membri che li hanno persi.
+ */
 class Group implements ReplyCodeServer {
-    private static final int[] mcIp = new int[]{224,0,0,1};
+    /* Eventi di log: changed è false se l'utente era già nello stato indicato. */
+    private static final LogEvent PRESENCE = new LogEvent(LogLevel.DEBUG, "group.presence", false, "group", "usr", "online", "changed");
+    private static final LogEvent RETRANSMIT = new LogEvent(LogLevel.DEBUG, "group.retransmit", false, "group", "usr", "first", "last");
+    /* Messaggi tenuti per la ritrasmissione. */
+    static final int RETRANSMIT_RING = 256;
+    /* Un messaggio è ritrasmesso al più una volta in questo intervallo (ns): i NACK
+     * dei membri che hanno perso lo stesso messaggio arrivano insieme, ogni 200 ms. */
+    static final long RETRANSMIT_WINDOW = TimeUnit.MILLISECONDS.toNanos(150);
     private final String name;
     private final String admin;
-    private int onlineCounter;
-    private HashMap<String,Boolean> member;
-    private InetAddress groupAddr;
+    /* Per ogni membro true se è online; il contatore non è mai minore dei membri online. */
+    private final AtomicInteger onlineCounter;
+    private final ConcurrentHashMap<String,Boolean> member;
+    private final InetAddress groupAddr;
+    private final AtomicBoolean closing;
+    /* Identifica questa istanza del gruppo: i numeri di sequenza ripartono da 0 con una nuova epoca. */
+    private final long epoch;
+    private final AtomicLong nextSeq;
+    /* Creato al primo messaggio: la maggior parte dei gruppi non ne invia. */
+    private volatile AtomicReferenceArray<Sent> ring;
 
     /**
-     * Crea un nuovo gruppo assegnandogli un indirizzo
-     * multicast, un admin e una lista dei membri vuota.
+     * Datagram multicast già inviato.
+     */
+    private static final class Sent {
+        final long seq;
+        final List<byte[]> datagrams;
+        /* Istante (System.nanoTime) dell'ultimo invio, anche il primo. */
+        final AtomicLong sentAt;
+
+        Sent(long seq, List<byte[]> datagrams){
+            this.seq = seq;
+            this.datagrams = datagrams;
+            this.sentAt = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Decide se ritrasmettere il messaggio.
+         *
+         * @param now istante attuale (System.nanoTime).
+         * @return true se non è stato inviato negli ultimi RETRANSMIT_WINDOW ns.
+         * @implNote con la compareAndSet una sola delle ritrasmissioni
+         *           concorrenti dello stesso messaggio ha successo.
+         */
+        boolean claim(long now){
+            long last = sentAt.get();
+            return now - last >= RETRANSMIT_WINDOW && sentAt.compareAndSet(last, now);
+        }
+    }
+
+    /**
+     * Crea un nuovo gruppo con un indirizzo multicast,
+     * un admin online e una lista dei membri vuota.
      *
      * @param admin creatore del gruppo.
      * @param name nome del gruppo.
-     * @throws IOException se non esiste l'IP associato al nome
-     *                     oppure se sono finiti gli IP multicast.
-     * @implNote lancerebbe anche UnknownHostException ma
-     *           in questo caso non è possibile.
+     * @param groupAddr indirizzo multicast assegnato al gruppo.
      */
-    public Group(String admin,String name) throws IOException {
-        this.name = name;
-        this.admin = admin;
-        String ip = Group.getNextMulticastIp();
-        if(ip == null) throw new IOException();
-        this.groupAddr = InetAddress.getByName(ip);
-        member = new HashMap<>();
-        member.put(admin,true);
-        onlineCounter++;
+    public Group(String admin,String name,InetAddress groupAddr) {
+        this(admin,name,groupAddr,true);
     }
 
     /**
-     * Restituisce un indirizzo IPv4 multicast
-     * nell'intervallo [224.0.0.1 , 239.255.255.255].
+     * Crea un nuovo gruppo con l'admin online oppure offline.
      *
-     * @return stringa contenente il prossimo indirizzo
-     *         multicast da utilizzare oppure null
-     *         se gli IP multicast sono terminati.
+     * @param admin creatore del gruppo.
+     * @param name nome del gruppo.
+     * @param groupAddr indirizzo multicast assegnato al gruppo.
+     * @param online true se l'admin è online (creazione),
+     *               false se il gruppo è ripristinato al riavvio.
      */
-    private static String getNextMulticastIp() {
-        /* Se ho terminato gli IP multicast. */
-        if(mcIp[0] == 240) return null;
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < 4; i++) {
-            result.append(mcIp[i]);
-            if (i != 3) result.append(".");
-        }
-        for (int i = 3; i > 0; i--) {
-            if (mcIp[i] != 0 && (mcIp[i] % 255) == 0) {
-                mcIp[i] = 0;
-                mcIp[i - 1]++;
-            } else {
-                if (i == 3) mcIp[i]++;
-            }
-        }
-        return result.toString();
+    Group(String admin,String name,InetAddress groupAddr,boolean online) {
+        this.name = name;
+        this.admin = admin;
+        this.groupAddr = groupAddr;
+        this.member = new ConcurrentHashMap<>();
+        this.member.put(admin,online);
+        this.onlineCounter = new AtomicInteger(online ? 1 : 0);
+        this.closing = new AtomicBoolean(false);
+        this.epoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        this.nextSeq = new AtomicLong();
     }
 
     /**
@@ -96,33 +142,40 @@ class Group implements ReplyCodeServer {
     public String getAdmin(){ return this.admin;}
 
     /**
-     * Ritorna l'insieme degli utenti
-     * che fanno parte del gruppo.
+     * Ritorna una copia dell'insieme degli
+     * utenti che fanno parte del gruppo.
+     *
+     * @return lista dei membri del gruppo.
+     * @implNote la copia è weakly consistent: per una lista
+     *           definitiva va presa sotto il lock della tabella
+     *           dei gruppi, che serializza join e chiusura.
+     */
+    public ArrayList<String> getMembers(){ return new ArrayList<>(this.member.keySet());}
+
+    /**
+     * Ritorna il numero di membri online.
      *
-     * @return insieme dei membri del gruppo.
+     * @return numero di membri online, può sovrastimare
+     *         per il tempo di un login in corso.
      */
-    public Set<String> getMembers(){ return this.member.keySet();}
+    public int getOnlineCount(){ return onlineCounter.get();}
 
     /**
      * Se l'utente era online decrementa il numero
      * di utenti online nel gruppo.
      *
      * @param usr nome dell'utente andato offline.
+     * @implNote il passaggio online -> offline è una CAS sulla
+     *           tabella dei membri: solo un thread lo esegue e
+     *           decrementa, dopo aver cambiato lo stato.
      */
     public void decrOnline(String usr){
-        Boolean isOnline = member.get(usr);
-        if( isOnline != null && isOnline.booleanValue()){
-            System.out.printf("[GROUP: %s] DECR: %s online!\n",name,usr);
-            member.put(usr,!isOnline);
-            if(onlineCounter > 0) {
-                this.onlineCounter--;
-            }else{
-                System.err.printf("NEGATIVE GROUP ONLINE COUNTER: %s\n",name);
-            }
+        if(member.replace(usr,true,false)){
+            onlineCounter.decrementAndGet();
+            PRESENCE.log(name,usr,Boolean.FALSE,Boolean.TRUE);
         }else{
-            System.out.printf("[GROUP: %s] DECR: %s offline!\n",name,usr);
+            PRESENCE.log(name,usr,Boolean.FALSE,Boolean.FALSE);
         }
-
     }
 
     /**
@@ -130,21 +183,17 @@ class Group implements ReplyCodeServer {
      * di utenti online nel gruppo.
      *
      * @param usr nome dell'utente andato online.
+     * @implNote il contatore viene incrementato prima della CAS
+     *           così un decrOnline concorrente non lo rende negativo.
      */
     public void incrOnline(String usr){
-        Boolean isOnline = member.get(usr);
-        if(isOnline != null && !(isOnline.booleanValue())){
-            System.out.printf("[GROUP: %s] INCR: %s offline!\n",name,usr);
-            member.put(usr,!isOnline);
-            if(onlineCounter < member.size()){
-                this.onlineCounter++;
-            }else{
-                System.err.printf("TOO POSITIVE GROUP ONLINE COUNTER: %s\n",name);
-            }
+        onlineCounter.incrementAndGet();
+        if(member.replace(usr,false,true)){
+            PRESENCE.log(name,usr,Boolean.TRUE,Boolean.TRUE);
         }else{
-            System.out.printf("[GROUP: %s] INCR: %s online!\n",name,usr);
+            onlineCounter.decrementAndGet();
+            PRESENCE.log(name,usr,Boolean.TRUE,Boolean.FALSE);
         }
-
     }
 
     /**
@@ -159,38 +208,151 @@ class Group implements ReplyCodeServer {
      */
     public SSCode joinGroup(String usr){
         SSCode result = SSCode.OK;
-        if(member.putIfAbsent(usr,true) != null) result = SSCode.USR_ALRDY_GRP;
-        else{
-            onlineCounter++;
+        onlineCounter.incrementAndGet();
+        if(member.putIfAbsent(usr,true) != null){
+            onlineCounter.decrementAndGet();
+            result = SSCode.USR_ALRDY_GRP;
         }
         return result;
     }
 
     /**
-     * Invia il messaggio sul gruppo multicast.
+     * Inserisce l'utente, se non vi era già, come membro offline.
+     *
+     * @param usr membro da inserire.
+     * @implNote usato per ripristinare i gruppi al riavvio,
+     *           quando nessun utente è online.
+     */
+    void addMember(String usr){
+        member.putIfAbsent(usr,false);
+    }
+
+    /**
+     * Imposta il gruppo come in chiusura.
+     *
+     * @param closing true se il gruppo sta per essere chiuso,
+     *                false se la chiusura è fallita.
+     * @return true se lo stato è stato cambiato,
+     *         false se il gruppo era già in chiusura.
+     * @implNote la guardia serve ad evitare che più di un thread
+     *           esegua la procedura di chiusura del gruppo.
+     */
+    public boolean setClosing(boolean closing){
+        if(closing) return this.closing.compareAndSet(false,true);
+        this.closing.set(false);
+        return true;
+    }
+
+    /**
+     * Controlla se il mittente può inviare un messaggio sul gruppo.
+     *
+     * @param sourceUsr mittente del messaggio.
+     * @return OK se il messaggio può essere inviato.
+     *         GRP_NO_USR se il mittente non è nel gruppo.
+     *         GRP_NO_ON_USR se nessun utente nel gruppo è online.
+     */
+    public SSCode checkMsg(String sourceUsr){
+        if(!member.containsKey(sourceUsr)) return SSCode.GRP_NO_USR;
+        if(onlineCounter.get() <= 1) return SSCode.GRP_NO_ON_USR;
+        return SSCode.OK;
+    }
+
+    /**
+     * Numera il messaggio, lo tiene per la ritrasmissione
+     * e lo invia sul gruppo multicast.
      *
      * @param sourceUsr mittente del messaggio.
      * @param msg body del messaggio.
      * @param mcs socket multicast su cui inviare il messaggio.
      * @param port porta su cui inviare il messaggio.
      * @return OK se l'invio va a buon fine.
-     *         GRP_NO_USR se il mittente non è nel gruppo.
-     *         GRP_NO_ON_USR se nessun utente nel gruppo è online.
-     *         GRP_SEND_FAIL se l'invio del messaggio fallisce.
+     *         GRP_SEND_FAIL se l'invio del messaggio fallisce o il
+     *                       messaggio supera Fragmenter.MAX_MESSAGE.
+     * @implNote i controlli sul mittente vanno fatti prima con checkMsg().
+     *           Invii concorrenti possono uscire fuori ordine: è il
+     *           ricevente a riordinarli in base al numero di sequenza.
      */
     public SSCode sendMsg(String sourceUsr, String msg, MulticastSocket mcs,int port){
         SSCode result = SSCode.OK;
-        if(!member.containsKey(sourceUsr)) return SSCode.GRP_NO_USR;
-        if(onlineCounter <= 1) return SSCode.GRP_NO_ON_USR;
+        long seq = nextSeq.getAndIncrement();
         JSONObject obj = new JSONObject();
         obj.put(TYPE,GRPMSG);
         obj.put(GRPNAME,name);
         obj.put(FROM,sourceUsr);
         obj.put(MSG,msg);
-        if(!send(mcs,port,obj)) result = SSCode.GRP_SEND_FAIL;
+        obj.put(EPOCH,epoch);
+        obj.put(SEQ,seq);
+        List<byte[]> datagrams = Fragmenter.split(obj.toJSONString().getBytes(StandardCharsets.UTF_8));
+        if(datagrams == null){
+            /* Il numero di sequenza è già assegnato: i riceventi lo daranno per perso. */
+            System.err.printf("[GROUP: %s] MESSAGE %d TOO BIG\n",name,seq);
+            datagrams = Collections.emptyList();
+            result = SSCode.GRP_SEND_FAIL;
+        }
+        keep(new Sent(seq,datagrams));
+        if(!send(mcs,port,datagrams)) result = SSCode.GRP_SEND_FAIL;
         return result;
     }
 
+    /**
+     * Ritrasmette sul gruppo multicast i messaggi
+     * ancora presenti nel buffer di ritrasmissione.
+     *
+     * @param usr membro che ha perso i messaggi.
+     * @param first primo numero di sequenza mancante.
+     * @param last ultimo numero di sequenza mancante.
+     * @param mcs socket multicast su cui inviare i messaggi.
+     * @param port porta su cui inviare i messaggi.
+     * @return OK se i messaggi ancora disponibili sono stati inviati.
+     *         GRP_NO_USR se l'utente non è nel gruppo.
+     *         GRP_FAIL se l'intervallo non è valido (negativo o oltre
+     *                  l'ultimo messaggio inviato).
+     *         GRP_SEND_FAIL se l'invio di un messaggio fallisce.
+     * @implNote la ritrasmissione è multicast: gli altri membri che hanno
+     *           perso gli stessi messaggi li ricevono senza chiederli,
+     *           quindi i messaggi inviati negli ultimi RETRANSMIT_WINDOW
+     *           ns non sono ritrasmessi di nuovo.
+     */
+    public SSCode retransmit(String usr, long first, long last, MulticastSocket mcs, int port){
+        if(first < 0 || first > last || last >= nextSeq.get()) return SSCode.GRP_FAIL;
+        if(!member.containsKey(usr)) return SSCode.GRP_NO_USR;
+        AtomicReferenceArray<Sent> sent = ring;
+        if(sent == null) return SSCode.OK;
+        /* Più di RETRANSMIT_RING messaggi indietro non sono più disponibili. */
+        first = Math.max(first, last - RETRANSMIT_RING + 1);
+        long now = System.nanoTime();
+        for(long seq = first; seq <= last; seq++){
+            Sent s = sent.get((int) (seq % RETRANSMIT_RING));
+            if(s != null && s.seq == seq && s.claim(now) && !send(mcs,port,s.datagrams)) return SSCode.GRP_SEND_FAIL;
+        }
+        /* Il boxing di first è fatto solo se il livello è abilitato. */
+        if(RETRANSMIT.enabled()) RETRANSMIT.log(name,usr,Long.valueOf(first),last);
+        return SSCode.OK;
+    }
+
+    /**
+     * Inserisce un messaggio nel buffer di ritrasmissione.
+     *
+     * @param sent messaggio inviato.
+     * @implNote lo slot viene sovrascritto solo da un messaggio più
+     *           recente, anche se gli invii concorrenti si superano.
+     */
+    private void keep(Sent sent){
+        AtomicReferenceArray<Sent> slots = ring;
+        if(slots == null){
+            synchronized (this){
+                if(ring == null) ring = new AtomicReferenceArray<>(RETRANSMIT_RING);
+                slots = ring;
+            }
+        }
+        int slot = (int) (sent.seq % RETRANSMIT_RING);
+        Sent old;
+        do {
+            old = slots.get(slot);
+            if(old != null && old.seq > sent.seq) return;
+        } while(!slots.compareAndSet(slot, old, sent));
+    }
+
     /**
      * Notifica la chiusura del gruppo multicast
      * a tutti i partecipanti.
@@ -206,25 +368,26 @@ class Group implements ReplyCodeServer {
         obj.put(TYPE,GRPCLOSE);
         obj.put(GRPNAME,name);
         obj.put(MSG,grpClosed(name));
-        if(!send(mcs,port,obj)) result = SSCode.GRP_SEND_FAIL;
+        List<byte[]> datagrams = Fragmenter.split(obj.toJSONString().getBytes(StandardCharsets.UTF_8));
+        if(datagrams == null || !send(mcs,port,datagrams)) result = SSCode.GRP_SEND_FAIL;
         return result;
     }
 
     /**
-     * Invia un pacchetto UDP al gruppo multicast.
+     * Invia i pacchetti UDP di un messaggio al gruppo multicast.
      *
      * @param mcs multicast socket per il gruppi.
-     * @param port porta su cui mandare il pacchetto.
-     * @param obj "pacchetto" da mandare.
+     * @param port porta su cui mandare i pacchetti.
+     * @param datagrams frammenti del messaggio da mandare.
      * @return true se l'invio va a buon fine,
      *         false altrimenti.
      */
-    private boolean send(MulticastSocket mcs,int port, JSONObject obj){
+    private boolean send(MulticastSocket mcs,int port, List<byte[]> datagrams){
         boolean result = true;
-        byte[] json  = obj.toJSONString().getBytes();
-        DatagramPacket sndPckt = new DatagramPacket(json, json.length, groupAddr,port);
         try {
-            mcs.send(sndPckt);
+            for(byte[] datagram : datagrams){
+                mcs.send(new DatagramPacket(datagram, datagram.length, groupAddr,port));
+            }
         } catch (IOException e) {
             System.err.println("IO EXCEPTION MULTICAST SEND");
             result = false;
@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Elenco ordinato dei nomi dei gruppi per GRPLST. Viene aggiornato
+ * da createGroup e closeGroup sotto il lock del gruppo nella tabella
+ * dei gruppi, quindi un gruppo compare o sparisce appena l'operazione
+ * termina. I nomi sono in una skip list (lock-free): una pagina costa
+ * una ricerca logaritmica più i nomi letti, invece di una copia di
+ * tutti i gruppi ad ogni richiesta.
+ */
+class GroupDirectory {
+    private final ConcurrentSkipListSet<String> names;
+
+    GroupDirectory(){
+        this.names = new ConcurrentSkipListSet<>();
+    }
+
+    void add(String groupName){
+        names.add(groupName);
+    }
+
+    void remove(String groupName){
+        names.remove(groupName);
+    }
+
+    /**
+     * Ritorna una pagina dei gruppi il cui nome inizia con il prefisso.
+     *
+     * @param prefix prefisso cercato, "" per tutti i gruppi.
+     * @param cursor ultimo gruppo della pagina precedente, null per la prima.
+     * @param limit gruppi massimi nella pagina.
+     * @param exclude gruppi da saltare (quelli dell'utente).
+     * @return pagina di nomi in ordine alfabetico.
+     */
+    Page page(String prefix, String cursor, int limit, Set<String> exclude){
+        Iterable<String> tail = cursor == null ? names.tailSet(prefix, true) : names.tailSet(cursor, false);
+        ArrayList<String> page = new ArrayList<>();
+        for(String name : tail){
+            if(!name.startsWith(prefix)) break;
+            if(exclude.contains(name)) continue;
+            if(page.size() == limit) return new Page(page, page.get(limit - 1));
+            page.add(name);
+        }
+        return new Page(page, null);
+    }
+}
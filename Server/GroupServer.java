@@ -6,15 +6,13 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
-class GroupServer implements Runnable {
-    private static final int MAX_UDP_PCKT_LEN = 1024;
+class GroupServer implements SocketServer {
     private DatagramSocket ds;
     private AtomicInteger errorCount;
-    private ThreadPoolExecutor executor;
+    private ExecutorService executor;
     private GroupService groupOp;
 
     /**
@@ -29,7 +27,7 @@ class GroupServer implements Runnable {
      * @throws SocketException se la creazione della datagram socket fallisce.
      */
     public GroupServer(int groupPort, AtomicInteger errorCount,
-                       ThreadPoolExecutor executor, GroupService groupOp) throws SocketException {
+                       ExecutorService executor, GroupService groupOp) throws SocketException {
         ds = new DatagramSocket(groupPort);
         this.errorCount = errorCount;
         this.executor = executor;
@@ -43,7 +41,8 @@ class GroupServer implements Runnable {
      */
     public void run() {
         System.out.println("GROUP SERVER UP");
-        byte[] buf = new byte[MAX_UDP_PCKT_LEN];
+        byte[] buf = new byte[Fragmenter.MAX_DATAGRAM];
+        Fragmenter.Reassembler reassembler = new Fragmenter.Reassembler();
         DatagramPacket recv;
         String json;
         JSONObject obj;
@@ -53,7 +52,9 @@ class GroupServer implements Runnable {
             recv = new DatagramPacket(buf,buf.length);
             try {
                 ds.receive(recv);
-                json = new String(recv.getData(),0,recv.getLength(), StandardCharsets.UTF_8);
+                /* Un messaggio frammentato viene elaborato all'arrivo dell'ultimo frammento. */
+                json = reassembler.add(recv);
+                if(json == null) continue;
                 obj = (JSONObject) parser.parse(json);
                 executor.execute(new GroupTask(obj,groupOp,recv.getAddress(),recv.getPort()));
             } catch (IOException e) {
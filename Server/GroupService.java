@@ -1,6 +1,5 @@
 import java.net.MulticastSocket;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
 
 class GroupService {
     private final int MULTICAST_PORT;
@@ -36,11 +35,31 @@ class GroupService {
      *         GRP_NOT_EXIST se il gruppo non esiste.
      */
     public SSCode sendGrpMsg(String sourceUsr,String destGrp, String msg){
-        AtomicReference<SSCode> result = new AtomicReference<>(SSCode.GRP_NOT_EXIST);
-        groups.computeIfPresent(destGrp,(k,v)->{
-            result.set(v.sendMsg(sourceUsr,msg,mcs,MULTICAST_PORT));
-            return v;
-        });
-        return result.get();
+        /* Membri e contatore online del gruppo si leggono senza lock sulla tabella. */
+        Group dest = groups.get(destGrp);
+        if(dest == null) return SSCode.GRP_NOT_EXIST;
+        SSCode result = dest.checkMsg(sourceUsr);
+        if(result.equals(SSCode.OK)) result = dest.sendMsg(sourceUsr,msg,mcs,MULTICAST_PORT);
+        return result;
+    }
+
+    /**
+     * Ritrasmette sul gruppo multicast i messaggi
+     * persi da un membro.
+     *
+     * @param usr membro che ha perso i messaggi.
+     * @param grp nome del gruppo.
+     * @param first primo numero di sequenza mancante.
+     * @param last ultimo numero di sequenza mancante.
+     * @return OK se i messaggi ancora disponibili sono stati inviati.
+     *         GRP_NOT_EXIST se il gruppo non esiste.
+     *         GRP_NO_USR se l'utente non è nel gruppo.
+     *         GRP_FAIL se l'intervallo non è valido.
+     *         GRP_SEND_FAIL se l'invio di un messaggio fallisce.
+     */
+    public SSCode retransmit(String usr, String grp, long first, long last){
+        Group group = groups.get(grp);
+        if(group == null) return SSCode.GRP_NOT_EXIST;
+        return group.retransmit(usr,first,last,mcs,MULTICAST_PORT);
     }
 }
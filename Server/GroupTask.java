@@ -6,9 +6,13 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 class GroupTask implements Runnable,ReplyCodeServer {
 
+    /* Eventi di log: i messaggi sono campionati e ne viene loggata solo la lunghezza. */
+    private static final LogEvent GROUP_MSG = new LogEvent(LogLevel.INFO, "group.msg", true, "usr", "group", "result", "length");
+    private static final LogEvent UNKNOWN = new LogEvent(LogLevel.WARN, "group.unknown", false, "type");
     private JSONObject obj;
     private final GroupService groupOp;
     private final InetAddress destAddr;
@@ -42,8 +46,17 @@ class GroupTask implements Runnable,ReplyCodeServer {
                 String msg = (String) obj.get(MSG);
                 sendGrpMsg(from,destGrp,msg);
                 break;
+            case GRPNACK:
+                Long first = (Long) obj.get(SEQ);
+                Long last = (Long) obj.get(LASTSEQ);
+                /* Il limite superiore è controllato dal gruppo, che conosce l'ultimo numero inviato. */
+                if(first != null && last != null && first >= 0 && first <= last){
+                    /* Nessuna risposta: i messaggi ritrasmessi sono la risposta. */
+                    groupOp.retransmit((String) obj.get(FROM),(String) obj.get(GRPNAME),first,last);
+                }
+                break;
             default:
-                System.out.println("GROUP TASK DEFAULT");
+                UNKNOWN.log(obj.get(TYPE));
                 break;
         }
     }
@@ -58,29 +71,25 @@ class GroupTask implements Runnable,ReplyCodeServer {
      */
     private void sendGrpMsg(String from, String destGrp,String msg){
         SSCode result = groupOp.sendGrpMsg(from,destGrp,msg);
+        GROUP_MSG.log(from,destGrp,result,msg == null ? 0 : msg.length());
         obj = new JSONObject();
         switch (result) {
             case OK:
-                System.out.printf("[GROUP MESSAGE] from: %s to group: %s msg: %s RESULT: ACK\n",from,destGrp,msg);
                 /* La risposta è stata inviata tramite multicast. */
                 break;
             case GRP_NO_USR:
-                System.out.printf("[GROUP MESSAGE] from: %s to group: %s msg: %s RESULT: NOT IN GROUP\n",from,destGrp,msg);
                 obj.put(TYPE, NACK);
                 obj.put(MSG, usrNotInGrp(destGrp));
                 break;
             case GRP_NO_ON_USR:
-                System.out.printf("[GROUP MESSAGE] from: %s to group: %s msg: %s RESULT: NO ONLINE USER\n",from,destGrp,msg);
                 obj.put(TYPE, NACK);
                 obj.put(MSG, noOnUsr(destGrp));
                 break;
             case GRP_NOT_EXIST:
-                System.out.printf("[GROUP MESSAGE] from: %s to group: %s msg: %s RESULT: NOT EXISTS\n",from,destGrp,msg);
                 obj.put(TYPE, NACK);
                 obj.put(MSG, grpNotExist(destGrp));
                 break;
             case GRP_SEND_FAIL:
-                System.out.printf("[GROUP MESSAGE] from: %s to group: %s msg: %s RESULT: SEND FAILED\n",from,destGrp,msg);
                 obj.put(TYPE, NACK);
                 obj.put(MSG, grpSendFail(destGrp));
                 break;
@@ -104,8 +113,12 @@ class GroupTask implements Runnable,ReplyCodeServer {
      */
     private void send(JSONObject obj) throws IOException{
         byte[] json  = obj.toJSONString().getBytes(StandardCharsets.UTF_8);
-        DatagramPacket sndPckt = new DatagramPacket(json, json.length, destAddr, destPort);
-        DatagramSocket ds = new DatagramSocket();
-        ds.send(sndPckt);
+        List<byte[]> datagrams = Fragmenter.split(json);
+        if(datagrams == null) throw new IOException("Reply too big");
+        try (DatagramSocket ds = new DatagramSocket()) {
+            for(byte[] datagram : datagrams){
+                ds.send(new DatagramPacket(datagram, datagram.length, destAddr, destPort));
+            }
+        }
     }
 }
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+/**
+ * Insieme di id (interi non negativi) senza boxing: tabella ad
+ * indirizzamento aperto con scansione lineare in cui ogni cella
+ * occupa 4 byte e contiene id + 1 (0 è la cella vuota).
+ * Gli elementi non si rimuovono, come le amicizie.
+ * Non è thread-safe: come gli HashSet che sostituisce va usato
+ * sotto il lock della tabella degli utenti.
+ */
+class IntSet {
+    /* Tabella condivisa dagli insiemi vuoti: molti utenti non hanno follower. */
+    private static final int[] EMPTY = new int[0];
+    private static final int MIN_CAPACITY = 4;
+    private int[] table;
+    private int size;
+
+    IntSet(){
+        this.table = EMPTY;
+        this.size = 0;
+    }
+
+    /**
+     * Aggiunge un id all'insieme.
+     *
+     * @param id id da aggiungere.
+     * @return true se l'id è stato aggiunto, false se era già presente.
+     */
+    boolean add(int id){
+        /* Fattore di carico massimo 3/4. */
+        if(4 * (size + 1) > 3 * table.length) grow();
+        int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while(table[i] != 0){
+            if(table[i] == id + 1) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = id + 1;
+        size++;
+        return true;
+    }
+
+    /**
+     * Controlla se l'id è nell'insieme.
+     *
+     * @param id id da cercare.
+     * @return true se l'id è presente.
+     */
+    boolean contains(int id){
+        if(size == 0) return false;
+        int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while(table[i] != 0){
+            if(table[i] == id + 1) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    int size(){
+        return size;
+    }
+
+    /**
+     * Ritorna gli id dell'insieme, in ordine crescente.
+     *
+     * @return copia degli id.
+     */
+    int[] toArray(){
+        int[] result = new int[size];
+        int n = 0;
+        for(int cell : table){
+            if(cell != 0) result[n++] = cell - 1;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Raddoppia la tabella e reinserisce gli id.
+     */
+    private void grow(){
+        int[] old = table;
+        table = new int[Math.max(MIN_CAPACITY, old.length * 2)];
+        int mask = table.length - 1;
+        for(int cell : old){
+            if(cell == 0) continue;
+            int i = hash(cell - 1) & mask;
+            while(table[i] != 0) i = (i + 1) & mask;
+            table[i] = cell;
+        }
+    }
+
+    /**
+     * Sparpaglia gli id, che sono densi, su tutta la tabella.
+     *
+     * @param id id da disperdere.
+     * @return hash dell'id.
+     */
+    private static int hash(int id){
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
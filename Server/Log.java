@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Log asincrono del server: gli eventi (LogEvent) sono accodati in un
+ * ring buffer lock-free e scritti da un solo thread (LogWriter) su file
+ * a rotazione oppure sullo standard output, così chi logga non fa I/O
+ * e non si serializza sul lock di System.out.
+ * Prima di start() e dopo close() gli eventi vengono ignorati.
+ */
+final class Log {
+    private static volatile int threshold = LogLevel.INFO.ordinal();
+    private static volatile int sample = 1;
+    private static volatile LogRing ring;
+    private static LogWriter writer;
+    private static Thread writerThread;
+
+    private Log(){ }
+
+    /**
+     * Avvia il thread writer.
+     *
+     * @param level livello minimo degli eventi scritti.
+     * @param sampleRate 1 evento per messaggio scritto ogni sampleRate.
+     * @param capacity eventi accodati al massimo, gli altri sono scartati.
+     * @param dir cartella dei file di log, null per lo standard output.
+     * @param fileBytes dimensione oltre cui il file di log viene ruotato.
+     * @param files file ruotati conservati.
+     * @throws IOException se il file di log non può essere aperto.
+     */
+    static synchronized void start(LogLevel level, int sampleRate, int capacity,
+                                   File dir, long fileBytes, int files) throws IOException {
+        threshold = level.ordinal();
+        sample = sampleRate;
+        LogRing buffer = new LogRing(capacity);
+        writer = new LogWriter(buffer, dir, fileBytes, files, sampleRate);
+        writerThread = new Thread(writer, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        ring = buffer;
+    }
+
+    static boolean enabled(LogLevel level){
+        return level.ordinal() <= threshold && ring != null;
+    }
+
+    /**
+     * Decide se un evento va accodato: livello abilitato e,
+     * per gli eventi campionati, estratto 1 volta su sample.
+     *
+     * @param event evento da loggare.
+     * @return true se l'evento va accodato.
+     */
+    static boolean accept(LogEvent event){
+        if(!enabled(event.level)) return false;
+        int rate = sample;
+        return !event.sampled || rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    static void publish(LogEvent event, int count, Object a, Object b, Object c, Object d,
+                        long number, boolean hasNumber){
+        LogRing buffer = ring;
+        if(buffer != null) buffer.offer(event, count, a, b, c, d, number, hasNumber);
+    }
+
+    /**
+     * Scrive gli eventi ancora accodati e ferma il thread writer.
+     */
+    static synchronized void close(){
+        if(ring == null) return;
+        ring = null;
+        writer.stop();
+        writerThread.interrupt();
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            System.err.println("INTERRUPTED WHILE WAITING FOR LOG WRITER");
+        }
+    }
+
+    /**
+     * Stampa gli eventi scartati perché il buffer era pieno.
+     */
+    static synchronized void printStats(){
+        if(writer != null) System.out.printf("[LOG] dropped: %d\n", writer.dropped());
+    }
+}
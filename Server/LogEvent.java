@@ -0,0 +1,73 @@
+/**
+ * Tipo di evento di log con livello, nome e chiavi fissati alla
+ * creazione (una costante per ogni punto di log). log() copia solo
+ * i riferimenti agli argomenti nel ring buffer; la riga
+ * "ts livello evento chiave=valore ..." è composta dal writer.
+ * Se il livello è disabilitato (o l'evento non è campionato)
+ * log() ritorna senza allocare nulla.
+ */
+final class LogEvent {
+    final LogLevel level;
+    final String name;
+    /* Prefissi " chiave=" già pronti per il writer. */
+    final String[] keys;
+    /* Eventi per messaggio: se campionati ne viene scritto 1 ogni Log.sample(). */
+    final boolean sampled;
+
+    /**
+     * Definisce un evento di log.
+     *
+     * @param level livello dell'evento.
+     * @param name nome dell'evento, ad esempio chat.msg.
+     * @param sampled true per gli eventi generati da ogni messaggio.
+     * @param keys chiavi degli argomenti, nell'ordine di log(), al più 4.
+     */
+    LogEvent(LogLevel level, String name, boolean sampled, String... keys){
+        if(keys.length > LogRing.MAX_ARGS) throw new IllegalArgumentException(name);
+        this.level = level;
+        this.name = name;
+        this.sampled = sampled;
+        this.keys = new String[keys.length];
+        for(int i = 0; i < keys.length; i++) this.keys[i] = " " + keys[i] + "=";
+    }
+
+    /**
+     * Controlla se l'evento verrebbe scritto, per evitare di calcolare
+     * argomenti costosi quando il livello è disabilitato.
+     *
+     * @return true se il livello dell'evento è abilitato.
+     */
+    boolean enabled(){
+        return Log.enabled(level);
+    }
+
+    void log(Object a){
+        if(Log.accept(this)) Log.publish(this, 1, a, null, null, null, 0, false);
+    }
+
+    void log(Object a, Object b){
+        if(Log.accept(this)) Log.publish(this, 2, a, b, null, null, 0, false);
+    }
+
+    void log(Object a, Object b, Object c){
+        if(Log.accept(this)) Log.publish(this, 3, a, b, c, null, 0, false);
+    }
+
+    void log(Object a, Object b, Object c, Object d){
+        if(Log.accept(this)) Log.publish(this, 4, a, b, c, d, 0, false);
+    }
+
+    /* Varianti con l'ultimo argomento numerico, senza boxing. */
+
+    void log(Object a, long n){
+        if(Log.accept(this)) Log.publish(this, 1, a, null, null, null, n, true);
+    }
+
+    void log(Object a, Object b, long n){
+        if(Log.accept(this)) Log.publish(this, 2, a, b, null, null, n, true);
+    }
+
+    void log(Object a, Object b, Object c, long n){
+        if(Log.accept(this)) Log.publish(this, 3, a, b, c, null, n, true);
+    }
+}
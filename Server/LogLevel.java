@@ -0,0 +1,8 @@
+enum LogLevel {
+    /* Livelli dei log, dal più al meno importante: un livello abilita quelli precedenti. */
+    ERROR, /* Operazioni fallite. */
+    WARN,  /* Situazioni anomale da cui il server si riprende. */
+    INFO,  /* Richieste dei client e loro esito. */
+    DEBUG, /* Dettagli su gruppi e notifiche. */
+    TRACE  /* Ogni risposta inviata. */
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer lock-free con più produttori e un solo consumatore
+ * (il writer dei log). Le celle sono preallocate: un produttore
+ * prenota una sequenza con una CAS, copia i riferimenti nella cella
+ * e la pubblica scrivendone la sequenza (volatile). Se il buffer è
+ * pieno l'evento viene scartato e contato: chi logga non attende mai.
+ * A buffer vuoto il consumatore si sospende e il produttore che
+ * pubblica la cella che sta aspettando lo risveglia.
+ */
+class LogRing {
+    static final int MAX_ARGS = 4;
+
+    /**
+     * Cella del buffer, riusata ad ogni giro.
+     */
+    static final class Slot {
+        /* Sequenza dell'evento contenuto, pubblicata per ultima. */
+        volatile long published = -1;
+        LogEvent event;
+        long time;
+        String thread;
+        final Object[] args = new Object[MAX_ARGS];
+        /* Numero di argomenti oggetto, seguiti dal numero se hasNumber. */
+        int count;
+        long number;
+        boolean hasNumber;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    /* Prossima sequenza da prenotare (produttori) e da leggere (consumatore). */
+    private final AtomicLong claimed;
+    private volatile long consumed;
+    /* Thread del consumatore, noto dalla prima await(). */
+    private volatile Thread consumer;
+    private final LongAdder dropped;
+
+    /**
+     * Inizializza il buffer.
+     *
+     * @param capacity celle minime, arrotondate alla potenza di 2 successiva.
+     */
+    LogRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for(int i = 0; i < size; i++) slots[i] = new Slot();
+        this.mask = size - 1;
+        this.claimed = new AtomicLong(0);
+        this.consumed = 0;
+        this.dropped = new LongAdder();
+    }
+
+    /**
+     * Accoda un evento.
+     *
+     * @return true se l'evento è stato accodato, false se il buffer era pieno.
+     */
+    boolean offer(LogEvent event, int count, Object a, Object b, Object c, Object d,
+                  long number, boolean hasNumber){
+        long seq;
+        do {
+            seq = claimed.get();
+            if(seq - consumed >= slots.length){
+                dropped.increment();
+                return false;
+            }
+        } while(!claimed.compareAndSet(seq, seq + 1));
+        Slot slot = slots[(int) seq & mask];
+        slot.event = event;
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.args[0] = a;
+        slot.args[1] = b;
+        slot.args[2] = c;
+        slot.args[3] = d;
+        slot.count = count;
+        slot.number = number;
+        slot.hasNumber = hasNumber;
+        slot.published = seq;
+        /* Il consumatore può essersi sospeso su questa cella: il controllo
+         * segue la pubblicazione, quindi o la vede o viene risvegliato. */
+        if(seq == consumed){
+            Thread t = consumer;
+            if(t != null) LockSupport.unpark(t);
+        }
+        return true;
+    }
+
+    /**
+     * Sospende il consumatore finché non viene pubblicata la prossima
+     * cella, un interrupt o un risveglio spurio.
+     *
+     * @implNote solo il thread writer può invocarlo.
+     */
+    void await(){
+        consumer = Thread.currentThread();
+        if(peek() == null) LockSupport.park(this);
+    }
+
+    /**
+     * Ritorna la prossima cella pubblicata, senza consumarla.
+     *
+     * @return cella da leggere, null se non ce ne sono.
+     * @implNote solo il thread writer può invocarlo.
+     */
+    Slot peek(){
+        long next = consumed;
+        Slot slot = slots[(int) next & mask];
+        return slot.published == next ? slot : null;
+    }
+
+    /**
+     * Libera la cella restituita da peek() per i produttori.
+     *
+     * @param slot cella letta.
+     */
+    void release(Slot slot){
+        slot.event = null;
+        slot.thread = null;
+        for(int i = 0; i < MAX_ARGS; i++) slot.args[i] = null;
+        consumed = consumed + 1;
+    }
+
+    long dropped(){
+        return dropped.sum();
+    }
+}
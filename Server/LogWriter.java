@@ -0,0 +1,199 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Thread che svuota il ring buffer dei log: compone ogni riga
+ * ("ts LIVELLO evento chiave=valore ... thread=nome") e la scrive
+ * su server.log nella cartella dei log, ruotando il file oltre
+ * fileBytes byte (server.log.1 è il più recente dei vecchi), oppure
+ * sullo standard output. Fa flush solo quando il buffer è vuoto.
+ */
+class LogWriter implements Runnable {
+    static final String FILE_NAME = "server.log";
+    private final LogRing ring;
+    private final File dir;
+    private final long fileBytes;
+    private final int files;
+    private final int sample;
+    private final StringBuilder line;
+    private volatile boolean running;
+    private Writer out;
+    private long written;
+
+    /**
+     * Inizializza il writer e apre il file di log.
+     *
+     * @param ring buffer da svuotare.
+     * @param dir cartella dei file di log, null per lo standard output.
+     * @param fileBytes dimensione oltre cui il file viene ruotato.
+     * @param files file ruotati conservati.
+     * @param sample frequenza di campionamento, riportata sugli eventi campionati.
+     * @throws IOException se il file di log non può essere aperto.
+     */
+    LogWriter(LogRing ring, File dir, long fileBytes, int files, int sample) throws IOException {
+        this.ring = ring;
+        this.dir = dir;
+        this.fileBytes = fileBytes;
+        this.files = files;
+        this.sample = sample;
+        this.line = new StringBuilder(256);
+        this.running = true;
+        if(dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        open();
+    }
+
+    public void run() {
+        while(true){
+            LogRing.Slot slot = ring.peek();
+            if(slot == null){
+                flush();
+                if(!running && ring.peek() == null) break;
+                /* Risvegliato dal primo evento pubblicato o dall'interrupt di Log.close(). */
+                ring.await();
+                continue;
+            }
+            try {
+                format(slot);
+            } catch (RuntimeException e) {
+                /* Ad esempio il toString() di un argomento modificato mentre
+                 * viene scritto: la cella va liberata comunque o il ring si blocca. */
+                formatError(slot, e);
+            }
+            ring.release(slot);
+            write();
+        }
+        close();
+    }
+
+    /**
+     * Chiede al writer di terminare dopo aver scritto gli eventi accodati.
+     */
+    void stop(){
+        running = false;
+    }
+
+    long dropped(){
+        return ring.dropped();
+    }
+
+    private void format(LogRing.Slot slot){
+        line.setLength(0);
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(slot.time), line);
+        line.append(' ').append(slot.event.level).append(' ').append(slot.event.name);
+        String[] keys = slot.event.keys;
+        for(int i = 0; i < slot.count; i++){
+            line.append(keys[i]);
+            value(slot.args[i]);
+        }
+        if(slot.hasNumber) line.append(keys[slot.count]).append(slot.number);
+        if(slot.event.sampled && sample > 1) line.append(" sample=").append(sample);
+        line.append(" thread=");
+        value(slot.thread);
+        line.append('\n');
+    }
+
+    /**
+     * Sostituisce la riga di un evento che non è stato possibile
+     * comporre con una riga di errore.
+     *
+     * @param slot cella dell'evento.
+     * @param e eccezione lanciata durante la composizione.
+     */
+    private void formatError(LogRing.Slot slot, RuntimeException e){
+        line.setLength(0);
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(slot.time), line);
+        line.append(' ').append(LogLevel.ERROR).append(" log.format event=").append(slot.event.name);
+        line.append(" error=");
+        value(e.toString());
+        line.append('\n');
+    }
+
+    /**
+     * Aggiunge un valore alla riga, fra virgolette se contiene
+     * spazi, virgolette, = o a capo.
+     *
+     * @param value valore da aggiungere.
+     */
+    private void value(Object value){
+        String s = String.valueOf(value);
+        boolean quote = s.isEmpty();
+        for(int i = 0; i < s.length() && !quote; i++){
+            char c = s.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c == '\n' || c == '\r';
+        }
+        if(!quote){
+            line.append(s);
+            return;
+        }
+        line.append('"');
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\') line.append('\\').append(c);
+            else if(c == '\n') line.append("\\n");
+            else if(c == '\r') line.append("\\r");
+            else line.append(c);
+        }
+        line.append('"');
+    }
+
+    private void write(){
+        try {
+            if(dir != null && written >= fileBytes) rotate();
+            out.append(line);
+            written += line.length();
+        } catch (IOException e) {
+            System.err.println("UNABLE TO WRITE LOG");
+        }
+    }
+
+    private void flush(){
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("UNABLE TO FLUSH LOG");
+        }
+    }
+
+    private void open() throws IOException {
+        if(dir == null){
+            out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            return;
+        }
+        File file = new File(dir, FILE_NAME);
+        written = file.length();
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Chiude server.log, sposta ogni server.log.i in server.log.i+1
+     * (l'ultimo viene cancellato) e apre un nuovo server.log.
+     *
+     * @throws IOException se il nuovo file non può essere aperto.
+     */
+    private void rotate() throws IOException {
+        out.close();
+        new File(dir, FILE_NAME + "." + files).delete();
+        for(int i = files - 1; i >= 1; i--){
+            File old = new File(dir, FILE_NAME + "." + i);
+            if(old.exists()) old.renameTo(new File(dir, FILE_NAME + "." + (i + 1)));
+        }
+        new File(dir, FILE_NAME).renameTo(new File(dir, FILE_NAME + ".1"));
+        open();
+    }
+
+    private void close(){
+        try {
+            if(dir == null) out.flush();
+            else out.close();
+        } catch (IOException e) {
+            System.err.println("UNABLE TO CLOSE LOG");
+        }
+    }
+}
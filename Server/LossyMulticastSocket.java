@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.MulticastSocket;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Socket multicast che scarta a caso una percentuale dei datagram
+ * in uscita, per provare in locale il recupero dei messaggi persi.
+ * Va usata solo per i test (opzione -groupLoss).
+ */
+class LossyMulticastSocket extends MulticastSocket {
+    private final int lossPercent;
+
+    /**
+     * Crea la socket multicast sulla porta indicata.
+     *
+     * @param port porta della socket.
+     * @param lossPercent percentuale di datagram da scartare.
+     * @throws IOException se la creazione della socket fallisce.
+     */
+    LossyMulticastSocket(int port, int lossPercent) throws IOException {
+        super(port);
+        this.lossPercent = lossPercent;
+    }
+
+    /**
+     * Invia il datagram oppure lo scarta senza errori,
+     * come farebbe una rete congestionata.
+     *
+     * @param p datagram da inviare.
+     * @throws IOException se l'invio fallisce.
+     */
+    @Override
+    public void send(DatagramPacket p) throws IOException {
+        if(ThreadLocalRandom.current().nextInt(100) < lossPercent) return;
+        super.send(p);
+    }
+}
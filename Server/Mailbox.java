@@ -0,0 +1,191 @@
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coda limitata dei messaggi in uscita verso un utente online.
+ * I mittenti accodano senza scrivere sulla socket; un solo task alla
+ * volta svuota la coda scrivendo più messaggi con un'unica flush.
+ */
+class Mailbox implements Runnable {
+    /* Numero massimo di messaggi scritti prima di una flush. */
+    private static final int MAX_BATCH = 64;
+    /* Il JSON è composto dal writer del log, solo se TRACE è abilitato. */
+    private static final LogEvent SEND = new LogEvent(LogLevel.TRACE, "chat.send", false, "usr", "json");
+    /* Uno per messaggio scartato: campionato, riporta il totale scartato dalla coda. */
+    private static final LogEvent DROPPED = new LogEvent(LogLevel.WARN, "outbox.dropped", true, "usr", "dropped");
+    private final String usr;
+    private final FrameWriter chatWriter;
+    private final ArrayBlockingQueue<JSONObject> queue;
+    private final OverflowPolicy policy;
+    private final Executor drainer;
+    private final AtomicBoolean scheduled;
+    /* Messaggi scartati da DROP_OLDEST. */
+    private final AtomicLong dropped;
+    /* Risveglio dello svuotamento quando la connessione torna scrivibile. */
+    private final Runnable resume;
+    private volatile boolean closed;
+
+    /**
+     * Inizializza la coda in uscita dell'utente.
+     *
+     * @param usr nome dell'utente destinatario.
+     * @param chatWriter lato in scrittura della chat socket.
+     * @param capacity numero massimo di messaggi in coda.
+     * @param policy politica da applicare quando la coda è piena.
+     * @param drainer thread pool su cui svuotare la coda.
+     */
+    Mailbox(String usr, FrameWriter chatWriter, int capacity,
+            OverflowPolicy policy, Executor drainer){
+        this.usr = usr;
+        this.chatWriter = chatWriter;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.drainer = drainer;
+        this.scheduled = new AtomicBoolean(false);
+        this.dropped = new AtomicLong(0);
+        this.resume = this::schedule;
+        this.closed = false;
+    }
+
+    /**
+     * Accoda un messaggio per l'utente senza bloccarsi.
+     *
+     * @param obj messaggio da inviare.
+     * @return OK se il messaggio è stato accodato.
+     *         OFFLINE se la chat socket è chiusa o l'utente è
+     *                 stato disconnesso perché la coda era piena.
+     *         QUEUE_FULL se la coda è piena e la politica è REJECT.
+     */
+    public SSCode offer(JSONObject obj){
+        if(closed) return SSCode.OFFLINE;
+        if(!queue.offer(obj)){
+            switch (policy){
+                case DROP_OLDEST:
+                    do {
+                        if(queue.poll() != null) DROPPED.log(usr, dropped.incrementAndGet());
+                    } while(!queue.offer(obj));
+                    break;
+                case DISCONNECT:
+                    System.err.printf("OUTBOX FULL, DISCONNECTING: %s\n",usr);
+                    close();
+                    return SSCode.OFFLINE;
+                case REJECT:
+                    return SSCode.QUEUE_FULL;
+            }
+        }
+        schedule();
+        return SSCode.OK;
+    }
+
+    /**
+     * Accoda un messaggio solo se c'è posto, qualunque sia la politica.
+     *
+     * @param obj messaggio da inviare.
+     * @return OK se il messaggio è stato accodato.
+     *         OFFLINE se la chat socket è chiusa.
+     *         QUEUE_FULL se la coda è piena.
+     */
+    public SSCode offerIfRoom(JSONObject obj){
+        if(closed) return SSCode.OFFLINE;
+        if(!queue.offer(obj)) return SSCode.QUEUE_FULL;
+        schedule();
+        return SSCode.OK;
+    }
+
+    /**
+     * Ritorna true se un messaggio accodato può essere scartato
+     * prima di essere scritto (politica DROP_OLDEST).
+     *
+     * @return true se la politica scarta messaggi.
+     */
+    public boolean canDrop(){
+        return policy.equals(OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Ritorna il numero di messaggi scartati da DROP_OLDEST.
+     *
+     * @return messaggi scartati dalla creazione della coda.
+     */
+    public long dropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Ritorna true se tutti i messaggi accodati sono stati scritti
+     * sulla chat socket.
+     *
+     * @return true se la coda è vuota, nessuno la sta svuotando
+     *         e la chat socket non è stata chiusa.
+     */
+    public boolean isFlushed(){
+        return !closed && queue.isEmpty() && !scheduled.get();
+    }
+
+    /**
+     * Sottomette lo svuotamento della coda se non è già in corso.
+     */
+    private void schedule(){
+        if(scheduled.compareAndSet(false,true)){
+            try {
+                drainer.execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Svuota la coda scrivendo i messaggi sulla chat socket
+     * e facendo una flush ogni MAX_BATCH messaggi.
+     * Se la connessione non accetta altri dati (modalità reactor,
+     * client lento) si ferma: i messaggi restano in coda, dove si
+     * applica la politica di overflow, e lo svuotamento riparte
+     * quando la connessione torna scrivibile.
+     *
+     * @implNote ogni write() sul writer è atomica quindi i messaggi
+     *           non si mescolano con le risposte scritte dal ChatTask
+     *           sulla stessa socket.
+     */
+    public void run() {
+        JSONObject obj;
+        int batch = 0;
+        try {
+            while(chatWriter.writable(resume) && (obj = queue.poll()) != null){
+                chatWriter.write(obj);
+                SEND.log(usr,obj);
+                if(++batch == MAX_BATCH){
+                    chatWriter.flush();
+                    batch = 0;
+                }
+            }
+            if(batch > 0) chatWriter.flush();
+        } catch (IOException e) {
+            System.err.printf("FAILED TO SEND TO: %s\n",usr);
+            closed = true;
+            queue.clear();
+        }
+        scheduled.set(false);
+        /* Un messaggio può essere accodato dopo l'ultima poll(); a connessione piena writable() registra il risveglio. */
+        if(!closed && !queue.isEmpty() && chatWriter.writable(resume)) schedule();
+    }
+
+    /**
+     * Chiude la chat socket dell'utente e scarta i messaggi in coda.
+     */
+    public void close(){
+        closed = true;
+        queue.clear();
+        try {
+            chatWriter.close();
+        } catch (IOException e) {
+            System.err.printf("FAILED TO CLOSE CHAT SOCKET OF: %s\n",usr);
+        }
+    }
+}
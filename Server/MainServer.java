@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+import java.util.List;
 
 class MainServer {
     private static final int STD_REQUEST_PORT = 10000;
@@ -16,7 +18,17 @@ class MainServer {
         /* Porta usata dal multicast. */
         int mcGroupPort = STD_MC_GROUP_PORT;
         Server s;
+        ServerConfig config = null;
+        /* Separo le opzioni (-nome[=valore]) dalle porte. */
+        List<String> options = new ArrayList<>();
+        List<String> ports = new ArrayList<>();
+        for(String arg : args){
+            if(arg.startsWith("-")) options.add(arg);
+            else ports.add(arg);
+        }
+        args = ports.toArray(new String[0]);
         try {
+            config = ServerConfig.parse(options);
             switch (args.length) {
                 case 5:
                     mcGroupPort = Integer.parseInt(args[4]);
@@ -32,8 +44,9 @@ class MainServer {
                 default:
                     break;
             }
-        }catch(NumberFormatException e){
-            System.out.println("java MainServer [requestPort] [registryPort] [chatPort] [groupPort] [mcGroupPort]");
+        }catch(IllegalArgumentException e){
+            System.out.println("java MainServer " + ServerConfig.USAGE +
+                    " [requestPort] [registryPort] [chatPort] [groupPort] [mcGroupPort]");
             System.exit(1);
         }
         if(requestPort < MIN_PORT_NUMBER || registryPort < MIN_PORT_NUMBER ||
@@ -45,7 +58,9 @@ class MainServer {
             System.exit(1);
         }
         System.setProperty("java.net.preferIPv4Stack", "true");
-        s = new Server(requestPort, registryPort, chatPort,groupPort,mcGroupPort);
+        /* Timeout delle callback RMI verso i client: uno stub bloccato non trattiene un thread per sempre. */
+        System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(config.callbackTimeout));
+        s = new Server(requestPort, registryPort, chatPort,groupPort,mcGroupPort,config);
         s.run();
         System.exit(0);
     }
@@ -0,0 +1,97 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assegna ai gruppi gli indirizzi IPv4 multicast di un intervallo.
+ * Gli indirizzi mai usati sono presi con un contatore atomico, quelli
+ * rilasciati alla chiusura di un gruppo sono tenuti in una coda
+ * lock-free e riassegnati per primi.
+ */
+class MulticastAllocator {
+    /* Intervallo di default: tutti gli indirizzi multicast tranne 224.0.0.0. */
+    static final String STD_RANGE = "224.0.0.1-239.255.255.255";
+
+    private final long first;
+    private final long last;
+    private final AtomicLong next;
+    private final ConcurrentLinkedQueue<InetAddress> free;
+
+    /**
+     * Inizializza l'allocatore su un intervallo di indirizzi.
+     *
+     * @param range intervallo nella forma primo-ultimo (estremi inclusi),
+     *              ad esempio 239.1.0.0-239.1.255.255.
+     * @throws IllegalArgumentException se l'intervallo non è valido
+     *                                  o non è tutto multicast.
+     */
+    MulticastAllocator(String range){
+        int dash = range.indexOf('-');
+        if(dash < 0) throw new IllegalArgumentException(range);
+        this.first = parse(range.substring(0,dash));
+        this.last = parse(range.substring(dash+1));
+        if(first > last || (first >>> 28) != 0xE || (last >>> 28) != 0xE){
+            throw new IllegalArgumentException(range);
+        }
+        this.next = new AtomicLong(first);
+        this.free = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Assegna un indirizzo libero.
+     *
+     * @return indirizzo multicast, null se gli indirizzi sono terminati.
+     */
+    InetAddress allocate(){
+        InetAddress addr = free.poll();
+        if(addr != null) return addr;
+        /* CAS invece di getAndIncrement: il contatore non supera mai last+1. */
+        long candidate;
+        do {
+            candidate = next.get();
+            if(candidate > last) return null;
+        } while(!next.compareAndSet(candidate, candidate + 1));
+        return toAddress(candidate);
+    }
+
+    /**
+     * Rende di nuovo disponibile l'indirizzo di un gruppo chiuso.
+     *
+     * @param addr indirizzo da rilasciare.
+     * @implNote va invocato una sola volta per indirizzo, quando il
+     *           gruppo è già stato rimosso dalla tabella dei gruppi.
+     */
+    void release(InetAddress addr){
+        if(addr != null) free.add(addr);
+    }
+
+    /**
+     * Converte un indirizzo IPv4 puntato in un intero senza segno.
+     *
+     * @param ip indirizzo IPv4 puntato.
+     * @return indirizzo come intero.
+     * @throws IllegalArgumentException se l'indirizzo non è valido.
+     */
+    private static long parse(String ip){
+        String[] octets = ip.trim().split("\\.");
+        if(octets.length != 4) throw new IllegalArgumentException(ip);
+        long result = 0;
+        for(String octet : octets){
+            int value = Integer.parseInt(octet);
+            if(value < 0 || value > 255) throw new IllegalArgumentException(ip);
+            result = (result << 8) | value;
+        }
+        return result;
+    }
+
+    private static InetAddress toAddress(long ip){
+        byte[] raw = {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        try {
+            return InetAddress.getByAddress(raw);
+        } catch (UnknownHostException e) {
+            /* Impossibile: l'array ha lunghezza 4. */
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,653 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Casella dei messaggi di chat inviati ad utenti offline.
+ * Ogni utente ha una cartella con segmenti append-only e un file
+ * cursor con la posizione del primo messaggio non consegnato.
+ * L'indice dei messaggi non consegnati (posizione, lunghezza, istante
+ * di invio) è tenuto in memoria e ricostruito leggendo i segmenti al
+ * primo accesso alla casella.
+ * Quando l'utente torna online la casella viene svuotata in ordine, a
+ * blocchi, da un task sull'executor: il login non attende la consegna.
+ * Una casella è in memoria solo se contiene messaggi: i segmenti sono
+ * aperti solo per leggere o aggiungere un messaggio e, svuotata, la
+ * casella viene tolta dalla memoria e la sua cartella cancellata.
+ * Se la cartella è null la casella è disabilitata.
+ */
+class OfflineStore {
+    /* Messaggi letti dal disco e accodati alla Mailbox per volta. */
+    private static final int BATCH = 64;
+    private static final long SEGMENT_LEN = 1 << 20;
+    /* Attesa (ms) prima di riprovare quando la coda in uscita è piena o non ancora scritta. */
+    private static final long RETRY_DELAY = 50;
+    /* Tentativi consecutivi dopo cui lo svuotamento si ferma fino alla prossima consegna. */
+    private static final int MAX_RETRIES = 200;
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR = "cursor";
+    private static final LogEvent EXPIRED = new LogEvent(LogLevel.INFO, "offline.expired", false, "usr");
+    private static final LogEvent DRAINED = new LogEvent(LogLevel.INFO, "offline.drained", false, "usr");
+    private static final LogEvent STALLED = new LogEvent(LogLevel.WARN, "offline.stalled", false, "usr");
+
+    private final File dir;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long retentionMillis;
+    private final Executor executor;
+    /* Risottomette gli svuotamenti in attesa che la coda in uscita si liberi. */
+    private final ScheduledExecutorService timer;
+    private final ConcurrentHashMap<String,UserQueue> queues;
+
+    /**
+     * Voce dell'indice: posizione di un messaggio non consegnato.
+     */
+    private static final class Entry {
+        final long seq;
+        final long segment;
+        final long offset;
+        final int len;
+        final long sent;
+
+        Entry(long seq, long segment, long offset, int len, long sent){
+            this.seq = seq;
+            this.segment = segment;
+            this.offset = offset;
+            this.len = len;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * Messaggio letto dalla casella.
+     */
+    private static final class Stored {
+        final long seq;
+        final String from;
+        final String msg;
+
+        Stored(long seq, String from, String msg){
+            this.seq = seq;
+            this.from = from;
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * Casella di un utente. Indice e file sono acceduti
+     * solo sincronizzandosi sulla casella.
+     */
+    private final class UserQueue implements Runnable {
+        private final String usr;
+        private final File home;
+        private final ArrayDeque<Entry> index;
+        private final AtomicBoolean draining;
+        private long nextSeq;
+        private long bytes;
+        /* Primo messaggio non consegnato: segmento e offset. */
+        private long cursorSegment;
+        private long cursorOffset;
+        /* Segmento in cui vengono aggiunti i messaggi. */
+        private long tailSegment;
+        /* True se la casella è stata tolta da queues: chi la usa deve rileggerla. */
+        private boolean closed;
+        /* Canali verso l'utente con cui svuotare la casella. */
+        private volatile UserEndpoint target;
+        /* Stato dello svuotamento fra un tentativo e l'altro, usato da un solo task alla volta. */
+        private UserEndpoint endpoint;
+        private List<Stored> batch;
+        private int next;
+        private long droppedMark;
+        private int retries;
+
+        UserQueue(String usr){
+            this.usr = usr;
+            this.home = new File(dir, hex(usr));
+            this.index = new ArrayDeque<>();
+            this.draining = new AtomicBoolean(false);
+        }
+
+        /**
+         * Ricostruisce l'indice leggendo il cursore e i segmenti.
+         *
+         * @throws IOException se la cartella dell'utente è illeggibile.
+         */
+        synchronized void load() throws IOException {
+            if(!home.isDirectory() && !home.mkdirs()) throw new IOException("Cannot create " + home);
+            File cursor = new File(home, CURSOR);
+            if(cursor.length() == 16){
+                try (DataInputStream in = new DataInputStream(new FileInputStream(cursor))) {
+                    cursorSegment = in.readLong();
+                    cursorOffset = in.readLong();
+                }
+            }
+            TreeMap<Long,File> files = new TreeMap<>();
+            File[] all = home.listFiles();
+            if(all != null){
+                for(File file : all){
+                    String name = file.getName();
+                    if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+                    try {
+                        files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        /* Non è un segmento. */
+                    }
+                }
+            }
+            for(File file : files.headMap(cursorSegment).values()) file.delete();
+            tailSegment = cursorSegment;
+            for(Long n : files.tailMap(cursorSegment).keySet()){
+                scan(n, files.get(n), n == cursorSegment ? cursorOffset : 0);
+                tailSegment = n;
+            }
+            expire();
+        }
+
+        /**
+         * Aggiunge all'indice i messaggi di un segmento. Un record
+         * incompleto o corrotto (scrittura interrotta) termina il
+         * segmento, che viene troncato.
+         *
+         * @param n numero del segmento.
+         * @param file segmento da leggere.
+         * @param from offset da cui leggere.
+         * @throws IOException se la lettura fallisce.
+         */
+        private void scan(long n, File file, long from) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long length = raf.length();
+                long pos = from;
+                raf.seek(pos);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+                byte[] payload = new byte[256];
+                while(pos + 8 <= length){
+                    int len = in.readInt();
+                    int checksum = in.readInt();
+                    if(len < 8 || pos + 8 + len > length) break;
+                    if(payload.length < len) payload = new byte[len];
+                    in.readFully(payload, 0, len);
+                    if(checksum(payload, len) != checksum) break;
+                    index.add(new Entry(nextSeq++, n, pos, 8 + len, ByteBuffer.wrap(payload, 0, 8).getLong()));
+                    bytes += 8 + len;
+                    pos += 8 + len;
+                }
+                if(pos < length){
+                    System.err.printf("TRUNCATING OFFLINE MAILBOX OF %s AT %d\n", usr, pos);
+                    raf.setLength(pos);
+                }
+            }
+        }
+
+        /**
+         * Aggiunge un messaggio in fondo alla casella.
+         *
+         * @param from mittente.
+         * @param msg body del messaggio.
+         * @return OK se il messaggio è stato salvato.
+         *         OFFLINE_FULL se la casella ha raggiunto i limiti.
+         *         OFFLINE se la scrittura fallisce.
+         *         null se la casella è stata chiusa.
+         */
+        synchronized SSCode append(String from, String msg){
+            if(closed) return null;
+            expire();
+            long now = System.currentTimeMillis();
+            byte[] record = encode(now, from, msg);
+            if(index.size() >= maxMessages || bytes + record.length > maxBytes) return SSCode.OFFLINE_FULL;
+            long tailLength = segment(tailSegment).length();
+            if(tailLength > 0 && tailLength + record.length > SEGMENT_LEN) tailSegment++;
+            /* Il segmento resta aperto solo per la scrittura: il force costa comunque più dell'apertura. */
+            try (FileChannel tail = openSegment(tailSegment)) {
+                long offset = tail.size();
+                ByteBuffer buf = ByteBuffer.wrap(record);
+                while(buf.hasRemaining()) tail.write(buf);
+                tail.force(false);
+                index.add(new Entry(nextSeq++, tailSegment, offset, record.length, now));
+                bytes += record.length;
+                return SSCode.OK;
+            } catch (IOException e) {
+                System.err.printf("IO EXCEPTION STORING OFFLINE MESSAGE TO: %s\n", usr);
+                return SSCode.OFFLINE;
+            }
+        }
+
+        /**
+         * Legge i primi BATCH messaggi non consegnati.
+         *
+         * @return messaggi letti, vuota se la casella è vuota.
+         * @throws IOException se la lettura fallisce.
+         */
+        synchronized List<Stored> peek() throws IOException {
+            expire();
+            ArrayList<Stored> batch = new ArrayList<>();
+            RandomAccessFile raf = null;
+            long open = -1;
+            try {
+                for(Entry entry : index){
+                    if(batch.size() == BATCH) break;
+                    if(entry.segment != open){
+                        if(raf != null) raf.close();
+                        raf = new RandomAccessFile(segment(entry.segment), "r");
+                        open = entry.segment;
+                    }
+                    byte[] record = new byte[entry.len];
+                    raf.seek(entry.offset);
+                    raf.readFully(record);
+                    ByteBuffer data = ByteBuffer.wrap(record, 16, entry.len - 16);
+                    String sender = readString(data);
+                    batch.add(new Stored(entry.seq, sender, readString(data)));
+                }
+            } finally {
+                if(raf != null) raf.close();
+            }
+            return batch;
+        }
+
+        /**
+         * Rimuove dall'indice i messaggi consegnati fino a seq
+         * compreso e sposta il cursore dopo di essi.
+         *
+         * @param seq ultimo messaggio consegnato.
+         */
+        synchronized void commit(long seq){
+            Entry last = null;
+            while(!index.isEmpty() && index.peekFirst().seq <= seq){
+                last = index.pollFirst();
+                bytes -= last.len;
+            }
+            if(last != null) moveCursor(last.segment, last.offset + last.len);
+        }
+
+        /**
+         * Scarta i messaggi più vecchi del tempo di conservazione.
+         */
+        private void expire(){
+            long limit = System.currentTimeMillis() - retentionMillis;
+            Entry last = null;
+            while(!index.isEmpty() && index.peekFirst().sent < limit){
+                last = index.pollFirst();
+                bytes -= last.len;
+            }
+            if(last != null){
+                EXPIRED.log(usr);
+                moveCursor(last.segment, last.offset + last.len);
+            }
+        }
+
+        /**
+         * Salva il nuovo cursore e cancella i segmenti che lo precedono.
+         *
+         * @param segment segmento del cursore.
+         * @param offset offset del cursore.
+         */
+        private void moveCursor(long segment, long offset){
+            for(long n = cursorSegment; n < segment; n++){
+                segment(n).delete();
+            }
+            cursorSegment = segment;
+            cursorOffset = offset;
+            try (RandomAccessFile raf = new RandomAccessFile(new File(home, CURSOR), "rw")) {
+                raf.writeLong(cursorSegment);
+                raf.writeLong(cursorOffset);
+                raf.getFD().sync();
+            } catch (IOException e) {
+                /* Al riavvio alcuni messaggi potranno essere consegnati di nuovo. */
+                System.err.printf("IO EXCEPTION WRITING OFFLINE CURSOR OF: %s\n", usr);
+            }
+        }
+
+        /**
+         * Apre in append un segmento.
+         *
+         * @param n numero del segmento.
+         * @return canale del segmento.
+         * @throws IOException se il segmento non può essere aperto.
+         */
+        private FileChannel openSegment(long n) throws IOException {
+            FileChannel channel = new RandomAccessFile(segment(n), "rw").getChannel();
+            channel.position(channel.size());
+            return channel;
+        }
+
+        private File segment(long n){
+            return new File(home, SEGMENT_PREFIX + n + SEGMENT_SUFFIX);
+        }
+
+        synchronized boolean isEmpty(){
+            return index.isEmpty();
+        }
+
+        /**
+         * Se la casella è vuota e nessuno la sta svuotando la toglie
+         * dalla memoria e ne cancella la cartella.
+         *
+         * @implNote il cursore è cancellato per ultimo: se il server
+         *           si ferma a metà, al riavvio non resta nulla da consegnare.
+         */
+        synchronized void evict(){
+            if(closed || !index.isEmpty() || draining.get()) return;
+            closed = true;
+            for(long n = cursorSegment; n <= tailSegment; n++) segment(n).delete();
+            new File(home, CURSOR).delete();
+            home.delete();
+            /* Solo ora una nuova casella può ricreare la cartella. */
+            queues.remove(usr, this);
+        }
+
+        /**
+         * Toglie la casella dalla memoria lasciando i file su disco.
+         */
+        synchronized void close(){
+            closed = true;
+        }
+
+        /**
+         * Imposta i canali verso l'utente e avvia lo svuotamento
+         * se non è già in corso.
+         *
+         * @param endpoint canali verso l'utente online.
+         */
+        void drain(UserEndpoint endpoint){
+            target = endpoint;
+            if(isEmpty()){
+                evict();
+                return;
+            }
+            if(draining.compareAndSet(false, true)){
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    draining.set(false);
+                }
+            }
+        }
+
+        /**
+         * Svuota la casella a blocchi di BATCH messaggi, spostando il
+         * cursore dopo ogni blocco consegnato sulla chat socket.
+         * Se la coda in uscita è piena il task non attende: si fa
+         * risottomettere dopo RETRY_DELAY ms, al più MAX_RETRIES volte
+         * di seguito, poi si ferma fino alla prossima deliver().
+         *
+         * @implNote la consegna è almeno-una-volta. Di norma il cursore
+         *           avanza quando il messaggio è accodato; se la coda può
+         *           scartare messaggi (DROP_OLDEST) avanza solo quando il
+         *           blocco è stato scritto senza scarti, altrimenti il
+         *           blocco viene rimandato. I messaggi inviati mentre la
+         *           casella si svuota possono precedere quelli salvati.
+         */
+        public void run(){
+            if(endpoint == null) endpoint = target;
+            UserEndpoint session = endpoint;
+            boolean drained = false;
+            boolean retry = false;
+            try {
+                while(true){
+                    if(batch == null){
+                        batch = peek();
+                        next = 0;
+                        if(batch.isEmpty()){
+                            DRAINED.log(usr);
+                            drained = true;
+                            break;
+                        }
+                        droppedMark = endpoint.dropped();
+                    }
+                    if(next < batch.size()){
+                        Stored stored = batch.get(next);
+                        SSCode result = endpoint.sendStoredMsg(stored.from, stored.msg);
+                        if(result.equals(SSCode.OK)){
+                            next++;
+                            retries = 0;
+                            continue;
+                        }
+                        if(result.equals(SSCode.QUEUE_FULL)){
+                            retry = true;
+                            break;
+                        }
+                        commitSent();
+                        /* L'utente si è riconnesso: continuo sulla nuova sessione. */
+                        if(target == endpoint) break;
+                        endpoint = target;
+                        continue;
+                    }
+                    if(endpoint.canDrop()){
+                        if(!endpoint.isFlushed()){
+                            /* Attendo che il blocco sia scritto; se l'utente si è riconnesso lo rimando. */
+                            retry = target == endpoint;
+                            if(!retry) batch = null;
+                            break;
+                        }
+                        if(endpoint.dropped() != droppedMark){
+                            /* Qualcosa è stato scartato: rimando il blocco. */
+                            batch = null;
+                            continue;
+                        }
+                    }
+                    commit(batch.get(batch.size() - 1).seq);
+                    batch = null;
+                }
+            } catch (IOException e) {
+                System.err.printf("IO EXCEPTION DRAINING OFFLINE MAILBOX OF: %s\n", usr);
+                batch = null;
+            }
+            if(retry && ++retries <= MAX_RETRIES && retryLater()) return;
+            if(retry){
+                STALLED.log(usr);
+                commitSent();
+            }
+            endpoint = null;
+            retries = 0;
+            draining.set(false);
+            if(drained) evict();
+            /* Un nuovo login può essere arrivato durante lo svuotamento. */
+            UserEndpoint latest = target;
+            if(latest != session && latest.isReachable()) drain(latest);
+        }
+
+        /**
+         * Sposta il cursore dopo i messaggi del blocco già accodati,
+         * se la coda non può scartarli, e scarta il blocco.
+         */
+        private void commitSent(){
+            if(batch != null && next > 0 && !endpoint.canDrop()) commit(batch.get(next - 1).seq);
+            batch = null;
+        }
+
+        /**
+         * Risottomette lo svuotamento dopo RETRY_DELAY ms.
+         *
+         * @return true se il tentativo è stato programmato,
+         *         false se il server è in chiusura.
+         */
+        private boolean retryLater(){
+            try {
+                timer.schedule(() -> {
+                    try {
+                        executor.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        draining.set(false);
+                    }
+                }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Inizializza la casella dei messaggi offline.
+     *
+     * @param dir cartella delle caselle, null per disabilitarle.
+     * @param maxMessages messaggi massimi per utente.
+     * @param maxBytes byte massimi su disco per utente.
+     * @param retentionMillis tempo (ms) dopo cui un messaggio non consegnato viene scartato.
+     * @param executor thread pool su cui svuotare le caselle.
+     */
+    OfflineStore(File dir, int maxMessages, long maxBytes, long retentionMillis, Executor executor){
+        this.dir = dir;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.retentionMillis = retentionMillis;
+        this.executor = executor;
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.queues = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Ritorna true se la casella offline è abilitata.
+     *
+     * @return true se abilitata, false altrimenti.
+     */
+    boolean isEnabled(){
+        return dir != null;
+    }
+
+    /**
+     * Salva un messaggio per un utente offline.
+     *
+     * @param sourceUsr mittente del messaggio.
+     * @param destUsr destinatario offline.
+     * @param msg body del messaggio.
+     * @return OK se il messaggio è stato salvato.
+     *         OFFLINE se la casella è disabilitata o la scrittura fallisce.
+     *         OFFLINE_FULL se la casella del destinatario è piena.
+     */
+    SSCode store(String sourceUsr, String destUsr, String msg){
+        while(true){
+            UserQueue queue = queue(destUsr, true);
+            if(queue == null) return SSCode.OFFLINE;
+            SSCode result = queue.append(sourceUsr, msg);
+            /* Casella svuotata e chiusa nel frattempo: ne serve una nuova. */
+            if(result != null) return result;
+        }
+    }
+
+    /**
+     * Consegna in background i messaggi salvati per l'utente,
+     * se è raggiungibile.
+     *
+     * @param usr utente destinatario.
+     * @param endpoint canali verso l'utente.
+     */
+    void deliver(String usr, UserEndpoint endpoint){
+        if(dir == null || endpoint == null || !endpoint.isReachable()) return;
+        UserQueue queue = queue(usr, false);
+        if(queue != null) queue.drain(endpoint);
+    }
+
+    /**
+     * Toglie dalla memoria tutte le caselle: i messaggi non
+     * consegnati restano su disco per il prossimo avvio.
+     */
+    void close(){
+        timer.shutdownNow();
+        for(UserQueue queue : queues.values()) queue.close();
+        queues.clear();
+    }
+
+    /**
+     * Ritorna la casella dell'utente caricandola al primo accesso.
+     *
+     * @param usr nome dell'utente.
+     * @param create true per creare la casella se l'utente non ne ha una.
+     * @return casella dell'utente, null se disabilitata, illeggibile
+     *         o, con create false, se l'utente non ha messaggi su disco.
+     */
+    private UserQueue queue(String usr, boolean create){
+        if(dir == null) return null;
+        UserQueue queue = queues.get(usr);
+        if(queue != null) return queue;
+        /* Chi non ha mai ricevuto messaggi offline non ha una cartella. */
+        if(!create && !new File(dir, hex(usr)).isDirectory()) return null;
+        UserQueue created = new UserQueue(usr);
+        synchronized (created){
+            queue = queues.putIfAbsent(usr, created);
+            if(queue != null) return queue;
+            try {
+                created.load();
+            } catch (IOException e) {
+                System.err.printf("IO EXCEPTION LOADING OFFLINE MAILBOX OF: %s\n", usr);
+                queues.remove(usr, created);
+                return null;
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Codifica un messaggio: lunghezza, CRC32 e corpo
+     * (istante di invio, mittente, messaggio).
+     *
+     * @param sent istante di invio.
+     * @param from mittente.
+     * @param msg body del messaggio.
+     * @return record da scrivere nel segmento.
+     */
+    private static byte[] encode(long sent, String from, String msg){
+        byte[] f = from.getBytes(StandardCharsets.UTF_8);
+        byte[] m = msg.getBytes(StandardCharsets.UTF_8);
+        int len = 8 + 4 + f.length + 4 + m.length;
+        ByteBuffer buf = ByteBuffer.allocate(8 + len);
+        buf.putInt(len);
+        buf.putInt(0);
+        buf.putLong(sent);
+        buf.putInt(f.length).put(f);
+        buf.putInt(m.length).put(m);
+        byte[] record = buf.array();
+        buf.putInt(4, checksum(record, 8, len));
+        return record;
+    }
+
+    private static String readString(ByteBuffer buf){
+        int len = buf.getInt();
+        String s = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static int checksum(byte[] data, int off, int len){
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    private static int checksum(byte[] payload, int len){
+        return checksum(payload, 0, len);
+    }
+
+    /**
+     * Converte il nome utente in un nome di cartella valido.
+     *
+     * @param usr nome dell'utente.
+     * @return byte UTF-8 del nome in esadecimale.
+     */
+    private static String hex(String usr){
+        StringBuilder sb = new StringBuilder();
+        for(byte b : usr.getBytes(StandardCharsets.UTF_8)){
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,6 @@
+public enum OverflowPolicy {
+    /* Cosa fare quando la coda in uscita di un utente è piena. */
+    DROP_OLDEST, /* Scarta il messaggio più vecchio ancora da inviare. */
+    DISCONNECT,  /* Chiude la chat socket del destinatario lento. */
+    REJECT       /* Rifiuta il messaggio e risponde NACK al mittente. */
+}
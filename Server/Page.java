@@ -0,0 +1,16 @@
+import java.util.List;
+
+/**
+ * Pagina di una lista di nomi ordinata (username, gruppi): la
+ * pagina successiva parte dal nome dopo cursor.
+ */
+class Page {
+    final List<String> names;
+    /* Ultimo nome della pagina se ce ne sono altri, null altrimenti. */
+    final String cursor;
+
+    Page(List<String> names, String cursor){
+        this.names = names;
+        this.cursor = cursor;
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Consegna asincrona delle notifiche di cambio status agli amici
+ * (callback RMI). Login e logout accodano le notifiche senza fare I/O;
+ * ogni destinatario ha la sua coda, svuotata da un solo task alla volta
+ * su un pool limitato, così i destinatari sono serviti in parallelo ed
+ * uno stub bloccato occupa al più un thread.
+ * Nella coda resta solo l'ultimo status di ogni amico: un amico che
+ * entra ed esce più volte prima della consegna genera una sola notifica.
+ * Ogni callback scade dopo il timeout RMI (sun.rmi.transport.tcp.responseTimeout,
+ * impostato da MainServer con -callbackTimeout).
+ */
+class PresenceDispatcher extends Service {
+    private final ThreadPoolExecutor callers;
+    /* <Destinatario, notifiche ancora da consegnare>, rimossa quando è vuota. */
+    private final ConcurrentHashMap<String,Inbox> inboxes;
+    /* Metriche: notifiche consegnate, unite ad una più recente e scartate per callback fallite. */
+    private final AtomicLong delivered;
+    private final AtomicLong coalesced;
+    private final AtomicLong dropped;
+
+    /**
+     * Notifiche in attesa per un destinatario.
+     */
+    private static final class Inbox {
+        /* <Amico, ultimo status>, nell'ordine dell'ultimo cambio. */
+        final LinkedHashMap<String,String> pending = new LinkedHashMap<>();
+        /* True se un task sta svuotando la coda. */
+        boolean scheduled;
+    }
+
+    /**
+     * Inizializza il dispatcher delle notifiche.
+     *
+     * @param users struttura dati contenente le info degli utenti.
+     * @param threads callback RMI eseguite contemporaneamente.
+     */
+    PresenceDispatcher(ConcurrentHashMap<String, UserOperation> users, int threads){
+        super(users);
+        this.inboxes = new ConcurrentHashMap<>();
+        this.delivered = new AtomicLong(0);
+        this.coalesced = new AtomicLong(0);
+        this.dropped = new AtomicLong(0);
+        /* La coda è limitata dal numero di utenti: al più un task per destinatario. */
+        this.callers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>());
+        this.callers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Accoda per tutti i follower la notifica che l'utente
+     * ha cambiato status, senza attendere la consegna.
+     *
+     * @param usr utente che ha cambiato status.
+     * @param followers follower dell'utente.
+     * @param newStatus nuovo status.
+     */
+    void friendStatusChange(String usr, List<String> followers, String newStatus){
+        for(String follower : followers){
+            AtomicBoolean schedule = new AtomicBoolean(false);
+            inboxes.compute(follower,(k,inbox) -> {
+                if(inbox == null) inbox = new Inbox();
+                /* Tolgo e reinserisco per spostare l'amico in fondo all'ordine di consegna. */
+                if(inbox.pending.remove(usr) != null) coalesced.incrementAndGet();
+                inbox.pending.put(usr,newStatus);
+                if(!inbox.scheduled){
+                    inbox.scheduled = true;
+                    schedule.set(true);
+                }
+                return inbox;
+            });
+            if(schedule.get()) schedule(follower);
+        }
+    }
+
+    /**
+     * Sottomette lo svuotamento della coda di un destinatario.
+     *
+     * @param follower destinatario delle notifiche.
+     */
+    private void schedule(String follower){
+        try {
+            callers.execute(() -> drain(follower));
+        } catch (RejectedExecutionException e) {
+            /* Server in chiusura: le notifiche non verranno consegnate. */
+            inboxes.remove(follower);
+        }
+    }
+
+    /**
+     * Consegna le notifiche di un destinatario finché la sua coda
+     * non è vuota. Le notifiche arrivate durante una consegna
+     * vengono prese nel giro successivo.
+     *
+     * @param follower destinatario delle notifiche.
+     * @implNote l'endpoint viene letto ad ogni giro così le notifiche
+     *           usano lo stub dell'ultimo login.
+     */
+    private void drain(String follower){
+        while(true){
+            AtomicReference<Map<String,String>> batch = new AtomicReference<>();
+            inboxes.computeIfPresent(follower,(k,inbox) -> {
+                if(inbox.pending.isEmpty()){
+                    /* Niente da consegnare: rimuovo la coda, la prossima notifica ne crea una nuova. */
+                    return null;
+                }
+                batch.set(new LinkedHashMap<>(inbox.pending));
+                inbox.pending.clear();
+                return inbox;
+            });
+            if(batch.get() == null) return;
+            UserEndpoint endpoint = read(follower,UserOperation::getEndpoint);
+            int sent = 0;
+            for(Map.Entry<String,String> notification : batch.get().entrySet()){
+                if(endpoint == null || !endpoint.notifyFriendStatusChange(notification.getKey(),notification.getValue())) break;
+                sent++;
+            }
+            delivered.addAndGet(sent);
+            /* Stub irraggiungibile o scaduto: inutile attendere il timeout per ogni notifica. */
+            dropped.addAndGet(batch.get().size() - sent);
+        }
+    }
+
+    /**
+     * Stampa le metriche delle notifiche.
+     */
+    public void printStats(){
+        System.out.printf("[PRESENCE] delivered: %d coalesced: %d dropped: %d\n",
+                delivered.get(), coalesced.get(), dropped.get());
+    }
+
+    /**
+     * Termina il pool delle callback.
+     */
+    public void close(){
+        callers.shutdownNow();
+    }
+}
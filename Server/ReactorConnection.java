@@ -0,0 +1,450 @@
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stato di una connessione servita da un event loop: decodifica
+ * incrementalmente le richieste (JSON separati da newline oppure frame
+ * binari, a seconda del primo byte ricevuto), le passa in ordine al
+ * task associato e accoda le risposte da scrivere.
+ */
+class ReactorConnection {
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_FRAME_LEN = 1 << 20;
+    /* Byte in uscita oltre cui chi scrive deve fermarsi, e sotto cui viene risvegliato. */
+    private static final long MAX_OUTBOUND = 256 << 10;
+    private static final long RESUME_OUTBOUND = MAX_OUTBOUND / 2;
+    /* Richieste in coda oltre cui si smette di leggere, e sotto cui si riprende. */
+    private static final int MAX_INBOUND = 256;
+    private static final int RESUME_INBOUND = MAX_INBOUND / 2;
+    /* Codifica della connessione: decisa dal primo byte ricevuto. */
+    private static final int UNKNOWN = 0;
+    private static final int JSON = 1;
+    private static final int BINARY = 2;
+    /* Richiesta fittizia che segnala la chiusura della connessione. */
+    private static final Message EOS = new Message();
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Executor executor;
+    private final ByteBuffer readBuf;
+    private final MessageDecoder decoder;
+    private int mode;
+    /* Frame parziale, ancora senza newline o incompleto. */
+    private byte[] frame;
+    private int frameLen;
+    /* Codifica binaria: lunghezza del frame corrente (-1 se in lettura). */
+    private int frameNeed;
+    private int lenValue;
+    private int lenShift;
+    private SelectionKey key;
+    private Task task;
+
+    private final ConcurrentLinkedQueue<Message> inbound;
+    /* Richieste in inbound non ancora eseguite (EOS escluso). */
+    private final AtomicInteger inboundCount;
+    /* true se OP_READ è stato tolto perché inbound è pieno. */
+    private final AtomicBoolean readPaused;
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound;
+    /* Byte accodati in outbound e non ancora scritti sul canale. */
+    private final AtomicLong outboundBytes;
+    /* Da eseguire quando outbound scende sotto RESUME_OUTBOUND (o la connessione si chiude). */
+    private final AtomicReference<Runnable> resume;
+    private final AtomicBoolean scheduled;
+    private final AtomicBoolean closed;
+
+    /**
+     * Inizializza lo stato della connessione.
+     *
+     * @param channel canale (non bloccante) della connessione.
+     * @param loop event loop a cui è assegnata la connessione.
+     * @param executor thread pool che esegue le richieste decodificate.
+     */
+    ReactorConnection(SocketChannel channel, EventLoop loop, Executor executor){
+        this.channel = channel;
+        this.loop = loop;
+        this.executor = executor;
+        this.readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.decoder = new MessageDecoder();
+        this.frame = new byte[READ_BUFFER_SIZE];
+        this.mode = UNKNOWN;
+        this.frameNeed = -1;
+        this.inbound = new ConcurrentLinkedQueue<>();
+        this.inboundCount = new AtomicInteger();
+        this.readPaused = new AtomicBoolean(false);
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.outboundBytes = new AtomicLong(0);
+        this.resume = new AtomicReference<>();
+        this.scheduled = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+    }
+
+    /**
+     * Associa il task che eseguirà le richieste della connessione.
+     *
+     * @param task task associato alla connessione.
+     */
+    void setTask(Task task){
+        this.task = task;
+    }
+
+    /**
+     * Associa la chiave di registrazione sul selector.
+     *
+     * @param key chiave della connessione.
+     */
+    void setKey(SelectionKey key){
+        this.key = key;
+    }
+
+    /**
+     * Ritorna l'indirizzo remoto della connessione.
+     *
+     * @return indirizzo del client, null se non disponibile.
+     */
+    SocketAddress getRemoteAddress(){
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Legge i byte disponibili ed estrae tutte le richieste complete.
+     *
+     * @implNote eseguito solo dall'event loop.
+     */
+    void onReadable(){
+        int n;
+        try {
+            n = channel.read(readBuf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if(n < 0){
+            close();
+            return;
+        }
+        readBuf.flip();
+        if(mode == UNKNOWN && readBuf.hasRemaining() && !negotiate()) return;
+        boolean ok = mode == BINARY ? readBinary() : readJson();
+        if(!ok) return;
+        readBuf.clear();
+        if(inboundCount.get() >= MAX_INBOUND && readPaused.compareAndSet(false,true)) updateInterest();
+        /* Dopo la pausa: il drain che segue vede readPaused e riprende la lettura. */
+        if(!inbound.isEmpty()) schedule();
+    }
+
+    /**
+     * Decide la codifica della connessione guardando il primo byte:
+     * MAGIC se il client propone la codifica binaria, accettata se
+     * l'impronta che segue coincide con quella del server.
+     *
+     * @return true se la negoziazione è riuscita, false se la proposta
+     *         non è ancora completa o la connessione è stata chiusa.
+     */
+    private boolean negotiate(){
+        boolean proposed = (readBuf.get(readBuf.position()) & 0xFF) == WireCodec.MAGIC;
+        boolean binary = false;
+        if(proposed){
+            if(readBuf.remaining() < WireCodec.PROPOSAL_LEN){
+                /* Aspetto il resto della proposta. */
+                readBuf.compact();
+                return false;
+            }
+            readBuf.get();
+            binary = readBuf.getInt() == WireCodec.FINGERPRINT;
+            readBuf.get();
+        }
+        mode = binary ? BINARY : JSON;
+        try {
+            task.negotiate(binary, proposed);
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Estrae dal buffer di lettura le richieste JSON separate da newline.
+     *
+     * @return true se la lettura può continuare, false se la connessione è stata chiusa.
+     */
+    private boolean readJson(){
+        while(readBuf.hasRemaining()){
+            byte b = readBuf.get();
+            if(b == '\n'){
+                decodeFrame();
+            }else{
+                if(!ensureCapacity(frameLen + 1)) return false;
+                frame[frameLen++] = b;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estrae dal buffer di lettura i frame binari completi.
+     *
+     * @return true se la lettura può continuare, false se la connessione è stata chiusa.
+     */
+    private boolean readBinary(){
+        while(readBuf.hasRemaining()){
+            if(frameNeed < 0){
+                /* Lunghezza (varint) del frame. */
+                int b = readBuf.get() & 0xFF;
+                lenValue |= (b & 0x7F) << lenShift;
+                lenShift += 7;
+                if((b & 0x80) != 0){
+                    if(lenShift <= 28) continue;
+                    lenValue = -1;
+                }
+                if(lenValue <= 0 || lenValue > MAX_FRAME_LEN){
+                    System.err.printf("INVALID FRAME LENGTH FROM: %s\n",getRemoteAddress());
+                    close();
+                    return false;
+                }
+                frameNeed = lenValue;
+                frameLen = 0;
+                lenValue = 0;
+                lenShift = 0;
+                ensureCapacity(frameNeed);
+            }else{
+                int n = Math.min(readBuf.remaining(), frameNeed - frameLen);
+                readBuf.get(frame, frameLen, n);
+                frameLen += n;
+                if(frameLen == frameNeed){
+                    try {
+                        Message request = new Message();
+                        WireCodec.decode(frame, 0, frameLen, request);
+                        enqueue(request);
+                    } catch (IOException e) {
+                        /* Frame malformato: lo stream non è più affidabile. */
+                        System.err.printf("MALFORMED FRAME FROM: %s\n",getRemoteAddress());
+                        close();
+                        return false;
+                    }
+                    frameNeed = -1;
+                    frameLen = 0;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ingrandisce il buffer del frame fino a contenere len byte.
+     *
+     * @param len byte da contenere.
+     * @return true se il frame non supera MAX_FRAME_LEN, false
+     *         (e chiude la connessione) altrimenti.
+     */
+    private boolean ensureCapacity(int len){
+        if(len <= frame.length) return true;
+        if(len > MAX_FRAME_LEN){
+            System.err.printf("FRAME TOO LONG FROM: %s\n",getRemoteAddress());
+            close();
+            return false;
+        }
+        frame = Arrays.copyOf(frame, Math.min(MAX_FRAME_LEN, Math.max(len, frame.length * 2)));
+        return true;
+    }
+
+    /**
+     * Decodifica il frame corrente e lo accoda alle richieste da eseguire.
+     *
+     * @implNote le richieste restano in coda fino a drain(), quindi qui
+     *           serve un Message per richiesta; il decoder e il frame
+     *           sono invece riusati.
+     */
+    private void decodeFrame(){
+        int len = frameLen;
+        if(len > 0 && frame[len-1] == '\r') len--;
+        frameLen = 0;
+        if(len == 0) return;
+        try {
+            Message request = new Message();
+            decoder.decodeJson(frame, 0, len, request);
+            enqueue(request);
+        } catch (ParseException e) {
+            /* Non chiudo ma continuo a leggere. */
+            System.err.println("PARSE EXCEPTION REACTOR CONNECTION");
+        }
+    }
+
+    /**
+     * Accoda una richiesta decodificata.
+     *
+     * @param request richiesta da eseguire.
+     */
+    private void enqueue(Message request){
+        inboundCount.incrementAndGet();
+        inbound.add(request);
+    }
+
+    /**
+     * Scrive i dati accodati finché il canale li accetta.
+     *
+     * @implNote eseguito solo dall'event loop.
+     */
+    void onWritable(){
+        ByteBuffer buf;
+        try {
+            while((buf = outbound.peek()) != null){
+                int before = buf.remaining();
+                channel.write(buf);
+                long left = outboundBytes.addAndGet(buf.remaining() - before);
+                if(left < RESUME_OUTBOUND) resume();
+                if(buf.hasRemaining()) return;
+                outbound.poll();
+            }
+            updateInterest();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Aggiorna gli eventi di interesse: lettura se inbound non è pieno,
+     * scrittura se ci sono dati in uscita.
+     *
+     * @implNote eseguito solo dall'event loop.
+     */
+    private void updateInterest(){
+        if(key == null || !key.isValid()) return;
+        int ops = readPaused.get() ? 0 : SelectionKey.OP_READ;
+        if(!outbound.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    /**
+     * Controlla se si possono accodare altri dati senza superare
+     * MAX_OUTBOUND byte in uscita.
+     *
+     * @param onResume eseguito (una volta) quando i byte in uscita
+     *                 scendono sotto RESUME_OUTBOUND, se ritorna false.
+     * @return true se si può scrivere, false se il client non sta
+     *         leggendo abbastanza velocemente.
+     */
+    boolean writable(Runnable onResume){
+        if(closed.get() || outboundBytes.get() < MAX_OUTBOUND) return true;
+        resume.set(onResume);
+        /* L'event loop può aver scritto tutto prima della set(). */
+        if(outboundBytes.get() < MAX_OUTBOUND && resume.compareAndSet(onResume, null)) return true;
+        return closed.get() && resume.compareAndSet(onResume, null);
+    }
+
+    private void resume(){
+        Runnable r = resume.getAndSet(null);
+        if(r != null) r.run();
+    }
+
+    /**
+     * Accoda i dati da inviare al client e chiede all'event loop
+     * di scriverli non appena il canale è scrivibile.
+     *
+     * @param data dati da inviare.
+     * @throws IOException se la connessione è già chiusa.
+     */
+    void write(ByteBuffer data) throws IOException{
+        if(closed.get()) throw new IOException("Connection closed");
+        outboundBytes.addAndGet(data.remaining());
+        outbound.add(data);
+        loop.execute(this::updateInterest);
+    }
+
+    /**
+     * Sottomette al pool l'esecuzione delle richieste accodate
+     * se non è già in esecuzione.
+     */
+    private void schedule(){
+        if(scheduled.compareAndSet(false,true)){
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Esegue in ordine le richieste accodate.
+     *
+     * @implNote al più un thread alla volta esegue drain() per la stessa
+     *           connessione, quindi le richieste di un client sono
+     *           servite in ordine come nella modalità bloccante.
+     */
+    private void drain(){
+        Message request;
+        while((request = inbound.poll()) != null){
+            if(request == EOS){
+                task.terminate();
+            }else{
+                try {
+                    task.process(request);
+                } catch (RuntimeException e) {
+                    System.err.printf("EXCEPTION PROCESSING REQUEST FROM: %s\n",getRemoteAddress());
+                }
+                inboundCount.decrementAndGet();
+                resumeRead();
+            }
+        }
+        /* La pausa può essere arrivata dopo l'ultima poll(). */
+        resumeRead();
+        scheduled.set(false);
+        /* Una richiesta può essere arrivata dopo la poll() ma prima della set(). */
+        if(!inbound.isEmpty()) schedule();
+    }
+
+    /**
+     * Riprende la lettura se era in pausa e inbound è sceso
+     * sotto RESUME_INBOUND richieste.
+     */
+    private void resumeRead(){
+        if(inboundCount.get() <= RESUME_INBOUND && readPaused.compareAndSet(true,false))
+            loop.execute(this::updateInterest);
+    }
+
+    /**
+     * Chiude la connessione e fa terminare il task associato.
+     * Può essere invocato da qualsiasi thread.
+     */
+    void close(){
+        if(!closed.compareAndSet(false,true)) return;
+        loop.execute(() -> {
+            if(key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("IO EXCEPTION WHILE CLOSING REACTOR CONNECTION");
+            }
+        });
+        inbound.add(EOS);
+        schedule();
+        /* Chi attende di scrivere scopre la chiusura alla prossima scrittura. */
+        resume();
+    }
+
+    /**
+     * Ritorna true se la connessione è stata chiusa.
+     *
+     * @return true se chiusa, false altrimenti.
+     */
+    boolean isClosed(){
+        return closed.get();
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Server TCP in modalità reactor: accetta le connessioni e le assegna
+ * agli event loop invece di dedicare un thread bloccato ad ogni client.
+ */
+class ReactorServer implements SocketServer {
+    private final String name;
+    private final ServerSocketChannel ssc;
+    private final AtomicInteger errorCount;
+    private final Executor executor;
+    private final EventLoopGroup loops;
+    private final Function<ReactorConnection,Task> taskFactory;
+
+    /**
+     * Apre la server socket e inizializza gli oggetti condivisi.
+     *
+     * @param name nome del servizio (per i log).
+     * @param port porta su cui aprire la server socket.
+     * @param errorCount numero di errori correnti rilevati.
+     * @param executor thread pool che esegue le richieste decodificate.
+     * @param loops event loop a cui assegnare le connessioni.
+     * @param taskFactory crea il task che esegue le richieste di una connessione.
+     * @throws IOException se l'apertura della server socket fallisce.
+     */
+    ReactorServer(String name, int port, AtomicInteger errorCount, Executor executor,
+                  EventLoopGroup loops, Function<ReactorConnection,Task> taskFactory) throws IOException {
+        this.name = name;
+        this.errorCount = errorCount;
+        this.executor = executor;
+        this.loops = loops;
+        this.taskFactory = taskFactory;
+        ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Si mette in attesa di nuove connessioni e le registra,
+     * in modalità non bloccante, su uno degli event loop.
+     */
+    public void run() {
+        System.out.printf("%s SERVER UP (REACTOR)\n",name);
+        Thread currentThread = Thread.currentThread();
+        while(!currentThread.isInterrupted() && ssc.isOpen()){
+            try {
+                SocketChannel client = ssc.accept();
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops.next();
+                ReactorConnection conn = new ReactorConnection(client, loop, executor);
+                conn.setTask(taskFactory.apply(conn));
+                loop.register(client, conn);
+            } catch (IOException e) {
+                if(!ssc.isOpen()) break;
+                errorCount.incrementAndGet();
+                System.err.printf("ACCEPT EXCEPTION. ERROR NUMBER: %d",errorCount.get());
+            }
+        }
+        close();
+    }
+
+    /**
+     * Chiude la server socket.
+     */
+    public void close() {
+        if(ssc.isOpen()) {
+            try {
+                ssc.close();
+            } catch (IOException e) {
+                System.err.printf("IO EXCEPTION WHILE CLOSING %s SERVER SOCKET",name);
+            }
+        }
+    }
+}
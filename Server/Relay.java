@@ -0,0 +1,410 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Relay dei trasferimenti di file per i client che non riescono a
+ * connettersi direttamente (NAT, firewall).
+ * Destinatario e mittente si connettono alla porta del relay e si
+ * presentano con il token del trasferimento (8 byte) e il proprio
+ * ruolo (1 byte); il relay accoppia una connessione del destinatario
+ * con una del mittente, invia ad entrambe un byte PAIRED e da lì in
+ * poi ogni connessione inoltra all'altra i byte che riceve.
+ * Il destinatario si connette prima di annunciare il token, il mittente
+ * dopo: un mittente con un token non annunciato viene chiuso subito, un
+ * destinatario attende l'annuncio al più ANNOUNCE_TIMEOUT ms.
+ * Il token è valido solo se un utente loggato lo ha comunicato con
+ * SOCKETINFO in risposta ad una FILEMSG (expect()): vale per un solo
+ * trasferimento e per al più tante coppie quante le connessioni annunciate. Le connessioni sono al più maxConnections,
+ * ognuna usa un buffer di bufferSize byte: la memoria è limitata a
+ * maxConnections * bufferSize. Il traffico totale è limitato a rate
+ * byte al secondo (0: nessun limite).
+ */
+class Relay {
+    static final int RECEIVER = 0;
+    static final int SENDER = 1;
+    private static final int PAIRED = 1;
+    /* Attesa (ms) della connessione dell'altro client, come il TIMEOUT del FileReceiver. */
+    private static final long PAIR_TIMEOUT = 600000;
+    /* Attesa (ms) di un destinatario il cui token non è ancora stato annunciato con SOCKETINFO. */
+    private static final long ANNOUNCE_TIMEOUT = 15000;
+    /* Token autorizzati al massimo contemporaneamente. */
+    private static final int MAX_TOKENS = 4096;
+    /* Intervallo minimo (ms) fra due pulizie dei token scaduti. */
+    private static final long SWEEP_INTERVAL = 1000;
+    private static final int HELLO_TIMEOUT = 5000;
+    /* Ogni quanto (ms) una connessione in attesa controlla scadenza e accoppiamento. */
+    private static final int POLL_INTERVAL = 1000;
+    /* Connessioni di un trasferimento in attesa, come FileTransfer.MAX_STREAMS. */
+    static final int MAX_WAITING = 16;
+    private static final LogEvent PAIRED_EVENT = new LogEvent(LogLevel.DEBUG, "relay.paired", false, "transfer");
+
+    private final int port;
+    private final int bufferSize;
+    private final long rate;
+    private final Semaphore connections;
+    /* <Token, trasferimento> annunciati con SOCKETINFO. */
+    private final ConcurrentHashMap<Long,Ticket> tokens;
+    /* Istante (ms) dal quale tokens può essere ripulita. */
+    private final AtomicLong nextSweep;
+    private final ConcurrentHashMap<Long,Rendezvous> waiting;
+    private final ConcurrentLinkedQueue<byte[]> buffers;
+    /* Istante (ns) dal quale la banda è di nuovo libera. */
+    private long nextFree;
+
+    /**
+     * Trasferimento autorizzato da un token.
+     */
+    private static final class Ticket {
+        /* Mittente, destinatario e ide del trasferimento. */
+        final String transfer;
+        final long deadline;
+        /* Coppie che il token può ancora formare. */
+        int pairs;
+
+        Ticket(String transfer, long deadline, int pairs){
+            this.transfer = transfer;
+            this.deadline = deadline;
+            this.pairs = pairs;
+        }
+    }
+
+    /**
+     * Connessioni di un trasferimento in attesa dell'altro client.
+     */
+    private static final class Rendezvous {
+        final ArrayDeque<Connection> receivers = new ArrayDeque<>();
+        final ArrayDeque<Connection> senders = new ArrayDeque<>();
+
+        ArrayDeque<Connection> of(int role){
+            return role == RECEIVER ? receivers : senders;
+        }
+    }
+
+    /**
+     * Connessione di un client al relay.
+     */
+    private static final class Connection {
+        final SocketChannel sc;
+        /* Connessione dell'altro client, completata all'accoppiamento. */
+        final CompletableFuture<Connection> partner = new CompletableFuture<>();
+        /* Versi della coppia ancora aperti, condiviso fra le due connessioni. */
+        AtomicInteger open;
+
+        Connection(SocketChannel sc){
+            this.sc = sc;
+        }
+    }
+
+    /**
+     * Inizializza il relay.
+     *
+     * @param port porta del relay, 0 se il relay è disattivato.
+     * @param maxConnections connessioni servite contemporaneamente.
+     * @param bufferSize byte del buffer di ogni connessione.
+     * @param rate byte al secondo inoltrati in totale, 0 per nessun limite.
+     */
+    Relay(int port, int maxConnections, int bufferSize, long rate){
+        this.port = port;
+        this.bufferSize = bufferSize;
+        this.rate = rate;
+        this.connections = new Semaphore(maxConnections);
+        this.tokens = new ConcurrentHashMap<>();
+        this.nextSweep = new AtomicLong();
+        this.waiting = new ConcurrentHashMap<>();
+        this.buffers = new ConcurrentLinkedQueue<>();
+    }
+
+    boolean isEnabled(){
+        return port != 0;
+    }
+
+    int getPort(){
+        return port;
+    }
+
+    /**
+     * Autorizza un trasferimento annunciato dal destinatario.
+     *
+     * @param token token del trasferimento.
+     * @param sender mittente del file.
+     * @param receiver destinatario del file, che ha annunciato il token.
+     * @param ide identificatore del file.
+     * @param pairs coppie di connessioni che il token può formare.
+     * @return true se il token è autorizzato, false se è già
+     *         in uso per un altro trasferimento o se i token
+     *         autorizzati sono già MAX_TOKENS.
+     */
+    boolean expect(long token, String sender, String receiver, long ide, int pairs){
+        long now = System.currentTimeMillis();
+        sweep(now);
+        if(tokens.size() >= MAX_TOKENS) return false;
+        Ticket ticket = new Ticket(sender + '\u0000' + receiver + '\u0000' + ide, now + PAIR_TIMEOUT, pairs);
+        return tokens.putIfAbsent(token, ticket) == null;
+    }
+
+    /**
+     * Rimuove i token scaduti, al più una volta ogni SWEEP_INTERVAL:
+     * chi li legge controlla comunque la scadenza.
+     *
+     * @param now istante corrente (ms).
+     */
+    private void sweep(long now){
+        long next = nextSweep.get();
+        if(now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) return;
+        tokens.values().removeIf(ticket -> ticket.deadline < now);
+    }
+
+    /**
+     * Controlla se un token è stato annunciato e non è scaduto.
+     *
+     * @param token token del trasferimento.
+     * @return true se il token è autorizzato.
+     */
+    private boolean announced(long token){
+        Ticket ticket = tokens.get(token);
+        return ticket != null && ticket.deadline >= System.currentTimeMillis();
+    }
+
+    /**
+     * Riserva un posto per una nuova connessione.
+     *
+     * @return true se la connessione può essere servita,
+     *         false se il relay ha raggiunto maxConnections.
+     */
+    boolean admit(){
+        return connections.tryAcquire();
+    }
+
+    /**
+     * Legge la presentazione di una connessione, la accoppia con una
+     * dell'altro client (o la mette in attesa) e inoltra all'altro
+     * client i byte che riceve, finché la connessione non si chiude.
+     *
+     * @param sc connessione ammessa con admit().
+     */
+    void serve(SocketChannel sc){
+        Connection me = new Connection(sc);
+        Connection partner = null;
+        long token;
+        int role;
+        try {
+            sc.socket().setSoTimeout(HELLO_TIMEOUT);
+            /* Con il SoTimeout serve lo stream della socket, la read del channel non scade. */
+            DataInputStream hello = new DataInputStream(sc.socket().getInputStream());
+            token = hello.readLong();
+            role = hello.readByte();
+            if(role != RECEIVER && role != SENDER) throw new IOException("Invalid relay role: " + role);
+            /* Il mittente riceve il token con SOCKETINFO, quindi deve essere già annunciato. */
+            if(role == SENDER && !announced(token)) throw new IOException("Relay token not announced");
+            while(true){
+                Rendezvous rendezvous = waiting.computeIfAbsent(token, k -> new Rendezvous());
+                synchronized (rendezvous){
+                    /* Rimosso perché vuoto da un altro thread: ne serve uno nuovo. */
+                    if(waiting.get(token) != rendezvous) continue;
+                    partner = rendezvous.of(1 - role).poll();
+                    if(partner == null){
+                        if(rendezvous.of(role).size() == MAX_WAITING) throw new IOException("Too many relay connections");
+                        rendezvous.of(role).add(me);
+                    }else if(rendezvous.receivers.isEmpty() && rendezvous.senders.isEmpty()){
+                        waiting.remove(token, rendezvous);
+                    }
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            release(sc);
+            return;
+        }
+        if(partner != null && !pair(token, me, partner)) return;
+        forward(token, role, me);
+    }
+
+    /**
+     * Accoppia due connessioni e le avvisa con il byte PAIRED.
+     *
+     * @param token token del trasferimento.
+     * @param me connessione appena arrivata.
+     * @param partner connessione in attesa dell'altro client.
+     * @return true se la coppia è stata formata, false se il
+     *         token non è autorizzato (entrambe vengono chiuse).
+     */
+    private boolean pair(long token, Connection me, Connection partner){
+        AtomicReference<String> transfer = new AtomicReference<>();
+        long now = System.currentTimeMillis();
+        tokens.computeIfPresent(token, (k, ticket) -> {
+            if(ticket.deadline < now) return null;
+            transfer.set(ticket.transfer);
+            /* Esaurite le coppie annunciate il token non vale più. */
+            return --ticket.pairs == 0 ? null : ticket;
+        });
+        if(transfer.get() == null){
+            /* Token mai annunciato da un utente loggato, scaduto o già usato. */
+            partner.partner.cancel(false);
+            release(me.sc);
+            return false;
+        }
+        PAIRED_EVENT.log(transfer.get());
+        AtomicInteger open = new AtomicInteger(2);
+        me.open = open;
+        partner.open = open;
+        me.partner.complete(partner);
+        partner.partner.complete(me);
+        try {
+            ByteBuffer paired = ByteBuffer.allocate(1);
+            paired.put(0, (byte) PAIRED);
+            while(paired.hasRemaining()) me.sc.write(paired);
+            paired.position(0);
+            while(paired.hasRemaining()) partner.sc.write(paired);
+        } catch (IOException e) {
+            /* Il thread di ognuna delle due si accorge della chiusura. */
+            close(me.sc);
+            close(partner.sc);
+        }
+        return true;
+    }
+
+    /**
+     * Inoltra all'altro client i byte ricevuti su una connessione.
+     * Finché la connessione non è accoppiata controlla ogni
+     * POLL_INTERVAL ms se il client l'ha chiusa o se l'attesa è scaduta.
+     *
+     * @param token token del trasferimento.
+     * @param role ruolo della connessione.
+     * @param me connessione da servire.
+     * @implNote i client non inviano nulla prima di PAIRED, quindi
+     *           se arrivano byte la connessione è già accoppiata.
+     */
+    private void forward(long token, int role, Connection me){
+        byte[] buf = buffers.poll();
+        if(buf == null) buf = new byte[bufferSize];
+        long start = System.currentTimeMillis();
+        long deadline = start + PAIR_TIMEOUT;
+        Connection partner = null;
+        try {
+            me.sc.socket().setSoTimeout(POLL_INTERVAL);
+            InputStream in = me.sc.socket().getInputStream();
+            while(true){
+                int n;
+                try {
+                    n = in.read(buf);
+                } catch (SocketTimeoutException e) {
+                    /* Attesa scaduta, oppure accoppiata con un token non autorizzato. */
+                    long now = System.currentTimeMillis();
+                    boolean expired = !me.partner.isDone()
+                            && (now > deadline || (now > start + ANNOUNCE_TIMEOUT && !announced(token)));
+                    if(partner == null && (expired || me.partner.isCancelled()) && leave(token, role, me)) return;
+                    continue;
+                }
+                if(partner == null){
+                    /* Chiusa (o protocollo violato) prima dell'accoppiamento. */
+                    if((!me.partner.isDone() || me.partner.isCancelled()) && leave(token, role, me)) return;
+                    /* Accoppiata in questo momento: pair() sta per completare partner. */
+                    partner = me.partner.exceptionally(e -> null).join();
+                    if(partner == null){
+                        release(me.sc);
+                        return;
+                    }
+                }
+                if(n < 0){
+                    partner.sc.shutdownOutput();
+                    break;
+                }
+                throttle(n);
+                ByteBuffer out = ByteBuffer.wrap(buf, 0, n);
+                while(out.hasRemaining()) partner.sc.write(out);
+            }
+        } catch (IOException | InterruptedException e) {
+            /* Un client ha chiuso: chiudo anche l'altro verso. */
+            close(me.sc);
+            if(partner == null){
+                if(leave(token, role, me)) return;
+                partner = me.partner.exceptionally(x -> null).join();
+                if(partner == null){
+                    release(me.sc);
+                    return;
+                }
+            }
+            close(partner.sc);
+        } finally {
+            buffers.add(buf);
+        }
+        if(me.open.decrementAndGet() == 0){
+            release(me.sc);
+            release(partner.sc);
+        }
+    }
+
+    /**
+     * Toglie una connessione dall'attesa e la chiude.
+     *
+     * @param token token del trasferimento.
+     * @param role ruolo della connessione.
+     * @param me connessione in attesa.
+     * @return true se la connessione è stata chiusa, false se nel
+     *         frattempo è stata accoppiata.
+     */
+    private boolean leave(long token, int role, Connection me){
+        Rendezvous rendezvous = waiting.get(token);
+        boolean removed = false;
+        if(rendezvous != null){
+            synchronized (rendezvous){
+                removed = rendezvous.of(role).remove(me);
+                if(removed && rendezvous.receivers.isEmpty() && rendezvous.senders.isEmpty()){
+                    waiting.remove(token, rendezvous);
+                }
+            }
+        }
+        if(!removed && !me.partner.isCancelled()) return false;
+        release(me.sc);
+        return true;
+    }
+
+    /**
+     * Attende che la banda del relay permetta di inoltrare i byte.
+     *
+     * @param bytes byte da inoltrare.
+     * @throws InterruptedException se il thread viene interrotto.
+     */
+    private void throttle(int bytes) throws InterruptedException {
+        if(rate == 0) return;
+        long wait;
+        synchronized (this){
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFree);
+            nextFree = start + bytes * 1000000000L / rate;
+            wait = start - now;
+        }
+        if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Chiude una connessione e libera il suo posto.
+     *
+     * @param sc connessione da chiudere.
+     */
+    private void release(SocketChannel sc){
+        close(sc);
+        connections.release();
+    }
+
+    private static void close(SocketChannel sc){
+        try {
+            sc.close();
+        } catch (IOException e) {
+            System.err.println("UNABLE TO CLOSE RELAY SOCKET");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RelayServer implements SocketServer {
+    /* Thread in attesa di nuove connessioni sulla socket del relay. */
+    private ServerSocketChannel ss;
+    private final AtomicInteger errorCount;
+    private final ExecutorService executor;
+    private final Relay relay;
+
+    /**
+     * Crea una nuova istanza inizializzando gli oggetti condivisi:
+     * errorCount, executor, relay ed apre la server socket del relay
+     * dei trasferimenti di file.
+     *
+     * @param errorCount numero di errori correnti rilevati.
+     * @param executor thread pool.
+     * @param relay relay dei trasferimenti, con la porta su cui ascoltare.
+     * @throws IOException se la creazione della socket del relay fallisce.
+     */
+    public RelayServer(AtomicInteger errorCount, ExecutorService executor, Relay relay) throws IOException{
+        this.errorCount = errorCount;
+        this.executor = executor;
+        this.relay = relay;
+        ss = ServerSocketChannel.open();
+        ss.bind(new InetSocketAddress(relay.getPort()));
+    }
+
+    /**
+     * Si mette in attesa di ricevere nuove connessioni sulla socket del
+     * relay e le sottomette al thread pool; quelle oltre il limite di
+     * connessioni del relay vengono chiuse subito.
+     */
+    public void run() {
+        System.out.println("RELAY SERVER UP");
+        Thread currentThread = Thread.currentThread();
+        while(!currentThread.isInterrupted()){
+            try {
+                SocketChannel client = ss.accept();
+                if(relay.admit()) {
+                    executor.execute(() -> relay.serve(client));
+                }else{
+                    System.err.println("RELAY FULL, CONNECTION REFUSED");
+                    client.close();
+                }
+            } catch (IOException e) {
+                if(!ss.isOpen()) break;
+                errorCount.incrementAndGet();
+                System.err.printf("ACCEPT EXCEPTION. ERROR NUMBER: %d",errorCount.get());
+            }
+        }
+        close();
+    }
+
+    /**
+     * Chiude la socket del relay.
+     */
+    public void close() {
+        if(ss != null && ss.isOpen()) {
+            try {
+                ss.close();
+            } catch (IOException e) {
+                System.err.print("IO EXCEPTION WHILE CLOSING RELAY SERVER SOCKET");
+            }
+        }
+    }
+}
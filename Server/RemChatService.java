@@ -1,32 +1,47 @@
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 class RemChatService extends Service{
+    private final OfflineStore offline;
+    private final PresenceDispatcher presence;
 
     /**
      * Inizializza la struttura dati condivisa contenente le informazioni
      * sugli utenti.
      *
      * @param users struttura dati contenente le info degli utenti.
+     * @param offline casella dei messaggi per gli utenti offline.
+     * @param presence dispatcher delle notifiche di cambio status.
      */
-    public RemChatService(ConcurrentHashMap<String, UserOperation> users){
+    public RemChatService(ConcurrentHashMap<String, UserOperation> users, OfflineStore offline,
+                          PresenceDispatcher presence){
         super(users);
+        this.offline = offline;
+        this.presence = presence;
     }
 
     /**
-     * Aggiunge lo stub per le notifiche all'utente e
-     * notifica tutti gli amici che l'utente è online.
+     * Aggiunge lo stub per le notifiche all'utente,
+     * notifica tutti gli amici che l'utente è online e
+     * consegna i messaggi ricevuti mentre era offline.
      *
      * @param usr utente a cui associare la callback.
      * @param client stub che contiene le callback.
+     * @implNote la chat socket può essere inizializzata prima o dopo
+     *           la callback: la consegna parte da chi trova l'utente
+     *           ONLINE con la chat socket pronta.
      */
     public void addLoginCallback(String usr, ChatEvent client) {
         ArrayList<String> followers = new ArrayList<>();
+        AtomicReference<UserEndpoint> endpoint = new AtomicReference<>();
         users.computeIfPresent(usr,(k,v) ->{
             v.setLoginCallBack(client);
             followers.addAll(v.getFollowers());
+            endpoint.set(v.getEndpoint());
             return v;
         });
-        super.friendStatusChange(usr,followers,UserStatus.ONLINE.toString());
+        presence.friendStatusChange(usr,followers,UserStatus.ONLINE.toString());
+        offline.deliver(usr,endpoint.get());
     }
 }
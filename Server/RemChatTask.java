@@ -2,6 +2,8 @@ import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 
 public class RemChatTask extends UnicastRemoteObject implements RemChat {
+    /* Lo stub è convertito in stringa dal writer del log. */
+    private static final LogEvent LOGIN_CALLBACK = new LogEvent(LogLevel.INFO, "rmi.callback", false, "usr", "stub");
     private transient RemChatService remChatOp;
 
     /**
@@ -18,7 +20,7 @@ public class RemChatTask extends UnicastRemoteObject implements RemChat {
 
     /* Descrizione nell'interfaccia. */
     public void registerLogin(String usr, ChatEvent client){
-        System.out.printf("[LOGIN CALLBACK] from: %s stub: %s\n",usr,client.toString());
+        LOGIN_CALLBACK.log(usr,client);
         remChatOp.addLoginCallback(usr,client);
     }
 
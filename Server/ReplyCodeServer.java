@@ -31,6 +31,12 @@ interface ReplyCodeServer extends ReplyCode {
 
     default String usrOffline(String usr) { return "[MSG/FILE] User " + usr + " is offline!";}
 
+    default String usrBusy(String usr) { return "[MSG/FILE] User " + usr + " is too slow, retry later!";}
+
+    default String usrOfflineQueued(String usr, String msg) { return "[MSG] You-"+usr+" (offline, queued): " + msg ;}
+
+    default String usrOfflineFull(String usr) { return "[MSG] User " + usr + " is offline and has too many pending messages!";}
+
     default String senderMsg(String destUsr, String msg) { return "[MSG] You-"+destUsr+": " + msg ;}
 
     default String senderFile(String destUsr, String fileName){
@@ -57,5 +63,7 @@ interface ReplyCodeServer extends ReplyCode {
 
     default String grpClosed(String groupName) {return "[GROUP: "+groupName+"] Group has been closed!";}
 
+    default String storeFailed() { return "Server unable to save the change, retry later!";}
+
     default String grpUsrNotAdmin(String groupName) {return "[GROUP: "+groupName+"] You can't close this group!"; }
 }
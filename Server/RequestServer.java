@@ -1,13 +1,13 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
-class RequestServer implements Runnable {
+class RequestServer implements SocketServer {
     private final AtomicInteger errorCount;
     private final RequestService requestOp;
-    private final ThreadPoolExecutor executor;
+    private final ExecutorService executor;
     private ServerSocket rs;
 
     /**
@@ -21,7 +21,7 @@ class RequestServer implements Runnable {
      * @throws IOException se la creazione della chat socket fallisce.
      */
     public RequestServer(int requestPort, AtomicInteger errorCount,
-                         ThreadPoolExecutor executor, RequestService requestOp) throws IOException{
+                         ExecutorService executor, RequestService requestOp) throws IOException{
         this.errorCount = errorCount;
         this.executor = executor;
         this.requestOp = requestOp;
@@ -1,15 +1,44 @@
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 class RequestService extends Service{
+    private static final LogEvent STATUS = new LogEvent(LogLevel.INFO, "user.status", false, "usr", "status");
     public final int MULTICAST_PORT;
     private final MulticastSocket mcs;
+    private final UserStore store;
+    private final MulticastAllocator addresses;
+    private final PresenceDispatcher presence;
+    private final UserIds ids;
+    private final UserIndex index;
+    private final int searchLimit;
+    private final int friendsPage;
+    private final GroupDirectory directory;
+    private final int groupsPage;
+
+    /**
+     * Amici aggiunti fra due revisioni della lista amici.
+     */
+    static final class FriendsPage {
+        /* Revisione da cui parte la pagina, 0 se la pagina va a sostituire la lista. */
+        final long since;
+        final List<String> friends;
+        /* Revisione attuale: se maggiore di since + friends.size() ci sono altre pagine. */
+        final long latest;
+
+        FriendsPage(long since, List<String> friends, long latest){
+            this.since = since;
+            this.friends = friends;
+            this.latest = latest;
+        }
+    }
 
     /**
      * Inizializza le variabili d'istanza per le operazioni di richiesta
@@ -19,12 +48,33 @@ class RequestService extends Service{
      * @param groups struttura dati contenente le info sui gruppi.
      * @param mcs socket per i gruppi multicast.
      * @param mcPort porta per i gruppi multicast.
+     * @param store persistenza delle modifiche a utenti e gruppi.
+     * @param addresses indirizzi multicast da assegnare ai gruppi.
+     * @param presence dispatcher delle notifiche di cambio status.
+     * @param ids id degli utenti registrati.
+     * @param index indice degli username per la ricerca.
+     * @param searchLimit username massimi in una pagina di ricerca.
+     * @param friendsPage amici massimi in una pagina della lista amici.
+     * @param directory elenco ordinato dei gruppi.
+     * @param groupsPage gruppi massimi in una pagina della lista gruppi.
      */
     public RequestService(ConcurrentHashMap<String, UserOperation> users,
                           ConcurrentHashMap<String,Group> groups,
-                          MulticastSocket mcs,int mcPort){
+                          MulticastSocket mcs,int mcPort,UserStore store,
+                          MulticastAllocator addresses,PresenceDispatcher presence,
+                          UserIds ids,UserIndex index,int searchLimit,
+                          int friendsPage,GroupDirectory directory,int groupsPage){
         super(users,groups);
         this.mcs = mcs;
+        this.store = store;
+        this.addresses = addresses;
+        this.presence = presence;
+        this.ids = ids;
+        this.index = index;
+        this.searchLimit = searchLimit;
+        this.friendsPage = friendsPage;
+        this.directory = directory;
+        this.groupsPage = groupsPage;
         this.MULTICAST_PORT = mcPort;
     }
 
@@ -33,12 +83,29 @@ class RequestService extends Service{
      * all'interno della struttura dati contenente le info sugli
      * utenti.
      *
-     * @param usr utente da registrare.
-     * @return true se l'utente è stato registrato,
-     *         false se l'username dell'utente era già stato registrato.
+     * @param usr nome dell'utente da registrare.
+     * @param psw password dell'utente.
+     * @param lang lingua predefinita dell'utente.
+     * @return OK se l'utente è stato registrato.
+     *         ALRDY_EXISTS se l'username dell'utente era già stato registrato.
+     *         STORE_FAIL se la registrazione non è stata scritta su disco.
+     * @implNote la modifica è accodata al log sotto il lock della chiave
+     *           così nessuna amicizia verso l'utente può precederla nel log.
+     *           L'id viene assegnato solo se l'username è nuovo.
      */
-    public boolean register(UserOperation usr){
-        return users.putIfAbsent(usr.getUsr(), usr) == null;
+    public SSCode register(String usr, String psw, String lang){
+        AtomicLong seq = new AtomicLong();
+        AtomicBoolean result = new AtomicBoolean(false);
+        users.computeIfAbsent(usr, k -> {
+            seq.set(store.append(UserStore.REGISTER, usr, psw, lang));
+            result.set(true);
+            return new UserOperation(usr, psw, lang, ids);
+        });
+        if(!result.get()) return SSCode.ALRDY_EXISTS;
+        if(!store.await(seq.get())) return SSCode.STORE_FAIL;
+        /* Fuori dal lock: l'indice non rallenta le altre operazioni sull'utente. */
+        index.add(usr);
+        return SSCode.OK;
     }
 
     /**
@@ -85,32 +152,36 @@ class RequestService extends Service{
      * @return OK se la richiesta è andata a buon fine.
      *         ALREADY_FRIENDS se sourceUsr e destUsr avevano già una relazione.
      *         WRGUSR se destUsr non esiste.
+     *         STORE_FAIL se l'amicizia non è stata scritta su disco.
      */
     public SSCode addRelation(String sourceUsr, String destUsr){
         AtomicReference<SSCode> code = new AtomicReference<>(SSCode.ALREADY_FRIENDS);
         AtomicReference<String> sourceLang = new AtomicReference<>();
+        boolean durable = true;
         if(searchUsr(destUsr)){
             /* Se esiste l'utente */
+            AtomicLong seq = new AtomicLong();
             users.computeIfPresent(sourceUsr,(k,v)->{
                 sourceLang.set(v.getLang());
                 if(v.addFriend(destUsr)){
+                    seq.set(store.append(UserStore.RELATION, sourceUsr, destUsr));
                     code.set(SSCode.OK);
                 }
                 return v;
             });
-
+            durable = store.await(seq.get());
         }else{
             code.set(SSCode.WRGUSR);
         }
         if(code.get().equals(SSCode.OK)){
-            /* Aggiungo il follower e notifico la nuova amicizia. */
-            users.computeIfPresent(destUsr,(k,v) ->{
+            /* Aggiungo il follower e notifico la nuova amicizia fuori dal lock. */
+            UserEndpoint dest = read(destUsr, v -> {
                 v.addFollower(sourceUsr);
-                v.notifyNewFriend(sourceUsr,sourceLang.get());
-                return v;
+                return v.getEndpoint();
             });
+            if(dest != null) dest.notifyNewFriend(sourceUsr,sourceLang.get());
         }
-        return code.get();
+        return durable ? code.get() : SSCode.STORE_FAIL;
     }
 
     /**
@@ -123,6 +194,33 @@ class RequestService extends Service{
         return users.containsKey(usr);
     }
 
+    /**
+     * Ritorna una pagina degli username che iniziano con il prefisso.
+     *
+     * @param prefix prefisso cercato.
+     * @param cursor ultimo username della pagina precedente, null per la prima.
+     * @param limit username richiesti, null o oltre searchLimit per searchLimit.
+     * @return pagina di username.
+     */
+    public Page searchPrefix(String prefix, String cursor, Long limit){
+        return index.prefix(prefix, cursor, pageSize(limit));
+    }
+
+    /**
+     * Ritorna gli username simili alla ricerca che non iniziano con essa.
+     *
+     * @param usr username cercato.
+     * @param limit username richiesti, null o oltre searchLimit per searchLimit.
+     * @return username simili, dal più vicino.
+     */
+    public List<String> searchSimilar(String usr, Long limit){
+        return index.similar(usr, pageSize(limit));
+    }
+
+    private int pageSize(Long limit){
+        return limit == null || limit < 1 || limit > searchLimit ? searchLimit : limit.intValue();
+    }
+
     /**
      * Ritorna la lingua predefinita dell'utente.
      *
@@ -139,18 +237,22 @@ class RequestService extends Service{
     }
 
     /**
-     * Ritorna la lista degli amici dell'utente.
+     * Ritorna gli amici aggiunti dopo la revisione che il client
+     * ha già ricevuto, al più friendsPage.
      *
      * @param usr utente da cui prelevare la lista amici.
-     * @return lista degli amici.
+     * @param since revisione ricevuta dal client, null per ripartire da 0.
+     * @return pagina della lista amici, vuota se l'utente non esiste.
+     * @implNote una revisione maggiore di quella attuale (ad esempio dopo
+     *           un riavvio del server senza persistenza) riparte da 0.
      */
-    public List<String> getFriendsList(String usr) {
-        ArrayList<String> tmpFriends = new ArrayList<>();
-        users.computeIfPresent(usr,(k,v)->{
-            tmpFriends.addAll(v.getFriendsList());
-            return v;
+    public FriendsPage getFriendsPage(String usr, Long since) {
+        FriendsPage page = read(usr, v -> {
+            int latest = v.getFriendsRevision();
+            int from = since == null || since < 0 || since > latest ? 0 : since.intValue();
+            return new FriendsPage(from, v.getFriendsSince(from, friendsPage), latest);
         });
-        return tmpFriends;
+        return page == null ? new FriendsPage(0, new ArrayList<>(), 0) : page;
     }
 
     /**
@@ -163,35 +265,44 @@ class RequestService extends Service{
      *         ALRDY_EXISTS se il nome del gruppo esiste già.
      *         GRP_FAIL se viene sollevata un'eccezione nella
      *                  creazione del gruppo.
+     *         STORE_FAIL se il gruppo non è stato scritto su disco.
      * @implNote se viene catturata un'eccezione non viene
      *           inserito alcuna chiave e/o valore all'interno
      *           della tabella hash.
      */
     public SSCode createGroup(String admin, String groupName){
         AtomicReference<SSCode> result = new AtomicReference<>(SSCode.ALRDY_EXISTS);
+        AtomicLong seq = new AtomicLong();
         groups.computeIfAbsent(groupName, (String v) -> {
-            Group tmp = null;
+            InetAddress addr = addresses.allocate();
+            if(addr == null){
+                result.set(SSCode.GRP_FAIL);
+                System.err.printf("MULTICAST ADDRESSES EXHAUSTED IN GROUP CREATION: %s\n",groupName);
+                return null;
+            }
             try {
-                tmp = new Group(admin,groupName);
-                mcs.joinGroup(tmp.getInetAddr());
-                result.set(SSCode.OK);
+                mcs.joinGroup(addr);
             } catch (IOException e) {
+                addresses.release(addr);
                 result.set(SSCode.GRP_FAIL);
                 System.err.printf("IO EXCEPTION IN GROUP CREATION: %s\n",groupName);
+                return null;
             }
-            return tmp;
+            seq.set(store.append(UserStore.CREATE_GROUP, admin, groupName));
+            directory.add(groupName);
+            result.set(SSCode.OK);
+            return new Group(admin,groupName,addr);
 
         });
+        boolean durable = store.await(seq.get());
         /* Se l'aggiunta è andata a buon fine, aggiungo il gruppo all'utente. */
         if(result.get().equals(SSCode.OK)){
             users.computeIfPresent(admin,(k,v)->{
                 v.addGroup(groupName);
                 return v;
             });
-        }else if(result.get().equals(SSCode.GRP_FAIL)){
-            groups.remove(groupName);
         }
-        return result.get();
+        return durable ? result.get() : SSCode.STORE_FAIL;
     }
 
     /**
@@ -203,21 +314,25 @@ class RequestService extends Service{
      *         GRP_NOT_EXIST se il gruppo non esiste.
      *         USR_ALRDY_GRP se l'utente faceva
      *                       già parte del gruppo.
+     *         STORE_FAIL se l'ingresso non è stato scritto su disco.
      *
      */
     public SSCode joinGroup(String usr, String groupName){
         AtomicReference<SSCode> result = new AtomicReference<>(SSCode.GRP_NOT_EXIST);
+        AtomicLong seq = new AtomicLong();
         groups.computeIfPresent(groupName,(k,v)->{
             result.set(v.joinGroup(usr));
+            if(result.get().equals(SSCode.OK)) seq.set(store.append(UserStore.JOIN_GROUP, usr, groupName));
             return v;
         });
+        boolean durable = store.await(seq.get());
         if(result.get().equals(SSCode.OK)){
             users.computeIfPresent(usr,(k,v)->{
                 v.addGroup(groupName);
                 return v;
             });
         }
-        return result.get();
+        return durable ? result.get() : SSCode.STORE_FAIL;
     }
 
     /**
@@ -238,17 +353,22 @@ class RequestService extends Service{
     }
 
     /**
-     * Ritorna una tabella hash contenente i nomi
-     * dei gruppi esistenti.
+     * Ritorna una pagina dei gruppi esistenti il cui nome
+     * inizia con il prefisso, esclusi quelli dell'utente.
      *
-     * @return hashset contenente i nomi di tutti i gruppi.
-     * @implNote il forEach garantisce che sia thread safe
-     *           anche se weakly consistent.
+     * @param usr nome dell'utente.
+     * @param prefix prefisso cercato, null per tutti i gruppi.
+     * @param cursor ultimo gruppo della pagina precedente, null per la prima.
+     * @param limit gruppi richiesti, null o oltre groupsPage per groupsPage.
+     * @return pagina di nomi dei gruppi in ordine alfabetico.
+     * @implNote la pagina è letta dalla skip list senza lock (weakly
+     *           consistent): un gruppo creato o chiuso durante la
+     *           lettura può comparire o meno.
      */
-    public HashSet<String> getGrpList(){
-        HashSet<String> tmpGroups = new HashSet<>();
-        groups.forEach((k,v) -> tmpGroups.add(k));
-        return tmpGroups;
+    public Page getGrpPage(String usr, String prefix, String cursor, Long limit){
+        HashSet<String> joined = new HashSet<>(getUsrGroupList(usr));
+        int size = limit == null || limit < 1 || limit > groupsPage ? groupsPage : limit.intValue();
+        return directory.page(prefix == null ? "" : prefix, cursor, size, joined);
     }
 
     /**
@@ -261,32 +381,71 @@ class RequestService extends Service{
      *         GRP_SEND_FAIL se l'invio della notifica ai membri fallisce.
      *         GRP_USR_NOT_ADMIN se l'utente che richiede la
      *                           chiusura non è l'admin.
+     *         STORE_FAIL se la chiusura non è stata scritta su disco.
      */
     public SSCode closeGroup(String usr, String groupName){
         AtomicReference<SSCode> result = new AtomicReference<>(SSCode.GRP_NOT_EXIST);
+        AtomicReference<Group> toClose = new AtomicReference<>();
         groups.computeIfPresent(groupName,(k,v)->{
-            if(v.getAdmin().equals(usr)){
-                result.set(v.notifyClose(mcs,MULTICAST_PORT));
-                if(result.get().equals(SSCode.OK)){
-                    /* Rimuovo il gruppo da ogni membro. */
-                    for(String member : v.getMembers()){
-                        users.computeIfPresent(member,(k1,v1)->{
-                            v1.removeGroup(k);
-                            return v1;
-                        });
-                    }
-                }
-            }else{
+            if(!v.getAdmin().equals(usr)){
                 result.set(SSCode.GRP_USR_NOT_ADMIN);
+            }else if(v.setClosing(true)){
+                /* Solo una richiesta di chiusura alla volta può procedere. */
+                toClose.set(v);
             }
             return v;
         });
+        Group group = toClose.get();
+        if(group == null) return result.get();
+        /* La notifica multicast avviene fuori dal lock. */
+        result.set(group.notifyClose(mcs,MULTICAST_PORT));
         if(result.get().equals(SSCode.OK)){
-            groups.remove(groupName);
+            ArrayList<String> members = new ArrayList<>();
+            AtomicLong seq = new AtomicLong();
+            AtomicBoolean removed = new AtomicBoolean();
+            /* Una volta rimosso il gruppo nessuno può più joinarlo: la lista dei membri è definitiva. */
+            groups.computeIfPresent(groupName,(k,v)->{
+                if(v != group) return v;
+                members.addAll(v.getMembers());
+                seq.set(store.append(UserStore.CLOSE_GROUP, groupName));
+                directory.remove(groupName);
+                removed.set(true);
+                return null;
+            });
+            boolean durable = store.await(seq.get());
+            if(removed.get()) releaseAddress(group);
+            /* Rimuovo il gruppo da ogni membro. */
+            for(String member : members){
+                users.computeIfPresent(member,(k,v)->{
+                    v.removeGroup(groupName);
+                    return v;
+                });
+            }
+            if(!durable) result.set(SSCode.STORE_FAIL);
+        }else{
+            groups.computeIfPresent(groupName,(k,v)->{
+                v.setClosing(false);
+                return v;
+            });
         }
         return result.get();
     }
 
+    /**
+     * Lascia il gruppo multicast di un gruppo chiuso e
+     * ne rende di nuovo disponibile l'indirizzo.
+     *
+     * @param group gruppo rimosso dalla tabella dei gruppi.
+     */
+    private void releaseAddress(Group group){
+        try {
+            mcs.leaveGroup(group.getInetAddr());
+        } catch (IOException e) {
+            System.err.printf("IO EXCEPTION LEAVING MULTICAST GROUP: %s\n",group.getGroupName());
+        }
+        addresses.release(group.getInetAddr());
+    }
+
     /**
      * Ritorna l'indirizzo IP multicast del gruppo.
      *
@@ -294,12 +453,8 @@ class RequestService extends Service{
      * @return stringa contenente l'IP multicast del gruppo.
      */
     public String getGroupIp(String groupName) {
-        AtomicReference<String> ip = new AtomicReference<>();
-        groups.computeIfPresent(groupName,(k,v) ->{
-            ip.set(v.getMulticastIp());
-            return v;
-        });
-        return ip.get();
+        Group group = groups.get(groupName);
+        return group == null ? null : group.getMulticastIp();
     }
 
     /**
@@ -309,10 +464,8 @@ class RequestService extends Service{
      * @param usr utente da inserire come online.
      */
     public void incrOnlineUsrGrp(String grp,String usr) {
-        groups.computeIfPresent(grp,(k,v)->{
-            v.incrOnline(usr);
-            return v;
-        });
+        Group group = groups.get(grp);
+        if(group != null) group.incrOnline(usr);
     }
 
     /**
@@ -329,19 +482,19 @@ class RequestService extends Service{
             users.computeIfPresent(usr, (k, v) -> {
                 result.set(v.setUsrStat(UserStatus.OFFLINE));
                 if (result.get()) {
-                    System.out.println("User: " + v.getUsr() + " Status: " + v.getUsrStat());
+                    STATUS.log(usr,UserStatus.OFFLINE);
+                    /* La chat socket della sessione chiusa non riceve più messaggi. */
+                    v.setMailbox(null);
                     followers.addAll(v.getFollowers());
                     for (String grp : v.getGroups()) {
-                        groups.computeIfPresent(grp, (k1, v1) -> {
-                            v1.decrOnline(usr);
-                            return v1;
-                        });
+                        Group group = groups.get(grp);
+                        if (group != null) group.decrOnline(usr);
                     }
                 }
                 return v;
             });
             if (result.get()) {
-                friendStatusChange(usr, followers, UserStatus.OFFLINE.toString());
+                presence.friendStatusChange(usr, followers, UserStatus.OFFLINE.toString());
             }
         }
     }
@@ -4,14 +4,29 @@ import org.json.simple.parser.ParseException;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.HashSet;
-import java.util.List;
 
 class RequestTask extends Task implements Runnable {
     /* Thread che gestisce le richieste di un client. */
 
+    /* Eventi di log delle richieste, uno per operazione con il suo esito. */
+    private static final LogEvent CONNECTED = new LogEvent(LogLevel.DEBUG, "request.connected", false, "remote");
+    private static final LogEvent CLOSED = new LogEvent(LogLevel.DEBUG, "request.closed", false, "usr", "reason");
+    private static final LogEvent MALFORMED = new LogEvent(LogLevel.WARN, "request.malformed", false, "usr");
+    private static final LogEvent UNKNOWN = new LogEvent(LogLevel.WARN, "request.unknown", false, "usr", "type");
+    private static final LogEvent REGISTER = new LogEvent(LogLevel.INFO, "request.register", false, "usr", "lang", "result");
+    private static final LogEvent LOGIN = new LogEvent(LogLevel.INFO, "request.login", false, "usr", "result");
+    private static final LogEvent ADD_FRIEND = new LogEvent(LogLevel.INFO, "request.addfriend", false, "usr", "friend", "result");
+    private static final LogEvent SEARCH = new LogEvent(LogLevel.INFO, "request.search", false, "usr", "query", "exists", "matches");
+    private static final LogEvent FRIEND_LIST = new LogEvent(LogLevel.INFO, "request.friendlist", false, "usr", "since", "friends");
+    private static final LogEvent CREATE_GROUP = new LogEvent(LogLevel.INFO, "request.creategroup", false, "usr", "group", "result");
+    private static final LogEvent JOIN_GROUP = new LogEvent(LogLevel.INFO, "request.joingroup", false, "usr", "group", "result");
+    private static final LogEvent GROUP_LIST = new LogEvent(LogLevel.INFO, "request.grouplist", false, "usr", "prefix", "groups");
+    private static final LogEvent CLOSE_GROUP = new LogEvent(LogLevel.INFO, "request.closegroup", false, "usr", "group", "result");
+
     private final RequestService requestOp;
 
     /**
@@ -25,82 +40,111 @@ class RequestTask extends Task implements Runnable {
         this.requestOp = requestOp;
     }
 
+    /**
+     * Inizializza un task, in modalità reactor, che si occuperà
+     * di rispondere alle richieste di un client.
+     *
+     * @param out lato in scrittura della connessione.
+     * @param remote indirizzo del client.
+     * @param requestOp oggetto contenente le implementazioni delle operazioni di richiesta.
+     */
+    public RequestTask(OutputStream out, SocketAddress remote, RequestService requestOp){
+        super(out,remote);
+        this.requestOp = requestOp;
+    }
+
     /**
      * Riceve dalla socket una richiesta in formato JSON ed
      * esegue l'operazione richiesta.
      */
     public void run(){
-        String psw;
-        String groupName;
         try {
-            System.out.println("New request task activated");
+            CONNECTED.log(remote);
             Thread currentThread = Thread.currentThread();
+            Message request;
             /* Questo serve a farlo terminare quando ho poolTermination(). */
             while (!currentThread.isInterrupted()) {
                 try {
-                    obj = receive();
+                    request = receive();
                 }catch (ParseException e){
-                    System.err.println("PARSE EXCEPTION CHAT TASK");
+                    MALFORMED.log(currentUser);
                     /* Non termino ma riprovo a leggere. */
                     continue;
                 }
-                if(obj == null) break;
-                switch ((String) obj.get(TYPE)) {
-                    case REG:
-                        currentUser = (String) obj.get(USR);
-                        psw = (String) obj.get(PSW);
-                        String lang = (String) obj.get(LANG);
-                        register(currentUser,psw,lang);
-                        break;
-                    case LOG:
-                        currentUser = (String) obj.get(USR);
-                        psw = (String) obj.get(PSW);
-                        login(currentUser,psw);
-                        break;
-                    case ADDFRIEND:
-                        String tmpFriend = (String) obj.get(USR);
-                        newRelation(tmpFriend);
-                        break;
-                    case SEARCHUSR:
-                        String tmpUsr = (String) obj.get(USR);
-                        searchUser(tmpUsr);
-                        break;
-                    case FRNDLST:
-                        friendList();
-                        break;
-                    case GRPCREATE:
-                        groupName = (String) obj.get(GRPNAME);
-                        createGroup(currentUser,groupName);
-                        break;
-                    case GRPJOIN:
-                        groupName = (String) obj.get(GRPNAME);
-                        joinGroup(currentUser,groupName);
-                        break;
-                    case GRPLST:
-                        groupList();
-                        break;
-                    case GRPCLOSE:
-                        groupName = (String) obj.get(GRPNAME);
-                        closeGroup(currentUser,groupName);
-                        break;
-                    default:
-                        System.out.println("REQUEST TASK DEFAULT: " + currentUser);
-                        break;
-                }
+                if(request == null) break;
+                process(request);
             }
         } catch(EOFException e){
-            System.err.println("EOF EXCEPTION REQUEST TASK");
-            if(client.isClosed()) System.err.println("CLOSED REQUEST TASK");
+            CLOSED.log(currentUser,"EOF");
         } catch (SocketException e){
-            System.err.println("SOCKET EXCEPTION REQUEST TASK");
+            CLOSED.log(currentUser,"SOCKET");
         } catch (IOException e) {
-            System.err.println("IO EXCEPTION REQUEST TASK");
+            CLOSED.log(currentUser,"IO");
         } finally{
-            close();
-            requestOp.putUsrOffline(currentUser);
+            terminate();
+        }
+    }
+
+    /**
+     * Esegue l'operazione contenuta nella richiesta.
+     *
+     * @param request richiesta del client.
+     */
+    void process(Message request){
+        String psw;
+        String groupName;
+        switch (request.type) {
+            case REG:
+                currentUser = request.usr;
+                psw = request.psw;
+                String lang = request.lang;
+                register(currentUser,psw,lang);
+                break;
+            case LOG:
+                currentUser = request.usr;
+                psw = request.psw;
+                login(currentUser,psw);
+                break;
+            case ADDFRIEND:
+                String tmpFriend = request.usr;
+                newRelation(tmpFriend);
+                break;
+            case SEARCHUSR:
+                String tmpUsr = request.usr;
+                searchUser(tmpUsr,request.cursor,request.limit);
+                break;
+            case FRNDLST:
+                friendList(request.revision);
+                break;
+            case GRPCREATE:
+                groupName = request.grpName;
+                createGroup(currentUser,groupName);
+                break;
+            case GRPJOIN:
+                groupName = request.grpName;
+                joinGroup(currentUser,groupName);
+                break;
+            case GRPLST:
+                groupList(request.grpName,request.cursor,request.limit);
+                break;
+            case GRPCLOSE:
+                groupName = request.grpName;
+                closeGroup(currentUser,groupName);
+                break;
+            default:
+                UNKNOWN.log(currentUser,request.type);
+                break;
         }
     }
 
+    /**
+     * Chiude la connessione e mette l'utente offline.
+     */
+    void terminate(){
+        close();
+        requestOp.putUsrOffline(currentUser);
+    }
+
     /**
      * Registra l'utente e manda la risposta al client.
      *
@@ -110,15 +154,21 @@ class RequestTask extends Task implements Runnable {
      */
     private void register(String currentUser, String psw, String lang) {
         obj = new JSONObject();
-        boolean result =requestOp.register(new UserOperation(currentUser, psw, lang));
-        if (result) {
-            System.out.printf("[REGISTER] from: %s psw: %s lang: %s RESULT: ACK\n",currentUser,psw,lang);
-            obj.put(TYPE,ACK);
-            obj.put(MSG,NEWUSR);
-        } else {
-            System.out.printf("[REGISTER] from: %s psw: %s lang: %s RESULT: ALREADY EXIST\n",currentUser,psw,lang);
-            obj.put(TYPE,NACK);
-            obj.put(MSG,ALRDYEXIST);
+        SSCode result =requestOp.register(currentUser, psw, lang);
+        REGISTER.log(currentUser,lang,result);
+        switch (result) {
+            case OK:
+                obj.put(TYPE,ACK);
+                obj.put(MSG,NEWUSR);
+                break;
+            case ALRDY_EXISTS:
+                obj.put(TYPE,NACK);
+                obj.put(MSG,ALRDYEXIST);
+                break;
+            case STORE_FAIL:
+                obj.put(TYPE,NACK);
+                obj.put(MSG,storeFailed());
+                break;
         }
         send(obj);
     }
@@ -131,9 +181,10 @@ class RequestTask extends Task implements Runnable {
      */
     private void login(String currentUser, String psw){
         obj = new JSONObject();
-        switch(requestOp.login(currentUser,psw)) {
+        SSCode result = requestOp.login(currentUser,psw);
+        LOGIN.log(currentUser,result);
+        switch(result) {
             case OK:
-                System.out.printf("[LOGIN] from: %s psw: %s RESULT: ACK\n",currentUser,psw);
                 /* Se l'operazione va a buon fine, ricavo la lista dei gruppi e IP. */
                 JSONArray groupName = new JSONArray();
                 JSONArray groupIp = new JSONArray();
@@ -151,17 +202,14 @@ class RequestTask extends Task implements Runnable {
                 obj.put(IP,groupIp);
                 break;
             case WRGUSR:
-                System.out.printf("[LOGIN] from: %s psw: %s RESULT: WRONG USERNAME\n",currentUser,psw);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,WRGUSRNAME);
                 break;
             case WRGPSW:
-                System.out.printf("[LOGIN] from: %s psw: %s RESULT: WRONG PASSWORD\n",currentUser,psw);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,WRGPASSWORD);
                 break;
             case ALREADY_ONLINE:
-                System.out.printf("[LOGIN] from: %s psw: %s RESULT: ALREADY ONLINE\n",currentUser,psw);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,ALRDYON);
                 break;
@@ -181,67 +229,85 @@ class RequestTask extends Task implements Runnable {
     private void newRelation(String destUsr){
         obj = new JSONObject();
         SSCode result = requestOp.addRelation(currentUser,destUsr);
+        ADD_FRIEND.log(currentUser,destUsr,result);
         String msg;
         switch (result) {
             case OK:
-                System.out.printf("[ADD FRIEND] from: %s to: %s RESULT: ACK\n",currentUser,destUsr);
                 msg = newRelationMsg(destUsr);
                 obj.put(TYPE,ACK);
                 obj.put(MSG,msg);
                 break;
             case WRGUSR:
-                System.out.printf("[ADD FRIEND] from: %s to: %s RESULT: NOT EXISTS\n",currentUser,destUsr);
                 msg = usrNotExist(destUsr);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,msg);
                 break;
             case ALREADY_FRIENDS:
-                System.out.printf("[ADD FRIEND] from: %s to: %s RESULT: ALREADY FRIENDS\n",currentUser,destUsr);
                 msg = usrAlrdyFriend(destUsr);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,msg);
                 break;
+            case STORE_FAIL:
+                obj.put(TYPE,NACK);
+                obj.put(MSG,storeFailed());
+                break;
         }
         send(obj);
     }
 
     /**
-     * Ricerca il nome dell'utente se esiste
-     * altrimenti manda una risposta di errore.
+     * Ricerca gli utenti il cui nome inizia con tmpUsr e manda
+     * una pagina di risultati; se è l'unica pagina aggiunge
+     * gli utenti con un nome simile.
      *
-     * @param tmpUsr nome dell'utente da ricercare.
+     * @param tmpUsr nome (o prefisso) dell'utente da ricercare.
+     * @param cursor ultimo utente della pagina precedente, null per la prima.
+     * @param limit utenti richiesti nella pagina, null per il massimo del server.
      */
-    private void searchUser(String tmpUsr) {
+    private void searchUser(String tmpUsr, String cursor, Long limit) {
         obj = new JSONObject();
-        if(requestOp.searchUsr(tmpUsr)){
-            System.out.printf("[SEARCH USER] from: %s to: %s RESULT: ACK\n",currentUser,tmpUsr);
-            obj.put(TYPE,ACK);
+        Page page = requestOp.searchPrefix(tmpUsr,cursor,limit);
+        JSONArray matches = new JSONArray();
+        matches.addAll(page.names);
+        obj.put(TYPE,SEARCHACK);
+        obj.put(LIST,matches);
+        if(page.cursor != null) obj.put(CURSOR,page.cursor);
+        if(cursor == null && page.cursor == null){
+            JSONArray similar = new JSONArray();
+            similar.addAll(requestOp.searchSimilar(tmpUsr,limit));
+            if(!similar.isEmpty()) obj.put(SUGGEST,similar);
+        }
+        boolean exists = requestOp.searchUsr(tmpUsr);
+        SEARCH.log(currentUser,tmpUsr,exists ? Boolean.TRUE : Boolean.FALSE,matches.size());
+        if(exists){
             obj.put(MSG,usrExist(tmpUsr));
         }else{
-            System.out.printf("[SEARCH FRIEND] from: %s to: %s RESULT: NOT EXISTS\n",currentUser,tmpUsr);
-            obj.put(TYPE, NACK);
             obj.put(MSG,usrNotExist(tmpUsr));
         }
         send(obj);
     }
 
     /**
-     * Manda come risposta la lista degli amici dell'utente
-     * corrente.
+     * Manda come risposta gli amici dell'utente corrente
+     * aggiunti dopo la revisione che il client ha già ricevuto.
      *
+     * @param since revisione ricevuta dal client, null per ripartire da 0.
      * @implNote Ogni instanza (thread) ha associato il nome
      *           dell'utente a cui da servizio. Quindi invia
      *           la lista degli amici dell'utente corrente.
      */
-    private void friendList() {
-        System.out.printf("[FRIEND LIST] from: %s RESULT: ACK\n",currentUser);
+    private void friendList(Long since) {
+        RequestService.FriendsPage page = requestOp.getFriendsPage(currentUser,since);
+        /* Il boxing di since è fatto solo se il livello è abilitato. */
+        if(FRIEND_LIST.enabled()) FRIEND_LIST.log(currentUser,Long.valueOf(page.since),page.friends.size());
         obj = new JSONObject();
-        List<String> tmpFriends = requestOp.getFriendsList(currentUser);
         obj.put(TYPE,FRNDACK);
         obj.put(MSG,LSTFRIEND);
         JSONArray arr = new JSONArray();
-        arr.addAll(tmpFriends);
+        arr.addAll(page.friends);
         obj.put(LIST,arr);
+        obj.put(REVISION,page.since + page.friends.size());
+        obj.put(LATEST,page.latest);
         send(obj);
     }
 
@@ -256,9 +322,9 @@ class RequestTask extends Task implements Runnable {
     private void createGroup(String currentUser,String groupName) {
         obj = new JSONObject();
         SSCode result = requestOp.createGroup(currentUser,groupName);
+        CREATE_GROUP.log(currentUser,groupName,result);
         switch (result) {
             case OK:
-                System.out.printf("[CREATE GROUP] from: %s group: %s RESULT: ACK\n",currentUser,groupName);
                 Long port = new Long(requestOp.MULTICAST_PORT);
                 String ip = requestOp.getGroupIp(groupName);
                 obj.put(TYPE, GRPACK);
@@ -268,15 +334,17 @@ class RequestTask extends Task implements Runnable {
                 obj.put(PORT, port);
                 break;
             case ALRDY_EXISTS:
-                System.out.printf("[CREATE GROUP] from: %s group: %s RESULT: ALREADY EXISTs\n",currentUser,groupName);
                 obj.put(TYPE, NACK);
                 obj.put(MSG, grpAlrdyExists(groupName));
                 break;
             case GRP_FAIL:
-                System.out.printf("[CREATE GROUP] from: %s group: %s RESULT: CREATION FAILED\n",currentUser,groupName);
                 obj.put(TYPE, NACK);
                 obj.put(MSG, grpCreationFailed(groupName));
                 break;
+            case STORE_FAIL:
+                obj.put(TYPE, NACK);
+                obj.put(MSG, storeFailed());
+                break;
         }
         send(obj);
     }
@@ -292,9 +360,9 @@ class RequestTask extends Task implements Runnable {
     private void joinGroup(String currentUser, String groupName){
         obj = new JSONObject();
         SSCode result = requestOp.joinGroup(currentUser,groupName);
+        JOIN_GROUP.log(currentUser,groupName,result);
         switch (result){
             case OK:
-                System.out.printf("[JOIN GROUP] from: %s group: %s RESULT: ACK\n",currentUser,groupName);
                 Long port = new Long(requestOp.MULTICAST_PORT);
                 String ip = requestOp.getGroupIp(groupName);
                 obj.put(TYPE,GRPACK);
@@ -304,41 +372,47 @@ class RequestTask extends Task implements Runnable {
                 obj.put(PORT,port);
                 break;
             case GRP_NOT_EXIST:
-                System.out.printf("[JOIN GROUP] from: %s group: %s RESULT: NOT EXISTS\n",currentUser,groupName);
                 obj.put(TYPE, NACK);
                 obj.put(MSG,grpNotExist(groupName));
                 break;
             case USR_ALRDY_GRP:
-                System.out.printf("[JOIN GROUP] from: %s group: %s RESULT: ALREADY IN GROUP\n",currentUser,groupName);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,usrAlrdyInGrp(groupName));
                 break;
+            case STORE_FAIL:
+                obj.put(TYPE,NACK);
+                obj.put(MSG,storeFailed());
+                break;
         }
         send(obj);
     }
 
     /**
-     * Invia all'utente corrente la lista di tutti
-     * i gruppi presenti al momento marcando quelli
-     * a cui appartiene.
+     * Invia all'utente corrente una pagina dei gruppi il cui
+     * nome inizia con il prefisso; nella prima pagina ci sono
+     * anche i gruppi a cui appartiene, marcati a parte.
+     *
+     * @param prefix prefisso dei gruppi, null per tutti.
+     * @param cursor ultimo gruppo della pagina precedente, null per la prima.
+     * @param limit gruppi richiesti nella pagina, null per il massimo del server.
      */
-    private void groupList(){
-        System.out.printf("[GROUP LIST] from: %s RESULT: ACK\n",currentUser);
+    private void groupList(String prefix, String cursor, Long limit){
         obj = new JSONObject();
-        List<String> tmpUsrGroups = requestOp.getUsrGroupList(currentUser);
-        HashSet<String> tmpGroups = requestOp.getGrpList();
-        /* Rimuovo l'intersezione tra le due liste. */
-        for (String usrGroup : tmpUsrGroups){
-            tmpGroups.remove(usrGroup);
-        }
+        Page page = requestOp.getGrpPage(currentUser,prefix,cursor,limit);
+        GROUP_LIST.log(currentUser,prefix,page.names.size());
         obj.put(TYPE,GRPLST);
         obj.put(MSG,LSTGRP);
         JSONArray usrGroups = new JSONArray();
         JSONArray groups = new JSONArray();
-        usrGroups.addAll(tmpUsrGroups);
-        groups.addAll(tmpGroups);
+        if(cursor == null){
+            for(String usrGroup : requestOp.getUsrGroupList(currentUser)){
+                if(prefix == null || usrGroup.startsWith(prefix)) usrGroups.add(usrGroup);
+            }
+        }
+        groups.addAll(page.names);
         obj.put(LISTUSRGRP,usrGroups);
         obj.put(LIST,groups);
+        if(page.cursor != null) obj.put(CURSOR,page.cursor);
         send(obj);
     }
 
@@ -351,22 +425,24 @@ class RequestTask extends Task implements Runnable {
      */
     private void closeGroup(String currentUser, String groupName) {
         SSCode result = requestOp.closeGroup(currentUser,groupName);
+        CLOSE_GROUP.log(currentUser,groupName,result);
         obj = new JSONObject();
         switch (result){
             case OK:
-                System.out.printf("[CLOSE GROUP] from: %s group: %s RESULT: ACK\n",currentUser,groupName);
                 /* La risposta è stata inviata tramite multicast. */
                 break;
             case GRP_USR_NOT_ADMIN:
-                System.out.printf("[CLOSE GROUP] from: %s group: %s RESULT: NOT ADMIN\n",currentUser,groupName);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,grpUsrNotAdmin(groupName));
                 break;
             case GRP_NOT_EXIST:
-                System.out.printf("[CLOSE GROUP] from: %s group: %s RESULT: NOT EXISTS\n",currentUser,groupName);
                 obj.put(TYPE,NACK);
                 obj.put(MSG,grpNotExist(groupName));
                 break;
+            case STORE_FAIL:
+                obj.put(TYPE,NACK);
+                obj.put(MSG,storeFailed());
+                break;
         }
         if(!result.equals(SSCode.OK)) send(obj);
     }
@@ -14,5 +14,10 @@ public enum SSCode {
     GRP_NO_ON_USR,
     GRP_SEND_FAIL,
     USR_ALRDY_GRP,
-    GRP_USR_NOT_ADMIN
+    GRP_USR_NOT_ADMIN,
+    QUEUE_FULL,
+    QUEUED,
+    OFFLINE_FULL,
+    /* La modifica non è stata resa persistente. */
+    STORE_FAIL
 }
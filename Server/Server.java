@@ -1,3 +1,4 @@
+import java.io.File;
 import java.io.IOException;
 import java.net.MulticastSocket;
 import java.net.SocketException;
@@ -6,20 +7,27 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 class Server {
-    private final ThreadPoolExecutor executor;
+    private final ExecutorService executor;
     private Registry registry;
-    private RequestServer rs;
-    private ChatServer cs;
+    private SocketServer rs;
+    private SocketServer cs;
+    private EventLoopGroup loops;
+    private Translator translator;
+    private PresenceDispatcher presence;
+    private OfflineStore offline;
     private GroupServer gs;
+    private RelayServer relayServer;
     private final AtomicInteger errorCount;
     private MulticastSocket mcs=null;
     private final ConcurrentHashMap<String,Group> groups;
+    private final UserStore store;
 
     /**
      * Inizializza i vari servizi forniti dal server.
@@ -29,16 +37,25 @@ class Server {
      * @param chatPort porta per il servizio (TCP) di messaggistica amici/file.
      * @param groupPort porta per il servizio (UDP) di messaggistica sui gruppi.
      * @param mcGroupPort porta per il servizio (MULTICAST) di invio messaggi sui gruppi.
+     * @param config opzioni di avvio del server.
      */
-    public Server(int requestPort,int registryPort,int chatPort,int groupPort,int mcGroupPort){
+    public Server(int requestPort,int registryPort,int chatPort,int groupPort,int mcGroupPort,
+                  ServerConfig config){
         this.errorCount = new AtomicInteger(0);
-        executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-        executor.allowCoreThreadTimeOut(true);
-        executor.setKeepAliveTime(1,TimeUnit.MINUTES);
+        try {
+            Log.start(config.logLevel, config.logSample, config.logBuffer,
+                    config.logDir == null ? null : new File(config.logDir), config.logFileBytes, config.logFiles);
+        } catch (IOException e) {
+            System.err.println("IMPOSSIBLE TO OPEN SERVER LOG");
+            System.exit(1);
+        }
+        executor = config.virtualThreads ? newVirtualThreadPool() : newPlatformThreadPool();
         ConcurrentHashMap<String, UserOperation> users = new ConcurrentHashMap<>();
+        UserIds ids = new UserIds();
         groups = new ConcurrentHashMap<>();
         try {
-            mcs = new MulticastSocket(mcGroupPort);
+            mcs = config.groupLoss > 0 ? new LossyMulticastSocket(mcGroupPort, config.groupLoss)
+                                       : new MulticastSocket(mcGroupPort);
             mcs.setReuseAddress(true);
         } catch(SocketException e){
             System.err.println("SOCKET EXCEPTION IMPOSSIBLE TO CREATE SOCIAL GRAPH");
@@ -48,17 +65,62 @@ class Server {
             System.exit(1);
         }
         System.out.println("MULTICAST SERVER UP");
-        RequestService requestOp = new RequestService(users,groups,mcs,mcGroupPort);
+        MulticastAllocator addresses = new MulticastAllocator(config.multicastRange);
+        store = new UserStore(config.dataDir == null ? null : new File(config.dataDir), config.snapshotEvery);
         try {
-            rs = new RequestServer(requestPort, errorCount, executor, requestOp);
+            store.recover(users, groups, addresses, ids);
+            for(Group g : groups.values()){
+                mcs.joinGroup(g.getInetAddr());
+            }
+        } catch (IOException e) {
+            closeMulticastSocket();
+            System.err.println("IMPOSSIBLE TO RECOVER USER REGISTRY");
+            System.exit(1);
+        }
+        if(config.reactor){
+            try {
+                loops = new EventLoopGroup(config.eventLoops);
+            } catch (IOException e) {
+                closeMulticastSocket();
+                System.err.println("IMPOSSIBLE TO START EVENT LOOPS");
+                System.exit(1);
+            }
+        }
+        presence = new PresenceDispatcher(users, config.presenceThreads);
+        /* Gli utenti ripristinati entrano nell'indice prima che arrivino nuove registrazioni. */
+        UserIndex index = new UserIndex(ids);
+        for(String usr : users.keySet()) index.add(usr);
+        GroupDirectory directory = new GroupDirectory();
+        for(String group : groups.keySet()) directory.add(group);
+        RequestService requestOp = new RequestService(users,groups,mcs,mcGroupPort,store,addresses,presence,ids,
+                index,config.searchLimit,config.friendsPage,directory,config.groupsPage);
+        try {
+            if(loops != null) {
+                rs = new ReactorServer("REQUEST", requestPort, errorCount, executor, loops,
+                        conn -> new RequestTask(new ChannelOutputStream(conn), conn.getRemoteAddress(), requestOp));
+            }else {
+                rs = new RequestServer(requestPort, errorCount, executor, requestOp);
+            }
         }catch (IOException e){
             closeMulticastSocket();
             System.err.println("IMPOSSIBLE TO START REQUEST SERVER");
             System.exit(1);
         }
-        ChatService chatOp = new ChatService(users);
+        translator = new Translator(config.translatorEndpoint, config.translatorThreads,
+                config.translationTimeout, config.translatorConnectTimeout, config.translatorReadTimeout,
+                config.translationCacheSize, config.translationTtl,
+                new CircuitBreaker(config.breakerThreshold, config.breakerCooldown));
+        offline = new OfflineStore(config.dataDir == null ? null : new File(config.dataDir, "offline"),
+                config.offlineLimit, config.offlineBytes, config.offlineRetention, executor);
+        Relay relay = new Relay(config.relayPort, config.relayConnections, config.relayBuffer, config.relayRate);
+        ChatService chatOp = new ChatService(users,executor,config.outboxCapacity,config.overflowPolicy,translator,offline,relay,presence);
         try{
-            cs = new ChatServer(chatPort,errorCount,executor,chatOp);
+            if(loops != null) {
+                cs = new ReactorServer("CHAT", chatPort, errorCount, executor, loops,
+                        conn -> new ChatTask(new ChannelOutputStream(conn), conn.getRemoteAddress(), chatOp));
+            }else {
+                cs = new ChatServer(chatPort, errorCount, executor, chatOp);
+            }
         }catch (IOException e){
             System.err.println("IMPOSSIBLE TO START CHAT SERVER");
             System.exit(1);
@@ -76,7 +138,15 @@ class Server {
             cs.close();
             closeMulticastSocket();
         }
-        RemChatService remChatOp = new RemChatService(users);
+        if(relay.isEnabled()){
+            try{
+                relayServer = new RelayServer(errorCount,executor,relay);
+            }catch (IOException e){
+                System.err.println("IMPOSSIBLE TO START RELAY SERVER");
+                System.exit(1);
+            }
+        }
+        RemChatService remChatOp = new RemChatService(users,offline,presence);
         try {
             RemChat stubRC = new RemChatTask(remChatOp);
             LocateRegistry.createRegistry(registryPort);
@@ -103,9 +173,12 @@ class Server {
         Thread rsThread = new Thread(rs);
         Thread csThread = new Thread(cs);
         Thread gsThread = new Thread(gs);
+        /* Il relay è opzionale (-relay). */
+        Thread relayThread = relayServer != null ? new Thread(relayServer) : null;
         rsThread.start();
         csThread.start();
         gsThread.start();
+        if(relayThread != null) relayThread.start();
         while(errorCount.get() < MAX_ERROR_COUNT) {
             try {
                 if(!rsThread.isAlive() || !csThread.isAlive() || !gsThread.isAlive()) {
@@ -122,6 +195,14 @@ class Server {
         csThread.interrupt();
         rsThread.interrupt();
         gsThread.interrupt();
+        if(relayThread != null) relayThread.interrupt();
+        if(loops != null) loops.close();
+        translator.close();
+        translator.printStats();
+        presence.close();
+        presence.printStats();
+        offline.close();
+        store.close();
         closeMulticastSocket();
         try {
             registry.unbind(RemChat.SERVICE_NAME);
@@ -130,9 +211,45 @@ class Server {
         } catch (NotBoundException e) {
             System.err.println("RMI REGISTRY NOT BOUNDED");
         }
+        Log.close();
+        Log.printStats();
         System.out.println("SERVER TERMINATO");
     }
 
+    /**
+     * Crea il thread pool (cached) di thread di piattaforma.
+     *
+     * @return thread pool.
+     */
+    private static ExecutorService newPlatformThreadPool(){
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        pool.allowCoreThreadTimeOut(true);
+        pool.setKeepAliveTime(1,TimeUnit.MINUTES);
+        return pool;
+    }
+
+    /**
+     * Crea un executor che esegue ogni task su un nuovo virtual thread.
+     * Le read/write bloccanti dei task sospendono solo il virtual thread
+     * senza occupare un thread di piattaforma.
+     *
+     * @return executor di virtual thread, oppure il pool di thread
+     *         di piattaforma se la JVM non supporta i virtual thread.
+     * @implNote il metodo è cercato tramite reflection così il server
+     *           compila e gira anche su JVM senza virtual thread.
+     */
+    private static ExecutorService newVirtualThreadPool(){
+        try {
+            ExecutorService pool = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("VIRTUAL THREAD POOL UP");
+            return pool;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            System.err.println("VIRTUAL THREADS NOT SUPPORTED, USING PLATFORM THREADS");
+            return newPlatformThreadPool();
+        }
+    }
+
     /**
      * Termina il pool di thread (gracefully).
      */
@@ -0,0 +1,242 @@
+import java.util.List;
+
+class ServerConfig {
+    /* Opzioni di avvio del server, nella forma -nome oppure -nome=valore. */
+    static final String USAGE = "[-reactor[=eventLoops]] [-virtual] [-outbox=size] [-overflow=drop|disconnect|reject]" +
+            " [-translator=url] [-translatorThreads=n] [-translationTimeout=ms] [-translationCache=size] [-translationTtl=ms]" +
+            " [-translatorConnectTimeout=ms] [-translatorReadTimeout=ms] [-breakerThreshold=n] [-breakerCooldown=ms]" +
+            " [-data=dir] [-snapshotEvery=n] [-offlineLimit=n] [-offlineBytes=n] [-offlineRetention=ms]" +
+            " [-multicastRange=first-last] [-groupLoss=percent]" +
+            " [-relay[=port]] [-relayConnections=n] [-relayBuffer=bytes] [-relayRate=bytes/s]" +
+            " [-presenceThreads=n] [-callbackTimeout=ms] [-searchLimit=n] [-friendsPage=n] [-groupsPage=n]" +
+            " [-log=dir] [-logLevel=error|warn|info|debug|trace] [-logSample=n] [-logBuffer=n]" +
+            " [-logFileBytes=n] [-logFiles=n]";
+
+    /* Se true le socket TCP sono servite da un numero fisso di event loop (NIO). */
+    boolean reactor = false;
+    int eventLoops = Runtime.getRuntime().availableProcessors();
+    /* Se true i task sono eseguiti su virtual thread invece che sul pool cached. */
+    boolean virtualThreads = false;
+    /* Dimensione e politica della coda in uscita di ogni utente. */
+    int outboxCapacity = 256;
+    OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    /* Servizio di traduzione: richieste contemporanee, timeout (ms) e cache. */
+    String translatorEndpoint = Translator.STD_ENDPOINT;
+    int translatorThreads = 8;
+    long translationTimeout = 2000;
+    int translationCacheSize = 4096;
+    long translationTtl = 3600000;
+    int translatorConnectTimeout = 1000;
+    int translatorReadTimeout = 3000;
+    /* Fallimenti consecutivi dopo cui si salta la traduzione e attesa (ms) prima di riprovare. */
+    int breakerThreshold = 5;
+    long breakerCooldown = 30000;
+    /* Cartella in cui rendere persistenti utenti e gruppi (null: solo in memoria) e modifiche fra due istantanee. */
+    String dataDir = null;
+    int snapshotEvery = 100000;
+    /* Messaggi, byte e tempo (ms) massimi conservati per un amico offline (solo con -data). */
+    int offlineLimit = 1000;
+    long offlineBytes = 1 << 20;
+    long offlineRetention = 604800000;
+    /* Intervallo di indirizzi multicast assegnati ai gruppi, ad esempio 239.1.0.0-239.1.255.255. */
+    String multicastRange = MulticastAllocator.STD_RANGE;
+    /* Percentuale di datagram multicast scartati in uscita, solo per i test. */
+    int groupLoss = 0;
+    /* Relay dei trasferimenti di file (porta 0: disattivato), connessioni e buffer per connessione. */
+    static final int STD_RELAY_PORT = 10005;
+    int relayPort = 0;
+    int relayConnections = 64;
+    int relayBuffer = 1 << 16;
+    /* Byte al secondo inoltrati in totale dal relay (0: nessun limite). */
+    int relayRate = 0;
+    /* Callback RMI di cambio status eseguite contemporaneamente e loro timeout (ms). */
+    int presenceThreads = 16;
+    int callbackTimeout = 5000;
+    /* Username massimi in una pagina di risultati di SEARCHUSR. */
+    int searchLimit = 20;
+    /* Amici massimi in una risposta a FRNDLST, le altre revisioni arrivano nelle pagine successive. */
+    int friendsPage = 1000;
+    /* Gruppi massimi in una risposta a GRPLST. */
+    int groupsPage = 100;
+    /* Cartella dei file di log (null: standard output), livello minimo e 1 evento per messaggio scritto ogni logSample. */
+    String logDir = null;
+    LogLevel logLevel = LogLevel.INFO;
+    int logSample = 1;
+    /* Eventi accodati al massimo per il writer dei log, dimensione (byte) e numero dei file ruotati. */
+    int logBuffer = 1 << 16;
+    int logFileBytes = 64 << 20;
+    int logFiles = 5;
+
+    /**
+     * Costruisce la configurazione a partire dalle opzioni
+     * passate da linea di comando.
+     *
+     * @param options opzioni da linea di comando.
+     * @return configurazione del server.
+     * @throws IllegalArgumentException se un'opzione non esiste
+     *                                  o ha un valore non valido.
+     */
+    static ServerConfig parse(List<String> options){
+        ServerConfig config = new ServerConfig();
+        for(String option : options){
+            int eq = option.indexOf('=');
+            String name = eq < 0 ? option.substring(1) : option.substring(1,eq);
+            String value = eq < 0 ? null : option.substring(eq+1);
+            switch (name){
+                case "reactor":
+                    config.reactor = true;
+                    if(value != null) config.eventLoops = positive(value);
+                    break;
+                case "virtual":
+                    config.virtualThreads = true;
+                    break;
+                case "outbox":
+                    config.outboxCapacity = positive(value);
+                    break;
+                case "overflow":
+                    config.overflowPolicy = overflowPolicy(value);
+                    break;
+                case "translator":
+                    if(value == null) throw new IllegalArgumentException(option);
+                    config.translatorEndpoint = value;
+                    break;
+                case "translatorThreads":
+                    config.translatorThreads = positive(value);
+                    break;
+                case "translationTimeout":
+                    config.translationTimeout = positive(value);
+                    break;
+                case "translationCache":
+                    config.translationCacheSize = positive(value);
+                    break;
+                case "translationTtl":
+                    config.translationTtl = positive(value);
+                    break;
+                case "translatorConnectTimeout":
+                    config.translatorConnectTimeout = positive(value);
+                    break;
+                case "translatorReadTimeout":
+                    config.translatorReadTimeout = positive(value);
+                    break;
+                case "breakerThreshold":
+                    config.breakerThreshold = positive(value);
+                    break;
+                case "breakerCooldown":
+                    config.breakerCooldown = positive(value);
+                    break;
+                case "data":
+                    if(value == null) throw new IllegalArgumentException(option);
+                    config.dataDir = value;
+                    break;
+                case "snapshotEvery":
+                    config.snapshotEvery = positive(value);
+                    break;
+                case "offlineLimit":
+                    config.offlineLimit = positive(value);
+                    break;
+                case "offlineBytes":
+                    config.offlineBytes = positive(value);
+                    break;
+                case "offlineRetention":
+                    config.offlineRetention = positive(value);
+                    break;
+                case "multicastRange":
+                    if(value == null) throw new IllegalArgumentException(option);
+                    /* Valida l'intervallo prima di avviare il server. */
+                    new MulticastAllocator(value);
+                    config.multicastRange = value;
+                    break;
+                case "groupLoss":
+                    /* 0 è ammesso: nessuna perdita. */
+                    config.groupLoss = Integer.parseInt(value);
+                    if(config.groupLoss < 0 || config.groupLoss > 100) throw new IllegalArgumentException(option);
+                    break;
+                case "relay":
+                    config.relayPort = value == null ? STD_RELAY_PORT : positive(value);
+                    if(config.relayPort > 65535) throw new IllegalArgumentException(option);
+                    break;
+                case "relayConnections":
+                    config.relayConnections = positive(value);
+                    break;
+                case "relayBuffer":
+                    config.relayBuffer = positive(value);
+                    break;
+                case "relayRate":
+                    config.relayRate = positive(value);
+                    break;
+                case "presenceThreads":
+                    config.presenceThreads = positive(value);
+                    break;
+                case "callbackTimeout":
+                    config.callbackTimeout = positive(value);
+                    break;
+                case "searchLimit":
+                    config.searchLimit = positive(value);
+                    break;
+                case "friendsPage":
+                    config.friendsPage = positive(value);
+                    break;
+                case "groupsPage":
+                    config.groupsPage = positive(value);
+                    break;
+                case "log":
+                    if(value == null) throw new IllegalArgumentException(option);
+                    config.logDir = value;
+                    break;
+                case "logLevel":
+                    if(value == null) throw new IllegalArgumentException(option);
+                    config.logLevel = LogLevel.valueOf(value.toUpperCase());
+                    break;
+                case "logSample":
+                    config.logSample = positive(value);
+                    break;
+                case "logBuffer":
+                    config.logBuffer = positive(value);
+                    break;
+                case "logFileBytes":
+                    config.logFileBytes = positive(value);
+                    break;
+                case "logFiles":
+                    config.logFiles = positive(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException(option);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Converte il valore dell'opzione -overflow nella politica corrispondente.
+     *
+     * @param value valore dell'opzione.
+     * @return politica da applicare quando la coda in uscita è piena.
+     * @throws IllegalArgumentException se la politica non esiste.
+     */
+    static OverflowPolicy overflowPolicy(String value){
+        if(value == null) throw new IllegalArgumentException("overflow");
+        switch (value){
+            case "drop":
+                return OverflowPolicy.DROP_OLDEST;
+            case "disconnect":
+                return OverflowPolicy.DISCONNECT;
+            case "reject":
+                return OverflowPolicy.REJECT;
+            default:
+                throw new IllegalArgumentException(value);
+        }
+    }
+
+    /**
+     * Converte il valore di un'opzione in un intero positivo.
+     *
+     * @param value valore dell'opzione.
+     * @return intero positivo.
+     * @throws IllegalArgumentException se il valore non è un intero positivo.
+     */
+    static int positive(String value){
+        int result = Integer.parseInt(value);
+        if(result <= 0) throw new IllegalArgumentException(value);
+        return result;
+    }
+}
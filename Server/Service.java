@@ -1,5 +1,6 @@
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 class Service {
     final ConcurrentHashMap<String, UserOperation> users;
@@ -29,19 +30,22 @@ class Service {
     }
 
     /**
-     * Notifica tutti i follower (chi lo ha tra gli amici)
-     * che l'utente ha cambiato status.
+     * Legge lo stato dell'utente sotto il lock della tabella
+     * e ritorna il risultato della lettura.
      *
-     * @param usr utente che ha cambiato status.
-     * @param followers lista dei follower dell'utente.
-     * @param newStatus nuovo status.
+     * @param usr nome dell'utente.
+     * @param reader funzione che legge lo stato dell'utente.
+     * @param <T> tipo del risultato.
+     * @return risultato della lettura, null se l'utente non esiste.
+     * @implNote reader non deve fare I/O: va fatto sul risultato
+     *           dopo aver rilasciato il lock.
      */
-    void friendStatusChange(String usr, List<String> followers, String newStatus){
-        for(String follower : followers){
-            users.computeIfPresent(follower,(k,v)->{
-                v.notifyFriendStatusChange(usr,newStatus);
-                return v;
-            });
-        }
+    <T> T read(String usr, Function<UserOperation,T> reader){
+        AtomicReference<T> result = new AtomicReference<>();
+        users.computeIfPresent(usr,(k,v)->{
+            result.set(reader.apply(v));
+            return v;
+        });
+        return result.get();
     }
 }
@@ -0,0 +1,8 @@
+interface SocketServer extends Runnable {
+    /* Server in ascolto su una porta del server (TCP o UDP). */
+
+    /**
+     * Chiude la socket su cui il server è in ascolto.
+     */
+    void close();
+}
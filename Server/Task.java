@@ -1,16 +1,23 @@
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketAddress;
 
-class Task implements ReplyCodeServer  {
+abstract class Task implements ReplyCodeServer  {
+    /* Il JSON è composto dal writer del log, solo se TRACE è abilitato. */
+    private static final LogEvent SEND = new LogEvent(LogLevel.TRACE, "reply.send", false, "usr", "json");
     final Socket client;
-    protected BufferedWriter writer;
-    private BufferedReader reader;
+    final SocketAddress remote;
+    protected FrameWriter writer;
+    private FrameReader reader;
+    private InputStream in;
+    private OutputStream out;
     protected String currentUser;
     protected JSONObject obj;
+    /* Richiesta riusata per tutte le letture della connessione. */
+    private final Message request = new Message();
 
     /**
      * Inizializza i lati in lettura/scrittura della socket
@@ -21,45 +28,111 @@ class Task implements ReplyCodeServer  {
      */
     Task(Socket client){
         this.client = client;
+        this.remote = client.getRemoteSocketAddress();
         try {
-            writer = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
-            reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            /* Reader e writer sono creati alla prima lettura, dopo la negoziazione. */
+            out = client.getOutputStream();
+            in = new BufferedInputStream(client.getInputStream());
         } catch (IOException e) {
             System.err.println("UNABLE TO OPEN I/O WITH CLIENT");
             close();
         }
     }
 
+    /**
+     * Inizializza il solo lato in scrittura, usato in modalità reactor
+     * dove la lettura e la decodifica delle richieste sono fatte
+     * dall'event loop e le richieste arrivano tramite process().
+     *
+     * @param out lato in scrittura della connessione.
+     * @param remote indirizzo del client.
+     */
+    Task(OutputStream out, SocketAddress remote){
+        this.client = null;
+        this.remote = remote;
+        this.out = out;
+    }
+
+    /**
+     * Fissa la codifica della connessione e crea il writer.
+     * Se il client ha proposto la codifica binaria risponde MAGIC
+     * se la accetta, REJECT se le tabelle degli opcode non coincidono.
+     *
+     * @param binary true se la connessione usa la codifica binaria.
+     * @param proposed true se il client ha proposto la codifica binaria.
+     * @throws IOException se l'invio della risposta fallisce.
+     */
+    void negotiate(boolean binary, boolean proposed) throws IOException {
+        writer = new FrameWriter(out, binary);
+        if(proposed){
+            out.write(binary ? WireCodec.MAGIC : WireCodec.REJECT);
+            out.flush();
+        }
+    }
+
+    /**
+     * Esegue l'operazione richiesta dal client.
+     *
+     * @param request richiesta ricevuta dal client.
+     */
+    abstract void process(Message request);
+
+    /**
+     * Chiude la connessione e rilascia le risorse
+     * associate all'utente servito.
+     */
+    abstract void terminate();
+
     /**
      * Riceve dalla socket.
      *
-     * @return JSONObject contenente la richiesta del client,
-     *         null se la fine dello stream è stato raggiunta.
+     * @return richiesta del client, null se la fine dello stream
+     *         è stato raggiunta. Il messaggio è riusato dalla
+     *         lettura successiva.
      * @throws IOException se la lettura dalla socket fallisce.
      * @throws ParseException se il parsing della richiesta fallisce.
+     * @implNote alla prima lettura guarda il primo byte: se è MAGIC
+     *           (seguito da impronta e newline) il client propone la
+     *           codifica binaria, accettata se l'impronta coincide.
      */
-    JSONObject receive() throws IOException,ParseException{
-        String json = reader.readLine();
-        JSONParser parser = new JSONParser();
-        if(json == null){
-            return null;
+    Message receive() throws IOException,ParseException{
+        if(reader == null){
+            in.mark(1);
+            int first = in.read();
+            if(first < 0) return null;
+            boolean proposed = first == WireCodec.MAGIC;
+            boolean binary = false;
+            if(proposed){
+                /* Impronta big-endian e newline dell'handshake. */
+                int fingerprint = 0;
+                for(int i = 0; i < 4; i++){
+                    int b = in.read();
+                    if(b < 0) return null;
+                    fingerprint = (fingerprint << 8) | b;
+                }
+                if(in.read() < 0) return null;
+                binary = fingerprint == WireCodec.FINGERPRINT;
+            }else{
+                /* In JSON il byte fa parte della riga. */
+                in.reset();
+            }
+            negotiate(binary, proposed);
+            reader = new FrameReader(in, binary);
         }
-        return (JSONObject) parser.parse(json);
+        return reader.read(request) ? request : null;
     }
 
     /**
      * Invia sulla socket.
      *
      * @param obj risposta da inviare al client.
-     * @implNote il line separator va aggiunto in questo modo
-     *           altrimenti l'operazione non è atomica/sincronizzata
-     *           e potrebbe creare inconsistenze.
+     * @implNote send() sul writer è sincronizzata, quindi la risposta
+     *           non si mescola con i messaggi della Mailbox.
      */
     void send(JSONObject obj){
         try{
-            writer.write(obj.toJSONString() +System.getProperty("line.separator"));
-            writer.flush();
-            System.out.printf("Send to: %s JSON: %s\n",currentUser,obj.toJSONString());
+            writer.send(obj);
+            SEND.log(currentUser,obj);
         } catch (IOException e) {
             System.err.printf("FAILED TO SEND TO: %s\n",currentUser);
         }
@@ -76,6 +149,13 @@ class Task implements ReplyCodeServer  {
             } catch (IOException e1) {
                 System.err.printf("FAILED TO CLOSE SOCKET WITH: %s\n", currentUser);
             }
+        } else if(client == null){
+            try {
+                if(writer != null) writer.close();
+                else out.close();
+            } catch (IOException e1) {
+                System.err.printf("FAILED TO CLOSE CHANNEL WITH: %s\n", currentUser);
+            }
         }
     }
 }
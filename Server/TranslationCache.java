@@ -0,0 +1,66 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache LRU con scadenza delle traduzioni già effettuate.
+ * Thread-safe: tutti gli accessi sono sincronizzati sulla cache.
+ */
+class TranslationCache {
+    private final LinkedHashMap<String,Entry> entries;
+    private final long ttlMillis;
+
+    /**
+     * Valore in cache con il suo istante di scadenza.
+     */
+    private static final class Entry {
+        final String value;
+        final long expiresAt;
+
+        Entry(String value, long expiresAt){
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Inizializza una cache vuota.
+     *
+     * @param capacity numero massimo di traduzioni in cache.
+     * @param ttlMillis tempo di vita (ms) di una traduzione in cache.
+     */
+    TranslationCache(int capacity, long ttlMillis){
+        this.ttlMillis = ttlMillis;
+        /* accessOrder = true: l'elemento più vecchio è quello usato meno di recente. */
+        this.entries = new LinkedHashMap<String,Entry>(16,0.75f,true){
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest){
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Ritorna la traduzione in cache se presente e non scaduta.
+     *
+     * @param key chiave della traduzione.
+     * @return traduzione, null se assente o scaduta.
+     */
+    synchronized String get(String key){
+        Entry e = entries.get(key);
+        if(e == null) return null;
+        if(e.expiresAt < System.currentTimeMillis()){
+            entries.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    /**
+     * Inserisce una traduzione in cache.
+     *
+     * @param key chiave della traduzione.
+     * @param value traduzione.
+     */
+    synchronized void put(String key, String value){
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+    }
+}
@@ -0,0 +1,225 @@
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traduce i messaggi di chat in maniera asincrona: le traduzioni
+ * sono messe in cache, richieste identiche in corso vengono unite
+ * in un'unica richiesta HTTP ed eseguite da un pool limitato.
+ * Se il servizio fallisce ripetutamente un circuit breaker fa
+ * saltare la traduzione finché una richiesta di prova non ha successo.
+ */
+class Translator {
+    static final String STD_ENDPOINT = "https://api.mymemory.translated.net/get";
+    private static final int QUEUE_LEN = 1024;
+
+    private final String endpoint;
+    private final long timeoutMillis;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final CircuitBreaker breaker;
+    private final TranslationCache cache;
+    /* Traduzioni in corso: più messaggi identici attendono la stessa richiesta. */
+    private final ConcurrentHashMap<String,CompletableFuture<String>> inFlight;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timer;
+    /* Metriche: richieste HTTP, fallite, saltate dal breaker e messaggi oltre il budget. */
+    private final AtomicLong requests;
+    private final AtomicLong failures;
+    private final AtomicLong skipped;
+    private final AtomicLong overBudget;
+
+    /**
+     * Inizializza la pipeline di traduzione.
+     *
+     * @param endpoint url del servizio di traduzione (compatibile con MyMemory).
+     * @param threads numero massimo di richieste HTTP contemporanee.
+     * @param timeoutMillis tempo massimo (ms) di attesa di una traduzione (budget per messaggio).
+     * @param connectTimeout timeout (ms) di connessione al servizio.
+     * @param readTimeout timeout (ms) di lettura della risposta del servizio.
+     * @param cacheSize numero massimo di traduzioni in cache.
+     * @param ttlMillis tempo di vita (ms) di una traduzione in cache.
+     * @param breaker circuit breaker verso il servizio.
+     */
+    Translator(String endpoint, int threads, long timeoutMillis, int connectTimeout, int readTimeout,
+               int cacheSize, long ttlMillis, CircuitBreaker breaker){
+        this.endpoint = endpoint;
+        this.timeoutMillis = timeoutMillis;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.breaker = breaker;
+        this.requests = new AtomicLong(0);
+        this.failures = new AtomicLong(0);
+        this.skipped = new AtomicLong(0);
+        this.overBudget = new AtomicLong(0);
+        this.cache = new TranslationCache(cacheSize, ttlMillis);
+        this.inFlight = new ConcurrentHashMap<>();
+        this.workers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(QUEUE_LEN));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Traduce il messaggio dalla lingua del mittente a quella del destinatario.
+     *
+     * @param sourceLang lingua del mittente.
+     * @param destLang lingua del destinatario.
+     * @param msg messaggio da tradurre.
+     * @return future completata con il messaggio tradotto oppure
+     *         con il messaggio originale se la traduzione fallisce
+     *         o non arriva entro il timeout.
+     */
+    public CompletableFuture<String> translate(String sourceLang, String destLang, String msg){
+        if(sourceLang.equals(destLang)) return CompletableFuture.completedFuture(msg);
+        String key = sourceLang + '|' + destLang + '|' + msg;
+        String cached = cache.get(key);
+        if(cached != null) return CompletableFuture.completedFuture(cached);
+        CompletableFuture<String> shared = inFlight.computeIfAbsent(key, k -> fetch(k, sourceLang, destLang, msg));
+        /* Se la richiesta è terminata prima dell'inserimento la rimozione in fetch() non ha effetto. */
+        if(shared.isDone()) inFlight.remove(key, shared);
+        CompletableFuture<String> result = new CompletableFuture<>();
+        shared.whenComplete((translated, e) -> result.complete(translated != null ? translated : msg));
+        if(!result.isDone()) {
+            timer.schedule(() -> {
+                if(result.complete(msg)) overBudget.incrementAndGet();
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * Sottomette la richiesta di traduzione al pool.
+     *
+     * @param key chiave della traduzione.
+     * @param sourceLang lingua del mittente.
+     * @param destLang lingua del destinatario.
+     * @param msg messaggio da tradurre.
+     * @return future completata con la traduzione, null se fallisce
+     *         o se il breaker è aperto.
+     */
+    private CompletableFuture<String> fetch(String key, String sourceLang, String destLang, String msg){
+        if(!breaker.allowRequest()){
+            skipped.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<String> future = new CompletableFuture<>();
+        future.whenComplete((translated, e) -> {
+            if(translated != null) cache.put(key, translated);
+            inFlight.remove(key, future);
+        });
+        try {
+            workers.execute(() -> {
+                requests.incrementAndGet();
+                String translated = null;
+                /* Anche se la richiesta lancia un'eccezione il breaker va informato
+                 * e la future completata, altrimenti resta in inFlight per sempre. */
+                try {
+                    translated = doTranslationRequest(sourceLang, destLang, msg);
+                } finally {
+                    if(translated != null) {
+                        breaker.onSuccess();
+                    }else{
+                        failures.incrementAndGet();
+                        breaker.onFailure();
+                    }
+                    future.complete(translated);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            System.err.println("TRANSLATION QUEUE FULL");
+            /* allowRequest() può aver fatto passare la prova di HALF_OPEN: senza
+             * esito il breaker resterebbe HALF_OPEN e salterebbe ogni richiesta. */
+            breaker.onFailure();
+            /* Completo in un altro thread: sono dentro la computeIfAbsent di inFlight. */
+            timer.execute(() -> future.complete(null));
+        }
+        return future;
+    }
+
+    /**
+     * Effettua la richiesta di traduzione del messaggio
+     * e ritorna la risposta.
+     *
+     * @param sourceLang lingua del mittente.
+     * @param destLang lingua del destinatario.
+     * @param msg messaggio da tradurre.
+     * @return il messaggio tradotto se la richiesta va a buon fine,
+     *         null altrimenti.
+     */
+    private String doTranslationRequest(String sourceLang, String destLang, String msg){
+        String translatedMsg = null;
+        StringBuilder result2 = new StringBuilder();
+        try {
+            URL url = new URL(endpoint + "?of=json&q=" + URLEncoder.encode(msg, "UTF-8") +
+                    "&langpair=" + URLEncoder.encode(sourceLang + "|" + destLang, "UTF-8"));
+            /* HttpURLConnection per singola richiesta ma la TCP sotto può essere riutilizzata. */
+            HttpURLConnection uc = (HttpURLConnection) url.openConnection();
+            /* Senza timeout un servizio lento blocca il worker per il timeout del sistema. */
+            uc.setConnectTimeout(connectTimeout);
+            uc.setReadTimeout(readTimeout);
+            BufferedReader rd = new BufferedReader(new InputStreamReader(uc.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = rd.readLine()) != null) {
+                result2.append(line);
+            }
+            rd.close();
+            /* Può chiudere la connessione TCP sottostante. */
+            uc.disconnect();
+            JSONParser parser = new JSONParser();
+            JSONObject obj = (JSONObject) parser.parse(result2.toString());
+            Object status = obj.get("responseStatus");
+            if(status != null && status.toString().equals("200")){
+                JSONObject responseDate = (JSONObject) obj.get("responseData");
+                if(responseDate != null) {
+                    translatedMsg = (String) responseDate.get("translatedText");
+                }
+            }
+        } catch (MalformedURLException e) {
+            System.err.println("MALFORMED URL FOR TRANSLATION");
+        } catch (UnsupportedEncodingException e) {
+            System.err.println("UNSUPPORTED ENCODING FOR TRANSLATION");
+        } catch (IOException e) {
+            System.err.println("IO EXCEPTION MESSAGE TRANSLATION");
+        } catch (ParseException | ClassCastException e) {
+            System.err.println("PARSING TRANSLATION REPLY EXCEPTION");
+        }
+        return translatedMsg;
+    }
+
+    /**
+     * Stampa le metriche della pipeline di traduzione.
+     */
+    public void printStats(){
+        System.out.printf("[TRANSLATOR] breaker: %s trips: %d requests: %d failures: %d skipped: %d over budget: %d\n",
+                breaker.getState(), breaker.getTrips(), requests.get(), failures.get(),
+                skipped.get(), overBudget.get());
+    }
+
+    /**
+     * Termina il pool delle richieste ed il timer.
+     */
+    public void close(){
+        workers.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,275 @@
+import org.json.simple.JSONObject;
+
+import java.rmi.RemoteException;
+
+/**
+ * Istantanea, presa sotto il lock della tabella degli utenti, dei canali
+ * verso un utente: chat socket e stub per le callback RMI. Con le
+ * notifiche push gli eventi vanno sulla chat socket, insieme ai messaggi.
+ * Permette di fare l'I/O verso l'utente dopo aver rilasciato il lock,
+ * così un client lento non blocca gli altri utenti nello stesso bin.
+ */
+class UserEndpoint implements ReplyCodeServer {
+    /* Eventi di log delle notifiche, via push (chat socket) o rmi. */
+    private static final LogEvent NEW_FRIEND = new LogEvent(LogLevel.DEBUG, "notify.newfriend", false, "usr", "friend", "via");
+    private static final LogEvent STATUS_CHANGE = new LogEvent(LogLevel.DEBUG, "notify.status", false, "usr", "friend", "via");
+    private static final LogEvent NOTIFY_FAILED = new LogEvent(LogLevel.WARN, "notify.failed", false, "usr", "friend", "event");
+    private final String usr;
+    private final UserStatus status;
+    private final Mailbox mailbox;
+    private final ChatEvent stubCE;
+    private final boolean push;
+
+    /**
+     * Inizializza l'istantanea dei canali verso l'utente.
+     *
+     * @param usr nome dell'utente.
+     * @param status status dell'utente al momento dell'istantanea.
+     * @param mailbox coda in uscita verso la chat socket.
+     * @param stubCE stub del client per le callback.
+     * @param push true se le notifiche vanno sulla chat socket.
+     */
+    UserEndpoint(String usr, UserStatus status, Mailbox mailbox, ChatEvent stubCE, boolean push){
+        this.usr = usr;
+        this.status = status;
+        this.mailbox = mailbox;
+        this.stubCE = stubCE;
+        this.push = push;
+    }
+
+    /**
+     * Ritorna lo status dell'utente al momento dell'istantanea.
+     *
+     * @return status dell'utente.
+     */
+    public UserStatus getUsrStat(){
+        return status;
+    }
+
+    /**
+     * Ritorna true se l'utente, al momento dell'istantanea,
+     * era online con la chat socket inizializzata.
+     *
+     * @return true se si possono accodare messaggi all'utente.
+     */
+    public boolean isReachable(){
+        return status.equals(UserStatus.ONLINE) && mailbox != null;
+    }
+
+    /**
+     * Manda un messaggio di chat dal mittente all'utente.
+     *
+     * @param sourceUsr mittente del messaggio.
+     * @param msg body del messaggio.
+     * @return OK se il messaggio è stato accodato.
+     *         OFFLINE se la chat socket è chiusa.
+     *         QUEUE_FULL se la coda in uscita dell'utente è piena.
+     */
+    public SSCode sendChatMsg(String sourceUsr, String msg){
+        JSONObject obj = new JSONObject();
+        obj.put(TYPE,CHATMSG);
+        obj.put(FROM,sourceUsr);
+        obj.put(MSG,msg);
+        return send(obj);
+    }
+
+    /**
+     * Manda un messaggio salvato nella casella offline senza
+     * che la politica della coda in uscita scarti altri messaggi.
+     *
+     * @param sourceUsr mittente del messaggio.
+     * @param msg body del messaggio.
+     * @return OK se il messaggio è stato accodato.
+     *         OFFLINE se la chat socket è chiusa.
+     *         QUEUE_FULL se la coda in uscita dell'utente è piena.
+     */
+    public SSCode sendStoredMsg(String sourceUsr, String msg){
+        if(mailbox == null) return SSCode.OFFLINE;
+        JSONObject obj = new JSONObject();
+        obj.put(TYPE,CHATMSG);
+        obj.put(FROM,sourceUsr);
+        obj.put(MSG,msg);
+        return mailbox.offerIfRoom(obj);
+    }
+
+    /**
+     * Ritorna true se la coda in uscita può scartare messaggi già accodati.
+     *
+     * @return true se la politica della coda è DROP_OLDEST.
+     */
+    public boolean canDrop(){
+        return mailbox != null && mailbox.canDrop();
+    }
+
+    /**
+     * Ritorna il numero di messaggi scartati dalla coda in uscita.
+     *
+     * @return messaggi scartati, 0 senza chat socket.
+     */
+    public long dropped(){
+        return mailbox == null ? 0 : mailbox.dropped();
+    }
+
+    /**
+     * Ritorna true se tutti i messaggi accodati sono stati scritti.
+     *
+     * @return true se la coda in uscita è vuota e la chat socket aperta.
+     */
+    public boolean isFlushed(){
+        return mailbox != null && mailbox.isFlushed();
+    }
+
+    /**
+     * Manda una richiesta di invio file dal mittente all'utente.
+     *
+     * @param sourceUsr mittente della richiesta.
+     * @param fileName nome del file da inviare.
+     * @param len lunghezza del file.
+     * @param ide identificatore univoco del file.
+     * @param streams connessioni parallele proposte, null se non indicate.
+     * @param relayPort porta del relay dei file, null se il relay è disattivato.
+     * @return OK se la richiesta è stata accodata.
+     *         OFFLINE se la chat socket è chiusa.
+     *         QUEUE_FULL se la coda in uscita dell'utente è piena.
+     */
+    public SSCode requestFileMsg(String sourceUsr, String fileName, Long len, Long ide, Long streams, Long relayPort){
+        JSONObject obj = new JSONObject();
+        obj.put(TYPE,FILEMSG);
+        obj.put(FROM,sourceUsr);
+        obj.put(FILENAME,fileName);
+        obj.put(IDE,ide);
+        obj.put(LEN,len);
+        if(streams != null) obj.put(STREAMS,streams);
+        if(relayPort != null) obj.put(RELAY,relayPort);
+        return send(obj);
+    }
+
+    /**
+     * Se l'utente è online manda le informazioni
+     * su come connettersi al destinatario del file.
+     *
+     * @param ip ip del destinatario, null se riceve solo tramite relay.
+     * @param port porta del destinatario, null se riceve solo tramite relay.
+     * @param ide identificatore univoco del file.
+     * @param streams connessioni parallele accettate, null se non indicate.
+     * @param token token del trasferimento sul relay, null se non si usa il relay.
+     * @param relayPort porta del relay, null se non si usa il relay.
+     * @implNote se il mittente (this) è andato offline
+     *           non informo il destinatario del file in
+     *           quanto rimarrà bloccato sulla accept()
+     *           per al più TIMEOUT tempo.
+     */
+    public void sendSocketInfo(String ip, Long port, Long ide, Long streams, Long token, Long relayPort) {
+        if(!status.equals(UserStatus.OFFLINE)){
+            JSONObject obj = new JSONObject();
+            obj.put(TYPE,SOCKETINFO);
+            if(ip != null) obj.put(IP,ip);
+            if(port != null) obj.put(PORT,port);
+            obj.put(IDE,ide);
+            if(streams != null) obj.put(STREAMS,streams);
+            if(token != null){
+                obj.put(TOKEN,token);
+                obj.put(RELAY,relayPort);
+            }
+            send(obj);
+        }
+    }
+
+    /**
+     * Notifica l'utente (mittente di un messaggio) che la
+     * consegna del messaggio al destinatario è fallita.
+     *
+     * @param destUsr destinatario del messaggio.
+     * @param code motivo del fallimento.
+     */
+    public void notifyDeliveryFailure(String destUsr, SSCode code){
+        JSONObject obj = new JSONObject();
+        obj.put(TYPE,NACK);
+        switch (code){
+            case NOT_FRIENDS:
+                obj.put(MSG,usrNotFriend(destUsr));
+                break;
+            case QUEUE_FULL:
+                obj.put(MSG,usrBusy(destUsr));
+                break;
+            case OFFLINE_FULL:
+                obj.put(MSG,usrOfflineFull(destUsr));
+                break;
+            default:
+                obj.put(MSG,usrOffline(destUsr));
+                break;
+        }
+        send(obj);
+    }
+
+    /**
+     * Notifica, attraverso callback RMI o la chat socket, l'utente
+     * che è stato aggiunto da un altro utente come amico.
+     *
+     * @param newFriend utente che ha aggiunto una nuova relazione.
+     * @param newFriendLang lingua dell'utente che ha aggiunto una nuova relazione.
+     * @implNote lo stub è valido solo se l'utente era ONLINE al momento
+     *           dell'istantanea: durante il LOGGING lo stub può essere vecchio/nullo.
+     */
+    public void notifyNewFriend(String newFriend,String newFriendLang) {
+        if(status.equals(UserStatus.ONLINE) && push){
+            JSONObject obj = new JSONObject();
+            obj.put(TYPE,NEWFRIEND);
+            obj.put(FROM,newFriend);
+            obj.put(LANG,newFriendLang);
+            if(send(obj).equals(SSCode.OK)) NEW_FRIEND.log(usr,newFriend,"push");
+        }else if(status.equals(UserStatus.ONLINE) && stubCE != null){
+            try {
+                stubCE.notifyNewFriend(newFriend,newFriendLang);
+                NEW_FRIEND.log(usr,newFriend,"rmi");
+            } catch (RemoteException e) {
+                NOTIFY_FAILED.log(usr,newFriend,"newfriend");
+            }
+        }
+    }
+
+    /**
+     * Notifica, attraverso callback RMI o la chat socket,
+     * l'utente che un amico ha cambiato status.
+     *
+     * @param friend utente amico che ha cambiato status.
+     * @param newStatus nuovo status dell'amico.
+     * @return true se la callback è andata a buon fine, false se
+     *         l'utente è offline o la callback è fallita (o scaduta).
+     */
+    public boolean notifyFriendStatusChange(String friend, String newStatus){
+        if(status.equals(UserStatus.ONLINE) && push){
+            JSONObject obj = new JSONObject();
+            obj.put(TYPE,STATUSCHANGE);
+            obj.put(FROM,friend);
+            obj.put(STATUS,newStatus);
+            /* La coda piena conta come callback fallita. */
+            return send(obj).equals(SSCode.OK);
+        }else if(status.equals(UserStatus.ONLINE) && stubCE != null){
+            try{
+                stubCE.notifyFriendStatusChange(friend,newStatus);
+                STATUS_CHANGE.log(usr,friend,"rmi");
+                return true;
+            } catch (RemoteException e) {
+                NOTIFY_FAILED.log(usr,friend,"status");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Accoda un messaggio verso la chat socket.
+     *
+     * @param obj messaggio da inviare all'utente.
+     * @return OK se il messaggio è stato accodato.
+     *         OFFLINE se la chat socket non è inizializzata o è chiusa.
+     *         QUEUE_FULL se la coda in uscita dell'utente è piena.
+     * @implNote la scrittura sulla socket avviene in un altro thread,
+     *           così la latenza del mittente non dipende dalla rete
+     *           del destinatario.
+     */
+    private SSCode send(JSONObject obj){
+        if(mailbox == null) return SSCode.OFFLINE;
+        return mailbox.offer(obj);
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assegna ad ogni username un id intero denso (0, 1, 2, ...) alla
+ * registrazione, così amici e follower sono insiemi di int (IntSet)
+ * invece che di stringhe. Gli id non vengono mai riusati: gli
+ * utenti non possono essere cancellati.
+ */
+class UserIds {
+    private static final int INITIAL_CAPACITY = 1024;
+    private final ConcurrentHashMap<String,Integer> ids;
+    /* names[id] = username; il riferimento cambia solo quando l'array cresce. */
+    private volatile String[] names;
+    private int next;
+
+    UserIds(){
+        this.ids = new ConcurrentHashMap<>();
+        this.names = new String[INITIAL_CAPACITY];
+        this.next = 0;
+    }
+
+    /**
+     * Ritorna l'id dell'utente, assegnandone uno nuovo
+     * se l'username non ne ha ancora uno.
+     *
+     * @param usr nome dell'utente.
+     * @return id dell'utente.
+     * @implNote lo slot di names è scritto prima di pubblicare l'id
+     *           nella mappa: chi ottiene l'id legge anche il nome.
+     */
+    int intern(String usr){
+        Integer id = ids.get(usr);
+        if(id != null) return id;
+        synchronized (this){
+            id = ids.get(usr);
+            if(id != null) return id;
+            String[] current = names;
+            if(next == current.length) current = Arrays.copyOf(current, current.length * 2);
+            current[next] = usr;
+            names = current;
+            ids.put(usr, next);
+            return next++;
+        }
+    }
+
+    /**
+     * Ritorna l'id dell'utente senza assegnarne uno.
+     *
+     * @param usr nome dell'utente.
+     * @return id dell'utente, -1 se l'utente non è registrato.
+     */
+    int id(String usr){
+        Integer id = ids.get(usr);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Ritorna l'username a cui è stato assegnato l'id.
+     *
+     * @param id id restituito da intern().
+     * @return nome dell'utente.
+     */
+    String name(int id){
+        return names[id];
+    }
+}
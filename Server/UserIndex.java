@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Indice degli username per la ricerca (SEARCHUSR), aggiornato alla
+ * registrazione. La ricerca ignora maiuscole e minuscole.
+ * Prefisso: gli username sono ordinati in una skip list (lock-free),
+ * una pagina costa una ricerca logaritmica più gli elementi letti.
+ * Errori di battitura: ogni username è indicizzato per trigrammi
+ * (id di UserIds), i candidati che condividono abbastanza trigrammi
+ * con la ricerca sono verificati con la distanza di edit.
+ */
+class UserIndex {
+    /* Separa la chiave minuscola dall'username originale nella skip list. */
+    private static final char SEPARATOR = '\u0000';
+    /* Delimitatori di inizio e fine parola per i trigrammi. */
+    private static final char BEGIN = '\u0001';
+    private static final char END = '\u0002';
+    private static final int GRAM = 3;
+    /* Trigrammi più frequenti di così non filtrano nulla e vengono saltati. */
+    private static final int MAX_POSTINGS = 50000;
+
+    private final UserIds ids;
+    /* minuscolo + SEPARATOR + username: ordina per minuscolo e tiene distinti gli omonimi. */
+    private final ConcurrentSkipListSet<String> keys;
+    /* <Trigramma, id degli utenti che lo contengono>. */
+    private final ConcurrentHashMap<String,Postings> grams;
+
+    /**
+     * Id degli utenti che contengono un trigramma. Si aggiunge solo
+     * in coda; i lettori leggono size prima di ids, così l'array
+     * letto contiene sempre i primi size elementi.
+     */
+    private static final class Postings {
+        private volatile int[] ids = new int[2];
+        private volatile int size = 0;
+
+        synchronized void add(int id){
+            int[] current = ids;
+            if(size == current.length){
+                int[] grown = new int[current.length * 2];
+                System.arraycopy(current, 0, grown, 0, size);
+                current = grown;
+            }
+            current[size] = id;
+            ids = current;
+            size = size + 1;
+        }
+    }
+
+    /**
+     * Inizializza l'indice vuoto.
+     *
+     * @param ids id degli utenti registrati.
+     */
+    UserIndex(UserIds ids){
+        this.ids = ids;
+        this.keys = new ConcurrentSkipListSet<>();
+        this.grams = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Aggiunge un utente appena registrato all'indice.
+     *
+     * @param usr nome dell'utente.
+     * @implNote va invocato una sola volta per utente, dopo
+     *           che l'username ha ricevuto il suo id.
+     */
+    void add(String usr){
+        String lower = usr.toLowerCase(Locale.ROOT);
+        int id = ids.intern(usr);
+        for(String gram : grams(lower)){
+            grams.computeIfAbsent(gram, k -> new Postings()).add(id);
+        }
+        /* Per ultimo: chi trova l'utente per prefisso lo trova anche nei trigrammi. */
+        keys.add(lower + SEPARATOR + usr);
+    }
+
+    /**
+     * Ritorna una pagina degli username che iniziano con il prefisso.
+     *
+     * @param prefix prefisso cercato.
+     * @param cursor ultimo username della pagina precedente, null per la prima.
+     * @param limit username massimi nella pagina.
+     * @return pagina di username in ordine alfabetico (minuscolo).
+     */
+    Page prefix(String prefix, String cursor, int limit){
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        NavigableSet<String> tail = cursor == null ? keys.tailSet(lower, true)
+                : keys.tailSet(cursor.toLowerCase(Locale.ROOT) + SEPARATOR + cursor, false);
+        ArrayList<String> names = new ArrayList<>();
+        for(String key : tail){
+            if(!key.startsWith(lower)) break;
+            if(names.size() == limit) return new Page(names, names.get(limit - 1));
+            names.add(key.substring(key.indexOf(SEPARATOR) + 1));
+        }
+        return new Page(names, null);
+    }
+
+    /**
+     * Ritorna gli username simili alla ricerca (errori di battitura)
+     * che non iniziano con essa.
+     *
+     * @param query username cercato.
+     * @param limit username massimi ritornati.
+     * @return username a distanza di edit al più 1 (ricerche da 4 a 7
+     *         caratteri) o 2 (da 8), dal più vicino; vuota per le
+     *         ricerche più corte.
+     */
+    List<String> similar(String query, int limit){
+        String lower = query.toLowerCase(Locale.ROOT);
+        int maxEdits = lower.length() >= 8 ? 2 : lower.length() >= 4 ? 1 : 0;
+        if(maxEdits == 0 || limit == 0) return Collections.emptyList();
+        LinkedHashSet<String> queryGrams = grams(lower);
+        /* Ogni edit distrugge al più GRAM trigrammi distinti. */
+        int needed = queryGrams.size() - GRAM * maxEdits;
+        HashMap<Integer,Integer> shared = new HashMap<>();
+        for(String gram : queryGrams){
+            Postings postings = grams.get(gram);
+            if(postings == null) continue;
+            int size = postings.size;
+            if(size > MAX_POSTINGS){
+                /* Lo considero condiviso da tutti: il filtro resta corretto. */
+                needed--;
+                continue;
+            }
+            int[] posted = postings.ids;
+            for(int i = 0; i < size; i++) shared.merge(posted[i], 1, Integer::sum);
+        }
+        if(needed <= 0) return Collections.emptyList();
+        ArrayList<Map.Entry<String,Integer>> matches = new ArrayList<>();
+        for(Map.Entry<Integer,Integer> candidate : shared.entrySet()){
+            if(candidate.getValue() < needed) continue;
+            String name = ids.name(candidate.getKey());
+            String candidateLower = name.toLowerCase(Locale.ROOT);
+            if(candidateLower.startsWith(lower)) continue;
+            int distance = distance(lower, candidateLower, maxEdits);
+            if(distance <= maxEdits) matches.add(Map.entry(name, distance));
+        }
+        matches.sort(Map.Entry.<String,Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        ArrayList<String> names = new ArrayList<>();
+        for(int i = 0; i < matches.size() && i < limit; i++) names.add(matches.get(i).getKey());
+        return names;
+    }
+
+    /**
+     * Trigrammi distinti di una parola delimitata da BEGIN ed END.
+     *
+     * @param lower parola in minuscolo.
+     * @return trigrammi della parola.
+     */
+    private static LinkedHashSet<String> grams(String lower){
+        String padded = BEGIN + lower + END;
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for(int i = 0; i + GRAM <= padded.length(); i++) result.add(padded.substring(i, i + GRAM));
+        return result;
+    }
+
+    /**
+     * Distanza di edit (Levenshtein) fra due parole, interrotta
+     * appena supera il massimo.
+     *
+     * @param a prima parola.
+     * @param b seconda parola.
+     * @param max distanza massima di interesse.
+     * @return distanza, oppure max + 1 se è maggiore di max.
+     */
+    private static int distance(String a, String b, int max){
+        if(Math.abs(a.length() - b.length()) > max) return max + 1;
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for(int j = 0; j <= b.length(); j++) previous[j] = j;
+        for(int i = 1; i <= a.length(); i++){
+            current[0] = i;
+            int rowMin = i;
+            for(int j = 1; j <= b.length(); j++){
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if(rowMin > max) return max + 1;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+}
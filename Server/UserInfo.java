@@ -1,25 +1,31 @@
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
 
 class UserInfo {
     /* Contiene le info dell'utente lato client. */
     private final String usr;
     private final String lang;
-    final Set<String> friends;
+    /* Id dell'utente e degli amici assegnati da ids. */
+    final int id;
+    final UserIds ids;
+    final IntSet friends;
+    /* Id degli amici nell'ordine in cui sono stati aggiunti: i primi n sono la revisione n. */
+    private int[] added;
 
     /**
      * Inizializza le informazioni sull'utente.
      *
      * @param usr nome dell'utente.
      * @param lang lingua predefinita dell'utente.
+     * @param ids id degli utenti registrati.
      */
-    UserInfo(String usr, String lang){
+    UserInfo(String usr, String lang, UserIds ids){
         this.usr = usr;
         this.lang = lang;
-        friends = new HashSet<>();
-
+        this.ids = ids;
+        this.id = ids.intern(usr);
+        friends = new IntSet();
+        added = new int[0];
     }
 
     /**
@@ -43,19 +49,48 @@ class UserInfo {
     /**
      * Ritorna la lista degli amici dell'utente.
      *
-     * @return lista degli amici.
+     * @return lista degli amici, nell'ordine in cui sono stati aggiunti.
      */
     public ArrayList<String> getFriendsList(){
-        return new ArrayList<>(friends);
+        return getFriendsSince(0, friends.size());
+    }
+
+    /**
+     * Ritorna la revisione della lista amici, che cresce ad ogni
+     * amico aggiunto. Le amicizie non si rimuovono, quindi la
+     * revisione è il numero di amici.
+     *
+     * @return revisione della lista amici.
+     */
+    public int getFriendsRevision(){
+        return friends.size();
+    }
+
+    /**
+     * Ritorna gli amici aggiunti dopo una revisione.
+     *
+     * @param since revisione di partenza, al più getFriendsRevision().
+     * @param limit amici massimi ritornati.
+     * @return amici delle revisioni da since + 1 in poi, al più limit.
+     */
+    public ArrayList<String> getFriendsSince(int since, int limit){
+        int end = (int) Math.min(friends.size(), (long) since + limit);
+        ArrayList<String> list = new ArrayList<>(Math.max(0, end - since));
+        for(int i = since; i < end; i++) list.add(ids.name(added[i]));
+        return list;
     }
 
     /**
-     * Inizializza la lista degli amici dell'utente.
+     * Aggiunge un amico, se non è già presente, e avanza la revisione.
      *
-     * @param tmpFriendsList lista degli amici.
+     * @param friend id dell'amico.
+     * @return true se l'amico è stato aggiunto, false se era già presente.
      */
-    public void setFriendsList(List<String> tmpFriendsList){
-        friends.addAll(tmpFriendsList);
+    boolean addFriendId(int friend){
+        if(!friends.add(friend)) return false;
+        if(friends.size() > added.length) added = Arrays.copyOf(added, Math.max(4, added.length * 2));
+        added[friends.size() - 1] = friend;
+        return true;
     }
 
     /**
@@ -67,6 +102,7 @@ class UserInfo {
      *         false altrimenti.
      */
     public boolean checkFriend(String usr){
-        return friends.contains(usr);
+        int friend = ids.id(usr);
+        return friend >= 0 && friends.contains(friend);
     }
 }
@@ -1,23 +1,21 @@
-import org.json.simple.JSONObject;
-
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 /**
  * Contiene le info dell'utente lato server, nonchè la socket
- * per i messaggi di chat e lo stub per le notifiche RMI.
+ * per i messaggi di chat e lo stub per le notifiche RMI
+ * (oppure se le notifiche viaggiano sulla chat socket).
  */
 class UserOperation extends UserInfo implements ReplyCodeServer{
 
     private final String psw;
-    private final HashSet<String> followers;
+    private final IntSet followers;
     private final HashSet<String> groups;
     private volatile UserStatus status;
-    private BufferedWriter chatWriter;
+    private Mailbox mailbox;
     private ChatEvent stubCE;
+    /* True se le notifiche vanno sulla chat socket invece che allo stub. */
+    private boolean push;
 
     /**
      * Inizializza le informazioni sull'utente.
@@ -25,13 +23,14 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
      * @param usr nome dell'utente.
      * @param psw password dell'utente.
      * @param lang lingua predefinita dell'utente.
+     * @param ids id degli utenti registrati.
      */
-    public UserOperation(String usr, String psw, String lang){
-        super(usr,lang);
+    public UserOperation(String usr, String psw, String lang, UserIds ids){
+        super(usr,lang,ids);
         this.psw = psw;
         this.status = UserStatus.OFFLINE;
         this.groups = new HashSet<>();
-        this.followers = new HashSet<>();
+        this.followers = new IntSet();
     }
 
     /**
@@ -43,8 +42,15 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
         return this.status;
     }
 
-    public Set<String> getFollowers(){
-        return this.followers;
+    /**
+     * Ritorna i follower dell'utente.
+     *
+     * @return copia della lista dei follower.
+     */
+    public List<String> getFollowers(){
+        ArrayList<String> list = new ArrayList<>(followers.size());
+        for(int follower : followers.toArray()) list.add(ids.name(follower));
+        return list;
     }
 
     /**
@@ -68,6 +74,16 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
         return result;
     }
 
+    /**
+     * Ritorna la password dell'utente.
+     *
+     * @return password dell'utente.
+     * @implNote usato solo per scrivere l'istantanea degli utenti.
+     */
+    String getPsw(){
+        return this.psw;
+    }
+
     /**
      * Controlla che la password corrisponda
      * al parametro.
@@ -81,12 +97,23 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
     }
 
     /**
-     * Inizializza il lato in scrittura della chat socket.
+     * Inizializza la coda in uscita verso la chat socket.
+     *
+     * @param mailbox coda in uscita verso la chat socket.
+     */
+    public void setMailbox(Mailbox mailbox){
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Stacca la coda in uscita se è ancora quella indicata: una
+     * chat socket che si chiude non deve staccare quella di un
+     * login successivo.
      *
-     * @param chatWriter lato in scrittura della chat socket.
+     * @param expected coda della chat socket che si è chiusa.
      */
-    public void setChatWriter(BufferedWriter chatWriter){
-        this.chatWriter = chatWriter;
+    public void clearMailbox(Mailbox expected){
+        if(this.mailbox == expected) this.mailbox = null;
     }
 
     /**
@@ -100,9 +127,27 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
      */
     public void setLoginCallBack(ChatEvent loginCallBack) {
         this.stubCE = loginCallBack;
+        this.push = false;
         this.status = UserStatus.ONLINE;
     }
 
+    /**
+     * Modifica lo status dell'utente da LOGGING ad ONLINE con
+     * le notifiche inviate sulla chat socket, senza stub.
+     *
+     * @return true se l'utente stava facendo il login ed è
+     *         ora ONLINE, false altrimenti.
+     * @implNote va invocato dopo setMailbox(), così ONLINE
+     *           implica una coda verso cui inviare le notifiche.
+     */
+    public boolean setPushEvents() {
+        if(!status.equals(UserStatus.LOGGING)) return false;
+        this.stubCE = null;
+        this.push = true;
+        this.status = UserStatus.ONLINE;
+        return true;
+    }
+
     /**
      * Aggiunge, se non è già presente, l'utente
      * passato come parametro alla lista amici.
@@ -112,12 +157,7 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
      *         false se l'utente è già nella lista amici.
      */
     public boolean addFriend(String usr){
-        boolean result = false;
-        if(!friends.contains(usr)){
-            friends.add(usr);
-            result = true;
-        }
-        return result;
+        return addFriendId(ids.intern(usr));
     }
 
     /**
@@ -127,118 +167,37 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
      * @param usr follower da aggiungere.
      */
     public void addFollower(String usr){
-        if(!followers.contains(usr)){
-            followers.add(usr);
-        }
-    }
-
-    /**
-     * Notifica, attraverso callback RMI, l'utente corrente che è stato aggiunto da un altro
-     * utente come amico.
-     *
-     * @param newFriend utente che ha aggiunto una nuova relazione.
-     * @param newFriendLang lingua dell'utente che ha aggiunto una nuova relazione.
-     */
-    public void notifyNewFriend(String newFriend,String newFriendLang) {
-        if(status.equals(UserStatus.ONLINE) && stubCE != null){
-            try {
-                stubCE.notifyNewFriend(newFriend,newFriendLang);
-                System.out.printf("[NEW FRIEND] user: %s new friend: %s\n",getUsr(),newFriend);
-            } catch (RemoteException e) {
-                System.out.println("EXCEPTION IN NOTIFY NEW FRIEND TO :" + getUsr() + " NEW FRIEND : " + newFriend);
-            }
-        }
-    }
-
-    /**
-     * Notifica, attraverso callback RMI, l'utente corrente che
-     * un amico ha cambiato status.
-     *
-     * @param usr utente amico che ha cambiato status.
-     * @param newStatus nuovo status dell'amico.
-     */
-    public void notifyFriendStatusChange(String usr, String newStatus){
-        if(status.equals(UserStatus.ONLINE) && stubCE != null){
-            try{
-                stubCE.notifyFriendStatusChange(usr,newStatus);
-                System.out.printf("[FRIEND STATUS CHANGE] user: %s friend: %s\n",getUsr(),usr);
-            } catch (RemoteException e) {
-                System.out.println("EXCEPTION IN NOTIFY STATUS CHANGE TO :" + getUsr() + " USER : " + usr);
-            }
-        }
+        followers.add(ids.intern(usr));
     }
 
     /**
-     * Manda un messaggio di chat dal mittente
-     * al destinatario (this).
+     * Controlla se l'utente (this) può ricevere un messaggio
+     * o una richiesta di invio file dal mittente.
      *
      * @param sourceUsr mittente del messaggio.
-     * @param msg body del messaggio.
-     * @return OK se l'invio va a buon fine.
+     * @return OK se il messaggio può essere inviato.
      *         OFFLINE se il destinatario (this) è offline.
      *         NOT_FRIENDS se il destinatario (this) e
      *                     il mittente non sono amici.
      */
-    public SSCode sendChatMsg(String sourceUsr, String msg){
+    public SSCode checkChatMsg(String sourceUsr){
         /* Ho preferito un'early return in quanto gli if sarebbero meno leggibili. */
         if(status.equals(UserStatus.OFFLINE)) return SSCode.OFFLINE;
-        if(!friends.contains(sourceUsr)) return SSCode.NOT_FRIENDS;
-        JSONObject obj = new JSONObject();
-        obj.put(TYPE,CHATMSG);
-        obj.put(FROM,sourceUsr);
-        obj.put(MSG,msg);
-        if(!send(obj)) return SSCode.OFFLINE;
-        return SSCode.OK;
-
-    }
-
-    /**
-     * Manda una richiesta di invio file dal mittente
-     * al destinatario (this).
-     *
-     * @param sourceUsr mittente della richiesta.
-     * @param fileName nome del file da inviare.
-     * @param len lunghezza del file.
-     * @param ide identificatore univoco del file.
-     * @return OK se l'invio della richiesta va a buon fine.
-     *         OFFLINE se il destinatario (this) è offline.
-     *         NOT_FRIENDS se il destinatario (this) e
-     *                     il mittente non sono amici.
-     */
-    public SSCode requestFileMsg(String sourceUsr, String fileName, Long len, Long ide){
-        if(status.equals(UserStatus.OFFLINE)) return SSCode.OFFLINE;
-        if(!friends.contains(sourceUsr)) return SSCode.NOT_FRIENDS;
-        JSONObject obj = new JSONObject();
-        obj.put(TYPE,FILEMSG);
-        obj.put(FROM,sourceUsr);
-        obj.put(FILENAME,fileName);
-        obj.put(IDE,ide);
-        obj.put(LEN,len);
-        if(!send(obj)) return SSCode.OFFLINE;
+        if(!checkFriend(sourceUsr)) return SSCode.NOT_FRIENDS;
         return SSCode.OK;
     }
 
     /**
-     * Se l'utente è online manda le informazioni
-     * su come connettersi al destinatario del file.
+     * Ritorna un'istantanea dei canali verso l'utente con cui
+     * fare l'I/O dopo aver rilasciato il lock sulla tabella.
      *
-     * @param ip ip del destinatario.
-     * @param port porta del destinatario.
-     * @param ide identificatore univoco del file.
-     * @implNote se il mittente (this) è andato offline
-     *           non informo il destinatario del file in
-     *           quanto rimarrà bloccato sulla accept()
-     *           per al più TIMEOUT tempo.
+     * @return istantanea di status, coda della chat socket e stub.
+     * @implNote va invocato all'interno della compute sulla tabella
+     *           degli utenti così status, writer e stub sono coerenti
+     *           (ad esempio lo stub è quello nuovo se lo status è ONLINE).
      */
-    public void sendSocketInfo(String ip, Long port, Long ide) {
-        if(!status.equals(UserStatus.OFFLINE)){
-            JSONObject obj = new JSONObject();
-            obj.put(TYPE,SOCKETINFO);
-            obj.put(IP,ip);
-            obj.put(PORT,port);
-            obj.put(IDE,ide);
-            send(obj);
-        }
+    public UserEndpoint getEndpoint(){
+        return new UserEndpoint(getUsr(),status,mailbox,stubCE,push);
     }
 
     /**
@@ -268,26 +227,4 @@ class UserOperation extends UserInfo implements ReplyCodeServer{
     public ArrayList<String> getGroups(){
         return new ArrayList<>(groups);
     }
-
-    /**
-     * Invia un messaggio sulla chat socket.
-     *
-     * @param obj messaggio di chat da inviare al destinatario (this).
-     * @return true se l'invio va a buon fine, false altrimenti.
-     * @implNote il line separator va aggiunto in questo modo
-     *           altrimenti l'operazione non è atomica/sincronizzata
-     *           e potrebbe creare inconsistenze.
-     */
-    private boolean send(JSONObject obj){
-        boolean result = true;
-        try{
-            chatWriter.write(obj.toJSONString() +System.getProperty("line.separator"));
-            chatWriter.flush();
-            System.out.printf("Send to: %s JSON: %s\n",getUsr(),obj.toJSONString());
-        } catch (IOException e) {
-            System.err.printf("FAILED TO SEND TO: %s\n",getUsr());
-            result = false;
-        }
-        return result;
-    }
 }
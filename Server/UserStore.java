@@ -0,0 +1,651 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Persistenza degli utenti e dei gruppi: le modifiche sono aggiunte
+ * ad un write-ahead log scritto da un solo thread che fa un'unica
+ * force() per tutte le modifiche accodate nel frattempo (group commit).
+ * Ogni snapshotEvery modifiche il log passa ad un nuovo segmento e
+ * viene scritta un'istantanea compatta dello stato, dopo la quale
+ * i segmenti e le istantanee precedenti sono cancellati.
+ * Al riavvio si carica l'istantanea più recente e si riapplicano
+ * l'ultimo segmento che copre e i segmenti successivi.
+ * Se la cartella dei dati è null la persistenza è disabilitata
+ * e tutte le operazioni non fanno nulla.
+ */
+class UserStore {
+    /* Operazioni registrate nel log. */
+    static final byte REGISTER = 1;
+    static final byte RELATION = 2;
+    static final byte CREATE_GROUP = 3;
+    static final byte JOIN_GROUP = 4;
+    static final byte CLOSE_GROUP = 5;
+
+    private static final int SNAPSHOT_MAGIC = 0x53434855;
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final int MAX_RECORD_LEN = 1 << 20;
+    /* Attesa in ms tra due tentativi di scrittura del log falliti. */
+    private static final long RETRY_DELAY = 1000;
+
+    private final File dir;
+    private final long snapshotEvery;
+    private ConcurrentHashMap<String,UserOperation> users;
+    private ConcurrentHashMap<String,Group> groups;
+    private MulticastAllocator addresses;
+    private UserIds ids;
+
+    /* Modifiche accodate e non ancora scritte, protette dal lock su this. */
+    private ArrayList<Entry> pending;
+    private long lastSeq;
+    private long durableSeq;
+    private boolean failed;
+    private boolean closed;
+
+    /* Stato del thread writer. */
+    private Thread writer;
+    private FileChannel log;
+    private long segment;
+    private long sinceSnapshot;
+    private Thread snapshotter;
+
+    /**
+     * Modifica in attesa di essere scritta nel log.
+     */
+    private static final class Entry {
+        final byte op;
+        final String[] args;
+
+        Entry(byte op, String[] args){
+            this.op = op;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Inizializza lo store sulla cartella dei dati.
+     *
+     * @param dir cartella dei dati, null per disabilitare la persistenza.
+     * @param snapshotEvery numero di modifiche dopo cui scrivere un'istantanea.
+     */
+    UserStore(File dir, long snapshotEvery){
+        this.dir = dir;
+        this.snapshotEvery = snapshotEvery;
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Ritorna true se la persistenza è abilitata.
+     *
+     * @return true se abilitata, false altrimenti.
+     */
+    boolean isEnabled(){
+        return dir != null;
+    }
+
+    /**
+     * Ricostruisce utenti e gruppi dall'ultima istantanea e dal log,
+     * poi apre un nuovo segmento e avvia il thread writer.
+     *
+     * @param users tabella degli utenti da riempire.
+     * @param groups tabella dei gruppi da riempire.
+     * @param addresses indirizzi multicast da assegnare ai gruppi ripristinati.
+     * @param ids id da assegnare agli utenti ripristinati.
+     * @throws IOException se la cartella dei dati non è utilizzabile,
+     *                     un'istantanea è illeggibile o sono finiti gli
+     *                     indirizzi multicast.
+     * @implNote va invocato prima di avviare i servizi: i gruppi
+     *           ripristinati vanno poi joinati sulla socket multicast.
+     */
+    void recover(ConcurrentHashMap<String,UserOperation> users,
+                 ConcurrentHashMap<String,Group> groups,
+                 MulticastAllocator addresses, UserIds ids) throws IOException {
+        this.users = users;
+        this.groups = groups;
+        this.addresses = addresses;
+        this.ids = ids;
+        if(dir == null) return;
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        long start = System.nanoTime();
+        TreeMap<Long,File> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        TreeMap<Long,File> segments = list(LOG_PREFIX, LOG_SUFFIX);
+        long base = -1;
+        if(!snapshots.isEmpty()){
+            base = snapshots.lastKey();
+            readSnapshot(snapshots.lastEntry().getValue());
+        }
+        long records = 0;
+        /* Il segmento base va riapplicato: vedi snapshot(). */
+        for(File file : segments.tailMap(base, true).values()){
+            records += replay(file);
+        }
+        /* Follower e gruppi dell'utente non sono nel log: si ricavano da amici e membri. */
+        for(UserOperation user : users.values()){
+            for(String friend : user.getFriendsList()){
+                UserOperation dest = users.get(friend);
+                if(dest != null) dest.addFollower(user.getUsr());
+            }
+        }
+        for(Group group : groups.values()){
+            for(String member : group.getMembers()){
+                UserOperation user = users.get(member);
+                if(user != null) user.addGroup(group.getGroupName());
+            }
+        }
+        segment = Math.max(base, segments.isEmpty() ? 0 : segments.lastKey()) + 1;
+        log = openSegment(segment);
+        sinceSnapshot = records;
+        System.out.printf("[STORE] RECOVERED users: %d groups: %d log records: %d in %d ms\n",
+                users.size(), groups.size(), records, (System.nanoTime() - start) / 1000000);
+        writer = new Thread(this::writeLoop, "user-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Accoda una modifica al log.
+     *
+     * @param op operazione (REGISTER, RELATION, ...).
+     * @param args argomenti dell'operazione.
+     * @return numero di sequenza da passare ad await(), 0 se la
+     *         persistenza è disabilitata.
+     * @implNote va invocato sotto il lock della tabella modificata,
+     *           nello stesso compute che applica la modifica: così
+     *           l'ordine nel log è quello in cui le modifiche sullo
+     *           stesso utente o gruppo sono state applicate. Non fa I/O.
+     */
+    long append(byte op, String... args){
+        if(dir == null) return 0;
+        synchronized (this){
+            pending.add(new Entry(op, args));
+            notifyAll();
+            return ++lastSeq;
+        }
+    }
+
+    /**
+     * Attende che la modifica sia stata scritta su disco.
+     *
+     * @param seq numero di sequenza ritornato da append().
+     * @return true se la modifica è su disco, false se la scrittura
+     *         del log è fallita.
+     * @implNote va invocato dopo aver rilasciato i lock sulle tabelle.
+     */
+    boolean await(long seq){
+        if(seq == 0) return true;
+        boolean interrupted = false;
+        boolean durable;
+        synchronized (this){
+            while(durableSeq < seq && !failed){
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            durable = durableSeq >= seq;
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        if(!durable) System.err.println("UNABLE TO PERSIST USER REGISTRY CHANGE");
+        return durable;
+    }
+
+    /**
+     * Scrive le modifiche rimaste, ferma il writer e chiude il log.
+     */
+    void close(){
+        if(dir == null || writer == null) return;
+        synchronized (this){
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+            if(snapshotter != null) snapshotter.join();
+        } catch (InterruptedException e) {
+            System.err.println("INTERRUPTED WHILE CLOSING USER STORE");
+        }
+        synchronized (this){
+            /* Le modifiche accodate dopo la chiusura non verranno scritte. */
+            failed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Scrive un batch nel log e lo forza su disco. Se la scrittura
+     * fallisce (es. disco pieno) tronca il segmento al punto in cui
+     * il batch iniziava e riprova ogni RETRY_DELAY ms: un record
+     * scritto a metà renderebbe illeggibili al riavvio tutti quelli
+     * successivi.
+     *
+     * @param buf batch codificato.
+     * @return true se il batch è su disco, false se lo store è stato
+     *         chiuso prima o il segmento non si può più troncare.
+     */
+    private boolean write(ByteBuffer buf){
+        while(true){
+            long start = -1;
+            try {
+                start = log.position();
+                buf.rewind();
+                while(buf.hasRemaining()) log.write(buf);
+                log.force(false);
+                return true;
+            } catch (IOException e) {
+                System.err.println("IO EXCEPTION WRITING USER REGISTRY LOG, RETRYING");
+            }
+            try {
+                if(start < 0) return false;
+                log.truncate(start);
+                log.position(start);
+            } catch (IOException e) {
+                System.err.println("IO EXCEPTION TRUNCATING USER REGISTRY LOG");
+                return false;
+            }
+            synchronized (this){
+                if(closed) return false;
+                try {
+                    wait(RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if(closed) return false;
+            }
+        }
+    }
+
+    /**
+     * Ciclo del thread writer: prende tutte le modifiche accodate,
+     * le scrive con una sola write e fa una sola force().
+     */
+    private void writeLoop(){
+        ArrayList<Entry> batch = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        long seq;
+        while(true){
+            synchronized (this){
+                while(pending.isEmpty() && !closed){
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if(pending.isEmpty()) break;
+                ArrayList<Entry> tmp = pending;
+                pending = batch;
+                batch = tmp;
+                seq = lastSeq;
+            }
+            boolean written;
+            try {
+                bytes.reset();
+                for(Entry entry : batch){
+                    encode(entry, bytes);
+                }
+                written = write(ByteBuffer.wrap(bytes.toByteArray()));
+            } catch (IOException e) {
+                System.err.println("IO EXCEPTION ENCODING USER REGISTRY LOG");
+                written = false;
+            }
+            if(!written){
+                synchronized (this){
+                    failed = true;
+                    notifyAll();
+                }
+                break;
+            }
+            sinceSnapshot += batch.size();
+            batch.clear();
+            synchronized (this){
+                durableSeq = seq;
+                notifyAll();
+            }
+            if(sinceSnapshot >= snapshotEvery && (snapshotter == null || !snapshotter.isAlive())){
+                rotate();
+            }
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("IO EXCEPTION CLOSING USER REGISTRY LOG");
+        }
+    }
+
+    /**
+     * Passa ad un nuovo segmento del log e avvia la scrittura
+     * dell'istantanea che copre i segmenti precedenti.
+     *
+     * @implNote l'istantanea è "fuzzy": può contenere anche modifiche
+     *           del nuovo segmento, che al ripristino vengono riapplicate.
+     *           Le operazioni sono idempotenti quindi il risultato è
+     *           lo stesso.
+     */
+    private void rotate(){
+        long covered = segment;
+        try {
+            FileChannel next = openSegment(covered + 1);
+            log.close();
+            log = next;
+            segment = covered + 1;
+        } catch (IOException e) {
+            System.err.println("IO EXCEPTION ROTATING USER REGISTRY LOG");
+            return;
+        }
+        sinceSnapshot = 0;
+        snapshotter = new Thread(() -> snapshot(covered), "user-store-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * Scrive l'istantanea dello stato corrente e cancella i file
+     * che essa rende inutili.
+     *
+     * @param covered ultimo segmento del log contenuto nell'istantanea,
+     *                riapplicato comunque al ripristino.
+     */
+    private void snapshot(long covered){
+        long start = System.nanoTime();
+        File tmp = new File(dir, SNAPSHOT_PREFIX + covered + ".tmp");
+        File target = new File(dir, SNAPSHOT_PREFIX + covered + SNAPSHOT_SUFFIX);
+        int userCount = 0;
+        int groupCount = 0;
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16){
+                public synchronized void write(byte[] b, int off, int len) throws IOException {
+                    crc.update(b, off, len);
+                    super.write(b, off, len);
+                }
+                public synchronized void write(int b) throws IOException {
+                    crc.update(b);
+                    super.write(b);
+                }
+            });
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(covered);
+            /* Ogni utente e gruppo è letto sotto il lock della sua chiave, come fanno i servizi. */
+            for(String usr : users.keySet()){
+                AtomicReference<String[]> user = new AtomicReference<>();
+                users.computeIfPresent(usr, (k,v)->{
+                    List<String> friends = v.getFriendsList();
+                    String[] fields = new String[3 + friends.size()];
+                    fields[0] = v.getUsr();
+                    fields[1] = v.getPsw();
+                    fields[2] = v.getLang();
+                    for(int i = 0; i < friends.size(); i++) fields[3 + i] = friends.get(i);
+                    user.set(fields);
+                    return v;
+                });
+                if(user.get() == null) continue;
+                out.writeByte(REGISTER);
+                writeStrings(out, user.get());
+                userCount++;
+            }
+            for(String name : groups.keySet()){
+                AtomicReference<String[]> group = new AtomicReference<>();
+                groups.computeIfPresent(name, (k,v)->{
+                    ArrayList<String> members = v.getMembers();
+                    String[] fields = new String[2 + members.size()];
+                    fields[0] = v.getGroupName();
+                    fields[1] = v.getAdmin();
+                    for(int i = 0; i < members.size(); i++) fields[2 + i] = members.get(i);
+                    group.set(fields);
+                    return v;
+                });
+                if(group.get() == null) continue;
+                out.writeByte(CREATE_GROUP);
+                writeStrings(out, group.get());
+                groupCount++;
+            }
+            out.writeByte(0);
+            out.flush();
+            long checksum = crc.getValue();
+            out.writeLong(checksum);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            System.err.println("IO EXCEPTION WRITING USER REGISTRY SNAPSHOT");
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("IO EXCEPTION PUBLISHING USER REGISTRY SNAPSHOT");
+            tmp.delete();
+            return;
+        }
+        /* L'istantanea copre i segmenti prima di covered. Covered si tiene: append() avviene
+         * dentro la compute, prima che il nuovo utente o gruppo sia nella tabella, quindi
+         * un record di covered può mancare dall'istantanea e va riapplicato al ripristino. */
+        for(File old : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(covered, false).values()) old.delete();
+        for(File old : list(LOG_PREFIX, LOG_SUFFIX).headMap(covered, false).values()) old.delete();
+        System.out.printf("[STORE] SNAPSHOT %d users: %d groups: %d in %d ms\n",
+                covered, userCount, groupCount, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Carica un'istantanea nelle tabelle.
+     *
+     * @param file istantanea da caricare.
+     * @throws IOException se l'istantanea è illeggibile o corrotta.
+     */
+    private void readSnapshot(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16){
+            public synchronized int read() throws IOException {
+                int b = super.read();
+                if(b >= 0) crc.update(b);
+                return b;
+            }
+            public synchronized int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if(n > 0) crc.update(b, off, n);
+                return n;
+            }
+        })) {
+            if(in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a snapshot: " + file);
+            in.readLong();
+            int op;
+            while((op = in.readByte()) != 0){
+                String[] fields = readStrings(in);
+                if(op == REGISTER){
+                    UserOperation user = new UserOperation(fields[0], fields[1], fields[2], ids);
+                    for(int i = 3; i < fields.length; i++) user.addFriend(fields[i]);
+                    users.put(fields[0], user);
+                }else if(op == CREATE_GROUP){
+                    Group group = new Group(fields[1], fields[0], allocate(), false);
+                    for(int i = 2; i < fields.length; i++) group.addMember(fields[i]);
+                    groups.put(fields[0], group);
+                }else{
+                    throw new IOException("Unknown snapshot record: " + op);
+                }
+            }
+            long expected = crc.getValue();
+            if(in.readLong() != expected) throw new IOException("Corrupted snapshot: " + file);
+        }
+    }
+
+    /**
+     * Riapplica un segmento del log. Un record incompleto o corrotto
+     * (scrittura interrotta) termina il segmento: il file viene troncato.
+     *
+     * @param file segmento da riapplicare.
+     * @return numero di record riapplicati.
+     * @throws IOException se la lettura del segmento fallisce.
+     */
+    private long replay(File file) throws IOException {
+        long records = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 1 << 16));
+            CRC32 crc = new CRC32();
+            long good = 0;
+            long length = raf.length();
+            byte[] payload = new byte[256];
+            while(good + 8 <= length){
+                int len = in.readInt();
+                int checksum = in.readInt();
+                if(len <= 0 || len > MAX_RECORD_LEN || good + 8 + len > length) break;
+                if(payload.length < len) payload = new byte[Math.max(len, payload.length * 2)];
+                in.readFully(payload, 0, len);
+                crc.reset();
+                crc.update(payload, 0, len);
+                if((int) crc.getValue() != checksum) break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, len));
+                apply(record.readByte(), readStrings(record));
+                good += 8 + len;
+                records++;
+            }
+            if(good < length){
+                System.err.printf("TRUNCATING USER REGISTRY LOG %s AT %d\n", file.getName(), good);
+                raf.setLength(good);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Assegna l'indirizzo multicast ad un gruppo ripristinato.
+     *
+     * @return indirizzo multicast.
+     * @throws IOException se gli indirizzi multicast sono finiti.
+     */
+    private InetAddress allocate() throws IOException {
+        InetAddress addr = addresses.allocate();
+        if(addr == null) throw new IOException("Multicast addresses exhausted");
+        return addr;
+    }
+
+    /**
+     * Applica un record del log alle tabelle.
+     *
+     * @param op operazione.
+     * @param args argomenti dell'operazione.
+     * @throws IOException se l'operazione non esiste.
+     * @implNote le operazioni sono idempotenti: riapplicare una modifica
+     *           già contenuta nell'istantanea non cambia lo stato.
+     */
+    private void apply(byte op, String[] args) throws IOException {
+        UserOperation user;
+        Group group;
+        switch (op){
+            case REGISTER:
+                if(!users.containsKey(args[0])) users.put(args[0], new UserOperation(args[0], args[1], args[2], ids));
+                break;
+            case RELATION:
+                user = users.get(args[0]);
+                if(user != null && users.containsKey(args[1])) user.addFriend(args[1]);
+                break;
+            case CREATE_GROUP:
+                if(!groups.containsKey(args[1])) groups.put(args[1], new Group(args[0], args[1], allocate(), false));
+                break;
+            case JOIN_GROUP:
+                group = groups.get(args[1]);
+                if(group != null) group.addMember(args[0]);
+                break;
+            case CLOSE_GROUP:
+                group = groups.remove(args[0]);
+                if(group != null) addresses.release(group.getInetAddr());
+                break;
+            default:
+                throw new IOException("Unknown log record: " + op);
+        }
+    }
+
+    /**
+     * Codifica un record del log: lunghezza, CRC32 e corpo.
+     *
+     * @param entry modifica da codificare.
+     * @param bytes buffer in cui scrivere il record.
+     * @throws IOException mai, scrive in memoria.
+     */
+    private static void encode(Entry entry, ByteArrayOutputStream bytes) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(entry.op);
+        writeStrings(out, entry.args);
+        byte[] payload = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(payload.length);
+        header.writeInt((int) crc.getValue());
+        bytes.write(payload);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for(String s : strings) out.writeUTF(s);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if(n < 0 || n > MAX_RECORD_LEN) throw new EOFException("Invalid record");
+        String[] strings = new String[n];
+        for(int i = 0; i < n; i++) strings[i] = in.readUTF();
+        return strings;
+    }
+
+    /**
+     * Apre in append un nuovo segmento del log.
+     *
+     * @param n numero del segmento.
+     * @return canale del segmento.
+     * @throws IOException se il segmento non può essere creato.
+     */
+    private FileChannel openSegment(long n) throws IOException {
+        FileChannel channel = new RandomAccessFile(new File(dir, LOG_PREFIX + n + LOG_SUFFIX), "rw").getChannel();
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * Elenca i file della cartella dei dati con il prefisso e il
+     * suffisso dati, ordinati per numero.
+     *
+     * @param prefix prefisso del nome.
+     * @param suffix suffisso del nome.
+     * @return file ordinati per numero.
+     */
+    private TreeMap<Long,File> list(String prefix, String suffix){
+        TreeMap<Long,File> files = new TreeMap<>();
+        File[] all = dir.listFiles();
+        if(all == null) return files;
+        for(File file : all){
+            String name = file.getName();
+            if(!name.startsWith(prefix) || !name.endsWith(suffix)) continue;
+            try {
+                files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+            } catch (NumberFormatException e) {
+                /* Non è un file dello store. */
+            }
+        }
+        return files;
+    }
+}